@@ -1,5 +1,9 @@
 package bcibot;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * This class implements a communication interface for an ER1 robot.
  * 
@@ -16,29 +20,58 @@ public class ArchitectureClient
 	 * @param _address String - the IP of the robot
 	 */
 	public ArchitectureClient(String _address)
+	{	
+		this(_address, ThreadMode.PLATFORM);
+	}
+	
+	/**
+	 * Constructor, initializes connection objects and chooses the kind of
+	 * thread the connections send on
+	 * @param _address String - the IP of the robot
+	 * @param _threadMode int - ThreadMode.PLATFORM or ThreadMode.VIRTUAL
+	 */
+	public ArchitectureClient(String _address, int _threadMode)
 	{	
 		address = _address;
+		threadMode = ThreadMode.validate(_threadMode);
+		events = new EventBus(threadMode);
+		responses = new SkippingPublisher<RobotEvent>("Responses", RESPONSE_BUFFER, threadMode);
 		Move = new Connection(address, MovePort, this, "Move");
 		Speak = new Connection(address, SpeakPort, this, "Speak");
 		Gripper = new Connection(address, GripperPort, this, "Gripper");
 		Camera = new Connection(address, CameraPort, this, "Camera");
+		Move.setDefaultTimeout(MOVE_TIMEOUT);
+		Speak.setDefaultTimeout(SPEAK_TIMEOUT);
+		Gripper.setDefaultTimeout(GRIPPER_TIMEOUT);
+		Camera.setDefaultTimeout(CAMERA_TIMEOUT);
 		
-		moveThread = new Thread(Move, "Move");
-		speakThread = new Thread(Speak, "Speak");
-		gripperThread = new Thread(Gripper, "Gripper");
-		cameraThread = new Thread(Camera, "Camera");
-		
-		moveThread.start();
-		speakThread.start();
-		gripperThread.start();
-		cameraThread.start();
+		status = new StatusMonitor(this, address, StatusPort);
+		startThread(new Runnable()
+		{
+			public void run() {pollEvents();}
+		}, "Event poll");
 	}
 	
 	/**
-	 * Sends a command to appropriate connection
+	 * Sends a command to appropriate connection. Each connection starts its
+	 * own sending thread when it has commands queued.
 	 * @param command String - the command to send
+	 * @throws CommandRejectedException - if the connection's queue is full and rejects commands
 	 */
 	public void sendCommand(String command)//decision making
+	{
+		sendCommand(command, 0);
+	}
+	
+	/**
+	 * Sends a command to appropriate connection with its own deadline
+	 * @param command String - the command to send
+	 * @param timeoutMillis long - how long the robot may stay silent once it
+	 *                             is sent, 0 for the connection's default
+	 * @return PendingCommand - the queued command, or null if it had no route
+	 * @throws CommandRejectedException - if the connection's queue is full and rejects commands
+	 */
+	public PendingCommand sendCommand(String command, long timeoutMillis)
 	{
 		//Cut the prefix off the beginning to route the command to the correct socket
 		String prefix = command.substring(0, 3);
@@ -48,50 +81,252 @@ public class ArchitectureClient
 		try
 		{
 			if (prefix.compareTo("ER1") == 0)
-			{
-				//MOVE_DONE = false;
-				Move.addCommand(postfix);
-				if(!moveThread.isAlive())
-				{
-					Thread moveThread = new Thread(Move, "Move");
-					moveThread.start();
-				}
-			}
+				return Move.addCommand(postfix, timeoutMillis);
 			
 			if (prefix.compareTo("SPK") == 0)
-			{
-				//SPEAK_DONE = false;
-				Speak.addCommand(postfix);
-				if (!speakThread.isAlive())
-				{
-					Thread speakThread = new Thread(Speak, "Speak");
-					speakThread.start();
-				}
-			}
+				return Speak.addCommand(postfix, timeoutMillis);
 			
 			if (prefix.compareTo("GRP") == 0)
-			{
-				//GRIPPER_DONE = false;
-				Gripper.addCommand(postfix);
-				if (!gripperThread.isAlive())
-				{
-					Thread gripperThread = new Thread(Gripper, "Gripper");
-					gripperThread.start();
-				}
-			}
+				return Gripper.addCommand(postfix, timeoutMillis);
 			
 			if (prefix.compareTo("CAM") == 0)
+				return Camera.addCommand(postfix, timeoutMillis);
+			
+			if (prefix.compareTo("BAT") == 0)
+				return getBattery().addCommand(postfix, timeoutMillis);
+			
+		}
+		catch (CommandRejectedException e){throw e;}
+		catch (Exception e){architectureError(e.toString());}
+		return null;
+	}
+	
+	/**
+	 * Sets how long the robot may stay silent while it works on a command on
+	 * a connection before the command fails with a CommandTimeoutException
+	 * and the connection reconnects
+	 * @param channel String - Move, Speak, Gripper, Camera or Battery
+	 * @param timeoutMillis long - the timeout, 0 to wait forever
+	 */
+	public void setCommandTimeout(String channel, long timeoutMillis)
+	{
+		Connection c = channel.equalsIgnoreCase("Battery") ? getBattery() : getConnection(channel);
+		if (c == null)
+			architectureError("No connection named " + channel);
+		else
+			c.setDefaultTimeout(timeoutMillis);
+	}
+	
+	/**
+	 * Sets how many commands a connection may queue and what happens when
+	 * it is full
+	 * @param channel String - Move, Speak, Gripper, Camera or Battery
+	 * @param capacity int - most commands queued
+	 * @param policy int - CommandQueue.BLOCK, REJECT, DROP_OLDEST or COALESCE
+	 */
+	public void setQueueLimits(String channel, int capacity, int policy)
+	{
+		Connection c = channel.equalsIgnoreCase("Battery") ? getBattery() : getConnection(channel);
+		if (c == null)
+			architectureError("No connection named " + channel);
+		else
+			c.getQueue().setLimits(capacity, policy);
+	}
+	
+	/**
+	 * Commands waiting to be sent on a connection
+	 * @param channel String - Move, Speak, Gripper, Camera or Battery
+	 * @return int - queued commands, 0 if the connection is not open
+	 */
+	public int getQueueDepth(String channel)
+	{
+		Connection c = getConnection(channel);
+		return c == null ? 0 : c.getPendingCount();
+	}
+	
+	/**
+	 * Records every command and response on all connections
+	 * @param recorder CommandRecorder - where to record, or null to stop recording
+	 */
+	public void setRecorder(CommandRecorder recorder)
+	{
+		Move.setRecorder(recorder);
+		Speak.setRecorder(recorder);
+		Gripper.setRecorder(recorder);
+		Camera.setRecorder(recorder);
+		batteryLock.lock();
+		try
+		{
+			this.recorder = recorder;
+			if (Battery != null)
+				Battery.setRecorder(recorder);
+		}
+		finally {batteryLock.unlock();}
+	}
+	
+	/**
+	 * The Battery connection, opened the first time it is needed so robots
+	 * without a battery module do not report a failed connection on start up
+	 * @return Connection - the battery connection
+	 */
+	private Connection getBattery()
+	{
+		batteryLock.lock();
+		try
+		{
+			if (Battery == null)
 			{
-				//CAMERA_DONE = false;
-				Camera.addCommand(postfix);
-				if (!cameraThread.isAlive())
-				{
-					Thread cameraThread = new Thread(Camera, "Camera");
-					cameraThread.start();
-				}
+				Battery = new Connection(address, BatteryPort, this, "Battery");
+				Battery.setRecorder(recorder);
+				Battery.setDefaultTimeout(BATTERY_TIMEOUT);
 			}
-			
-		}catch (Exception e){architectureError(e.toString());}
+			return Battery;
+		}
+		finally {batteryLock.unlock();}
+	}
+	
+	/**
+	 * Looks up a connection by name, for health monitoring
+	 * @param name String - Move, Speak, Gripper, Camera or Battery
+	 * @return Connection - the connection, or null if unknown or not opened
+	 */
+	public Connection getConnection(String name)
+	{
+		if (name.equalsIgnoreCase("Move"))
+			return Move;
+		if (name.equalsIgnoreCase("Speak"))
+			return Speak;
+		if (name.equalsIgnoreCase("Gripper"))
+			return Gripper;
+		if (name.equalsIgnoreCase("Camera"))
+			return Camera;
+		if (name.equalsIgnoreCase("Battery"))
+			return Battery;
+		return null;
+	}
+	
+	/**
+	 * Called by a Connection as each command goes out on its socket
+	 * @param channel String - name of the connection
+	 * @param command String - the command sent
+	 * @param nanos long - System.nanoTime() it was sent
+	 */
+	public void commandSent(String channel, String command, long nanos)
+	{
+		if (channel.equalsIgnoreCase("Move") && isMotion(command))
+			motionHistory.add(nanos, command.trim());
+		else if (channel.equalsIgnoreCase("Gripper"))
+			gripper.commandSent(command);
+	}
+	
+	/**
+	 * Tells the commands that change how the robot moves, moves, turns, arcs,
+	 * stops and linked lists of them, from the settings sent on the same
+	 * channel, such as speeds, which leave the current motion running
+	 * @param command String - a Move command
+	 * @return boolean - true if the robot starts doing something else
+	 */
+	static boolean isMotion(String command)
+	{
+		String c = command.trim().toLowerCase();
+		return c.equals("stop") || c.startsWith("move ") || c.startsWith("arc ")
+				|| c.startsWith("f cont arc ") || c.startsWith("b cont arc ") || c.startsWith("link ");
+	}
+	
+	/**
+	 * Called by a Connection's reader for every line the robot sends back:
+	 * answers, the events it reports while a command runs, and the events
+	 * polled for between commands
+	 * @param event RobotEvent - the line received, already sorted into a type
+	 */
+	public void responseReceived(RobotEvent event)
+	{
+		String channel = event.getChannel();
+		String line = event.getText();
+		if (channel.equalsIgnoreCase("Gripper"))
+			gripper.responseReceived(line);
+		else if (channel.equalsIgnoreCase("Battery"))
+		{
+			TelemetrySampler t = telemetry;
+			if (t != null)
+				t.batteryReply(line);
+		}
+		if (events.hasSubscribers())
+			events.publish(event);
+		if (responses.hasSubscribers())
+			responses.publish(event);
+	}
+	
+	/**
+	 * Polls every connection that has no command running for events, for as
+	 * long as the client is open. Only polls while someone is listening, so
+	 * an unwatched robot sees no extra traffic.
+	 */
+	private void pollEvents()
+	{
+		while (!closed)
+		{
+			try {Thread.sleep(IDLE_POLL);}
+			catch (InterruptedException e) {return;}
+			if (!events.hasSubscribers() && !responses.hasSubscribers())
+				continue;
+			Connection[] all = {Move, Speak, Gripper, Camera, Battery};
+			for (Connection c : all)
+			{
+				if (c != null)
+					c.pollIfIdle();
+			}
+		}
+	}
+	
+	/**
+	 * Sends replies on the Battery connection to a telemetry sampler
+	 * @param _telemetry TelemetrySampler - the sampler, or null for none
+	 */
+	public void setTelemetry(TelemetrySampler _telemetry)
+	{
+		telemetry = _telemetry;
+	}
+	
+	/**
+	 * Every line the robot sends, sorted into typed events
+	 * @return EventBus - the bus to subscribe to
+	 */
+	public EventBus getEventBus()
+	{
+		return events;
+	}
+	
+	/**
+	 * Every line the robot sends on any connection, as a Flow.Publisher.
+	 * Each subscriber buffers up to 256 responses it has not requested yet;
+	 * past that the oldest are skipped, so a slow subscriber never holds up
+	 * the connections.
+	 * @return SkippingPublisher - the publisher to subscribe to
+	 */
+	public SkippingPublisher<RobotEvent> getResponsePublisher()
+	{
+		return responses;
+	}
+	
+	/**
+	 * The gripper's state as last reported by the robot
+	 * @return GripperState - the cached gripper state
+	 */
+	public GripperState getGripperState()
+	{
+		return gripper;
+	}
+	
+	/**
+	 * Recent motion commands indexed by the time they were sent to the robot.
+	 * floor(t) gives the command the robot was executing at time t. Speed
+	 * and other settings are left out, as the motion they change goes on.
+	 * @return TimeRingBuffer - the motion history
+	 */
+	public TimeRingBuffer<String> getMotionHistory()
+	{
+		return motionHistory;
 	}
 	
 	/**
@@ -105,87 +340,245 @@ public class ArchitectureClient
 	
 	/**
 	 * Disconnect the client.
-	 * Disconnects the connections.
+	 * Disconnects the connections once their queued commands have been sent.
 	 */
 	public void disconnect()
 	{
-		if (Move != null)
-			Move.close();
-		if (Speak != null)
-			Speak.close();
-		if (Gripper != null)
-			Gripper.close();
-		if (Camera != null)
-			Camera.close();
+		close(0);
 	}
 	
+	/**
+	 * Closes every connection once its queued commands have been sent
+	 */
 	public void close()
-    {
-		if (Move != null)
-			Move.close();
-		if (Speak != null)
-			Speak.close();
-		if (Gripper != null)
-			Gripper.close();
-		if (Camera != null)
-			Camera.close();
-    }
-	
-	public synchronized boolean isCAMERA_DONE() {
-		return CAMERA_DONE;
+	{
+		close(0);
+	}
+	
+	/**
+	 * Closes every connection once its queued commands have been sent, or at
+	 * the deadline, whichever comes first. The connections drain at the same
+	 * time, each on its own sending thread, so this takes as long as the
+	 * slowest one rather than all of them added up, and returns as soon as
+	 * the last one finishes.
+	 * @param timeoutMillis long - longest to wait for all of them, 0 to wait forever
+	 * @return true if every command was sent, false if some were cancelled at the deadline
+	 */
+	public boolean close(long timeoutMillis)
+	{
+		closed = true;
+		Connection[] all = {Move, Speak, Gripper, Camera, Battery};
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		boolean drained = true;
+		
+		for (Connection c : all)
+		{
+			if (c == null)
+				continue;
+			try
+			{
+				long left = timeoutMillis <= 0 ? 0 : Math.max(1, deadline - System.currentTimeMillis());
+				if (!c.awaitDrained(left))
+					drained = false;
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				drained = false;
+				break;
+			}
+		}
+		
+		for (Connection c : all)
+		{
+			if (c != null)
+				c.close(1);//already drained, or cancel what is left
+		}
+		if (status != null)
+			status.close();
+		responses.close();
+		return drained;
+	}
+	
+	/**
+	 * Closes every connection straight away, cancelling queued commands
+	 * @return int - number of commands cancelled
+	 */
+	public int closeNow()
+	{
+		closed = true;
+		Connection[] all = {Move, Speak, Gripper, Camera, Battery};
+		int cancelled = 0;
+		for (Connection c : all)
+		{
+			if (c != null)
+				cancelled += c.closeNow();
+		}
+		if (status != null)
+			status.close();
+		responses.close();
+		return cancelled;
+	}
+	
+	public boolean isCAMERA_DONE() {
+		flagLock.lock();
+		try {return CAMERA_DONE;}
+		finally {flagLock.unlock();}
 	}
 
-	public synchronized boolean isGRIPPER_DONE() {
-		return GRIPPER_DONE;
+	public boolean isGRIPPER_DONE() {
+		flagLock.lock();
+		try {return GRIPPER_DONE;}
+		finally {flagLock.unlock();}
 	}
 
-	public synchronized boolean isMOVE_DONE() {
-		return MOVE_DONE;
+	public boolean isMOVE_DONE() {
+		flagLock.lock();
+		try {return MOVE_DONE;}
+		finally {flagLock.unlock();}
 	}
 
-	public synchronized boolean isSPEAK_DONE() {
-		return SPEAK_DONE;
+	public boolean isSPEAK_DONE() {
+		flagLock.lock();
+		try {return SPEAK_DONE;}
+		finally {flagLock.unlock();}
 	}
 
-	public synchronized void setCAMERA_DONE(boolean camera_done) {
-		CAMERA_DONE = camera_done;
+	public void setCAMERA_DONE(boolean camera_done) {
+		flagLock.lock();
+		try {
+			CAMERA_DONE = camera_done;
+			flagChanged.signalAll();
+		}
+		finally {flagLock.unlock();}
 	}
 
-	public synchronized void setGRIPPER_DONE(boolean gripper_done) {
-		GRIPPER_DONE = gripper_done;
+	public void setGRIPPER_DONE(boolean gripper_done) {
+		flagLock.lock();
+		try {
+			GRIPPER_DONE = gripper_done;
+			flagChanged.signalAll();
+		}
+		finally {flagLock.unlock();}
 	}
 
-	public synchronized void setMOVE_DONE(boolean move_done) {
-		MOVE_DONE = move_done;
+	public void setMOVE_DONE(boolean move_done) {
+		flagLock.lock();
+		try {
+			MOVE_DONE = move_done;
+			flagChanged.signalAll();
+		}
+		finally {flagLock.unlock();}
 	}
 
-	public synchronized void setSPEAK_DONE(boolean speak_done) {
-		SPEAK_DONE = speak_done;
+	public void setSPEAK_DONE(boolean speak_done) {
+		flagLock.lock();
+		try {
+			SPEAK_DONE = speak_done;
+			flagChanged.signalAll();
+		}
+		finally {flagLock.unlock();}
+	}
+
+	/**
+	 * Blocks until any done flag changes or the time runs out
+	 * @param millis long - longest to wait, must be more than 0
+	 * @throws InterruptedException - if interrupted while waiting
+	 */
+	public void awaitStatusChange(long millis) throws InterruptedException {
+		flagLock.lockInterruptibly();
+		try {flagChanged.await(Math.max(1, millis), TimeUnit.MILLISECONDS);}
+		finally {flagLock.unlock();}
+	}
+	
+	/**
+	 * The kind of thread this client's connections send on
+	 * @return int - ThreadMode.PLATFORM or ThreadMode.VIRTUAL
+	 */
+	public int getThreadMode() {
+		return threadMode;
+	}
+	
+	/**
+	 * Starts a task on a thread of this client's kind, for work that blocks
+	 * on the robot such as waiting for a command to finish
+	 * @param task Runnable - what to run
+	 * @param name String - the thread's name
+	 * @return Thread - the started thread
+	 */
+	public Thread startThread(Runnable task, String name) {
+		Thread t = ThreadMode.newThread(threadMode, task, name, true);
+		t.start();
+		return t;
+	}
+	
+	/**
+	 * Completion status of every module, from the robot when it can answer
+	 * @return StatusMonitor - the status monitor
+	 */
+	public StatusMonitor getStatusMonitor() {
+		return status;
+	}
+	
+	/**
+	 * Blocks until the Speak connection has finished every command given to it
+	 * @throws InterruptedException - if interrupted while waiting
+	 */
+	public void waitForSPEAK_DONE() throws InterruptedException {
+		flagLock.lockInterruptibly();
+		try {
+			while (!SPEAK_DONE)
+				flagChanged.await();
+		}
+		finally {flagLock.unlock();}
 	}
 	
 	//**************************************************************************
 	//Instance Variables********************************************************
 	//**************************************************************************
 
-	private Thread moveThread;
-	private Thread speakThread;
-	private Thread gripperThread;
-	private Thread cameraThread;
-	
 	private Connection Move;
 	private Connection Speak;
 	private Connection Gripper;
 	private Connection Camera;
+	private volatile Connection Battery;//opened on first use
 	
 	private int MovePort = 9010;
 	private int SpeakPort = 9011;
 	private int GripperPort = 9012;
 	private int CameraPort = 9013;
+	private int StatusPort = 9014;
+	private int BatteryPort = 9015;
 	
+	//default longest silence while a command runs, in ms
+	private static final long MOVE_TIMEOUT = 60000;
+	private static final long SPEAK_TIMEOUT = 30000;
+	private static final long GRIPPER_TIMEOUT = 15000;
+	private static final long CAMERA_TIMEOUT = 10000;
+	private static final long BATTERY_TIMEOUT = 5000;
+	
+	//guarded by flagLock, a lock rather than a monitor so that waiting
+	//virtual threads park instead of pinning their carrier
+	private final ReentrantLock flagLock = new ReentrantLock();
+	private final Condition flagChanged = flagLock.newCondition();
 	private boolean MOVE_DONE = true;
 	private boolean CAMERA_DONE = true;
 	private boolean SPEAK_DONE = true;
 	private boolean GRIPPER_DONE = true;
 	
 	private String address = "127.0.0.1";
+	private final int threadMode;
+	
+	private static final int MOTION_HISTORY_SIZE = 256;
+	private final TimeRingBuffer<String> motionHistory = new TimeRingBuffer<String>(MOTION_HISTORY_SIZE);
+	private final GripperState gripper = new GripperState();
+	private final EventBus events;
+	private static final int RESPONSE_BUFFER = 256;
+	private final SkippingPublisher<RobotEvent> responses;
+	private static final long IDLE_POLL = 500;//ms between events polls while no command runs
+	private volatile boolean closed = false;//stops the event poll
+	private StatusMonitor status;
+	private final ReentrantLock batteryLock = new ReentrantLock();//guards opening the Battery connection
+	private CommandRecorder recorder;
+	private volatile TelemetrySampler telemetry;
 }
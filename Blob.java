@@ -0,0 +1,84 @@
+package bcibot;
+
+import java.awt.Rectangle;
+
+/**
+ * One connected region of foreground pixels found by a BlobDetector.
+ * Coordinates are pixels of the image the mask was made from.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	Blob.java
+ */
+
+public class Blob
+{
+	/**
+	 * Constructor
+	 * @param _area int - number of pixels
+	 * @param _minX int - left edge, inclusive
+	 * @param _minY int - top edge, inclusive
+	 * @param _maxX int - right edge, inclusive
+	 * @param _maxY int - bottom edge, inclusive
+	 * @param _centerX double - mean x of the pixels
+	 * @param _centerY double - mean y of the pixels
+	 */
+	public Blob(int _area, int _minX, int _minY, int _maxX, int _maxY, double _centerX, double _centerY)
+	{
+		area = _area;
+		minX = _minX;
+		minY = _minY;
+		maxX = _maxX;
+		maxY = _maxY;
+		centerX = _centerX;
+		centerY = _centerY;
+	}
+
+	/** @return int - number of pixels */
+	public int getArea() {return area;}
+
+	/** @return double - mean x of the pixels */
+	public double getCenterX() {return centerX;}
+
+	/** @return double - mean y of the pixels */
+	public double getCenterY() {return centerY;}
+
+	/** @return int - left edge of the bounding box */
+	public int getX() {return minX;}
+
+	/** @return int - top edge of the bounding box */
+	public int getY() {return minY;}
+
+	/** @return int - width of the bounding box */
+	public int getWidth() {return maxX - minX + 1;}
+
+	/** @return int - height of the bounding box */
+	public int getHeight() {return maxY - minY + 1;}
+
+	/** @return Rectangle - the bounding box */
+	public Rectangle getBounds() {return new Rectangle(minX, minY, getWidth(), getHeight());}
+
+	/**
+	 * Where the blob is, for a VisualServoController
+	 * @param frameWidth int - width of the image the blob was found in
+	 * @return Target - the blob's horizontal offset and width as fractions of the frame
+	 */
+	public Target toTarget(int frameWidth)
+	{
+		double half = frameWidth / 2.0;
+		return new Target((centerX + 0.5 - half) / half, getWidth() / (double)frameWidth);
+	}
+
+	public String toString()
+	{
+		return String.format("Blob[area=%d, center=(%.1f, %.1f), box=%dx%d at (%d, %d)]",
+				area, centerX, centerY, getWidth(), getHeight(), minX, minY);
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private final int area;
+	private final int minX, minY, maxX, maxY;
+	private final double centerX, centerY;
+}
@@ -0,0 +1,254 @@
+package bcibot;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Finds the connected regions of foreground pixels in a mask, such as the
+ * one PixelKernels.matchColor makes of the pixels of a coloured ball.
+ *
+ * The mask is scanned once, row by row. Each foreground pixel takes the
+ * label of a labelled neighbour (8-connected) or a new one; when it touches
+ * two different labels they are joined in a union-find forest. Area,
+ * bounding box and centroid are added up per label during the same scan, so
+ * afterwards only the labels, not the pixels, are visited again to merge
+ * joined labels. Only two rows of labels are kept, and all the bookkeeping
+ * is in primitive arrays reused from one frame to the next.
+ *
+ * The scan can be limited to a window, which is how BlobTracker searches
+ * only around where it expects its blobs to be.
+ *
+ * Not thread safe: use one detector per thread.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	BlobDetector.java
+ */
+
+public class BlobDetector
+{
+	/**
+	 * Constructor
+	 * @param _minArea int - smallest blob reported, in pixels; smaller ones are noise
+	 */
+	public BlobDetector(int _minArea)
+	{
+		minArea = Math.max(1, _minArea);
+	}
+
+	/**
+	 * Finds the blobs in a whole mask
+	 * @param mask int[] - one value per pixel in row order, non-zero for foreground
+	 * @param width int - width of the image
+	 * @param height int - height of the image
+	 * @return List - the blobs of at least the minimum area, largest first
+	 */
+	public List<Blob> detect(int[] mask, int width, int height)
+	{
+		return detect(mask, width, height, null);
+	}
+
+	/**
+	 * Finds the blobs in part of a mask. A blob crossing the window's edge
+	 * is reported as the part inside it.
+	 * @param mask int[] - one value per pixel in row order, non-zero for foreground
+	 * @param width int - width of the image
+	 * @param height int - height of the image
+	 * @param window Rectangle - the part to search, or null for all of it
+	 * @return List - the blobs of at least the minimum area, largest first
+	 */
+	public List<Blob> detect(int[] mask, int width, int height, Rectangle window)
+	{
+		int x0 = 0, y0 = 0, x1 = width, y1 = height;
+		if (window != null)
+		{
+			x0 = Math.max(0, window.x);
+			y0 = Math.max(0, window.y);
+			x1 = Math.min(width, window.x + window.width);
+			y1 = Math.min(height, window.y + window.height);
+		}
+		if (x1 <= x0 || y1 <= y0)
+		{
+			scanned = 0;
+			return new ArrayList<Blob>();
+		}
+
+		int w = x1 - x0;
+		if (above == null || above.length < w)
+		{
+			above = new int[w];
+			row = new int[w];
+		}
+		Arrays.fill(above, 0, w, 0);
+		labels = 1;//0 is background
+
+		for (int y = y0; y < y1; y++)
+		{
+			int base = y * width;
+			for (int x = x0, i = 0; x < x1; x++, i++)
+			{
+				if (mask[base + x] == 0)
+				{
+					row[i] = 0;
+					continue;
+				}
+
+				//up-left is joined to up and to left already, so few cases are needed
+				int up = above[i];
+				int upLeft = i > 0 ? above[i - 1] : 0;
+				int upRight = i + 1 < w ? above[i + 1] : 0;
+				int left = i > 0 ? row[i - 1] : 0;
+				int label;
+				if (up != 0)
+					label = up;
+				else if (upRight != 0)
+				{
+					label = upRight;
+					if (left != 0)
+						union(label, left);
+					else if (upLeft != 0)
+						union(label, upLeft);
+				}
+				else if (left != 0)
+					label = left;
+				else if (upLeft != 0)
+					label = upLeft;
+				else
+					label = newLabel(x, y);
+
+				row[i] = label;
+				area[label]++;
+				sumX[label] += x;
+				sumY[label] += y;
+				if (x < minX[label]) minX[label] = x;
+				if (x > maxX[label]) maxX[label] = x;
+				if (y > maxY[label]) maxY[label] = y;
+			}
+			int[] t = above;
+			above = row;
+			row = t;
+		}
+		scanned = (long)w * (y1 - y0);
+
+		return collect();
+	}
+
+	/**
+	 * Pixels looked at by the last detect, to compare windowed and full searches
+	 * @return long - pixels scanned
+	 */
+	public long getLastScanned()
+	{
+		return scanned;
+	}
+
+	/** @return int - smallest blob reported, in pixels */
+	public int getMinArea() {return minArea;}
+
+	/**
+	 * Merges each label's totals into its root and makes Blobs of the roots
+	 */
+	private List<Blob> collect()
+	{
+		for (int l = 1; l < labels; l++)
+		{
+			int r = find(l);
+			if (r == l)
+				continue;
+			area[r] += area[l];
+			sumX[r] += sumX[l];
+			sumY[r] += sumY[l];
+			minX[r] = Math.min(minX[r], minX[l]);
+			maxX[r] = Math.max(maxX[r], maxX[l]);
+			minY[r] = Math.min(minY[r], minY[l]);
+			maxY[r] = Math.max(maxY[r], maxY[l]);
+		}
+
+		ArrayList<Blob> blobs = new ArrayList<Blob>();
+		for (int l = 1; l < labels; l++)
+		{
+			if (parent[l] != l || area[l] < minArea)
+				continue;
+			blobs.add(new Blob(area[l], minX[l], minY[l], maxX[l], maxY[l],
+					sumX[l] / (double)area[l], sumY[l] / (double)area[l]));
+		}
+		Collections.sort(blobs, LARGEST_FIRST);
+		return blobs;
+	}
+
+	private int newLabel(int x, int y)
+	{
+		int l = labels++;
+		if (l >= parent.length)
+		{
+			int n = parent.length * 2;
+			parent = Arrays.copyOf(parent, n);
+			area = Arrays.copyOf(area, n);
+			minX = Arrays.copyOf(minX, n);
+			minY = Arrays.copyOf(minY, n);
+			maxX = Arrays.copyOf(maxX, n);
+			maxY = Arrays.copyOf(maxY, n);
+			sumX = Arrays.copyOf(sumX, n);
+			sumY = Arrays.copyOf(sumY, n);
+		}
+		parent[l] = l;
+		area[l] = 0;
+		sumX[l] = 0;
+		sumY[l] = 0;
+		minX[l] = x;
+		maxX[l] = x;
+		minY[l] = y;//rows are scanned in order, so the first pixel is the top
+		maxY[l] = y;
+		return l;
+	}
+
+	private int find(int l)
+	{
+		while (parent[l] != l)
+		{
+			parent[l] = parent[parent[l]];//path halving
+			l = parent[l];
+		}
+		return l;
+	}
+
+	private void union(int a, int b)
+	{
+		int ra = find(a), rb = find(b);
+		if (ra < rb)
+			parent[rb] = ra;
+		else if (rb < ra)
+			parent[ra] = rb;
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static final int INITIAL_LABELS = 256;
+
+	private static final Comparator<Blob> LARGEST_FIRST = new Comparator<Blob>()
+	{
+		public int compare(Blob a, Blob b)
+		{
+			return b.getArea() - a.getArea();
+		}
+	};
+
+	private final int minArea;
+	private long scanned = 0;
+
+	//labels of the row above and the current row, within the window
+	private int[] above, row;
+
+	//union-find forest and per label totals, indexed by label
+	private int labels;
+	private int[] parent = new int[INITIAL_LABELS];
+	private int[] area = new int[INITIAL_LABELS];
+	private int[] minX = new int[INITIAL_LABELS], minY = new int[INITIAL_LABELS];
+	private int[] maxX = new int[INITIAL_LABELS], maxY = new int[INITIAL_LABELS];
+	private long[] sumX = new long[INITIAL_LABELS], sumY = new long[INITIAL_LABELS];
+}
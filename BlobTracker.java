@@ -0,0 +1,224 @@
+package bcibot;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Follows blobs from one frame to the next without searching the whole
+ * frame each time. Each tracked blob's box is moved by the blob's last
+ * velocity and grown by a margin, and the next frame is only searched inside
+ * the union of those boxes. A whole frame is searched when nothing is being
+ * tracked, and every so many frames to pick up blobs that have just
+ * appeared.
+ *
+ * A blob found in the window is matched to the nearest track whose
+ * prediction it is close to; tracks not matched for a few frames are
+ * dropped.
+ *
+ * Not thread safe: use one tracker per thread.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	BlobTracker.java
+ */
+
+public class BlobTracker
+{
+	/**
+	 * Constructor
+	 * @param _detector BlobDetector - finds the blobs in each mask
+	 * @param _margin int - pixels added around each predicted box, for movement
+	 *                      the velocity does not explain
+	 */
+	public BlobTracker(BlobDetector _detector, int _margin)
+	{
+		detector = _detector;
+		margin = Math.max(0, _margin);
+	}
+
+	/**
+	 * Finds the tracked blobs in the next frame's mask
+	 * @param mask int[] - one value per pixel in row order, non-zero for foreground
+	 * @param width int - width of the image
+	 * @param height int - height of the image
+	 * @return List - the blobs seen in this frame, largest first
+	 */
+	public List<Blob> update(int[] mask, int width, int height)
+	{
+		frames++;
+		boolean full = tracks.isEmpty() || fullScanInterval > 0 && frames % fullScanInterval == 0;
+		window = full ? null : predictWindow(width, height);
+
+		List<Blob> found = detector.detect(mask, width, height, window);
+		if (full)
+			fullScans++;
+		else
+			windowScans++;
+		scanned += detector.getLastScanned();
+
+		match(found);
+		return found;
+	}
+
+	/**
+	 * The blobs currently being tracked, as last seen
+	 * @return List - one blob per track
+	 */
+	public List<Blob> getTracked()
+	{
+		ArrayList<Blob> blobs = new ArrayList<Blob>(tracks.size());
+		for (Track t : tracks)
+			blobs.add(t.blob);
+		return blobs;
+	}
+
+	/**
+	 * Forgets every track, so the next frame is searched in full
+	 */
+	public void reset()
+	{
+		tracks.clear();
+		window = null;
+	}
+
+	/**
+	 * Sets how often the whole frame is searched even while tracking
+	 * @param _frames int - frames between full searches, or 0 for only when nothing is tracked
+	 */
+	public void setFullScanInterval(int _frames)
+	{
+		fullScanInterval = Math.max(0, _frames);
+	}
+
+	/**
+	 * Sets how many frames a blob may go unseen before its track is dropped
+	 * @param _frames int - frames
+	 */
+	public void setMaxMissed(int _frames)
+	{
+		maxMissed = Math.max(0, _frames);
+	}
+
+	/**
+	 * The part of the last frame that was searched
+	 * @return Rectangle - the window, or null if the whole frame was searched
+	 */
+	public Rectangle getSearchWindow()
+	{
+		return window == null ? null : new Rectangle(window);
+	}
+
+	/** @return long - frames searched in full */
+	public long getFullScans() {return fullScans;}
+
+	/** @return long - frames searched only inside the predicted window */
+	public long getWindowScans() {return windowScans;}
+
+	/** @return long - pixels scanned over all frames so far */
+	public long getPixelsScanned() {return scanned;}
+
+	/**
+	 * The union of the tracks' predicted boxes, clipped to the frame
+	 */
+	private Rectangle predictWindow(int width, int height)
+	{
+		Rectangle union = null;
+		for (Track t : tracks)
+		{
+			int steps = t.missed + 1;
+			int dx = (int)Math.round(t.vx * steps), dy = (int)Math.round(t.vy * steps);
+			int growX = (margin + (int)Math.ceil(Math.abs(t.vx))) * steps;
+			int growY = (margin + (int)Math.ceil(Math.abs(t.vy))) * steps;
+			Rectangle box = t.blob.getBounds();
+			box.translate(dx, dy);
+			box.grow(growX, growY);
+			union = union == null ? box : union.union(box);
+		}
+		return union.intersection(new Rectangle(0, 0, width, height));
+	}
+
+	/**
+	 * Greedily pairs each found blob with the closest unmatched track
+	 * predicted near it; the rest start new tracks
+	 */
+	private void match(List<Blob> found)
+	{
+		for (Track t : tracks)
+			t.matched = false;
+
+		for (Blob b : found)//largest first, so big blobs pick first
+		{
+			Track best = null;
+			double bestDistance = Double.MAX_VALUE;
+			for (Track t : tracks)
+			{
+				if (t.matched)
+					continue;
+				int steps = t.missed + 1;
+				double px = t.blob.getCenterX() + t.vx * steps;
+				double py = t.blob.getCenterY() + t.vy * steps;
+				double gate = (margin + Math.max(t.blob.getWidth(), t.blob.getHeight())) * steps;
+				double d = Math.hypot(b.getCenterX() - px, b.getCenterY() - py);
+				if (d <= gate && d < bestDistance)
+				{
+					best = t;
+					bestDistance = d;
+				}
+			}
+
+			if (best == null)
+			{
+				Track t = new Track(b);
+				t.matched = true;
+				tracks.add(t);
+				continue;
+			}
+			int steps = best.missed + 1;
+			best.vx = (b.getCenterX() - best.blob.getCenterX()) / steps;
+			best.vy = (b.getCenterY() - best.blob.getCenterY()) / steps;
+			best.blob = b;
+			best.missed = 0;
+			best.matched = true;
+		}
+
+		for (int i = tracks.size() - 1; i >= 0; i--)
+		{
+			Track t = tracks.get(i);
+			if (!t.matched && ++t.missed > maxMissed)
+				tracks.remove(i);
+		}
+	}
+
+	/**
+	 * A blob being followed, and how fast it moved last frame
+	 */
+	private static class Track
+	{
+		Track(Blob _blob)
+		{
+			blob = _blob;
+		}
+
+		Blob blob;
+		double vx = 0, vy = 0;//pixels per frame
+		int missed = 0;
+		boolean matched = false;
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private final BlobDetector detector;
+	private final int margin;
+	private int fullScanInterval = 30;
+	private int maxMissed = 3;
+
+	private final ArrayList<Track> tracks = new ArrayList<Track>();
+	private Rectangle window = null;
+
+	private long frames = 0;
+	private long fullScans = 0;
+	private long windowScans = 0;
+	private long scanned = 0;
+}
@@ -1,9 +1,15 @@
 package bcibot;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import java.io.*;
 import java.net.*;
+import java.util.Iterator;
 
 
 public class Camera
@@ -34,17 +40,154 @@ public class Camera
 	 */
 	public BufferedImage grabImage()
 	{
-		try {while (inStream.available() == 0);}
-		catch (IOException e1) {e1.printStackTrace();}
-		
+		return grabImage(null, 1);
+	}
+	
+	/**
+	 * Grabs an image from the robot but only decodes part of it, optionally
+	 * keeping every n-th pixel. Decoding a small region or a thumbnail is much
+	 * faster and smaller than decoding the whole frame.
+	 * @param region Rectangle - the part of the frame to decode, or null for all of it
+	 * @param subsample int - keep every subsample-th pixel in each direction, 1 for all
+	 * @return BufferedImage - the decoded part of the image
+	 */
+	public BufferedImage grabImage(Rectangle region, int subsample)
+	{
+		return grabImage(region, subsample, null);
+	}
+	
+	/**
+	 * Grabs an image from the robot, decoding it into an image from the pool
+	 * when one of the right size and type is free.
+	 * @param region Rectangle - the part of the frame to decode, or null for all of it
+	 * @param subsample int - keep every subsample-th pixel in each direction, 1 for all
+	 * @param pool ImagePool - where to get the image from, or null to allocate one
+	 * @return BufferedImage - the decoded part of the image, or null if it could not be read
+	 * @throws IllegalArgumentException - if the region is entirely outside the frame
+	 */
+	public BufferedImage grabImage(Rectangle region, int subsample, ImagePool pool)
+	{
 		BufferedImage image = null;
-		try {image = ImageIO.read(inStream);} 
-		catch (Exception e) {e.printStackTrace();}
+		try {image = decodeFrame(receiveEncoded(), region, subsample, pool);}
+		catch (IOException e) {e.printStackTrace();}
 		return image;
 	}
 	
+	/**
+	 * Reads the next image off the socket without decoding it, so receiving
+	 * one frame and decoding another can happen on different threads
+	 * @return byte[] - the encoded image
+	 * @throws IOException - if the image cannot be read
+	 */
+	byte[] receiveEncoded() throws IOException
+	{
+		return EncodedImageReader.read(inStream);
+	}
+	
+	/**
+	 * Decodes a frame read by receiveEncoded, recording it if recording is on
+	 * @param data byte[] - the encoded image
+	 * @param region Rectangle - the part of the frame to decode, or null for all of it
+	 * @param subsample int - keep every subsample-th pixel in each direction, 1 for all
+	 * @param pool ImagePool - where to get the image from, or null to allocate one
+	 * @return BufferedImage - the decoded part of the image
+	 * @throws IOException - if the image cannot be decoded
+	 */
+	BufferedImage decodeFrame(byte[] data, Rectangle region, int subsample, ImagePool pool) throws IOException
+	{
+		BufferedImage image = decode(data, region, subsample, pool);
+		FrameRecorder rec = recorder;
+		if (rec != null)
+			rec.append(image);
+		return image;
+	}
+	
+	/**
+	 * Decodes an encoded image using ImageIO source region and subsampling
+	 * @param data byte[] - the encoded image
+	 * @param region Rectangle - the part of the image to decode, or null for all of it
+	 * @param subsample int - keep every subsample-th pixel in each direction, 1 for all
+	 * @return BufferedImage - the decoded image
+	 * @throws IOException - if the image cannot be decoded
+	 */
+	static BufferedImage decode(byte[] data, Rectangle region, int subsample) throws IOException
+	{
+		return decode(data, region, subsample, null);
+	}
+	
+	/**
+	 * Decodes an encoded image, into a pooled image if a pool is given
+	 * @param data byte[] - the encoded image
+	 * @param region Rectangle - the part of the image to decode, or null for all of it
+	 * @param subsample int - keep every subsample-th pixel in each direction, 1 for all
+	 * @param pool ImagePool - where to get the destination image, or null to allocate one
+	 * @return BufferedImage - the decoded image, of the part of the region inside the frame
+	 * @throws IOException - if the image cannot be decoded
+	 * @throws IllegalArgumentException - if the region is entirely outside the frame
+	 */
+	static BufferedImage decode(byte[] data, Rectangle region, int subsample, ImagePool pool) throws IOException
+	{
+		ImageInputStream iis = new MemoryCacheImageInputStream(new ByteArrayInputStream(data));
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+		if (!readers.hasNext())
+			throw new IOException("No decoder for camera image");
+		
+		ImageReader reader = readers.next();
+		try
+		{
+			reader.setInput(iis, true, true);
+			ImageReadParam param = reader.getDefaultReadParam();
+			Rectangle area = new Rectangle(0, 0, reader.getWidth(0), reader.getHeight(0));
+			if (region != null)
+			{
+				Rectangle frame = area;
+				area = frame.intersection(region);
+				if (area.isEmpty())
+					throw new IllegalArgumentException("Region " + region.width + "x" + region.height + " at ("
+							+ region.x + ", " + region.y + ") is outside the " + frame.width + "x" + frame.height + " frame");
+				param.setSourceRegion(area);
+			}
+			if (subsample > 1)
+				param.setSourceSubsampling(subsample, subsample, 0, 0);
+			
+			BufferedImage destination = null;
+			if (pool != null)
+			{
+				int step = Math.max(1, subsample);
+				int w = (area.width + step - 1) / step;
+				int h = (area.height + step - 1) / step;
+				
+				int type = reader.getImageTypes(0).next().getBufferedImageType();
+				if (w > 0 && h > 0 && ImagePool.isPoolable(type))
+				{
+					destination = pool.acquire(w, h, type);
+					param.setDestination(destination);
+				}
+			}
+			
+			try {return reader.read(0, param);}
+			catch (IOException e)
+			{
+				if (destination != null)
+					pool.release(destination);
+				throw e;
+			}
+		}
+		finally {reader.dispose();}
+	}
+	
+	/**
+	 * Starts or stops recording every grabbed frame to disk
+	 * @param _recorder FrameRecorder - where to record, or null to stop
+	 */
+	public void setRecorder(FrameRecorder _recorder)
+	{
+		recorder = _recorder;
+	}
+	
 	/**
 	 * Closes the client. Must be called when camera is no longer in use.
+	 * A thread blocked reading a frame gets an IOException.
 	 */
 	public void close()
 	{
@@ -54,6 +197,8 @@ public class Camera
 		catch (Exception e){e.printStackTrace();}
 		try{socket.close();}
 		catch (Exception e){e.printStackTrace();}
+		try{server.close();}//so a new camera can listen on the port
+		catch (Exception e){e.printStackTrace();}
 	}
 
 	//**************************************************************************
@@ -65,6 +210,7 @@ public class Camera
 	private BufferedInputStream inStream; 
 	private PrintWriter outStream;
 	private ServerSocket server;
+	private volatile FrameRecorder recorder = null;
 
 	//private String GRAB_IMAGE = "grab image";
 	//private String DISCONNECT = "disconnect";
@@ -0,0 +1,301 @@
+package bcibot;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of commands waiting to go out on one Connection. What
+ * happens when a script queues commands faster than the robot can take
+ * them is chosen per queue:
+ *
+ * BLOCK        the caller waits for room (the default)
+ * REJECT       the command is refused with a CommandRejectedException
+ * DROP_OLDEST  the oldest queued command is thrown away to make room
+ * COALESCE     if the newest queued command and the new one both set the
+ *              same state outright, it is replaced, since the robot would
+ *              only be overridden by the new one anyway; otherwise the
+ *              caller waits for room
+ *
+ * Only commands that replace what came before are ever coalesced: the
+ * open-ended moves and turns, continuous arcs and stop, which all set how
+ * the robot is moving; the speed settings; and gripper open, close and
+ * stop. Moves and turns by a distance add to the ones before them ("move
+ * forward 10" then "move forward 3" goes 13 inches), so they are never
+ * merged.
+ *
+ * Either way the queue never holds more than its capacity, so a runaway loop
+ * cannot fill the heap. A caller waiting for room parks on a lock rather than
+ * a monitor, so it does not pin the carrier of a virtual thread.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	CommandQueue.java
+ */
+
+public class CommandQueue
+{
+	/**
+	 * Constructor, creates an empty queue
+	 * @param _capacity int - most commands held
+	 * @param _policy int - BLOCK, REJECT, DROP_OLDEST or COALESCE
+	 */
+	public CommandQueue(int _capacity, int _policy)
+	{
+		setLimits(_capacity, _policy);
+	}
+
+	/**
+	 * Changes the capacity and overflow policy. Commands already queued stay.
+	 * @param _capacity int - most commands held, at least 1
+	 * @param _policy int - BLOCK, REJECT, DROP_OLDEST or COALESCE
+	 */
+	public void setLimits(int _capacity, int _policy)
+	{
+		if (_policy < BLOCK || _policy > COALESCE)
+			throw new IllegalArgumentException("Unknown queue policy " + _policy);
+		lock.lock();
+		try
+		{
+			capacity = Math.max(1, _capacity);
+			policy = _policy;
+			notFull.signalAll();
+		}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Adds a command, applying the overflow policy if the queue is full.
+	 * Commands thrown away to make room are cancelled.
+	 * @param command PendingCommand - the command
+	 * @return boolean - true if the queue was empty before, so nothing is sending it yet
+	 * @throws CommandRejectedException - if full and the policy is REJECT
+	 * @throws InterruptedException - if interrupted while waiting for room
+	 */
+	public boolean add(PendingCommand command) throws InterruptedException
+	{
+		lock.lockInterruptibly();
+		try
+		{
+			while (commands.size() >= capacity)
+			{
+				if (policy == REJECT)
+				{
+					rejected++;
+					CommandRejectedException e = new CommandRejectedException(command.getText(), capacity);
+					command.fail(e);
+					throw e;
+				}
+				if (policy == DROP_OLDEST)
+				{
+					commands.poll().cancel();
+					dropped++;
+					continue;
+				}
+				String kind = policy == COALESCE ? kind(command.getText()) : null;
+				if (kind != null && !commands.isEmpty() && kind.equals(kind(commands.peekLast().getText())))
+				{
+					commands.pollLast().cancel();
+					commands.add(command);
+					coalesced++;
+					return false;
+				}
+				notFull.await();//BLOCK, or COALESCE with nothing to merge
+			}
+
+			commands.add(command);
+			highWater = Math.max(highWater, commands.size());
+			return commands.size() == 1;
+		}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Takes the oldest command
+	 * @return PendingCommand - the command, or null if the queue is empty
+	 */
+	public PendingCommand poll()
+	{
+		lock.lock();
+		try
+		{
+			PendingCommand command = commands.poll();
+			if (command != null)
+				notFull.signal();//room for a blocked producer
+			return command;
+		}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Cancels every queued command
+	 * @return int - number of commands cancelled
+	 */
+	public int clear()
+	{
+		lock.lock();
+		try
+		{
+			int n = commands.size();
+			for (PendingCommand c : commands)
+				c.cancel();
+			commands.clear();
+			dropped += n;
+			notFull.signalAll();
+			return n;
+		}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Copies the queued commands, oldest first
+	 * @return String[] - the commands
+	 */
+	public String[] toArray()
+	{
+		lock.lock();
+		try
+		{
+			String[] texts = new String[commands.size()];
+			int i = 0;
+			for (PendingCommand c : commands)
+				texts[i++] = c.getText();
+			return texts;
+		}
+		finally {lock.unlock();}
+	}
+
+	/** @return int - commands queued now */
+	public int size()
+	{
+		lock.lock();
+		try {return commands.size();}
+		finally {lock.unlock();}
+	}
+
+	/** @return boolean - true if nothing is queued */
+	public boolean isEmpty()
+	{
+		lock.lock();
+		try {return commands.isEmpty();}
+		finally {lock.unlock();}
+	}
+
+	/** @return int - most commands held */
+	public int getCapacity()
+	{
+		lock.lock();
+		try {return capacity;}
+		finally {lock.unlock();}
+	}
+
+	/** @return int - the overflow policy */
+	public int getPolicy()
+	{
+		lock.lock();
+		try {return policy;}
+		finally {lock.unlock();}
+	}
+
+	/** @return int - most commands ever queued at once */
+	public int getHighWater()
+	{
+		lock.lock();
+		try {return highWater;}
+		finally {lock.unlock();}
+	}
+
+	/** @return long - commands thrown away by DROP_OLDEST or clear() */
+	public long getDroppedCount()
+	{
+		lock.lock();
+		try {return dropped;}
+		finally {lock.unlock();}
+	}
+
+	/** @return long - commands refused by REJECT */
+	public long getRejectedCount()
+	{
+		lock.lock();
+		try {return rejected;}
+		finally {lock.unlock();}
+	}
+
+	/** @return long - commands replaced by COALESCE */
+	public long getCoalescedCount()
+	{
+		lock.lock();
+		try {return coalesced;}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Name of a policy constant, for printing
+	 * @param policy int - a policy constant
+	 * @return String - its name
+	 */
+	public static String policyName(int policy)
+	{
+		switch (policy)
+		{
+			case BLOCK: return "block";
+			case REJECT: return "reject";
+			case DROP_OLDEST: return "drop oldest";
+			case COALESCE: return "coalesce";
+			default: return "unknown";
+		}
+	}
+
+	public String toString()
+	{
+		lock.lock();
+		try {return "CommandQueue[" + commands.size() + "/" + capacity + ", " + policyName(policy) + "]";}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * What a command sets, if it replaces whatever set it before: commands
+	 * of the same kind can be coalesced, so "f cont arc 20" and "move left"
+	 * are both MOTION, "set m 30" and "set m 50" are both "set m"
+	 * @return String - the kind, or null for commands that must all be sent,
+	 *                  e.g. "move forward 10"
+	 */
+	static String kind(String command)
+	{
+		String c = command.trim().toLowerCase();
+		if (c.equals("stop") || c.startsWith("f cont arc ") || c.startsWith("b cont arc "))
+			return MOTION;
+		if (c.startsWith("move ") && c.indexOf(' ', 5) < 0)
+			return MOTION;//open-ended, until the next motion command
+		if (c.startsWith("set m ") || c.startsWith("set t "))
+			return c.substring(0, 5);
+		if (c.equals("gripper open") || c.equals("gripper close") || c.equals("gripper stop"))
+			return "gripper";
+		return null;
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	//POLICY CONSTANTS
+	public static final int BLOCK = 0;
+	public static final int REJECT = 1;
+	public static final int DROP_OLDEST = 2;
+	public static final int COALESCE = 3;
+
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private static final String MOTION = "motion";//kind of the commands that set how the robot moves
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notFull = lock.newCondition();
+
+	//guarded by lock
+	private final ArrayDeque<PendingCommand> commands = new ArrayDeque<PendingCommand>();
+	private int capacity;
+	private int policy;
+	private int highWater = 0;
+	private long dropped = 0;
+	private long rejected = 0;
+	private long coalesced = 0;
+}
@@ -0,0 +1,336 @@
+package bcibot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Records every command sent by a Connection, and the response that came
+ * back, into a compact append-only binary log. The file is memory-mapped in
+ * large chunks so a record costs a few buffer puts instead of a system call.
+ * Logs are read back with CommandReplayer.
+ *
+ * Commands that time out or fail are recorded too, with a status saying so
+ * and the error in place of the response. Records are written in the order
+ * the commands were sent: a command that finishes while one sent before it
+ * on another connection is still running is held until that one is
+ * recorded.
+ *
+ * File layout:
+ * <pre>
+ *   header: int MAGIC, short VERSION, long start time (ms since epoch)
+ *   record: byte RECORD, long send time (ns since start), int round trip (us),
+ *           byte channel, byte status, short length + command bytes,
+ *           short length + response bytes
+ * </pre>
+ * Strings are UTF-8 and truncated to 65535 bytes, never inside a character.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	CommandRecorder.java
+ */
+
+public class CommandRecorder
+{
+	/**
+	 * Constructor, creates (or truncates) the log file and writes the header
+	 * @param file File - where to write the log
+	 * @throws IOException - if the file cannot be created or mapped
+	 */
+	public CommandRecorder(File file) throws IOException
+	{
+		raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		channel = raf.getChannel();
+		startNanos = System.nanoTime();
+
+		map(0);
+		buffer.putInt(MAGIC);
+		buffer.putShort(VERSION);
+		buffer.putLong(System.currentTimeMillis());
+	}
+
+	/**
+	 * Notes that a command has gone out. Records of commands sent after it
+	 * are held until it is recorded, so the log stays in send order.
+	 * @param sentNanos long - System.nanoTime() when the command was sent
+	 */
+	public void commandSent(long sentNanos)
+	{
+		lock.lock();
+		try
+		{
+			if (!closed)
+				inFlight.add(sentNanos);
+		}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Appends one answered command/response pair
+	 * @param channelName String - name of the connection (Move, Speak, etc)
+	 * @param command String - the command that was sent
+	 * @param response String - the response from the robot
+	 * @param sentNanos long - System.nanoTime() when the command was sent
+	 * @param receivedNanos long - System.nanoTime() when the response arrived
+	 */
+	public void record(String channelName, String command, String response,
+			long sentNanos, long receivedNanos)
+	{
+		record(channelName, command, response, sentNanos, receivedNanos, ANSWERED);
+	}
+
+	/**
+	 * Appends one command and how it ended
+	 * @param channelName String - name of the connection (Move, Speak, etc)
+	 * @param command String - the command that was sent
+	 * @param response String - the response from the robot, or the error
+	 * @param sentNanos long - System.nanoTime() when the command was sent
+	 * @param endNanos long - System.nanoTime() when it was answered or given up on
+	 * @param status byte - ANSWERED, TIMED_OUT or FAILED
+	 */
+	public void record(String channelName, String command, String response,
+			long sentNanos, long endNanos, byte status)
+	{
+		Held h = new Held();
+		h.sent = sentNanos;
+		h.roundTrip = (int)Math.min(Integer.MAX_VALUE, (endNanos - sentNanos) / 1000);
+		h.channel = (byte)channelId(channelName);
+		h.status = status;
+		h.command = encode(command);
+		h.response = encode(response);
+
+		lock.lock();
+		try
+		{
+			if (closed)
+				return;
+			inFlight.remove(sentNanos);
+			held.add(h);
+			//write everything sent before the oldest command still running,
+			//or everything if too much is held behind a command that hangs
+			while (!held.isEmpty() && (inFlight.isEmpty() || held.peek().sent <= inFlight.peek()
+					|| held.size() > MAX_HELD))
+			{
+				if (!write(held.poll()))
+					return;
+			}
+		}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Number of records written so far
+	 * @return long - record count
+	 */
+	public long getCount()
+	{
+		lock.lock();
+		try {return count;}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Writes any held records, flushes the log, trims the unused part of the
+	 * last chunk and closes the file.
+	 */
+	public void close()
+	{
+		lock.lock();
+		try
+		{
+			if (closed)
+				return;
+			while (!held.isEmpty())
+			{
+				if (!write(held.poll()))
+					return;
+			}
+			closed = true;
+
+			long end = mappedAt + buffer.position();
+			buffer.force();
+			unmap(buffer);//Windows will not truncate a file that is still mapped
+			buffer = null;
+			try {channel.truncate(end);}
+			catch (IOException e)
+			{
+				//the log is still readable, CommandReplayer stops at the zeroed space
+				Log.error("Could not trim command log: " + e);
+			}
+			try
+			{
+				channel.close();
+				raf.close();
+			}
+			catch (IOException e) {Log.error("Could not close command log: " + e);}
+		}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Writes one record, holding lock
+	 * @param h Held - the record
+	 * @return boolean - false if recording stopped on an error
+	 */
+	private boolean write(Held h)
+	{
+		int size = 1 + 8 + 4 + 1 + 1 + 2 + h.command.length + 2 + h.response.length;
+		try
+		{
+			if (buffer.remaining() < size)
+				map(mappedAt + buffer.position());
+		}
+		catch (IOException e)
+		{
+			Log.error("Command recording stopped: " + e);
+			closed = true;
+			held.clear();
+			return false;
+		}
+
+		buffer.put(RECORD);
+		buffer.putLong(h.sent - startNanos);
+		buffer.putInt(h.roundTrip);
+		buffer.put(h.channel);
+		buffer.put(h.status);
+		buffer.putShort((short)h.command.length);
+		buffer.put(h.command);
+		buffer.putShort((short)h.response.length);
+		buffer.put(h.response);
+		count++;
+		return true;
+	}
+
+	/**
+	 * Maps the next chunk of the file
+	 * @param position long - file offset to map from
+	 */
+	private void map(long position) throws IOException
+	{
+		if (buffer != null)
+		{
+			buffer.force();
+			unmap(buffer);
+		}
+		mappedAt = position;
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, CHUNK_SIZE);
+	}
+
+	/**
+	 * Releases a mapping now instead of when the buffer is garbage collected,
+	 * so the file can be truncated. The buffer must not be used afterwards.
+	 * @param mapped MappedByteBuffer - the mapping to release
+	 * @return true if it was released, false if this JVM does not allow it
+	 */
+	static boolean unmap(MappedByteBuffer mapped)
+	{
+		try
+		{
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			invokeCleaner.invoke(theUnsafe.get(null), mapped);
+			return true;
+		}
+		catch (Exception e)//before Java 9, or jdk.unsupported is missing
+		{
+			return false;
+		}
+	}
+
+	private static byte[] encode(String s)
+	{
+		if (s == null)
+			return new byte[0];
+
+		byte[] bytes = s.getBytes(UTF8);
+		if (bytes.length <= MAX_STRING)
+			return bytes;
+
+		//back up to the start of the character the limit falls in
+		int end = MAX_STRING;
+		while (end > 0 && (bytes[end] & 0xC0) == 0x80)
+			end--;
+		byte[] cut = new byte[end];
+		System.arraycopy(bytes, 0, cut, 0, end);
+		return cut;
+	}
+
+	/**
+	 * A finished record waiting for the commands sent before it
+	 */
+	private static class Held
+	{
+		long sent;
+		int roundTrip;
+		byte channel;
+		byte status;
+		byte[] command;
+		byte[] response;
+	}
+
+	/**
+	 * Maps a connection name to the id stored in the log
+	 * @param channelName String - name of the connection
+	 * @return int - index into CHANNELS, or CHANNELS.length if unknown
+	 */
+	static int channelId(String channelName)
+	{
+		for (int i = 0; i < CHANNELS.length; i++)
+			if (CHANNELS[i].equalsIgnoreCase(channelName))
+				return i;
+		return CHANNELS.length;
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	/** Connection names, indexed by channel id. */
+	static final String[] CHANNELS = {"Move", "Speak", "Gripper", "Camera", "Battery"};
+	/** ArchitectureClient routing prefixes, indexed by channel id. */
+	static final String[] ROUTES = {"ER1", "SPK", "GRP", "CAM", "BAT"};
+
+	//STATUS CONSTANTS
+	public static final byte ANSWERED = 0;//the robot answered
+	public static final byte TIMED_OUT = 1;//the robot went silent
+	public static final byte FAILED = 2;//the connection failed, the response is the error
+
+	static final int MAGIC = 0x45523152;//"ER1R"
+	static final short VERSION = 2;//1 had no status byte
+	static final byte RECORD = 'R';
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+	private static final int MAX_STRING = 0xFFFF;
+	private static final int MAX_HELD = 4096;//records held behind a command still running
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final long startNanos;
+	//guarded by lock, which is held while remapping the file, so it is not
+	//a monitor that would pin a virtual sending thread
+	private final ReentrantLock lock = new ReentrantLock();
+	private MappedByteBuffer buffer;
+	private long mappedAt;
+	private long count = 0;
+	private boolean closed = false;
+	private final PriorityQueue<Long> inFlight = new PriorityQueue<Long>();//send times of commands not yet recorded
+	private final PriorityQueue<Held> held = new PriorityQueue<Held>(16, new Comparator<Held>()
+	{
+		public int compare(Held a, Held b)
+		{
+			return Long.compare(a.sent, b.sent);
+		}
+	});
+}
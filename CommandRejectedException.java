@@ -0,0 +1,40 @@
+package bcibot;
+
+/**
+ * Thrown when a command is queued on a full Connection whose CommandQueue
+ * uses the REJECT policy.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	CommandRejectedException.java
+ */
+
+public class CommandRejectedException extends RuntimeException
+{
+	/**
+	 * Constructor
+	 * @param _command String - the command that was refused
+	 * @param capacity int - size of the full queue
+	 */
+	public CommandRejectedException(String _command, int capacity)
+	{
+		super("Command queue full (" + capacity + "), rejected: " + _command.trim());
+		command = _command;
+	}
+
+	/**
+	 * The command that was refused
+	 * @return String - the command
+	 */
+	public String getCommand()
+	{
+		return command;
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static final long serialVersionUID = 1L;
+
+	private final String command;
+}
@@ -0,0 +1,269 @@
+package bcibot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a log written by CommandRecorder and can feed it back through an
+ * ArchitectureClient, either at the recorded pace or as fast as possible.
+ * Pointing the client at a simulator or a real robot reproduces a recorded
+ * session command for command.
+ *
+ * The log is mapped a window at a time, so logs of any size can be read.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	CommandReplayer.java
+ */
+
+public class CommandReplayer
+{
+	/**
+	 * Constructor, maps the start of the log and checks its header
+	 * @param _file File - a log written by CommandRecorder
+	 * @throws IOException - if the file cannot be read or is not a command log
+	 */
+	public CommandReplayer(File _file) throws IOException
+	{
+		file = _file;
+		map(0);
+
+		if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != CommandRecorder.MAGIC)
+			throw new IOException(file + " is not a command log");
+		version = buffer.getShort();
+		if (version < 1 || version > CommandRecorder.VERSION)
+			throw new IOException(file + " has an unsupported version");
+		startTime = buffer.getLong();
+		firstRecord = buffer.position();
+	}
+
+	/**
+	 * Wall clock time the recording started
+	 * @return long - milliseconds since the epoch
+	 */
+	public long getStartTime()
+	{
+		return startTime;
+	}
+
+	/**
+	 * Checks for another record
+	 * @return true if next() will return a record, false at the end of the log
+	 */
+	public boolean hasNext()
+	{
+		//a log that was not closed cleanly ends in zeroed space
+		return available(1) && buffer.get(buffer.position()) == CommandRecorder.RECORD;
+	}
+
+	/**
+	 * Reads the next record
+	 * @return Entry - the record, or null at the end of the log
+	 */
+	public Entry next()
+	{
+		if (!hasNext() || !available(RECORD_HEADER_SIZE))
+			return null;
+
+		buffer.get();
+		Entry e = new Entry();
+		e.time = buffer.getLong();
+		e.roundTripMicros = buffer.getInt();
+		e.channel = buffer.get() & 0xFF;
+		e.status = version >= 2 ? buffer.get() : CommandRecorder.ANSWERED;
+		e.command = readString();
+		e.response = readString();
+		if (e.command == null || e.response == null)
+			return null;//cut off mid record
+		return e;
+	}
+
+	/**
+	 * Goes back to the first record
+	 */
+	public void rewind()
+	{
+		try {map(firstRecord);}
+		catch (IOException e)
+		{
+			Log.error("Could not rewind " + file + ": " + e);
+		}
+	}
+
+	/**
+	 * Sends every remaining record's command through the client.
+	 * Camera commands are skipped unless setIncludeCamera(true) was called,
+	 * since they need a Camera listening to receive the image.
+	 * @param client ArchitectureClient - the robot or simulator to drive
+	 * @param speed double - 1.0 for the recorded pace, 2.0 for twice as fast,
+	 *                       MAX_SPEED to send without waiting
+	 * @return int - number of commands sent
+	 * @throws InterruptedException - if interrupted while pacing
+	 */
+	public int replay(ArchitectureClient client, double speed) throws InterruptedException
+	{
+		int sent = 0;
+		long firstTime = -1;
+		long began = System.nanoTime();
+
+		Entry e;
+		while ((e = next()) != null)
+		{
+			if (e.channel >= CommandRecorder.ROUTES.length)
+				continue;
+			if (!includeCamera && e.getChannel().equals("Camera"))
+				continue;
+
+			if (firstTime < 0)
+				firstTime = e.time;
+
+			if (speed > 0)
+			{
+				long due = began + (long)((e.time - firstTime) / speed);
+				long wait = due - System.nanoTime();
+				if (wait > 0)
+					Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+			}
+
+			client.sendCommand(CommandRecorder.ROUTES[e.channel] + " " + e.command);
+			sent++;
+		}
+		return sent;
+	}
+
+	/**
+	 * Chooses whether replay() sends recorded camera commands
+	 * @param _includeCamera boolean - true to send them, false to skip them
+	 */
+	public void setIncludeCamera(boolean _includeCamera)
+	{
+		includeCamera = _includeCamera;
+	}
+
+	/**
+	 * Reads one length prefixed string
+	 * @return String - the string, or null if the log ends first
+	 */
+	private String readString()
+	{
+		if (!available(2))
+			return null;
+		int length = buffer.getShort() & 0xFFFF;
+		if (!available(length))
+			return null;
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, CommandRecorder.UTF8);
+	}
+
+	/**
+	 * Makes sure the next bytes are mapped, moving the window on if needed
+	 * @param bytes int - how many bytes are about to be read
+	 * @return true if they are there, false if the log ends first
+	 */
+	private boolean available(int bytes)
+	{
+		if (buffer.remaining() >= bytes)
+			return true;
+		long position = mappedAt + buffer.position();
+		if (position + bytes > size)
+			return false;
+		try
+		{
+			map(position);
+			return true;
+		}
+		catch (IOException e)
+		{
+			Log.error("Could not read " + file + ": " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * Maps a window of the log starting at a file offset
+	 * @param position long - where the window starts
+	 */
+	private void map(long position) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			size = channel.size();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+			mappedAt = position;
+		}
+		finally {raf.close();}
+	}
+
+	//**************************************************************************
+	//Log Entry*****************************************************************
+	//**************************************************************************
+
+	/**
+	 * One recorded command and its response
+	 */
+	public static class Entry
+	{
+		/** @return long - nanoseconds from the start of the recording to the send */
+		public long getTime() {return time;}
+
+		/** @return int - microseconds between sending and the response */
+		public int getRoundTripMicros() {return roundTripMicros;}
+
+		/** @return String - name of the connection the command went to */
+		public String getChannel()
+		{
+			if (channel < CommandRecorder.CHANNELS.length)
+				return CommandRecorder.CHANNELS[channel];
+			return "Unknown";
+		}
+
+		/** @return String - the command as it was sent */
+		public String getCommand() {return command;}
+
+		/** @return String - the robot's response, or the error if it failed */
+		public String getResponse() {return response;}
+
+		/** @return byte - CommandRecorder.ANSWERED, TIMED_OUT or FAILED */
+		public byte getStatus() {return status;}
+
+		public String toString()
+		{
+			String outcome = status == CommandRecorder.TIMED_OUT ? "timed out"
+					: status == CommandRecorder.FAILED ? "failed: " + response : response;
+			return (time / 1000000) + "ms " + getChannel() + " " + command.trim()
+				+ " -> " + outcome + " (" + roundTripMicros + "us)";
+		}
+
+		private long time;
+		private int roundTripMicros;
+		private int channel;
+		private byte status;
+		private String command;
+		private String response;
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	/** Pass to replay() to send commands without pacing. */
+	public static final double MAX_SPEED = 0;
+
+	private static final int HEADER_SIZE = 4 + 2 + 8;
+	private static final int RECORD_HEADER_SIZE = 1 + 8 + 4 + 1 + 1;
+	private static final long WINDOW = 64 * 1024 * 1024;//bytes mapped at a time
+
+	private final File file;
+	private final short version;
+	private final long startTime;
+	private final long firstRecord;
+	private MappedByteBuffer buffer;//the window being read
+	private long mappedAt;//file offset of the window
+	private long size;//of the file when the window was mapped
+	private boolean includeCamera = false;
+}
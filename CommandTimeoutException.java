@@ -0,0 +1,31 @@
+package bcibot;
+
+import java.io.IOException;
+
+/**
+ * The robot stopped answering a command: nothing, not even the "OK" it
+ * sends while still working, arrived for the command's timeout.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	CommandTimeoutException.java
+ */
+
+public class CommandTimeoutException extends IOException
+{
+	/**
+	 * Constructor
+	 * @param channel String - the connection the command was sent on
+	 * @param command String - the command
+	 * @param timeoutMillis long - the silence it waited through, in ms
+	 */
+	public CommandTimeoutException(String channel, String command, long timeoutMillis)
+	{
+		super(channel + " heard nothing for " + timeoutMillis + "ms: " + command.trim());
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static final long serialVersionUID = 1L;
+}
@@ -5,9 +5,25 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 
+/**
+ * One socket to the robot: a queue of commands sent one at a time by a
+ * sending thread, and a reader thread that takes every line the robot sends.
+ * The reader hands each line to the client, which publishes it as an event,
+ * and gives the command waiting on the socket its answer. "OK" lines and
+ * the sensor and battery events the robot reports on its own are not
+ * answers; they only show the robot is still there.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	Connection.java
+ */
+
 public class Connection implements Runnable
 {
 	/**
@@ -24,45 +40,270 @@ public class Connection implements Runnable
 		parent = _parent;
 		name = _name;
 		
-		q = new LinkedBlockingQueue<String>();
+		q = new CommandQueue(CommandQueue.DEFAULT_CAPACITY, CommandQueue.BLOCK);
 		
 		if (!doConnect())
 			reportError("Connection on port " + port + " failed!");
 	}
 	
 	/**
-	 * Adds a command to the queue of commands
+	 * Adds a command to the queue of commands, and starts a thread to send
+	 * them if one is not already running. What happens when the queue is
+	 * full depends on its policy, see CommandQueue.
+	 * @param command String - the command to add
+	 * @return PendingCommand - the queued command, to wait on or check
+	 * @throws CommandRejectedException - if the queue is full and rejects commands
+	 */
+	public PendingCommand addCommand(String command)
+	{
+		return addCommand(command, 0);
+	}
+	
+	/**
+	 * Adds a command with its own timeout
 	 * @param command String - the command to add
+	 * @param timeoutMillis long - how long the robot may stay silent while it
+	 *                             works on the command, 0 for this
+	 *                             connection's default
+	 * @return PendingCommand - the queued command, to wait on or check
+	 * @throws CommandRejectedException - if the queue is full and rejects commands
 	 */
-	public void addCommand(String command)
+	public PendingCommand addCommand(String command, long timeoutMillis)
 	{
-		setStatus(false);
-		synchronized(q)
+		PendingCommand pending = new PendingCommand(command, timeoutMillis);
+		if (isClosed())
+		{
+			pending.cancel();
+			reportError("closed, dropped: " + command.trim());
+			return pending;
+		}
+		
+		try {q.add(pending);}
+		catch (InterruptedException e)
 		{
-			q.add(command);
+			Thread.currentThread().interrupt();
+			pending.cancel();
+			return pending;
 		}
+		
+		boolean start;
+		lock.lock();
+		try
+		{
+			if (closed)
+			{
+				q.clear();
+				reportError("closed, dropped: " + command.trim());
+				return pending;
+			}
+			setStatus(false);
+			start = !draining;
+			draining = true;
+		}
+		finally {lock.unlock();}
+		if (start)
+			ThreadMode.newThread(parent.getThreadMode(), this, name, false).start();
+		return pending;
+	}
+	
+	/**
+	 * Sets how long the robot may stay silent while it works on a command on
+	 * this connection, unless the command gives its own timeout. Every line
+	 * the robot sends, including the "OK" it answers each events poll with,
+	 * starts the timeout again, so a long move that keeps answering never
+	 * times out.
+	 * @param millis long - the timeout, 0 to wait forever
+	 */
+	public void setDefaultTimeout(long millis)
+	{
+		defaultTimeout = Math.max(0, millis);
+	}
+	
+	/**
+	 * Accessor for the default command timeout
+	 * @return long - the timeout in ms, 0 if commands wait forever
+	 */
+	public long getDefaultTimeout()
+	{
+		return defaultTimeout;
+	}
+	
+	/**
+	 * Chooses what happens after a command times out. Reconnecting (the
+	 * default) guarantees a late answer cannot be mistaken for the answer
+	 * to the next command; otherwise the next command is sent on the same
+	 * socket straight away.
+	 * @param reconnect boolean - true to reconnect after a timeout
+	 */
+	public void setReconnectOnTimeout(boolean reconnect)
+	{
+		reconnectOnTimeout = reconnect;
+	}
+	
+	/**
+	 * Number of commands the robot went silent on
+	 * @return long - timeouts so far
+	 */
+	public long getTimeoutCount()
+	{
+		return timeouts.get();
+	}
+	
+	/**
+	 * The queue of commands waiting to be sent, for setting its capacity and
+	 * policy or reading its depth
+	 * @return CommandQueue - the queue
+	 */
+	public CommandQueue getQueue()
+	{
+		return q;
+	}
+	
+	/**
+	 * Starts or stops recording commands and responses on this connection
+	 * @param _recorder CommandRecorder - where to record, or null to stop
+	 */
+	public void setRecorder(CommandRecorder _recorder)
+	{
+		recorder = _recorder;
+	}
+	
+	/**
+	 * Time the last command took from being sent to being answered
+	 * @return long - nanoseconds, or -1 if nothing has been answered yet
+	 */
+	public long getLastRoundTripNanos()
+	{
+		return lastRoundTrip;
+	}
+	
+	/**
+	 * Number of errors this connection has reported
+	 * @return long - errors so far
+	 */
+	public long getErrorCount()
+	{
+		return errors.get();
+	}
+	
+	/**
+	 * Number of commands waiting to be sent
+	 * @return int - queued commands
+	 */
+	public int getPendingCount()
+	{
+		return q.size();
+	}
+	
+	/**
+	 * Checks whether close or closeNow has been called
+	 * @return true once closed
+	 */
+	public boolean isClosed()
+	{
+		lock.lock();
+		try {return closed;}
+		finally {lock.unlock();}
+	}
+	
+	/**
+	 * Checks whether the socket to the robot is open
+	 * @return true if connected
+	 */
+	public boolean isConnected()
+	{
+		Socket s = socket;
+		return s != null && s.isConnected() && !s.isClosed();
 	}
 	
 	/**
 	 * Closes the connection
-	 * closes the sockets and streams when queue is empty
+	 * closes the sockets and streams once every queued command has been sent
 	 */
 	public void close()
 	{
-		boolean empty = false;
-		while(!empty)
+		close(0);
+	}
+	
+	/**
+	 * Closes the connection once every queued command has been sent, or when
+	 * the deadline passes, whichever is first. Commands still queued at the
+	 * deadline are cancelled.
+	 * @param timeoutMillis long - longest to wait for the queue to drain, 0 to wait forever
+	 * @return true if everything was sent, false if commands were cancelled
+	 */
+	public boolean close(long timeoutMillis)
+	{
+		boolean drained;
+		try {drained = awaitDrained(timeoutMillis);}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			drained = false;
+		}
+		
+		if (!drained)
+			closeNow();
+		else
+			closeSocket();
+		return drained;
+	}
+	
+	/**
+	 * Closes the connection straight away. Queued commands are thrown away
+	 * and a command waiting for the robot's answer is abandoned.
+	 * @return int - number of queued commands cancelled
+	 */
+	public int closeNow()
+	{
+		int cancelled;
+		lock.lock();
+		try
 		{
-			synchronized(q)
+			closed = true;
+			cancelled = q.clear();
+		}
+		finally {lock.unlock();}
+		closeSocket();
+		return cancelled;
+	}
+	
+	/**
+	 * Blocks until every queued command has been sent and answered. Woken by
+	 * the sending thread as it finishes, so it returns as soon as the queue
+	 * drains.
+	 * @param timeoutMillis long - longest to wait, 0 to wait forever
+	 * @return true if drained, false if the wait timed out
+	 * @throws InterruptedException - if interrupted while waiting
+	 */
+	public boolean awaitDrained(long timeoutMillis) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		lock.lockInterruptibly();
+		try
+		{
+			while (draining || !q.isEmpty())
 			{
-				empty = q.isEmpty();			
+				if (timeoutMillis <= 0)
+					idle.await();
+				else
+				{
+					long left = deadline - System.currentTimeMillis();
+					if (left <= 0)
+						return false;
+					idle.await(left, TimeUnit.MILLISECONDS);
+				}
 			}
-			
-			try {Thread.sleep(1000);}
-			catch (InterruptedException e1) {e1.printStackTrace();}
 		}
-		
-		try {Thread.sleep(1000);} catch (InterruptedException e1) {}
-		
+		finally {lock.unlock();}
+		return true;
+	}
+	
+	private void closeSocket()
+	{
+		lock.lock();
+		try {closed = true;}
+		finally {lock.unlock();}
 		try
 		{
 			if (socket != null)
@@ -76,7 +317,8 @@ public class Connection implements Runnable
 	}
 	
 	/**
-	 * Connects the socket and read/write streams
+	 * Connects the socket and read/write streams, and starts a reader
+	 * thread for the new socket
 	 * @return true if successful, false otherwise
 	 */
 	private boolean doConnect()
@@ -84,17 +326,44 @@ public class Connection implements Runnable
 		try
 		{
 			// Create a new socket connection.
-			socket = new Socket(address, port);
+			final Socket s = new Socket(address, port);
 			
 			// Set the output stream.
-			write_stream = new PrintWriter(socket.getOutputStream(), true);
-			read_stream = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
+			write_stream = new PrintWriter(s.getOutputStream(), true);
+			final BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+			read_stream = in;
+			replyLock.lock();
+			try {lost = null;}
+			finally {replyLock.unlock();}
+			socket = s;
+			
+			ThreadMode.newThread(parent.getThreadMode(), new Runnable()
+			{
+				public void run() {readLoop(s, in);}
+			}, name + " reader", true).start();
 			return true;
 		}
 		catch (Exception ex){reportError(ex.toString());return false;}
 	}
 	
+	/**
+	 * Asks the robot for events while no command is running, so events it
+	 * reports between commands are still read. The answers reach the client
+	 * through the reader thread like every other line.
+	 */
+	public void pollIfIdle()
+	{
+		lock.lock();
+		try
+		{
+			if (closed || draining)
+				return;//a running command polls for itself
+		}
+		finally {lock.unlock();}
+		if (isConnected())
+			write_stream.println("events");
+	}
+	
 	//**************************************************************************
 	//Threaded Methods**********************************************************
 	//**************************************************************************
@@ -106,74 +375,258 @@ public class Connection implements Runnable
 	{	
 		while (true)
 		{
-			synchronized(q)
+			PendingCommand command;
+			lock.lock();
+			try
 			{
-				if (q.isEmpty())
+				command = q.poll();
+				if (command == null)
 				{
+					draining = false;
 					setStatus(true);
-					break;
+					idle.signalAll();//wakes awaitDrained
+					return;
 				}
-				
-				else
+			}
+			finally {lock.unlock();}
+			
+			long timeout = command.getTimeoutMillis() > 0 ? command.getTimeoutMillis() : defaultTimeout;
+			try {command.complete(send(command.getText(), timeout));}
+			catch (CommandTimeoutException e)
+			{
+				timeouts.incrementAndGet();
+				command.fail(e);
+				if (!isClosed())
 				{
-					setStatus(false);
-					try {send(q.remove());}
-					catch (Exception e) {reportError("Error was: " + e.toString());}
+					reportError("no answer in time, gave up on: " + command.getText().trim());
+					if (reconnectOnTimeout)
+						reconnect();
 				}
 			}
+			catch (Exception e)
+			{
+				command.fail(e);
+				if (!isClosed())//abandoned by closeNow
+					reportError("Error was: " + e.toString());
+			}
 		}
-
 	}
 	
 	/**
-	 * send command over the socket
+	 * send command over the socket and wait for the robot's answer,
+	 * for up to this connection's default timeout
 	 * @param command String - the command to send
+	 * @return String - the robot's answer
 	 */
-	public void send(String command) throws Exception
+	public String send(String command) throws Exception
 	{
-		System.out.println("Sending: " + command);
-		write_stream.println(command);
-		
-		String echo = recv();//check echo for errors
-		System.out.println("Response: " + echo);
-		if(echo.contains("error"))
-			reportError(echo);
+		return send(command, defaultTimeout);
+	}
+	
+	/**
+	 * send command over the socket and wait for the robot's answer
+	 * @param command String - the command to send
+	 * @param timeoutMillis long - how long the robot may stay silent, 0 to wait forever
+	 * @return String - the robot's answer
+	 * @throws CommandTimeoutException - if the robot sent nothing for timeoutMillis
+	 */
+	public String send(String command, long timeoutMillis) throws Exception
+	{
+		if (Log.isEnabled(Log.DEBUG))
+			Log.debug(name + " sending: " + command);
+		long sent = System.nanoTime();
+		CommandRecorder rec = recorder;
+		if (rec != null)
+			rec.commandSent(sent);
 		
-		synchronized(q)
+		String echo;
+		try
 		{
-			if (!q.isEmpty())
+			replyLock.lock();
+			try
 			{
-				try {send(q.remove());}
-				catch (Exception e) {reportError("Error was: " + e.toString());}
+				if (lost != null)
+					throw lost;
+				reply = null;
+				heard = sent;
+				pollDue = false;
+				waiting = true;
 			}
+			finally {replyLock.unlock();}
+			write_stream.println(command);
+			parent.commandSent(name, command, sent);
+			
+			echo = recv(timeoutMillis);//check echo for errors
+		}
+		catch (SocketTimeoutException e)
+		{
+			if (rec != null)
+				rec.record(name, command, "", sent, System.nanoTime(), CommandRecorder.TIMED_OUT);
+			throw new CommandTimeoutException(name, command, timeoutMillis);
+		}
+		catch (Exception e)
+		{
+			if (rec != null)
+				rec.record(name, command, e.toString(), sent, System.nanoTime(), CommandRecorder.FAILED);
+			throw e;
 		}
+		finally
+		{
+			replyLock.lock();
+			try {waiting = false;}//a late answer is only an event now
+			finally {replyLock.unlock();}
+		}
+		long received = System.nanoTime();
+		lastRoundTrip = received - sent;
+		if (rec != null)
+			rec.record(name, command, echo, sent, received, CommandRecorder.ANSWERED);
+		if (Log.isEnabled(Log.DEBUG))
+			Log.debug(name + " response: " + echo);
+		if(echo.contains("error"))
+			reportError(echo);
+		return echo;
 	}
 	
 	/**
-	 * waits for a return message from robot
+	 * waits for the reader thread to hand over the robot's answer. Each "OK"
+	 * or event means the robot is still working on the command, so it is
+	 * asked for events again. The timeout runs from the last line heard, not
+	 * from when the command was sent.
+	 * @param timeoutMillis long - longest silence to wait through, 0 for no limit
 	 * @return message returned as a String
+	 * @throws SocketTimeoutException - if the robot stays silent for timeoutMillis
 	 * @throws Exception - if IO error occurs
 	 */
-	private String recv() throws Exception
+	private String recv(long timeoutMillis) throws Exception
 	{
-		String returnMessage= "OK";
+		//the pause before the next poll counts towards the silence, so
+		//leave the robot at least half the timeout to answer the poll
+		long pause = EVENT_POLL;
+		if (timeoutMillis > 0)
+			pause = Math.min(pause, timeoutMillis / 2);
+		pause *= 1000000L;
+		long timeout = timeoutMillis * 1000000L;
+		
 		while(true)
 		{
-			if (read_stream.ready())
+			boolean poll = false;
+			replyLock.lockInterruptibly();
+			try
 			{
-				returnMessage = read_stream.readLine();
-				if (!returnMessage.equals("OK")) break;
+				if (reply != null)
+					return reply;
+				if (lost != null)
+					throw lost;
 				
-				else
+				long now = System.nanoTime();
+				long wait = Long.MAX_VALUE;
+				if (timeout > 0)
 				{
-					Thread.sleep(500);
-					write_stream.println("events");
+					wait = heard + timeout - now;
+					if (wait <= 0)
+						throw new SocketTimeoutException();
 				}
-			}	
+				if (pollDue)
+				{
+					long untilPoll = heard + pause - now;
+					if (untilPoll <= 0)
+					{
+						pollDue = false;
+						poll = true;
+					}
+					else
+						wait = Math.min(wait, untilPoll);
+				}
+				if (!poll)
+				{
+					if (wait == Long.MAX_VALUE)
+						replied.await();
+					else
+						replied.awaitNanos(wait);
+				}
+			}
+			finally {replyLock.unlock();}
 			
-			Thread.sleep(100);
+			if (poll)
+				write_stream.println("events");
+		}
+	}
+	
+	/**
+	 * Reads every line from one socket until it closes. Lines go to the
+	 * client as events; the first line that is neither "OK" nor an event
+	 * the robot reports on its own answers the waiting command.
+	 * @param s Socket - the socket read from
+	 * @param in BufferedReader - its input
+	 */
+	private void readLoop(Socket s, BufferedReader in)
+	{
+		IOException error = null;
+		try
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+				route(line);
+		}
+		catch (IOException e) {error = e;}
+		
+		if (s != socket || isClosed())
+			return;//replaced by reconnect, or closed on purpose
+		replyLock.lock();
+		try
+		{
+			lost = new IOException("connection closed by the robot" + (error == null ? "" : ": " + error));
+			replied.signalAll();
+			if (waiting)
+				return;//the command fails and run() reports it
 		}
-		return returnMessage;
+		finally {replyLock.unlock();}
+		reportError(lost.getMessage());
+	}
+	
+	/**
+	 * Publishes one line and, if it answers the command waiting on this
+	 * socket, hands it over
+	 * @param line String - the line received
+	 */
+	private void route(String line)
+	{
+		long now = System.nanoTime();
+		RobotEvent event = RobotEvent.parse(name, line, now);
+		parent.responseReceived(event);
+		
+		replyLock.lock();
+		try
+		{
+			heard = now;
+			if (!waiting || reply != null)
+				return;//nothing is waiting, so it is only an event
+			if (event.getType() == RobotEvent.ACK || event.isUnsolicited())
+				pollDue = true;//still working, ask again after a pause
+			else
+				reply = line;
+			replied.signalAll();
+		}
+		finally {replyLock.unlock();}
+	}
+	
+	/**
+	 * Replaces the socket after a timeout, so the late answer to the timed
+	 * out command is never read as the answer to the next one
+	 */
+	private void reconnect()
+	{
+		Socket old = socket;
+		socket = null;//so its reader exits quietly
+		try
+		{
+			if (old != null)
+				old.close();
+		}
+		catch (IOException e) {}
+		
+		if (!isClosed() && !doConnect())
+			reportError("Reconnect on port " + port + " failed!");
 	}
 	
 	/**
@@ -182,18 +635,25 @@ public class Connection implements Runnable
 	 */
 	private void reportError(String error)
 	{
+		errors.incrementAndGet();
 		parent.architectureError(name + " " + error);
 	}
 	
+	/**
+	 * Sets this connection's done flag in the client. Goes by the connection's
+	 * name, not the thread's, so addCommand clears the flag as soon as a
+	 * command is queued, whichever thread queued it.
+	 * @param status boolean - true once the queue has been emptied
+	 */
 	private void setStatus(boolean status)
 	{
-		if(Thread.currentThread().getName().equalsIgnoreCase("move"))
+		if(name.equalsIgnoreCase("move"))
 			parent.setMOVE_DONE(status);
-		if(Thread.currentThread().getName().equalsIgnoreCase("speak"))
+		if(name.equalsIgnoreCase("speak"))
 			parent.setSPEAK_DONE(status);
-		if(Thread.currentThread().getName().equalsIgnoreCase("gripper"))
+		if(name.equalsIgnoreCase("gripper"))
 			parent.setGRIPPER_DONE(status);
-		if(Thread.currentThread().getName().equalsIgnoreCase("camera"))
+		if(name.equalsIgnoreCase("camera"))
 			parent.setCAMERA_DONE(status);
 	}
 	
@@ -204,9 +664,30 @@ public class Connection implements Runnable
 	private String name;
 	private String address;
 	private int port;
-	private Socket socket = null;
-	private PrintWriter write_stream = null;
+	private volatile Socket socket = null;//replaced by reconnect
+	private volatile PrintWriter write_stream = null;
 	private BufferedReader read_stream = null;
-	private LinkedBlockingQueue<String> q;
+	private CommandQueue q;
+	private final ReentrantLock lock = new ReentrantLock();//never held during I/O
+	private final Condition idle = lock.newCondition();
+	private boolean draining = false;//a thread is sending, guarded by lock
+	private boolean closed = false;//guarded by lock
 	private ArchitectureClient parent;
+	private volatile CommandRecorder recorder = null;
+	private volatile long lastRoundTrip = -1;
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	
+	//what the reader thread hands the sending thread, guarded by replyLock
+	private final ReentrantLock replyLock = new ReentrantLock();
+	private final Condition replied = replyLock.newCondition();
+	private boolean waiting = false;//a command has been sent and not answered
+	private String reply;//its answer, once read
+	private long heard;//System.nanoTime() of the last line read
+	private boolean pollDue = false;//the robot said it is still working
+	private IOException lost;//set when the socket closes under the reader
+	private volatile long defaultTimeout = 0;//ms, 0 waits forever
+	private volatile boolean reconnectOnTimeout = true;
+	
+	private static final long EVENT_POLL = 500;//ms between "events" requests while a command runs
 }
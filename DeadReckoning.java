@@ -0,0 +1,120 @@
+package bcibot;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps track of the robot's pose from the motion it is commanded to make.
+ * Robot reports each move, turn and arc with a distance or angle once the
+ * robot has accepted it; the pose is where the robot will be once they are
+ * all done.
+ *
+ * The robot reports no odometry back, so the pose drifts with wheel slip
+ * and is lost altogether by open-ended moves (moveForward() with no
+ * distance, ended by stop()), by moves stop() cuts short and by moves that
+ * fail or are dropped from the queue. These are counted so a caller can
+ * tell it should re-anchor with setPose.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	DeadReckoning.java
+ */
+
+public class DeadReckoning
+{
+	/**
+	 * Constructor, starts at the origin facing along the x axis
+	 */
+	public DeadReckoning()
+	{
+		pose = new Pose(0, 0, 0);
+	}
+
+	/**
+	 * The pose once the commands sent so far are done
+	 * @return Pose - the pose
+	 */
+	public Pose getPose()
+	{
+		return pose;
+	}
+
+	/**
+	 * Replaces the pose, e.g. after a landmark is recognised
+	 * @param _pose Pose - the new pose
+	 */
+	public void setPose(Pose _pose)
+	{
+		lock.lock();
+		try
+		{
+			pose = _pose;
+			untracked = 0;
+		}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Records a straight move
+	 * @param inches double - distance, negative backwards
+	 */
+	public void move(double inches)
+	{
+		lock.lock();
+		try {pose = pose.moved(inches);}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Records a turn on the spot
+	 * @param degrees double - angle, positive to the left
+	 */
+	public void turn(double degrees)
+	{
+		lock.lock();
+		try {pose = pose.turned(Math.toRadians(degrees));}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Records an arc turn
+	 * @param radius double - inches, positive arcs to the right
+	 * @param degrees double - angle swept, negative backwards
+	 */
+	public void arc(double radius, double degrees)
+	{
+		lock.lock();
+		try {pose = pose.arced(radius, Math.toRadians(degrees));}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Records a move whose length is not known, after which the pose is a guess
+	 */
+	public void untracked()
+	{
+		lock.lock();
+		try {untracked++;}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Open-ended moves since the pose was last set, each of which makes it unreliable
+	 * @return int - moves of unknown length
+	 */
+	public int getUntrackedMoves()
+	{
+		return untracked;
+	}
+
+	public String toString()
+	{
+		return "DeadReckoning[" + pose + (untracked > 0 ? ", " + untracked + " untracked moves" : "") + "]";
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private final ReentrantLock lock = new ReentrantLock();//writers only, readers take the volatile pose
+	private volatile Pose pose;
+	private volatile int untracked = 0;
+}
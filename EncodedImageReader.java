@@ -0,0 +1,172 @@
+package bcibot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads exactly one encoded image (JPEG, PNG or BMP) off a stream without
+ * decoding it. The camera socket carries images back to back with no length
+ * prefix, so the end of each image has to be found from its own structure.
+ * Having the bytes in memory lets Camera decode only part of an image without
+ * leaving the rest of it in the socket to corrupt the next one.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	EncodedImageReader.java
+ */
+
+class EncodedImageReader
+{
+	private EncodedImageReader() {}
+
+	/**
+	 * Reads the next image. Blocks until the whole image has arrived.
+	 * @param in InputStream - the stream, positioned at the start of an image
+	 * @return byte[] - the encoded image
+	 * @throws IOException - if the stream ends or the format is not recognised
+	 */
+	static byte[] read(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(INITIAL_SIZE);
+		int b0 = next(in, out);
+		int b1 = next(in, out);
+
+		if (b0 == 0xFF && b1 == 0xD8)
+			readJpeg(in, out);
+		else if (b0 == 0x89 && b1 == 'P')
+			readPng(in, out);
+		else if (b0 == 'B' && b1 == 'M')
+			readBmp(in, out);
+		else
+			throw new IOException("Unrecognised image format");
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Copies JPEG marker segments up to and including the EOI marker
+	 */
+	private static void readJpeg(InputStream in, ByteArrayOutputStream out) throws IOException
+	{
+		int marker = nextMarker(in, out);
+		while (marker != EOI)
+		{
+			if (marker == SOI || (marker >= RST0 && marker <= RST7) || marker == TEM)
+			{
+				marker = nextMarker(in, out);
+				continue;//markers without a length
+			}
+
+			int length = (next(in, out) << 8) | next(in, out);
+			copy(in, out, length - 2);
+
+			if (marker == SOS)
+				marker = skipEntropyCoded(in, out);
+			else
+				marker = nextMarker(in, out);
+		}
+	}
+
+	/**
+	 * Copies entropy-coded scan data, which ends at the first marker that is
+	 * not a stuffed zero or a restart marker
+	 * @return int - the marker that ended the scan
+	 */
+	private static int skipEntropyCoded(InputStream in, ByteArrayOutputStream out) throws IOException
+	{
+		while (true)
+		{
+			int b = next(in, out);
+			if (b != 0xFF)
+				continue;
+
+			int m = next(in, out);
+			while (m == 0xFF)//fill bytes
+				m = next(in, out);
+			if (m == 0 || (m >= RST0 && m <= RST7))
+				continue;
+			return m;
+		}
+	}
+
+	private static int nextMarker(InputStream in, ByteArrayOutputStream out) throws IOException
+	{
+		int b = next(in, out);
+		if (b != 0xFF)
+			throw new IOException("Corrupt JPEG stream");
+		int m = next(in, out);
+		while (m == 0xFF)
+			m = next(in, out);
+		return m;
+	}
+
+	/**
+	 * Copies PNG chunks up to and including IEND
+	 */
+	private static void readPng(InputStream in, ByteArrayOutputStream out) throws IOException
+	{
+		copy(in, out, 6);//rest of the signature
+		while (true)
+		{
+			int length = readInt(in, out);
+			int type = readInt(in, out);
+			copy(in, out, length + 4);//data and CRC
+			if (type == IEND)
+				return;
+		}
+	}
+
+	/**
+	 * Copies a BMP, whose header gives the file size
+	 */
+	private static void readBmp(InputStream in, ByteArrayOutputStream out) throws IOException
+	{
+		int size = next(in, out) | (next(in, out) << 8) | (next(in, out) << 16) | (next(in, out) << 24);
+		copy(in, out, size - 6);
+	}
+
+	private static int readInt(InputStream in, ByteArrayOutputStream out) throws IOException
+	{
+		return (next(in, out) << 24) | (next(in, out) << 16) | (next(in, out) << 8) | next(in, out);
+	}
+
+	private static int next(InputStream in, ByteArrayOutputStream out) throws IOException
+	{
+		int b = in.read();
+		if (b < 0)
+			throw new EOFException("Camera stream closed mid-image");
+		out.write(b);
+		return b;
+	}
+
+	private static void copy(InputStream in, ByteArrayOutputStream out, int count) throws IOException
+	{
+		if (count < 0)
+			throw new IOException("Corrupt image length");
+
+		byte[] buf = new byte[Math.min(count, 8192)];
+		while (count > 0)
+		{
+			int n = in.read(buf, 0, Math.min(count, buf.length));
+			if (n < 0)
+				throw new EOFException("Camera stream closed mid-image");
+			out.write(buf, 0, n);
+			count -= n;
+		}
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static final int INITIAL_SIZE = 64 * 1024;
+
+	private static final int SOI = 0xD8;
+	private static final int EOI = 0xD9;
+	private static final int SOS = 0xDA;
+	private static final int TEM = 0x01;
+	private static final int RST0 = 0xD0;
+	private static final int RST7 = 0xD7;
+	private static final int IEND = 0x49454E44;
+}
@@ -0,0 +1,150 @@
+package bcibot;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Fans robot events out to any number of subscribers without locks.
+ * The subscriber list is an immutable array swapped in with compare and set,
+ * so publishing is a volatile read and one lock-free offer per interested
+ * subscriber. Each subscriber has its own bounded queue and thread (see
+ * EventSubscription), so one slow subscriber cannot hold up the robot's
+ * connections or the other subscribers.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	EventBus.java
+ */
+
+public class EventBus
+{
+	/**
+	 * Constructor, subscribers are delivered to on platform threads
+	 */
+	public EventBus()
+	{
+		this(ThreadMode.PLATFORM);
+	}
+
+	/**
+	 * Constructor
+	 * @param _threadMode int - ThreadMode.PLATFORM or ThreadMode.VIRTUAL, the
+	 *                          kind of thread each subscriber is delivered on
+	 */
+	public EventBus(int _threadMode)
+	{
+		threadMode = ThreadMode.validate(_threadMode);
+	}
+
+	/**
+	 * Subscribes to every event except bare OKs
+	 * @param listener RobotEventListener - who to deliver to
+	 * @return EventSubscription - the subscription, cancel it to stop
+	 */
+	public EventSubscription subscribe(RobotEventListener listener)
+	{
+		return subscribe(listener, RobotEvent.ALL_BUT_ACK, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Subscribes to some types of event
+	 * @param listener RobotEventListener - who to deliver to
+	 * @param mask int - RobotEvent types wanted, or'ed together
+	 * @param capacity int - events held for this subscriber before new ones are dropped
+	 * @return EventSubscription - the subscription, cancel it to stop
+	 */
+	public EventSubscription subscribe(RobotEventListener listener, int mask, int capacity)
+	{
+		EventSubscription s = new EventSubscription(this, listener, mask, capacity);
+		while (true)
+		{
+			EventSubscription[] old = subscribers.get();
+			EventSubscription[] now = new EventSubscription[old.length + 1];
+			System.arraycopy(old, 0, now, 0, old.length);
+			now[old.length] = s;
+			if (subscribers.compareAndSet(old, now))
+				return s;
+		}
+	}
+
+	/**
+	 * Checks whether anyone wants a type of event, so the caller can skip
+	 * building events nobody will see
+	 * @param type int - a RobotEvent type constant, or a mask
+	 * @return true if some subscriber wants it
+	 */
+	public boolean hasSubscribers(int type)
+	{
+		for (EventSubscription s : subscribers.get())
+		{
+			if (s.wants(type))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether anyone is subscribed at all
+	 * @return true if there is at least one subscriber
+	 */
+	public boolean hasSubscribers()
+	{
+		return subscribers.get().length > 0;
+	}
+
+	/**
+	 * Hands an event to every subscriber that wants it. Never blocks.
+	 * @param event RobotEvent - the event
+	 */
+	public void publish(RobotEvent event)
+	{
+		for (EventSubscription s : subscribers.get())
+		{
+			if (s.wants(event.getType()))
+				s.offer(event);
+		}
+	}
+
+	/**
+	 * The kind of thread subscribers are delivered on
+	 * @return int - ThreadMode.PLATFORM or ThreadMode.VIRTUAL
+	 */
+	int getThreadMode()
+	{
+		return threadMode;
+	}
+
+	/**
+	 * Takes a cancelled subscription off the list
+	 */
+	void remove(EventSubscription s)
+	{
+		while (true)
+		{
+			EventSubscription[] old = subscribers.get();
+			int at = -1;
+			for (int i = 0; i < old.length; i++)
+			{
+				if (old[i] == s)
+					at = i;
+			}
+			if (at < 0)
+				return;
+
+			EventSubscription[] now = new EventSubscription[old.length - 1];
+			System.arraycopy(old, 0, now, 0, at);
+			System.arraycopy(old, at + 1, now, at, old.length - at - 1);
+			if (subscribers.compareAndSet(old, now))
+				return;
+		}
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static final int DEFAULT_CAPACITY = 256;
+
+	private final int threadMode;
+
+	private final AtomicReference<EventSubscription[]> subscribers =
+			new AtomicReference<EventSubscription[]>(new EventSubscription[0]);
+}
@@ -0,0 +1,183 @@
+package bcibot;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One listener's subscription to an EventBus. Holds a bounded, lock-free
+ * ring of events that any connection thread may add to, and a thread of its
+ * own that hands them to the listener.
+ *
+ * The ring is the backpressure: a listener that falls behind fills its own
+ * ring, after which further events for it are dropped and counted. The
+ * connection threads never wait, and other subscriptions are unaffected.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	EventSubscription.java
+ */
+
+public class EventSubscription
+{
+	/**
+	 * Constructor, starts the delivery thread. Use EventBus.subscribe.
+	 * @param _bus EventBus - the bus subscribed to
+	 * @param _listener RobotEventListener - who to deliver to
+	 * @param _mask int - RobotEvent types wanted, or'ed together
+	 * @param capacity int - events held before dropping, rounded up to a power of two
+	 */
+	EventSubscription(EventBus _bus, RobotEventListener _listener, int _mask, int capacity)
+	{
+		bus = _bus;
+		listener = _listener;
+		mask = _mask;
+
+		int size = 1;
+		while (size < capacity)
+			size <<= 1;
+		ring = new AtomicReferenceArray<RobotEvent>(size);
+		slotMask = size - 1;
+
+		consumer = ThreadMode.newThread(bus.getThreadMode(), new Runnable()
+		{
+			public void run()
+			{
+				deliverLoop();
+			}
+		}, "Event subscriber", true);
+		consumer.start();
+	}
+
+	/**
+	 * Number of events dropped because the listener fell behind
+	 * @return long - dropped events
+	 */
+	public long getDroppedCount()
+	{
+		return dropped.get();
+	}
+
+	/**
+	 * Number of events handed to the listener
+	 * @return long - delivered events
+	 */
+	public long getDeliveredCount()
+	{
+		return head;
+	}
+
+	/**
+	 * Number of events waiting to be delivered
+	 * @return int - queued events
+	 */
+	public int getBacklog()
+	{
+		return (int)(tail.get() - head);
+	}
+
+	/**
+	 * Checks whether the subscription still delivers events
+	 * @return true until cancelled
+	 */
+	public boolean isActive()
+	{
+		return active;
+	}
+
+	/**
+	 * Stops delivering events. Events already queued are discarded.
+	 */
+	public void cancel()
+	{
+		if (!active)
+			return;
+		active = false;
+		bus.remove(this);
+		LockSupport.unpark(consumer);
+	}
+
+	//**************************************************************************
+	//Bus Side******************************************************************
+	//**************************************************************************
+
+	/**
+	 * Checks whether this subscription wants a type of event
+	 * @param type int - a RobotEvent type constant
+	 * @return true if the type is in the mask
+	 */
+	boolean wants(int type)
+	{
+		return (type & mask) != 0;
+	}
+
+	/**
+	 * Adds an event without blocking. Called by any connection thread.
+	 * @param event RobotEvent - the event
+	 */
+	void offer(RobotEvent event)
+	{
+		while (true)
+		{
+			long t = tail.get();
+			if (t - head >= ring.length())
+			{
+				dropped.incrementAndGet();
+				return;
+			}
+			if (tail.compareAndSet(t, t + 1))
+			{
+				ring.set((int)t & slotMask, event);
+				break;
+			}
+		}
+
+		if (parked)
+			LockSupport.unpark(consumer);
+	}
+
+	//**************************************************************************
+	//Delivery Thread***********************************************************
+	//**************************************************************************
+
+	private void deliverLoop()
+	{
+		while (active)
+		{
+			int slot = (int)head & slotMask;
+			RobotEvent event = ring.get(slot);
+			if (event == null)
+			{
+				parked = true;
+				if (ring.get(slot) == null && active)
+					LockSupport.parkNanos(this, MAX_PARK);
+				parked = false;
+				continue;
+			}
+
+			ring.lazySet(slot, null);
+			head = head + 1;//frees the slot for producers
+
+			try {listener.robotEvent(event);}
+			catch (RuntimeException e) {Log.error("Event listener failed: " + e);}
+		}
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static final long MAX_PARK = 100000000L;//ns, safety net for a missed wake up
+
+	private final EventBus bus;
+	private final RobotEventListener listener;
+	private final int mask;
+	private final Thread consumer;
+
+	private final AtomicReferenceArray<RobotEvent> ring;
+	private final int slotMask;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile long head = 0;
+	private volatile boolean parked = false;
+	private volatile boolean active = true;
+}
@@ -0,0 +1,20 @@
+package bcibot;
+
+/**
+ * Acts on what a FrameProcessor found, typically by sending the robot
+ * commands. Called on the pipeline's act stage thread, so a slow command
+ * does not hold up analysis of the next frame.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	FrameAction.java
+ */
+
+public interface FrameAction<R>
+{
+	/**
+	 * Acts on one frame's result
+	 * @param frame TimedFrame - the frame that was analysed
+	 * @param result R - what the FrameProcessor returned for it, may be null
+	 */
+	public void act(TimedFrame frame, R result);
+}
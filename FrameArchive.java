@@ -0,0 +1,185 @@
+package bcibot;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads frames recorded by FrameRecorder. The index is loaded up front so
+ * frames can be looked up by number or by time without scanning segments.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	FrameArchive.java
+ */
+
+public class FrameArchive
+{
+	/**
+	 * Constructor, reads the index of a recording
+	 * @param _directory File - the directory given to FrameRecorder
+	 * @throws IOException - if the index is missing or not a frame index
+	 */
+	public FrameArchive(File _directory) throws IOException
+	{
+		directory = _directory;
+
+		RandomAccessFile raf = new RandomAccessFile(new File(directory, FrameRecorder.INDEX_FILE), "r");
+		ByteBuffer index;
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally {raf.close();}
+
+		if (index.remaining() < FrameRecorder.INDEX_HEADER || index.getInt() != FrameRecorder.MAGIC)
+			throw new IOException(directory + " does not contain a frame index");
+		if (index.getShort() != FrameRecorder.VERSION)
+			throw new IOException(directory + " has an unsupported frame index version");
+		startTime = index.getLong();
+
+		count = index.remaining() / FrameRecorder.INDEX_ENTRY;
+		times = new long[count];
+		segments = new int[count];
+		offsets = new int[count];
+		for (int i = 0; i < count; i++)
+		{
+			times[i] = index.getLong();
+			segments[i] = index.getInt();
+			offsets[i] = index.getInt();
+		}
+	}
+
+	/**
+	 * Number of frames in the recording
+	 * @return int - frame count
+	 */
+	public int getFrameCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Wall clock time the recording started
+	 * @return long - milliseconds since the epoch
+	 */
+	public long getStartTime()
+	{
+		return startTime;
+	}
+
+	/**
+	 * Time of a frame relative to the start of the recording
+	 * @param frame int - frame number
+	 * @return long - nanoseconds since the start
+	 */
+	public long getTime(int frame)
+	{
+		return times[frame];
+	}
+
+	/**
+	 * Finds the frame closest to a time
+	 * @param nanos long - nanoseconds since the start of the recording
+	 * @return int - frame number, or -1 if the recording is empty
+	 */
+	public int findFrame(long nanos)
+	{
+		if (count == 0)
+			return -1;
+
+		int lo = 0, hi = count - 1;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (times[mid] < nanos)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		if (lo > 0 && nanos - times[lo - 1] < times[lo] - nanos)
+			return lo - 1;
+		return lo;
+	}
+
+	/**
+	 * Decodes one frame
+	 * @param frame int - frame number
+	 * @return BufferedImage - the frame as a TYPE_3BYTE_BGR image
+	 * @throws IOException - if the segment is missing or corrupt
+	 */
+	public BufferedImage readFrame(int frame) throws IOException
+	{
+		ByteBuffer segment = segment(segments[frame]).duplicate();
+		segment.position(offsets[frame]);
+
+		int width = segment.getInt();
+		int height = segment.getInt();
+		byte format = segment.get();
+		int length = segment.getInt();
+
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		byte[] pixels = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+
+		if (format == FrameRecorder.FORMAT_RAW)
+			segment.get(pixels, 0, Math.min(length, pixels.length));
+		else if (format == FrameRecorder.FORMAT_DEFLATE)
+		{
+			byte[] packed = new byte[length];
+			segment.get(packed);
+			Inflater inflater = new Inflater();
+			try
+			{
+				inflater.setInput(packed);
+				inflater.inflate(pixels);
+			}
+			catch (DataFormatException e) {throw new IOException("Frame " + frame + " is corrupt");}
+			finally {inflater.end();}
+		}
+		else
+			throw new IOException("Frame " + frame + " has unknown format " + format);
+
+		return image;
+	}
+
+	/**
+	 * Maps a segment the first time it is needed and keeps the last one mapped
+	 * @param number int - segment number
+	 * @return MappedByteBuffer - the segment contents
+	 */
+	private synchronized MappedByteBuffer segment(int number) throws IOException
+	{
+		if (number == mappedNumber)
+			return mapped;
+
+		RandomAccessFile raf = new RandomAccessFile(new File(directory, FrameRecorder.segmentName(number)), "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			mappedNumber = number;
+		}
+		finally {raf.close();}
+		return mapped;
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private final File directory;
+	private final long startTime;
+	private final int count;
+	private final long[] times;
+	private final int[] segments;
+	private final int[] offsets;
+	private MappedByteBuffer mapped;
+	private int mappedNumber = -1;
+}
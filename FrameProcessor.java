@@ -0,0 +1,19 @@
+package bcibot;
+
+/**
+ * Analyses frames for a VisionPipeline. Called on the pipeline's process
+ * stage thread, one frame at a time, while the next frame is being decoded.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	FrameProcessor.java
+ */
+
+public interface FrameProcessor<R>
+{
+	/**
+	 * Analyses a frame
+	 * @param frame TimedFrame - the decoded frame, with when it was asked for
+	 * @return R - what was found, handed to the FrameAction, or null
+	 */
+	public R process(TimedFrame frame);
+}
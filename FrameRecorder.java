@@ -0,0 +1,476 @@
+package bcibot;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Records camera frames to disk without stalling the thread that took them.
+ * append() copies the pixels into a recycled buffer and hands them to a
+ * background writer, which stores them in rolling memory-mapped segment files
+ * and keeps an index so FrameArchive can seek to any frame by number or time.
+ * If the writer falls behind, frames are dropped and counted instead of
+ * blocking the caller. If the writer fails, recording stops and later frames
+ * are refused. The index is flushed each time a segment is finished, so a
+ * crash loses at most the index of the segment being written.
+ *
+ * Directory layout:
+ * <pre>
+ *   frames.idx       int MAGIC, short VERSION, long start time (ms since epoch),
+ *                    then per frame: long time (ns since start), int segment, int offset
+ *   frames-NNNNN.seg per frame: int width, int height, byte format, int length, pixel data
+ * </pre>
+ * Pixels are stored as 3 bytes per pixel in BGR order, either raw or deflated.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	FrameRecorder.java
+ */
+
+public class FrameRecorder
+{
+	/**
+	 * Constructor, records uncompressed frames into 64MB segments
+	 * @param directory File - where to put the index and segment files
+	 * @throws IOException - if the directory or index cannot be created
+	 */
+	public FrameRecorder(File directory) throws IOException
+	{
+		this(directory, DEFAULT_SEGMENT_SIZE, false);
+	}
+
+	/**
+	 * Constructor, writes on a platform thread
+	 * @param _directory File - where to put the index and segment files
+	 * @param _segmentSize int - bytes per segment file before rolling to the next
+	 * @param _compress boolean - true to deflate frames, false to store them raw
+	 * @throws IOException - if the directory or index cannot be created
+	 */
+	public FrameRecorder(File _directory, int _segmentSize, boolean _compress) throws IOException
+	{
+		this(_directory, _segmentSize, _compress, ThreadMode.PLATFORM);
+	}
+
+	/**
+	 * Constructor, creates the directory and index and starts the writer thread
+	 * @param _directory File - where to put the index and segment files
+	 * @param _segmentSize int - bytes per segment file before rolling to the next
+	 * @param _compress boolean - true to deflate frames, false to store them raw
+	 * @param threadMode int - ThreadMode.PLATFORM or ThreadMode.VIRTUAL, the writer's kind of thread
+	 * @throws IOException - if the directory or index cannot be created
+	 */
+	public FrameRecorder(File _directory, int _segmentSize, boolean _compress, int threadMode) throws IOException
+	{
+		directory = _directory;
+		segmentSize = _segmentSize;
+		compress = _compress;
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create " + directory);
+
+		startNanos = System.nanoTime();
+		index = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(new File(directory, INDEX_FILE))));
+		index.writeInt(MAGIC);
+		index.writeShort(VERSION);
+		index.writeLong(System.currentTimeMillis());
+
+		writer = ThreadMode.newThread(ThreadMode.validate(threadMode), new Runnable()
+		{
+			public void run()
+			{
+				writeFrames();
+			}
+		}, "Frame recorder", true);
+		writer.start();
+	}
+
+	/**
+	 * Queues a copy of the frame for writing. Never blocks on disk.
+	 * @param image BufferedImage - the frame to record
+	 * @return true if queued, false if it was dropped because the writer is behind
+	 */
+	public boolean append(BufferedImage image)
+	{
+		return append(image, System.nanoTime());
+	}
+
+	/**
+	 * Queues a copy of the frame for writing with the given timestamp
+	 * @param image BufferedImage - the frame to record
+	 * @param nanos long - System.nanoTime() the frame belongs to
+	 * @return true if queued, false if it was dropped because the writer is behind
+	 */
+	public boolean append(BufferedImage image, long nanos)
+	{
+		if (closed || image == null)
+			return false;
+
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int size = width * height * 3;
+
+		byte[] pixels = free.poll();
+		if (pixels == null || pixels.length != size)
+			pixels = new byte[size];
+		copyBGR(image, pixels);
+
+		Frame frame = new Frame();
+		frame.time = nanos - startNanos;
+		frame.width = width;
+		frame.height = height;
+		frame.pixels = pixels;
+
+		if (!pending.offer(frame))
+		{
+			dropped.incrementAndGet();
+			free.offer(pixels);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Number of frames written to disk so far
+	 * @return long - frames written
+	 */
+	public long getFrameCount()
+	{
+		return written.get();
+	}
+
+	/**
+	 * Number of frames dropped because the writer could not keep up
+	 * @return long - frames dropped
+	 */
+	public long getDroppedCount()
+	{
+		return dropped.get();
+	}
+
+	/**
+	 * Accessor for the output directory
+	 * @return File - the directory frames are written to
+	 */
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * Writes any queued frames, then closes the segment and index files.
+	 */
+	public void close()
+	{
+		close(0);
+	}
+
+	/**
+	 * Writes any queued frames, then closes the segment and index files.
+	 * Frames still queued at the deadline are discarded, and the files are
+	 * closed once the frame being written is done.
+	 * @param timeoutMillis long - longest to wait, 0 to wait forever
+	 * @return true if every queued frame was written, false if some were discarded
+	 *         or the writer had already failed
+	 */
+	public boolean close(long timeoutMillis)
+	{
+		if (closed && !writer.isAlive())
+			return !failed;
+		closed = true;
+
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		Frame end = new Frame();
+		end.pixels = null;
+		try
+		{
+			//a writer that died cannot take the marker, and has nothing left to close
+			while (writer.isAlive())
+			{
+				long wait = timeoutMillis <= 0 ? CLOSE_POLL : Math.min(CLOSE_POLL, deadline - System.currentTimeMillis());
+				if (wait <= 0)
+					break;
+				if (pending.offer(end, wait, TimeUnit.MILLISECONDS))
+				{
+					while (writer.isAlive())
+					{
+						wait = timeoutMillis <= 0 ? 0 : deadline - System.currentTimeMillis();
+						if (timeoutMillis > 0 && wait <= 0)
+							break;
+						writer.join(wait);
+					}
+					break;
+				}
+			}
+		}
+		catch (InterruptedException e) {Thread.currentThread().interrupt();}
+
+		if (writer.isAlive())//out of time: drop what is left and let the writer finish on its own
+		{
+			discard();
+			pending.offer(end);
+			return false;
+		}
+		return !failed;
+	}
+
+	//**************************************************************************
+	//Writer Thread*************************************************************
+	//**************************************************************************
+
+	/**
+	 * Writer loop, runs until close() queues a frame without pixels
+	 */
+	private void writeFrames()
+	{
+		Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+		byte[] packed = new byte[0];
+
+		try
+		{
+			while (true)
+			{
+				Frame frame = pending.take();
+				if (frame.pixels == null)
+					break;
+
+				byte[] data = frame.pixels;
+				int length = data.length;
+				byte format = FORMAT_RAW;
+
+				if (deflater != null)
+				{
+					if (packed.length < length + 64)
+						packed = new byte[length + 64];
+					deflater.reset();
+					deflater.setInput(data);
+					deflater.finish();
+					int n = deflater.deflate(packed);
+					if (deflater.finished())
+					{
+						data = packed;
+						length = n;
+						format = FORMAT_DEFLATE;
+					}
+				}
+
+				writeFrame(frame, format, data, length);
+				free.offer(frame.pixels);
+			}
+		}
+		catch (InterruptedException e) {}
+		catch (IOException e)
+		{
+			failed = true;
+			Log.error("Frame recording stopped: " + e);
+		}
+		catch (RuntimeException e)
+		{
+			failed = true;
+			Log.error("Frame recording stopped: " + e);
+		}
+		finally
+		{
+			//refuse further frames and free the queue, so close() never waits on it
+			closed = true;
+			discard();
+			if (deflater != null)
+				deflater.end();
+			closeFiles();
+		}
+	}
+
+	/**
+	 * Drops every queued frame, counting them as dropped
+	 */
+	private void discard()
+	{
+		Frame frame;
+		while ((frame = pending.poll()) != null)
+		{
+			if (frame.pixels == null)
+				continue;
+			dropped.incrementAndGet();
+			free.offer(frame.pixels);
+		}
+	}
+
+	/**
+	 * Appends one frame to the current segment, rolling to a new one if needed
+	 */
+	private void writeFrame(Frame frame, byte format, byte[] data, int length) throws IOException
+	{
+		int size = FRAME_HEADER + length;
+		if (segment == null || segment.remaining() < size)
+			openSegment(Math.max(segmentSize, size));
+
+		int offset = segment.position();
+		segment.putInt(frame.width);
+		segment.putInt(frame.height);
+		segment.put(format);
+		segment.putInt(length);
+		segment.put(data, 0, length);
+
+		index.writeLong(frame.time);
+		index.writeInt(segmentNumber);
+		index.writeInt(offset);
+		written.incrementAndGet();
+	}
+
+	/**
+	 * Finishes the current segment and maps the next one
+	 * @param size int - bytes to map
+	 */
+	private void openSegment(int size) throws IOException
+	{
+		closeSegment();
+		segmentNumber++;
+
+		segmentFile = new RandomAccessFile(new File(directory, segmentName(segmentNumber)), "rw");
+		segmentFile.setLength(0);
+		segment = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	/**
+	 * Flushes the current segment and the index, and trims the segment to
+	 * the bytes actually used
+	 */
+	private void closeSegment() throws IOException
+	{
+		if (segment == null)
+			return;
+
+		int used = segment.position();
+		segment.force();
+		index.flush();//the index now covers every frame in the finished segment
+		CommandRecorder.unmap(segment);//Windows will not truncate a file that is still mapped
+		segment = null;
+		try {segmentFile.getChannel().truncate(used);}
+		catch (IOException e)
+		{
+			//only costs disk space, readers go through the index
+			Log.error("Could not trim frame segment: " + e);
+		}
+		segmentFile.close();
+	}
+
+	private void closeFiles()
+	{
+		try {closeSegment();}
+		catch (IOException e) {Log.error("Could not close frame segment: " + e);}
+		try {index.close();}
+		catch (IOException e) {Log.error("Could not close frame index: " + e);}
+	}
+
+	/**
+	 * Copies pixels into 3 byte BGR order, using a bulk copy when the image
+	 * is already stored that way (the usual case for decoded JPEGs).
+	 */
+	private static void copyBGR(BufferedImage image, byte[] out)
+	{
+		int width = image.getWidth();
+		int height = image.getHeight();
+		WritableRaster raster = image.getRaster();
+		boolean whole = raster.getSampleModelTranslateX() == 0
+				&& raster.getSampleModelTranslateY() == 0;
+
+		if (whole && image.getType() == BufferedImage.TYPE_3BYTE_BGR
+				&& raster.getDataBuffer().getSize() == out.length)
+		{
+			byte[] src = ((DataBufferByte)raster.getDataBuffer()).getData();
+			System.arraycopy(src, 0, out, 0, out.length);
+			return;
+		}
+
+		if (whole && image.getType() == BufferedImage.TYPE_INT_RGB
+				&& raster.getDataBuffer().getSize() == width * height)
+		{
+			int[] src = ((DataBufferInt)raster.getDataBuffer()).getData();
+			for (int i = 0, o = 0; i < src.length; i++)
+			{
+				int rgb = src[i];
+				out[o++] = (byte)rgb;//B
+				out[o++] = (byte)(rgb >> 8);//G
+				out[o++] = (byte)(rgb >> 16);//R
+			}
+			return;
+		}
+
+		int[] row = new int[width];
+		int o = 0;
+		for (int y = 0; y < height; y++)
+		{
+			image.getRGB(0, y, width, 1, row, 0, width);
+			for (int x = 0; x < width; x++)
+			{
+				int rgb = row[x];
+				out[o++] = (byte)rgb;
+				out[o++] = (byte)(rgb >> 8);
+				out[o++] = (byte)(rgb >> 16);
+			}
+		}
+	}
+
+	static String segmentName(int number)
+	{
+		return "frames-" + String.format("%05d", number) + ".seg";
+	}
+
+	//**************************************************************************
+	//Queued Frame**************************************************************
+	//**************************************************************************
+
+	private static class Frame
+	{
+		long time;
+		int width, height;
+		byte[] pixels;
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	static final String INDEX_FILE = "frames.idx";
+	static final int MAGIC = 0x45523146;//"ER1F"
+	static final short VERSION = 1;
+	static final int INDEX_HEADER = 4 + 2 + 8;
+	static final int INDEX_ENTRY = 8 + 4 + 4;
+	static final int FRAME_HEADER = 4 + 4 + 1 + 4;
+	static final byte FORMAT_RAW = 0;
+	static final byte FORMAT_DEFLATE = 1;
+
+	private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final int QUEUE_SIZE = 32;
+	private static final long CLOSE_POLL = 100;//ms between checks that the writer is still alive
+
+	private final File directory;
+	private final int segmentSize;
+	private final boolean compress;
+	private final long startNanos;
+	private final DataOutputStream index;
+	private final Thread writer;
+	private final ArrayBlockingQueue<Frame> pending = new ArrayBlockingQueue<Frame>(QUEUE_SIZE);
+	private final ArrayBlockingQueue<byte[]> free = new ArrayBlockingQueue<byte[]>(QUEUE_SIZE);
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile boolean closed = false;
+	private volatile boolean failed = false;//the writer stopped on an error
+
+	//only touched by the writer thread
+	private RandomAccessFile segmentFile;
+	private MappedByteBuffer segment;
+	private int segmentNumber = -1;
+}
@@ -0,0 +1,21 @@
+package bcibot;
+
+/**
+ * Told whenever the gripper's cached state changes.
+ * Called on the Gripper connection's thread, so implementations should
+ * return quickly and must not wait for gripper commands to finish.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	GripperListener.java
+ */
+
+public interface GripperListener
+{
+	/**
+	 * The gripper's state changed.
+	 * @param gripper GripperState - the gripper, already holding the new state
+	 * @param oldPosition int - the previous GripperState position constant
+	 * @param newPosition int - the new GripperState position constant
+	 */
+	public void gripperChanged(GripperState gripper, int oldPosition, int newPosition);
+}
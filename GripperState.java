@@ -0,0 +1,266 @@
+package bcibot;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cached state of the gripper, kept up to date from the commands sent on the
+ * Gripper connection and the status and event lines the robot sends back.
+ * The whole state is packed into one int, so each update is a single atomic
+ * write and every query is a single read; nothing here talks to the robot.
+ *
+ * Changes are pushed to GripperListeners, and awaitPosition() lets a thread
+ * sleep until the gripper gets where it is going instead of sleeping blindly.
+ *
+ * Until the robot has answered a status request the state is UNKNOWN and
+ * the gripper is neither known to be detected nor known to be missing.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	GripperState.java
+ */
+
+public class GripperState
+{
+	/**
+	 * Gripper position, one of the position constants
+	 * @return int - UNKNOWN, OPEN, CLOSED, OPENING, CLOSING or STOPPED
+	 */
+	public int getPosition()
+	{
+		return bits.get() & POSITION_MASK;
+	}
+
+	/**
+	 * Checks whether the robot has reported a gripper
+	 * @return true if the gripper has been seen, false if missing or not yet known
+	 */
+	public boolean isDetected()
+	{
+		return (bits.get() & DETECTED) != 0;
+	}
+
+	/**
+	 * Checks whether the robot has reported that there is no gripper
+	 * @return true only if the gripper is known to be missing
+	 */
+	public boolean isMissing()
+	{
+		int b = bits.get();
+		return (b & DETECTION_KNOWN) != 0 && (b & DETECTED) == 0;
+	}
+
+	/**
+	 * Checks whether auto grip is on
+	 * @return true if the gripper will close on its own when something breaks its beam
+	 */
+	public boolean isAutoGrip()
+	{
+		return (bits.get() & AUTO_GRIP) != 0;
+	}
+
+	/**
+	 * Adds a listener to be told about every change
+	 * @param listener GripperListener - the listener
+	 */
+	public void addListener(GripperListener listener)
+	{
+		listeners.add(listener);
+	}
+
+	/**
+	 * Removes a listener
+	 * @param listener GripperListener - the listener
+	 */
+	public void removeListener(GripperListener listener)
+	{
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Blocks until the gripper reaches a position
+	 * @param position int - the position to wait for
+	 * @param timeoutMillis long - longest to wait, 0 to wait forever
+	 * @return true if the position was reached, false if the wait timed out
+	 * @throws InterruptedException - if interrupted while waiting
+	 */
+	public boolean awaitPosition(int position, long timeoutMillis) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		lock.lockInterruptibly();
+		try
+		{
+			while (getPosition() != position)
+			{
+				if (timeoutMillis <= 0)
+					moved.await();
+				else
+				{
+					long left = deadline - System.currentTimeMillis();
+					if (left <= 0)
+						return false;
+					moved.await(left, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+		finally {lock.unlock();}
+		return true;
+	}
+
+	/**
+	 * Name of a position constant, for printing
+	 * @param position int - a position constant
+	 * @return String - its name
+	 */
+	public static String positionName(int position)
+	{
+		if (position < 0 || position >= NAMES.length)
+			return "unknown";
+		return NAMES[position];
+	}
+
+	public String toString()
+	{
+		return "Gripper[" + positionName(getPosition())
+				+ (isDetected() ? ", detected" : isMissing() ? ", missing" : "")
+				+ (isAutoGrip() ? ", auto" : "") + "]";
+	}
+
+	//**************************************************************************
+	//Updates*******************************************************************
+	//**************************************************************************
+
+	/**
+	 * Updates the state for a command just sent on the Gripper connection
+	 * @param command String - the command, without its route prefix
+	 */
+	void commandSent(String command)
+	{
+		String c = command.trim().toLowerCase();
+		if (c.equals("gripper open"))
+			update(OPENING, false, false, false, 0);
+		else if (c.equals("gripper close"))
+			update(CLOSING, false, false, false, 0);
+		else if (c.equals("gripper stop"))
+			update(STOPPED, false, false, true, 0);
+		else if (c.equals("gripper auto"))
+			update(-1, false, false, true, AUTO_GRIP);
+	}
+
+	/**
+	 * Updates the state from a line the robot sent on the Gripper connection.
+	 * Lines that say nothing about the gripper, like a bare OK, are ignored.
+	 * @param line String - the response or event
+	 */
+	void responseReceived(String line)
+	{
+		if (line == null)
+			return;
+		String r = line.trim().toLowerCase();
+		if (r.startsWith("ok"))
+			r = r.substring(2).trim();
+		if (r.length() == 0)
+			return;
+
+		if (r.indexOf("not detected") >= 0 || r.indexOf("no gripper") >= 0
+				|| r.indexOf("not connected") >= 0)
+		{
+			update(UNKNOWN, true, false, true, 0);
+			return;
+		}
+		if (r.indexOf("error") >= 0)
+			return;
+
+		int position = position(r);
+		boolean autoKnown = r.indexOf("auto") >= 0;
+		if (position < 0 && !autoKnown)
+			return;
+
+		boolean autoOn = autoKnown && r.indexOf("auto off") < 0 && r.indexOf("auto disabled") < 0;
+		update(position, true, true, autoKnown, autoOn ? AUTO_GRIP : 0);
+	}
+
+	/**
+	 * Finds the position a line describes
+	 * @return int - a position constant, or -1 if the line names none
+	 */
+	private static int position(String r)
+	{
+		if (r.indexOf("opening") >= 0)
+			return OPENING;
+		if (r.indexOf("closing") >= 0)
+			return CLOSING;
+		if (r.indexOf("open") >= 0)
+			return OPEN;
+		if (r.indexOf("close") >= 0)//closed, close
+			return CLOSED;
+		if (r.indexOf("stop") >= 0)
+			return STOPPED;
+		return -1;
+	}
+
+	/**
+	 * Atomically applies a change and tells the listeners if the position moved
+	 * @param position int - new position, or -1 to keep the current one
+	 * @param detectionKnown boolean - whether detected says anything
+	 * @param detected boolean - whether the gripper is present
+	 * @param autoKnown boolean - whether autoGrip says anything
+	 * @param autoGrip int - AUTO_GRIP or 0
+	 */
+	private void update(int position, boolean detectionKnown, boolean detected, boolean autoKnown, int autoGrip)
+	{
+		int oldBits, newBits;
+		do
+		{
+			oldBits = bits.get();
+			newBits = oldBits;
+			if (position >= 0)
+				newBits = (newBits & ~POSITION_MASK) | position;
+			if (detectionKnown)
+				newBits = (newBits & ~DETECTED) | DETECTION_KNOWN | (detected ? DETECTED : 0);
+			if (autoKnown)
+				newBits = (newBits & ~AUTO_GRIP) | autoGrip;
+		}
+		while (!bits.compareAndSet(oldBits, newBits));
+
+		if (oldBits == newBits)
+			return;
+
+		lock.lock();
+		try {moved.signalAll();}
+		finally {lock.unlock();}
+		for (GripperListener l : listeners)
+		{
+			try {l.gripperChanged(this, oldBits & POSITION_MASK, newBits & POSITION_MASK);}
+			catch (RuntimeException e) {Log.error("Gripper listener failed: " + e);}
+		}
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	//POSITION CONSTANTS
+	public static final int UNKNOWN = 0;
+	public static final int OPEN = 1;
+	public static final int CLOSED = 2;
+	public static final int OPENING = 3;
+	public static final int CLOSING = 4;
+	public static final int STOPPED = 5;
+
+	private static final String[] NAMES = {"unknown", "open", "closed", "opening", "closing", "stopped"};
+
+	//STATE BITS
+	private static final int POSITION_MASK = 0x0F;
+	private static final int DETECTED = 0x10;
+	private static final int DETECTION_KNOWN = 0x20;
+	private static final int AUTO_GRIP = 0x40;
+
+	private final AtomicInteger bits = new AtomicInteger(UNKNOWN);
+	//a lock rather than a monitor so waiting virtual threads park instead of pinning
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition moved = lock.newCondition();
+	private final CopyOnWriteArrayList<GripperListener> listeners = new CopyOnWriteArrayList<GripperListener>();
+}
@@ -0,0 +1,278 @@
+package bcibot;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Encodes and saves images on background threads so saving a snapshot never
+ * blocks robot commands or the Swing event thread. Every save returns a
+ * Future that completes with the written file.
+ *
+ * PNG is lossless but slow; JPEG and BMP are much faster to encode.
+ * Each encoding thread keeps its ImageWriters between saves, and saveAll()
+ * encodes a whole batch in one task so the writer setup is paid once.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	ImageEncoder.java
+ */
+
+public class ImageEncoder
+{
+	/**
+	 * Constructor, creates an encoder with the given number of platform threads
+	 * @param threads int - number of encoding threads
+	 */
+	public ImageEncoder(int threads)
+	{
+		this(threads, ThreadMode.PLATFORM);
+	}
+
+	/**
+	 * Constructor, creates an encoder with the given number and kind of threads
+	 * @param threads int - number of encoding threads
+	 * @param threadMode int - ThreadMode.PLATFORM or ThreadMode.VIRTUAL
+	 */
+	public ImageEncoder(int threads, int threadMode)
+	{
+		final int mode = ThreadMode.validate(threadMode);
+		executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread t = ThreadMode.newThread(mode, r, "Image encoder " + threadCount.incrementAndGet(), true);
+				if (mode == ThreadMode.PLATFORM)
+					t.setPriority(Thread.NORM_PRIORITY - 1);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Shared encoder used by Picture and PictureDisplay
+	 * @return ImageEncoder - the shared encoder
+	 */
+	public static synchronized ImageEncoder getDefault()
+	{
+		if (defaultEncoder == null)
+			defaultEncoder = new ImageEncoder(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+		return defaultEncoder;
+	}
+
+	/**
+	 * Saves an image in the format given by the file's extension (PNG if none)
+	 * @param image BufferedImage - the image to save, must not be changed until saved
+	 * @param file File - where to save it
+	 * @return Future - completes with the file once written
+	 */
+	public Future<File> save(BufferedImage image, File file)
+	{
+		return save(image, file, formatOf(file), DEFAULT_QUALITY);
+	}
+
+	/**
+	 * Saves an image in the given format
+	 * @param image BufferedImage - the image to save, must not be changed until saved
+	 * @param file File - where to save it
+	 * @param format String - PNG, JPEG, BMP or any other ImageIO format
+	 * @param quality float - 0.0 (smallest) to 1.0 (best), or DEFAULT_QUALITY.
+	 *                        For PNG lower values compress faster.
+	 * @return Future - completes with the file once written
+	 */
+	public Future<File> save(final BufferedImage image, final File file,
+			final String format, final float quality)
+	{
+		return executor.submit(new Callable<File>()
+		{
+			public File call() throws IOException
+			{
+				write(image, file, format, quality);
+				return file;
+			}
+		});
+	}
+
+	/**
+	 * Saves several images as one background task
+	 * @param images BufferedImage[] - the images to save
+	 * @param files File[] - where to save each image
+	 * @param format String - PNG, JPEG, BMP or any other ImageIO format
+	 * @param quality float - 0.0 to 1.0, or DEFAULT_QUALITY
+	 * @return Future - completes with the written files, in order, once all are saved
+	 */
+	public Future<List<File>> saveAll(final BufferedImage[] images, final File[] files,
+			final String format, final float quality)
+	{
+		if (images.length != files.length)
+			throw new IllegalArgumentException("Need one file per image");
+
+		return executor.submit(new Callable<List<File>>()
+		{
+			public List<File> call() throws IOException
+			{
+				List<File> saved = new ArrayList<File>(files.length);
+				for (int i = 0; i < images.length; i++)
+				{
+					write(images[i], files[i], format, quality);
+					saved.add(files[i]);
+				}
+				return saved;
+			}
+		});
+	}
+
+	/**
+	 * Waits for a save and reports whether it worked
+	 * @param result Future - returned by save or saveAll
+	 * @return true if the save succeeded, false if it failed
+	 */
+	public static boolean await(Future<?> result)
+	{
+		try
+		{
+			result.get();
+			return true;
+		}
+		catch (InterruptedException e) {Thread.currentThread().interrupt();}
+		catch (ExecutionException e) {}
+		return false;
+	}
+
+	/**
+	 * Number of saves waiting to be encoded
+	 * @return int - queued saves
+	 */
+	public int getPendingCount()
+	{
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Finishes queued saves and stops the encoding threads
+	 */
+	public void shutdown()
+	{
+		executor.shutdown();
+	}
+
+	/**
+	 * Encodes on the calling (encoder) thread
+	 */
+	private void write(BufferedImage image, File file, String format, float quality) throws IOException
+	{
+		try
+		{
+			ImageWriter writer = writerFor(format);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			if (quality != DEFAULT_QUALITY && param.canWriteCompressed())
+			{
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				if (param.getCompressionType() == null)
+					param.setCompressionType(param.getCompressionTypes()[0]);
+				param.setCompressionQuality(quality);
+			}
+
+			File parent = file.getAbsoluteFile().getParentFile();
+			if (parent != null && !parent.isDirectory())
+				throw new IOException("No such directory " + parent);
+			if (file.exists())
+				file.delete();
+			ImageOutputStream out = ImageIO.createImageOutputStream(file);
+			if (out == null)
+				throw new IOException("Cannot write to " + file);
+			try
+			{
+				writer.setOutput(out);
+				writer.write(null, new IIOImage(image, null, null), param);
+			}
+			finally
+			{
+				writer.reset();
+				out.close();
+			}
+		}
+		catch (IOException e)
+		{
+			Log.error("Failed to save " + file);
+			throw e;
+		}
+	}
+
+	/**
+	 * Finds the ImageWriter for a format, reusing this thread's previous one
+	 */
+	private ImageWriter writerFor(String format) throws IOException
+	{
+		Map<String, ImageWriter> cache = writers.get();
+		String key = format.toLowerCase();
+		ImageWriter writer = cache.get(key);
+		if (writer == null)
+		{
+			Iterator<ImageWriter> found = ImageIO.getImageWritersByFormatName(format);
+			if (!found.hasNext())
+				throw new IOException("No encoder for " + format);
+			writer = found.next();
+			cache.put(key, writer);
+		}
+		return writer;
+	}
+
+	/**
+	 * Picks the format from a file's extension
+	 * @param file File - the file being written
+	 * @return String - the format name, PNG if there is no extension
+	 */
+	static String formatOf(File file)
+	{
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot < 0 || dot == name.length() - 1)
+			return PNG;
+
+		String ext = name.substring(dot + 1).toLowerCase();
+		if (ext.equals("jpg") || ext.equals("jpeg"))
+			return JPEG;
+		return ext.toUpperCase();
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	public static final String PNG = "PNG";
+	public static final String JPEG = "JPEG";
+	public static final String BMP = "BMP";
+	public static final float DEFAULT_QUALITY = -1f;
+
+	private static ImageEncoder defaultEncoder;
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	private final ThreadPoolExecutor executor;
+	private final ThreadLocal<Map<String, ImageWriter>> writers = new ThreadLocal<Map<String, ImageWriter>>()
+	{
+		protected Map<String, ImageWriter> initialValue()
+		{
+			return new HashMap<String, ImageWriter>();
+		}
+	};
+}
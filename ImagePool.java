@@ -0,0 +1,141 @@
+package bcibot;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps released BufferedImages so later frames of the same size and type
+ * can be decoded straight into them instead of allocating new pixel arrays.
+ * Camera frames are all the same size, so in a long run a handful of images
+ * get reused over and over and the garbage collector has almost nothing to do.
+ *
+ * Only images of a standard BufferedImage type are pooled.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	ImagePool.java
+ */
+
+public class ImagePool
+{
+	/**
+	 * Constructor, creates an empty pool
+	 * @param _perSize int - most images kept for each size and type
+	 */
+	public ImagePool(int _perSize)
+	{
+		perSize = _perSize;
+	}
+
+	/**
+	 * Shared pool used by Picture and Camera
+	 * @return ImagePool - the shared pool
+	 */
+	public static synchronized ImagePool getDefault()
+	{
+		if (defaultPool == null)
+			defaultPool = new ImagePool(DEFAULT_PER_SIZE);
+		return defaultPool;
+	}
+
+	/**
+	 * Gets an image, reusing a released one if there is one.
+	 * A reused image still holds its old pixels.
+	 * @param width int - width of the image
+	 * @param height int - height of the image
+	 * @param type int - a BufferedImage.TYPE_ constant other than TYPE_CUSTOM
+	 * @return BufferedImage - the image
+	 */
+	public BufferedImage acquire(int width, int height, int type)
+	{
+		Long key = key(width, height, type);
+		synchronized (this)
+		{
+			ArrayDeque<BufferedImage> free = pool.get(key);
+			if (free != null && !free.isEmpty())
+			{
+				hits++;
+				return free.pop();
+			}
+			misses++;
+		}
+		return new BufferedImage(width, height, type);
+	}
+
+	/**
+	 * Returns an image to the pool. The caller must not use it afterwards.
+	 * @param image BufferedImage - the image to give back, may be null
+	 */
+	public void release(BufferedImage image)
+	{
+		if (image == null || image.getType() == BufferedImage.TYPE_CUSTOM)
+			return;
+
+		Long key = key(image.getWidth(), image.getHeight(), image.getType());
+		synchronized (this)
+		{
+			ArrayDeque<BufferedImage> free = pool.get(key);
+			if (free == null)
+			{
+				free = new ArrayDeque<BufferedImage>(perSize);
+				pool.put(key, free);
+			}
+			if (free.size() < perSize)
+				free.push(image);
+		}
+	}
+
+	/**
+	 * Checks whether images of a type can be pooled
+	 * @param type int - a BufferedImage.TYPE_ constant
+	 * @return true if acquire and release handle it
+	 */
+	public static boolean isPoolable(int type)
+	{
+		return type != BufferedImage.TYPE_CUSTOM;
+	}
+
+	/**
+	 * Drops every pooled image
+	 */
+	public synchronized void clear()
+	{
+		pool.clear();
+	}
+
+	/**
+	 * Number of acquires served from the pool
+	 * @return long - reused images
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * Number of acquires that had to allocate
+	 * @return long - new images
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	private static Long key(int width, int height, int type)
+	{
+		return Long.valueOf(((long)width << 40) | ((long)height << 16) | type);
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static final int DEFAULT_PER_SIZE = 4;
+	private static ImagePool defaultPool;
+
+	private final int perSize;
+	private final Map<Long, ArrayDeque<BufferedImage>> pool = new HashMap<Long, ArrayDeque<BufferedImage>>();
+	private long hits = 0;
+	private long misses = 0;
+}
@@ -0,0 +1,220 @@
+package bcibot;
+
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.GraphicsConfiguration;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.swing.JComponent;
+import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
+
+/**
+ * A single window for watching the camera. Unlike PictureDisplay, which opens
+ * a new window per picture, a LiveView keeps one window and one accelerated
+ * back buffer and just swaps new frames into it, so streaming costs a fixed
+ * amount of memory.
+ *
+ * showFrame() may be called from any thread. At most one frame is waiting to
+ * be painted at a time; if the event thread falls behind, older frames are
+ * replaced by newer ones and counted as dropped.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	LiveView.java
+ */
+
+public class LiveView extends JComponent implements PictureViewer
+{
+	/**
+	 * Constructor, opens the window
+	 * @param title String - what to call the window
+	 * @param x_pos int - x position of the window
+	 * @param y_pos int - y position of the window
+	 */
+	public LiveView(final String title, final int x_pos, final int y_pos)
+	{
+		setOpaque(true);
+		setPreferredSize(new Dimension(DEFAULT_WIDTH, DEFAULT_HEIGHT));
+
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			public void run()
+			{
+				frame = new JFrame(title);
+				frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+				frame.setContentPane(LiveView.this);
+				frame.setLocation(x_pos, y_pos);
+				frame.pack();
+				frame.setVisible(true);
+			}
+		});
+	}
+
+	/**
+	 * Queues a frame to be shown. Returns immediately.
+	 * The image must not be modified until the next call to showFrame.
+	 * @param image BufferedImage - the frame to show
+	 */
+	public void showFrame(BufferedImage image)
+	{
+		if (image == null || closed)
+			return;
+
+		if (pending.getAndSet(image) != null)
+			dropped.incrementAndGet();//replaced a frame that was never painted
+		else
+			SwingUtilities.invokeLater(swapFrame);
+	}
+
+	/**
+	 * Number of frames replaced before they could be painted
+	 * @return long - dropped frames
+	 */
+	public long getDroppedFrames()
+	{
+		return dropped.get();
+	}
+
+	/**
+	 * Number of frames that made it to the screen
+	 * @return long - painted frames
+	 */
+	public long getPaintedFrames()
+	{
+		return painted.get();
+	}
+
+	/**
+	 * Checks whether the window is still open
+	 * @return true if the window is showing, false once closed
+	 */
+	public boolean isOpen()
+	{
+		return !closed && (frame == null || frame.isDisplayable());
+	}
+
+	/**
+	 * Closes the window and releases the back buffer
+	 */
+	public void close()
+	{
+		closed = true;
+		pending.set(null);
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			public void run()
+			{
+				if (frame != null)
+					frame.dispose();
+				if (buffer != null)
+					buffer.flush();
+				buffer = null;
+				current = null;
+			}
+		});
+	}
+
+	/**
+	 * Paints the back buffer, re-rendering it if the accelerated copy was lost
+	 */
+	protected void paintComponent(Graphics g)
+	{
+		if (current == null)
+		{
+			g.setColor(getBackground());
+			g.fillRect(0, 0, getWidth(), getHeight());
+			return;
+		}
+
+		do
+		{
+			int status = buffer == null ? VolatileImage.IMAGE_INCOMPATIBLE
+					: buffer.validate(getGraphicsConfiguration());
+			if (status == VolatileImage.IMAGE_INCOMPATIBLE)
+				createBuffer();
+			if (status != VolatileImage.IMAGE_OK)
+				render();
+			if (buffer == null)
+				return;
+			g.drawImage(buffer, 0, 0, null);
+		}
+		while (buffer.contentsLost());
+	}
+
+	/**
+	 * Event thread task: moves the pending frame into the back buffer
+	 */
+	private final Runnable swapFrame = new Runnable()
+	{
+		public void run()
+		{
+			BufferedImage next = pending.getAndSet(null);
+			if (next == null || closed)
+				return;
+
+			current = next;
+			if (!isDisplayable())
+				return;//window was closed by the user
+
+			if (buffer == null || buffer.getWidth() != next.getWidth()
+					|| buffer.getHeight() != next.getHeight())
+			{
+				createBuffer();
+				setPreferredSize(new Dimension(next.getWidth(), next.getHeight()));
+				if (frame != null)
+					frame.pack();
+			}
+			else if (buffer.validate(getGraphicsConfiguration()) == VolatileImage.IMAGE_INCOMPATIBLE)
+				createBuffer();
+
+			render();
+			painted.incrementAndGet();
+			repaint();
+		}
+	};
+
+	private void createBuffer()
+	{
+		if (buffer != null)
+			buffer.flush();
+
+		GraphicsConfiguration gc = getGraphicsConfiguration();
+		if (gc != null)
+			buffer = gc.createCompatibleVolatileImage(current.getWidth(), current.getHeight());
+		else
+			buffer = createVolatileImage(current.getWidth(), current.getHeight());
+	}
+
+	private void render()
+	{
+		if (buffer == null)
+			createBuffer();
+		if (buffer == null)
+			return;
+
+		Graphics g = buffer.createGraphics();
+		g.drawImage(current, 0, 0, null);
+		g.dispose();
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static final long serialVersionUID = 1L;
+	private static final int DEFAULT_WIDTH = 320;
+	private static final int DEFAULT_HEIGHT = 240;
+
+	private final AtomicReference<BufferedImage> pending = new AtomicReference<BufferedImage>();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong painted = new AtomicLong();
+	private volatile boolean closed = false;
+	private volatile JFrame frame;
+
+	//only touched on the event thread
+	private VolatileImage buffer;
+	private BufferedImage current;
+}
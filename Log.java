@@ -0,0 +1,198 @@
+package bcibot;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Level-gated logging facade for the client.
+ * Only errors are written by default, so the command path only pays for a
+ * volatile read while errors still reach the console.
+ * When a level is enabled, messages go into a lock-free ring buffer and are
+ * written to the LogSink by a single background thread, so sender threads
+ * never contend on the console. The writer sleeps while there is nothing to
+ * write and is woken by the next message.
+ *
+ * Hot paths should guard message construction:
+ * <pre>
+ *   if (Log.isEnabled(Log.DEBUG))
+ *       Log.debug("Sending: " + command);
+ * </pre>
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	Log.java
+ */
+
+public class Log
+{
+	/**
+	 * Sets the most detailed level that will be written
+	 * @param _level int - OFF, ERROR, INFO or DEBUG
+	 */
+	public static void setLevel(int _level)
+	{
+		level = _level;
+	}
+
+	/**
+	 * Accessor for the current level
+	 * @return int - OFF, ERROR, INFO or DEBUG
+	 */
+	public static int getLevel()
+	{
+		return level;
+	}
+
+	/**
+	 * Checks whether messages of a level will be written
+	 * @param _level int - the level to check
+	 * @return true if enabled, false otherwise
+	 */
+	public static boolean isEnabled(int _level)
+	{
+		return _level != OFF && _level <= level;
+	}
+
+	/**
+	 * Replaces where messages are written. Defaults to the console.
+	 * @param _sink LogSink - the new destination
+	 */
+	public static void setSink(LogSink _sink)
+	{
+		sink = _sink;
+	}
+
+	public static void error(String message)
+	{
+		log(ERROR, message);
+	}
+
+	public static void info(String message)
+	{
+		log(INFO, message);
+	}
+
+	public static void debug(String message)
+	{
+		log(DEBUG, message);
+	}
+
+	/**
+	 * Number of messages lost because the writer could not keep up
+	 * @return long - messages dropped so far
+	 */
+	public static long getDroppedCount()
+	{
+		return buffer.dropped();
+	}
+
+	/**
+	 * Queues a message for the writer thread if its level is enabled
+	 * @param _level int - level of the message
+	 * @param message String - the message
+	 */
+	private static void log(int _level, String message)
+	{
+		if (!isEnabled(_level))
+			return;
+
+		if (writer == null)
+			startWriter();
+		buffer.offer(_level, message);
+		if (writerParked)
+			LockSupport.unpark(writer);
+	}
+
+	/**
+	 * Starts the background writer the first time something is logged
+	 */
+	private static synchronized void startWriter()
+	{
+		if (writer != null)
+			return;
+
+		Thread t = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				while (true)
+				{
+					drain();
+					//announce the park before the last look, so a message
+					//offered in between either is seen here or unparks us
+					writerParked = true;
+					if (buffer.isEmpty())
+						LockSupport.park(Log.class);
+					writerParked = false;
+				}
+			}
+		}, "Log writer");
+		t.setDaemon(true);
+		t.start();
+
+		//write whatever is still buffered when the program exits
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+		{
+			public void run()
+			{
+				drain();
+			}
+		}, "Log flush"));
+
+		writer = t;
+	}
+
+	/**
+	 * Writes all buffered messages to the sink
+	 */
+	private static synchronized void drain()
+	{
+		LogSink out = sink;
+		String message = buffer.poll();
+		if (message == null)
+			return;
+
+		while (message != null)
+		{
+			out.write(buffer.lastLevel(), message);
+			message = buffer.poll();
+		}
+		out.flush();
+	}
+
+	//**************************************************************************
+	//Console Sink**************************************************************
+	//**************************************************************************
+
+	private static class ConsoleSink implements LogSink
+	{
+		public void write(int _level, String message)
+		{
+			if (_level == ERROR)
+				System.err.println(message);
+			else
+				System.out.println(message);
+		}
+
+		public void flush()
+		{
+			System.out.flush();
+			System.err.flush();
+		}
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	public static final int OFF = 0;
+	public static final int ERROR = 1;
+	public static final int INFO = 2;
+	public static final int DEBUG = 3;
+
+	private static final int BUFFER_SIZE = 4096;
+
+	private static volatile int level = ERROR;
+	private static volatile LogSink sink = new ConsoleSink();
+	private static volatile Thread writer;
+	private static volatile boolean writerParked = false;//writer is asleep, or about to be
+	private static final LogRingBuffer buffer = new LogRingBuffer(BUFFER_SIZE);
+}
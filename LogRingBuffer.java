@@ -0,0 +1,115 @@
+package bcibot;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free ring buffer of log messages.
+ * Any number of threads may offer messages, exactly one thread may poll them.
+ * When the buffer is full new messages are dropped and counted rather than
+ * making the producer wait.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	LogRingBuffer.java
+ */
+
+class LogRingBuffer
+{
+	/**
+	 * Constructor, creates an empty buffer
+	 * @param capacity int - number of slots, rounded up to a power of two
+	 */
+	LogRingBuffer(int capacity)
+	{
+		int size = 1;
+		while (size < capacity)
+			size <<= 1;
+
+		mask = size - 1;
+		messages = new AtomicReferenceArray<String>(size);
+		levels = new int[size];
+	}
+
+	/**
+	 * Adds a message without blocking
+	 * @param level int - level of the message
+	 * @param message String - the message to add
+	 * @return true if stored, false if the buffer was full
+	 */
+	boolean offer(int level, String message)
+	{
+		while (true)
+		{
+			long t = tail.get();
+			if (t - head >= messages.length())
+			{
+				dropped.incrementAndGet();
+				return false;
+			}
+			if (tail.compareAndSet(t, t + 1))
+			{
+				int slot = (int)t & mask;
+				levels[slot] = level;
+				messages.lazySet(slot, message);//publishes the level write too
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Removes the oldest message. Must only be called by the consumer thread.
+	 * @return the message, or null if nothing has been published yet
+	 */
+	String poll()
+	{
+		int slot = (int)head & mask;
+		String message = messages.get(slot);
+		if (message == null)
+			return null;
+
+		lastLevel = levels[slot];
+		messages.lazySet(slot, null);
+		head = head + 1;//volatile write, frees the slot for producers
+		return message;
+	}
+
+	/**
+	 * Checks for messages offered but not yet polled, including any still
+	 * being published. Must only be called by the consumer thread.
+	 * @return true if nothing is waiting
+	 */
+	boolean isEmpty()
+	{
+		return tail.get() == head;
+	}
+
+	/**
+	 * Level of the message most recently returned by poll
+	 * @return int - the level
+	 */
+	int lastLevel()
+	{
+		return lastLevel;
+	}
+
+	/**
+	 * Number of messages dropped because the buffer was full
+	 * @return long - total dropped so far
+	 */
+	long dropped()
+	{
+		return dropped.get();
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private final AtomicReferenceArray<String> messages;
+	private final int[] levels;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile long head = 0;
+	private int lastLevel;
+}
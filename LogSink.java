@@ -0,0 +1,25 @@
+package bcibot;
+
+/**
+ * Destination for messages written by the Log facade.
+ * Implementations are only ever called from the single log writer thread,
+ * so they do not need to be thread safe.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	LogSink.java
+ */
+
+public interface LogSink
+{
+	/**
+	 * Writes one message.
+	 * @param level int - one of Log.ERROR, Log.INFO or Log.DEBUG
+	 * @param message String - the message to write
+	 */
+	public void write(int level, String message);
+
+	/**
+	 * Called after the writer has drained everything currently buffered.
+	 */
+	public void flush();
+}
@@ -0,0 +1,251 @@
+package bcibot;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Headless PictureViewer. Serves the most recent picture as an MJPEG stream
+ * (multipart/x-mixed-replace) on the loopback interface, so a browser or
+ * ffplay on the same machine, or through an SSH tunnel, can watch the camera.
+ * Only image classes are used, never the AWT toolkit or Swing.
+ *
+ * Each picture is JPEG encoded once, and only if someone is watching.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	MjpegViewer.java
+ */
+
+public class MjpegViewer implements PictureViewer
+{
+	/**
+	 * Constructor, starts serving on the loopback interface
+	 * @param _title String - name of the stream, shown in the log
+	 * @param port int - port to listen on, 0 for any free port
+	 * @throws IOException - if the port cannot be opened
+	 */
+	public MjpegViewer(String _title, int port) throws IOException
+	{
+		title = _title;
+		server = new ServerSocket();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+		Thread acceptor = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				acceptClients();
+			}
+		}, "MJPEG server");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Address to open in a browser
+	 * @return String - the stream's URL
+	 */
+	public String getUrl()
+	{
+		return "http://" + server.getInetAddress().getHostAddress() + ":" + server.getLocalPort() + "/";
+	}
+
+	/**
+	 * Accessor for the stream's title
+	 * @return String - the title
+	 */
+	public String getTitle()
+	{
+		return title;
+	}
+
+	public synchronized void showFrame(BufferedImage image)
+	{
+		if (image == null || closed)
+			return;
+
+		latest = image;
+		sequence++;
+		notifyAll();
+	}
+
+	public synchronized boolean isOpen()
+	{
+		return !closed;
+	}
+
+	public void close()
+	{
+		List<Socket> open;
+		synchronized (this)
+		{
+			if (closed)
+				return;
+			closed = true;
+			latest = null;
+			open = new ArrayList<Socket>(clients);
+			notifyAll();
+		}
+
+		try {server.close();}
+		catch (IOException e) {}
+		for (Socket s : open)
+		{
+			try {s.close();}
+			catch (IOException e) {}
+		}
+	}
+
+	//**************************************************************************
+	//Server Threads************************************************************
+	//**************************************************************************
+
+	private void acceptClients()
+	{
+		while (isOpen())
+		{
+			final Socket client;
+			try {client = server.accept();}
+			catch (IOException e) {break;}//closed
+
+			synchronized (this)
+			{
+				clients.add(client);
+			}
+			Thread t = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					serve(client);
+				}
+			}, "MJPEG client");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Streams frames to one client until it disconnects or the viewer closes
+	 */
+	private void serve(Socket client)
+	{
+		try
+		{
+			readRequest(client.getInputStream());
+
+			OutputStream out = client.getOutputStream();
+			out.write(("HTTP/1.0 200 OK\r\n"
+					+ "Cache-Control: no-cache\r\n"
+					+ "Connection: close\r\n"
+					+ "Content-Type: multipart/x-mixed-replace; boundary=" + BOUNDARY + "\r\n\r\n").getBytes("US-ASCII"));
+
+			long sent = -1;
+			while (true)
+			{
+				BufferedImage frame;
+				synchronized (this)
+				{
+					while (!closed && (sequence == sent || latest == null))
+						wait();
+					if (closed)
+						break;
+					sent = sequence;
+					frame = latest;
+				}
+
+				byte[] jpeg = encode(frame, sent);
+				if (jpeg == null)
+					continue;
+
+				out.write(("--" + BOUNDARY + "\r\n"
+						+ "Content-Type: image/jpeg\r\n"
+						+ "Content-Length: " + jpeg.length + "\r\n\r\n").getBytes("US-ASCII"));
+				out.write(jpeg);
+				out.write("\r\n".getBytes("US-ASCII"));
+				out.flush();
+			}
+		}
+		catch (IOException e) {}//client went away
+		catch (InterruptedException e) {}
+		finally
+		{
+			synchronized (this)
+			{
+				clients.remove(client);
+			}
+			try {client.close();}
+			catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * Encodes a frame, at most once per frame however many clients watch.
+	 * Runs outside the viewer lock so showFrame never waits for an encode.
+	 */
+	private byte[] encode(BufferedImage frame, long frameSequence)
+	{
+		synchronized (encodeLock)
+		{
+			if (encodedSequence == frameSequence)
+				return encoded;
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 * 1024);
+			try
+			{
+				if (!ImageIO.write(frame, "JPEG", bytes))
+					return null;
+			}
+			catch (IOException e) {return null;}
+			encoded = bytes.toByteArray();
+			encodedSequence = frameSequence;
+			return encoded;
+		}
+	}
+
+	/**
+	 * Skips the HTTP request headers. Every path gets the stream.
+	 */
+	private static void readRequest(InputStream in) throws IOException
+	{
+		int matched = 0;
+		int c;
+		//read up to the blank line ending the headers
+		while (matched < 4 && (c = in.read()) != -1)
+		{
+			if ((c == '\r' && (matched == 0 || matched == 2)) || (c == '\n' && (matched == 1 || matched == 3)))
+				matched++;
+			else
+				matched = c == '\r' ? 1 : 0;
+		}
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static final String BOUNDARY = "er1frame";
+
+	private final String title;
+	private final ServerSocket server;
+	private final List<Socket> clients = new ArrayList<Socket>();
+
+	//guarded by this
+	private BufferedImage latest;
+	private long sequence = 0;
+	private boolean closed = false;
+
+	//guarded by encodeLock
+	private final Object encodeLock = new Object();
+	private byte[] encoded;
+	private long encodedSequence = -1;
+}
@@ -0,0 +1,257 @@
+package bcibot;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tells whether a camera frame differs from what the camera has been
+ * seeing, so that frames of an unchanged scene need no further analysis.
+ *
+ * Frames are cut into a grid of square blocks and only each block's mean
+ * grey level is kept. The background is a running average of those means,
+ * so slow changes such as lighting drift are learned, and a block has
+ * changed when its mean is further than the threshold from its background.
+ * Changed blocks are learned eight times slower, so something passing
+ * through leaves no ghost behind it while something that stays still
+ * still becomes background in the end.
+ * Comparing block means instead of pixels also ignores sensor noise, which
+ * averages out within a block.
+ *
+ * After each frame the activity, the fraction of blocks that changed, and
+ * the changed regions, neighbouring changed blocks joined into rectangles,
+ * can be read. A VisionPipeline given a MotionDetector drops unchanged
+ * frames before its processor sees them.
+ *
+ * Not thread safe: use one detector per camera.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	MotionDetector.java
+ */
+
+public class MotionDetector
+{
+	/**
+	 * Constructor
+	 * @param _blockSize int - side of a block in pixels, e.g. 16
+	 * @param _threshold int - grey levels a block's mean must move to count as changed, e.g. 12
+	 */
+	public MotionDetector(int _blockSize, int _threshold)
+	{
+		blockSize = Math.max(1, _blockSize);
+		threshold = Math.max(0, _threshold);
+	}
+
+	/**
+	 * Compares a frame with the background and learns it into the background
+	 * @param gray int[] - grey levels 0-255, one per pixel in row order
+	 * @param width int - width of the frame
+	 * @param height int - height of the frame
+	 * @return true if enough blocks changed, always true for the first frame
+	 */
+	public boolean update(int[] gray, int width, int height)
+	{
+		int cols = (width + blockSize - 1) / blockSize;
+		int rows = (height + blockSize - 1) / blockSize;
+		boolean first = background == null || cols != gridWidth || rows != gridHeight;
+		if (first)
+		{
+			gridWidth = cols;
+			gridHeight = rows;
+			sums = new int[cols * rows];
+			background = new int[cols * rows];
+			changed = new int[cols * rows];
+		}
+		frameWidth = width;
+		frameHeight = height;
+		regions = null;
+
+		//sum each block, a row of pixels at a time
+		Arrays.fill(sums, 0);
+		for (int y = 0; y < height; y++)
+		{
+			int base = y * width;
+			int block = (y / blockSize) * cols;
+			for (int x = 0; x < width; x += blockSize, block++)
+			{
+				int end = Math.min(x + blockSize, width);
+				int s = 0;
+				for (int i = base + x; i < base + end; i++)
+					s += gray[i];
+				sums[block] += s;
+			}
+		}
+
+		changedCount = 0;
+		for (int r = 0, b = 0; r < rows; r++)
+		{
+			int h = Math.min(blockSize, height - r * blockSize);
+			for (int c = 0; c < cols; c++, b++)
+			{
+				int w = Math.min(blockSize, width - c * blockSize);
+				int mean = (int)(((long)sums[b] << FRACTION) / (w * h));//fixed point, like the background
+				if (first)
+				{
+					background[b] = mean;
+					changed[b] = 0;
+					continue;
+				}
+				int difference = mean - background[b];
+				int rate = learningRate;
+				if (Math.abs(difference) > threshold << FRACTION)
+				{
+					changed[b] = 1;
+					changedCount++;
+					rate >>= CHANGED_SLOWDOWN;
+				}
+				else
+					changed[b] = 0;
+				background[b] += (int)((long)difference * rate >> FRACTION);
+			}
+		}
+
+		frames++;
+		boolean moved = first || changedCount >= minBlocks;
+		if (!moved)
+			staticFrames++;
+		return moved;
+	}
+
+	/**
+	 * Compares a frame with the background, see update(int[], int, int)
+	 * @param image BufferedImage - the frame
+	 * @return true if enough blocks changed
+	 */
+	public boolean update(BufferedImage image)
+	{
+		int n = image.getWidth() * image.getHeight();
+		if (pixels == null || pixels.length < n)
+			pixels = new int[n];
+		Picture.getPackedPixels(image, pixels);
+		PixelKernels.getDefault().toGray(pixels, pixels, n);
+		return update(pixels, image.getWidth(), image.getHeight());
+	}
+
+	/**
+	 * Compares a picture with the background, see update(int[], int, int)
+	 * @param picture Picture - the frame
+	 * @return true if enough blocks changed
+	 */
+	public boolean update(Picture picture)
+	{
+		return update(picture.getImage());
+	}
+
+	/**
+	 * How much of the last frame changed
+	 * @return double - changed blocks as a fraction of all blocks, 0.0 to 1.0
+	 */
+	public double getActivity()
+	{
+		return background == null ? 0 : changedCount / (double)(gridWidth * gridHeight);
+	}
+
+	/** @return int - blocks that changed in the last frame */
+	public int getChangedBlocks() {return changedCount;}
+
+	/**
+	 * Where the last frame changed: each group of touching changed blocks as
+	 * one rectangle in frame pixels, largest first
+	 * @return List - the changed regions, empty if nothing changed
+	 */
+	public List<Rectangle> getChangedRegions()
+	{
+		if (regions == null)
+		{
+			regions = new ArrayList<Rectangle>();
+			if (changedCount > 0)
+			{
+				if (grouper == null)
+					grouper = new BlobDetector(1);
+				for (Blob b : grouper.detect(changed, gridWidth, gridHeight))
+				{
+					Rectangle r = new Rectangle(b.getX() * blockSize, b.getY() * blockSize,
+							b.getWidth() * blockSize, b.getHeight() * blockSize);
+					regions.add(r.intersection(new Rectangle(0, 0, frameWidth, frameHeight)));
+				}
+			}
+		}
+		return new ArrayList<Rectangle>(regions);
+	}
+
+	/**
+	 * Sets how fast the background follows the frames
+	 * @param _rate double - weight of each new frame, 0.0 (never learn) to 1.0
+	 *                       (background is the last frame), default 0.05
+	 */
+	public void setLearningRate(double _rate)
+	{
+		learningRate = (int)Math.round(Math.max(0, Math.min(1, _rate)) * (1 << FRACTION));
+	}
+
+	/**
+	 * Sets how many blocks must change for a frame to count as changed
+	 * @param _blocks int - blocks, at least 1 (default 1)
+	 */
+	public void setMinChangedBlocks(int _blocks)
+	{
+		minBlocks = Math.max(1, _blocks);
+	}
+
+	/**
+	 * Forgets the background, so the next frame becomes it
+	 */
+	public void reset()
+	{
+		background = null;
+		changedCount = 0;
+		regions = null;
+	}
+
+	/** @return long - frames compared */
+	public long getFrameCount() {return frames;}
+
+	/** @return long - frames in which too few blocks changed */
+	public long getStaticCount() {return staticFrames;}
+
+	/** @return int - blocks across the frame */
+	public int getGridWidth() {return gridWidth;}
+
+	/** @return int - blocks down the frame */
+	public int getGridHeight() {return gridHeight;}
+
+	public String toString()
+	{
+		return String.format("MotionDetector[%dx%d blocks, activity=%.3f, static %d of %d frames]",
+				gridWidth, gridHeight, getActivity(), staticFrames, frames);
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static final int FRACTION = 8;//fixed point bits of the block means
+	private static final int CHANGED_SLOWDOWN = 3;//changed blocks learn 2^3 times slower
+
+	private final int blockSize;
+	private final int threshold;
+	private int learningRate = 13;//about 0.05 in fixed point
+	private int minBlocks = 1;
+
+	//one entry per block, row by row
+	private int gridWidth = 0, gridHeight = 0;
+	private int[] sums;
+	private int[] background;//running mean grey level, fixed point
+	private int[] changed;//1 where the last frame changed
+
+	private int frameWidth, frameHeight;
+	private int changedCount = 0;
+	private List<Rectangle> regions;
+	private BlobDetector grouper;
+	private int[] pixels;//converted frame, reused
+
+	private long frames = 0;
+	private long staticFrames = 0;
+}
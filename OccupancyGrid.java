@@ -0,0 +1,479 @@
+package bcibot;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A map of the floor around the robot, so planners can ask it whether a
+ * way is clear instead of working it out from camera frames each time.
+ *
+ * The floor is cut into square cells, each holding the log-odds that it is
+ * occupied in a flat float array: 0 for unknown, positive for probably
+ * occupied, negative for probably free. Each observation is a ray from the
+ * robot's pose: the cells it crosses are seen to be free, and the cell it
+ * ends in is seen to be occupied if the ray ended on an obstacle. Adding
+ * log-odds lets many uncertain observations add up, and clamping them
+ * lets the map change its mind when something moves.
+ *
+ * Rays are clipped to the map first, so one starting or ending far off it
+ * costs no more than one across it, then walked cell by cell with
+ * Bresenham's line algorithm, for updates and for castRay. Occupied cells
+ * are also counted in a 2D Fenwick tree, updated only when a cell changes
+ * between occupied and not, so the number of occupied cells in any
+ * rectangle is found without visiting its cells.
+ *
+ * World coordinates are inches, with the same axes as Pose; the grid is
+ * centred on the origin. Reads may run on several threads while one thread
+ * adds observations.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	OccupancyGrid.java
+ */
+
+public class OccupancyGrid
+{
+	/**
+	 * Constructor, every cell starts unknown
+	 * @param _columns int - cells along the x axis
+	 * @param _rows int - cells along the y axis
+	 * @param _cellSize double - side of a cell in inches
+	 */
+	public OccupancyGrid(int _columns, int _rows, double _cellSize)
+	{
+		if (_columns <= 0 || _rows <= 0 || _cellSize <= 0)
+			throw new IllegalArgumentException("Grid must have cells of positive size");
+		columns = _columns;
+		rows = _rows;
+		cellSize = _cellSize;
+		logOdds = new float[columns * rows];
+		occupiedTree = new int[(columns + 1) * (rows + 1)];
+	}
+
+	//**************************************************************************
+	//Observations**************************************************************
+	//**************************************************************************
+
+	/**
+	 * Records an obstacle seen from a pose: free space up to it, occupied where it is
+	 * @param pose Pose - where the robot was when it saw the obstacle
+	 * @param bearing double - radians from straight ahead, positive to the left
+	 * @param range double - inches to the obstacle
+	 */
+	public void addObstacle(Pose pose, double bearing, double range)
+	{
+		double[] end = pose.project(bearing, range);
+		addRay(pose.getX(), pose.getY(), end[0], end[1], true);
+	}
+
+	/**
+	 * Records free space seen from a pose, with no obstacle within range
+	 * @param pose Pose - where the robot was
+	 * @param bearing double - radians from straight ahead, positive to the left
+	 * @param range double - inches seen to be clear
+	 */
+	public void addFreeSpace(Pose pose, double bearing, double range)
+	{
+		double[] end = pose.project(bearing, range);
+		addRay(pose.getX(), pose.getY(), end[0], end[1], false);
+	}
+
+	/**
+	 * Records an obstacle found in a camera frame, e.g. by a TargetDetector.
+	 * Its bearing comes from its offset in the frame and its range from how
+	 * wide it looks compared with how wide it really is.
+	 * @param pose Pose - where the robot was when the frame was captured
+	 * @param target Target - where the obstacle was in the frame
+	 * @param fieldOfView double - the camera's horizontal field of view in radians
+	 * @param width double - the obstacle's real width in inches
+	 */
+	public void addTarget(Pose pose, Target target, double fieldOfView, double width)
+	{
+		if (target.getSize() <= 0)
+			return;
+		double tanHalf = Math.tan(fieldOfView / 2);
+		double bearing = -Math.atan(target.getOffset() * tanHalf);//offsets grow to the right
+		double range = width / (2 * tanHalf * target.getSize());
+		addObstacle(pose, bearing, range);
+	}
+
+	/**
+	 * Records one ray: the cells from the start to the end are free, and
+	 * the end cell is occupied if hit
+	 * @param x0 double - start x in inches
+	 * @param y0 double - start y in inches
+	 * @param x1 double - end x in inches
+	 * @param y1 double - end y in inches
+	 * @param hit boolean - true if the ray ended on an obstacle
+	 * @throws IllegalArgumentException - if an end is not a number, infinite, or
+	 *                                    further from the origin than any map reaches
+	 */
+	public void addRay(double x0, double y0, double x1, double y1, boolean hit)
+	{
+		checkPoint(x0, y0);
+		checkPoint(x1, y1);
+		boolean endInside = inside(column(x1), row(y1));
+		double[] t = clip(x0, y0, x1, y1);
+		lock.writeLock().lock();
+		try
+		{
+			updates++;
+			if (t == null)
+				return;//never crosses the map
+			int cx = clippedColumn(x0 + t[0] * (x1 - x0)), cy = clippedRow(y0 + t[0] * (y1 - y0));
+			int ex = clippedColumn(x0 + t[1] * (x1 - x0)), ey = clippedRow(y0 + t[1] * (y1 - y0));
+			int dx = Math.abs(ex - cx), dy = -Math.abs(ey - cy);
+			int sx = cx < ex ? 1 : -1, sy = cy < ey ? 1 : -1;
+			int error = dx + dy;
+			while (cx != ex || cy != ey)
+			{
+				update(cx, cy, FREE_UPDATE);
+				int e2 = 2 * error;
+				if (e2 >= dy)
+				{
+					error += dy;
+					cx += sx;
+				}
+				if (e2 <= dx)
+				{
+					error += dx;
+					cy += sy;
+				}
+			}
+			update(ex, ey, hit && endInside ? OCCUPIED_UPDATE : FREE_UPDATE);
+		}
+		finally {lock.writeLock().unlock();}
+	}
+
+	/**
+	 * Forgets everything, making every cell unknown
+	 */
+	public void clear()
+	{
+		lock.writeLock().lock();
+		try
+		{
+			Arrays.fill(logOdds, 0f);
+			Arrays.fill(occupiedTree, 0);
+			occupiedCount = 0;
+		}
+		finally {lock.writeLock().unlock();}
+	}
+
+	//**************************************************************************
+	//Queries*******************************************************************
+	//**************************************************************************
+
+	/**
+	 * How far a ray goes before it meets an occupied cell, e.g. how far the
+	 * robot can drive along a heading
+	 * @param x double - start x in inches
+	 * @param y double - start y in inches
+	 * @param angle double - direction in radians, as Pose headings
+	 * @param maxRange double - inches to look
+	 * @return double - inches to the first occupied cell, or maxRange if there is none
+	 *                  before it or the edge of the map
+	 */
+	public double castRay(double x, double y, double angle, double maxRange)
+	{
+		int cx = column(x), cy = row(y);
+		double x1 = x + maxRange * Math.cos(angle), y1 = y + maxRange * Math.sin(angle);
+		double[] t = clip(x, y, x1, y1);
+		if (!inside(cx, cy) || t == null)
+			return maxRange;
+		int ex = clippedColumn(x + t[1] * (x1 - x)), ey = clippedRow(y + t[1] * (y1 - y));
+		lock.readLock().lock();
+		try
+		{
+			int sx0 = cx, sy0 = cy;
+			int dx = Math.abs(ex - cx), dy = -Math.abs(ey - cy);
+			int sx = cx < ex ? 1 : -1, sy = cy < ey ? 1 : -1;
+			int error = dx + dy;
+			while (true)
+			{
+				if (logOdds[cy * columns + cx] > OCCUPIED_LEVEL && (cx != sx0 || cy != sy0))
+					return Math.min(maxRange, Math.hypot(cx - sx0, cy - sy0) * cellSize);
+				if (cx == ex && cy == ey)
+					return maxRange;
+				int e2 = 2 * error;
+				if (e2 >= dy)
+				{
+					error += dy;
+					cx += sx;
+				}
+				if (e2 <= dx)
+				{
+					error += dx;
+					cy += sy;
+				}
+			}
+		}
+		finally {lock.readLock().unlock();}
+	}
+
+	/**
+	 * Counts the occupied cells in a rectangle of the floor
+	 * @param x0 double - one corner's x in inches
+	 * @param y0 double - one corner's y in inches
+	 * @param x1 double - the opposite corner's x in inches
+	 * @param y1 double - the opposite corner's y in inches
+	 * @return int - occupied cells, those off the map not counted
+	 */
+	public int countOccupied(double x0, double y0, double x1, double y1)
+	{
+		int c0 = Math.max(0, column(Math.min(x0, x1))), c1 = Math.min(columns - 1, column(Math.max(x0, x1)));
+		int r0 = Math.max(0, row(Math.min(y0, y1))), r1 = Math.min(rows - 1, row(Math.max(y0, y1)));
+		if (c0 > c1 || r0 > r1)
+			return 0;
+		lock.readLock().lock();
+		try
+		{
+			return prefix(c1 + 1, r1 + 1) - prefix(c0, r1 + 1) - prefix(c1 + 1, r0) + prefix(c0, r0);
+		}
+		finally {lock.readLock().unlock();}
+	}
+
+	/**
+	 * Checks a rectangle of the floor has no occupied cells in it
+	 * @param x0 double - one corner's x in inches
+	 * @param y0 double - one corner's y in inches
+	 * @param x1 double - the opposite corner's x in inches
+	 * @param y1 double - the opposite corner's y in inches
+	 * @return true if no cell in it is occupied; unknown cells count as clear
+	 */
+	public boolean isClear(double x0, double y0, double x1, double y1)
+	{
+		return countOccupied(x0, y0, x1, y1) == 0;
+	}
+
+	/**
+	 * The chance a point is occupied
+	 * @param x double - inches
+	 * @param y double - inches
+	 * @return double - 0.0 (free) to 1.0 (occupied), 0.5 if unknown or off the map
+	 */
+	public double getProbability(double x, double y)
+	{
+		int cx = column(x), cy = row(y);
+		if (!inside(cx, cy))
+			return 0.5;
+		return 1 - 1 / (1 + Math.exp(logOdds[cy * columns + cx]));
+	}
+
+	/**
+	 * Checks whether a point is believed occupied
+	 * @param x double - inches
+	 * @param y double - inches
+	 * @return true if the cell is occupied
+	 */
+	public boolean isOccupied(double x, double y)
+	{
+		int cx = column(x), cy = row(y);
+		return inside(cx, cy) && logOdds[cy * columns + cx] > OCCUPIED_LEVEL;
+	}
+
+	/**
+	 * Checks whether a point is believed free
+	 * @param x double - inches
+	 * @param y double - inches
+	 * @return true if the cell is free
+	 */
+	public boolean isFree(double x, double y)
+	{
+		int cx = column(x), cy = row(y);
+		return inside(cx, cy) && logOdds[cy * columns + cx] < FREE_LEVEL;
+	}
+
+	/**
+	 * Draws the map, occupied cells black, free white and unknown grey,
+	 * with the x axis to the right and the y axis up
+	 * @return BufferedImage - one pixel per cell
+	 */
+	public BufferedImage toImage()
+	{
+		BufferedImage image = new BufferedImage(columns, rows, BufferedImage.TYPE_INT_RGB);
+		int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+		lock.readLock().lock();
+		try
+		{
+			for (int r = 0; r < rows; r++)
+			{
+				int out = (rows - 1 - r) * columns;//image rows go down
+				for (int c = 0; c < columns; c++)
+				{
+					double p = 1 - 1 / (1 + Math.exp(logOdds[r * columns + c]));
+					int level = (int)Math.round((1 - p) * 255);
+					pixels[out + c] = level << 16 | level << 8 | level;
+				}
+			}
+		}
+		finally {lock.readLock().unlock();}
+		return image;
+	}
+
+	/** @return int - cells along the x axis */
+	public int getColumns() {return columns;}
+
+	/** @return int - cells along the y axis */
+	public int getRows() {return rows;}
+
+	/** @return double - side of a cell in inches */
+	public double getCellSize() {return cellSize;}
+
+	/** @return int - cells currently occupied */
+	public int getOccupiedCount() {return occupiedCount;}
+
+	/** @return long - rays added */
+	public long getUpdateCount() {return updates;}
+
+	public String toString()
+	{
+		return String.format("OccupancyGrid[%dx%d cells of %.1f in, %d occupied, %d rays]",
+				columns, rows, cellSize, occupiedCount, updates);
+	}
+
+	//**************************************************************************
+	//Cells*********************************************************************
+	//**************************************************************************
+
+	/**
+	 * The column a point is in, -1 or columns if it is off the map that way
+	 * or not a number, so far off points cannot overflow into the map
+	 */
+	private int column(double x)
+	{
+		double c = Math.floor(x / cellSize) + columns / 2;
+		return !(c >= 0) ? -1 : c >= columns ? columns : (int)c;
+	}
+
+	/**
+	 * The row a point is in, -1 or rows if it is off the map that way
+	 */
+	private int row(double y)
+	{
+		double r = Math.floor(y / cellSize) + rows / 2;
+		return !(r >= 0) ? -1 : r >= rows ? rows : (int)r;
+	}
+
+	/**
+	 * The column of a point clipped to the map, which rounding may leave on its far edge
+	 */
+	private int clippedColumn(double x)
+	{
+		return Math.max(0, Math.min(columns - 1, column(x)));
+	}
+
+	private int clippedRow(double y)
+	{
+		return Math.max(0, Math.min(rows - 1, row(y)));
+	}
+
+	/**
+	 * Clips a segment to the map, Liang-Barsky: the part of the segment
+	 * inside each edge's half plane narrows the range of t along it
+	 * @return double[] - t where the segment enters and leaves the map,
+	 *                    0 and 1 if it is all on it, or null if it misses it
+	 */
+	private double[] clip(double x0, double y0, double x1, double y1)
+	{
+		double left = -(columns / 2) * cellSize, right = (columns - columns / 2) * cellSize;
+		double bottom = -(rows / 2) * cellSize, top = (rows - rows / 2) * cellSize;
+		double dx = x1 - x0, dy = y1 - y0;
+		double[] t = {0, 1};
+		if (clipEdge(-dx, x0 - left, t) && clipEdge(dx, right - x0, t)
+				&& clipEdge(-dy, y0 - bottom, t) && clipEdge(dy, top - y0, t))
+			return t;
+		return null;
+	}
+
+	/**
+	 * Narrows t to the part of the segment inside one edge
+	 * @param p double - how fast the segment heads out across the edge
+	 * @param q double - how far inside the edge the start is
+	 * @return false if none of the segment is inside
+	 */
+	private static boolean clipEdge(double p, double q, double[] t)
+	{
+		if (p == 0)
+			return q >= 0;//parallel to the edge
+		double r = q / p;
+		if (p < 0)
+		{
+			if (r > t[1])
+				return false;
+			t[0] = Math.max(t[0], r);
+		}
+		else
+		{
+			if (r < t[0])
+				return false;
+			t[1] = Math.min(t[1], r);
+		}
+		return true;
+	}
+
+	private void checkPoint(double x, double y)
+	{
+		if (!(Math.abs(x) <= MAX_COORDINATE * cellSize && Math.abs(y) <= MAX_COORDINATE * cellSize))
+			throw new IllegalArgumentException("Ray end (" + x + ", " + y + ") is off any map");
+	}
+
+	private boolean inside(int cx, int cy)
+	{
+		return cx >= 0 && cy >= 0 && cx < columns && cy < rows;
+	}
+
+	/**
+	 * Adds to a cell's log-odds, keeping the Fenwick tree in step. Write lock held.
+	 */
+	private void update(int cx, int cy, float change)
+	{
+		int i = cy * columns + cx;
+		float before = logOdds[i];
+		float after = Math.max(-CLAMP, Math.min(CLAMP, before + change));
+		logOdds[i] = after;
+		boolean was = before > OCCUPIED_LEVEL, is = after > OCCUPIED_LEVEL;
+		if (was != is)
+		{
+			int delta = is ? 1 : -1;
+			occupiedCount += delta;
+			for (int r = cy + 1; r <= rows; r += r & -r)
+				for (int c = cx + 1; c <= columns; c += c & -c)
+					occupiedTree[r * (columns + 1) + c] += delta;
+		}
+	}
+
+	/**
+	 * Occupied cells in columns 0 to c-1 of rows 0 to r-1. Read lock held.
+	 */
+	private int prefix(int c, int r)
+	{
+		int sum = 0;
+		for (int i = r; i > 0; i -= i & -i)
+			for (int j = c; j > 0; j -= j & -j)
+				sum += occupiedTree[i * (columns + 1) + j];
+		return sum;
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	//log-odds added per observation, about p = 0.7 occupied and p = 0.4 free
+	private static final float OCCUPIED_UPDATE = 0.85f;
+	private static final float FREE_UPDATE = -0.4f;
+	private static final float CLAMP = 3.5f;//about p = 0.97, so one cell never becomes certain
+	private static final float OCCUPIED_LEVEL = 0.4f;
+	private static final float FREE_LEVEL = -0.4f;
+	private static final double MAX_COORDINATE = 1 << 30;//cells from the origin a ray may end, beyond any map
+
+	private final int columns, rows;
+	private final double cellSize;
+	private final float[] logOdds;//row by row, row 0 at the smallest y
+	private final int[] occupiedTree;//Fenwick tree of occupied cells, 1-based, (rows + 1) x (columns + 1)
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private volatile int occupiedCount = 0;
+	private volatile long updates = 0;
+}
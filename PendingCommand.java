@@ -0,0 +1,244 @@
+package bcibot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A command queued on a Connection, and what became of it. The sending
+ * thread completes it with the robot's answer, or fails it with the error
+ * that stopped it, such as a CommandTimeoutException when the robot did not
+ * answer before the command's deadline. Any thread may wait for the outcome.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	PendingCommand.java
+ */
+
+public class PendingCommand
+{
+	/**
+	 * Constructor
+	 * @param _text String - the command, without its route prefix
+	 * @param _timeoutMillis long - how long the robot may stay silent once it is
+	 *                              sent, 0 for the connection's default
+	 */
+	public PendingCommand(String _text, long _timeoutMillis)
+	{
+		text = _text;
+		timeoutMillis = _timeoutMillis;
+	}
+
+	/** @return String - the command, without its route prefix */
+	public String getText() {return text;}
+
+	/** @return long - the command's own timeout in ms, 0 if it uses the connection's default */
+	public long getTimeoutMillis() {return timeoutMillis;}
+
+	/**
+	 * Blocks until the command has finished, one way or another
+	 * @param waitMillis long - longest to wait, 0 to wait forever
+	 * @return true if finished, false if the wait ran out first
+	 * @throws InterruptedException - if interrupted while waiting
+	 */
+	public boolean await(long waitMillis) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + waitMillis;
+		lock.lockInterruptibly();
+		try
+		{
+			while (state == PENDING)
+			{
+				if (waitMillis <= 0)
+					finished.await();
+				else
+				{
+					long left = deadline - System.currentTimeMillis();
+					if (left <= 0)
+						return false;
+					finished.await(left, TimeUnit.MILLISECONDS);
+				}
+			}
+			return true;
+		}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Runs an action once the command has finished, one way or another, on
+	 * the thread that finishes it, or straight away if it already has.
+	 * Actions run in the order they were added and must not block.
+	 * @param action Runnable - what to do, e.g. check isSucceeded()
+	 */
+	public void whenDone(Runnable action)
+	{
+		lock.lock();
+		try
+		{
+			if (state == PENDING)
+			{
+				if (actions == null)
+					actions = new ArrayList<Runnable>(1);
+				actions.add(action);
+				return;
+			}
+		}
+		finally {lock.unlock();}
+		action.run();
+	}
+
+	/** @return boolean - true once answered, failed or cancelled */
+	public boolean isDone()
+	{
+		lock.lock();
+		try {return state != PENDING;}
+		finally {lock.unlock();}
+	}
+
+	/** @return boolean - true if the robot answered */
+	public boolean isSucceeded()
+	{
+		lock.lock();
+		try {return state == SUCCEEDED;}
+		finally {lock.unlock();}
+	}
+
+	/** @return boolean - true if the robot did not answer before the deadline */
+	public boolean isTimedOut()
+	{
+		lock.lock();
+		try {return error instanceof CommandTimeoutException;}
+		finally {lock.unlock();}
+	}
+
+	/** @return boolean - true if the command was thrown away before it was sent */
+	public boolean isCancelled()
+	{
+		lock.lock();
+		try {return state == CANCELLED;}
+		finally {lock.unlock();}
+	}
+
+	/** @return String - the robot's answer, or null if there was none */
+	public String getResponse()
+	{
+		lock.lock();
+		try {return response;}
+		finally {lock.unlock();}
+	}
+
+	/** @return Exception - what stopped the command, or null */
+	public Exception getError()
+	{
+		lock.lock();
+		try {return error;}
+		finally {lock.unlock();}
+	}
+
+	public String toString()
+	{
+		String s = text.trim();
+		lock.lock();
+		try
+		{
+			switch (state)
+			{
+				case SUCCEEDED: return s + " -> " + response;
+				case FAILED: return s + " failed: " + error.getMessage();
+				case CANCELLED: return s + " cancelled";
+				default: return s + " pending";
+			}
+		}
+		finally {lock.unlock();}
+	}
+
+	//**************************************************************************
+	//Completion****************************************************************
+	//**************************************************************************
+
+	void complete(String _response)
+	{
+		List<Runnable> done;
+		lock.lock();
+		try
+		{
+			if (state != PENDING)
+				return;
+			response = _response;
+			state = SUCCEEDED;
+			finished.signalAll();
+			done = actions;
+			actions = null;
+		}
+		finally {lock.unlock();}
+		runActions(done);
+	}
+
+	void fail(Exception _error)
+	{
+		List<Runnable> done;
+		lock.lock();
+		try
+		{
+			if (state != PENDING)
+				return;
+			error = _error;
+			state = FAILED;
+			finished.signalAll();
+			done = actions;
+			actions = null;
+		}
+		finally {lock.unlock();}
+		runActions(done);
+	}
+
+	void cancel()
+	{
+		List<Runnable> done;
+		lock.lock();
+		try
+		{
+			if (state != PENDING)
+				return;
+			state = CANCELLED;
+			finished.signalAll();
+			done = actions;
+			actions = null;
+		}
+		finally {lock.unlock();}
+		runActions(done);
+	}
+
+	private void runActions(List<Runnable> done)
+	{
+		if (done == null)
+			return;
+		for (Runnable action : done)
+		{
+			try {action.run();}
+			catch (RuntimeException e) {Log.error("Command completion action failed: " + e);}
+		}
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static final int PENDING = 0;
+	private static final int SUCCEEDED = 1;
+	private static final int FAILED = 2;
+	private static final int CANCELLED = 3;
+
+	private final String text;
+	private final long timeoutMillis;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition finished = lock.newCondition();
+
+	//guarded by lock
+	private int state = PENDING;
+	private String response;
+	private Exception error;
+	private List<Runnable> actions;//run once finished, null if none
+}
@@ -1,11 +1,16 @@
 package bcibot;
 
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.imageio.ImageIO;
 
@@ -22,32 +27,221 @@ public class Picture
 	public Picture(ArchitectureClient _client)
 	{
 		client = _client;
-
-		client.sendCommand("CAM " + getLocalAddress() + " grab image" +  "\n");
-		if (cam == null)
+		grab(null, 1);
+	}
+	
+	/**
+	 * Constructor, creates a reduced size picture object
+	 * @param _client ArchitectureClient - reference to client
+	 * @param subsample int - keep every subsample-th pixel, 1 for all of them
+	 */
+	public Picture(ArchitectureClient _client, int subsample)
+	{
+		client = _client;
+		grab(null, subsample);
+	}
+	
+	/**
+	 * Constructor, creates picture object from part of the camera frame
+	 * @param _client ArchitectureClient - reference to client
+	 * @param x int - left edge of the region in full frame pixels
+	 * @param y int - top edge of the region in full frame pixels
+	 * @param regionWidth int - width of the region in full frame pixels
+	 * @param regionHeight int - height of the region in full frame pixels
+	 * @param subsample int - keep every subsample-th pixel, 1 for all of them
+	 */
+	public Picture(ArchitectureClient _client, int x, int y, int regionWidth, int regionHeight, int subsample)
+	{
+		client = _client;
+		grab(new Rectangle(x, y, regionWidth, regionHeight), subsample);
+	}
+	
+	public void retake()
+	{
+		grab(null, 1);
+	}
+	
+	/**
+	 * Gets a new picture from the robot, decoding only a region of the frame.
+	 * Much cheaper than a full picture when tracking something small.
+	 * getOffsetX and getOffsetY give where the region sits in the full frame.
+	 * @param x int - left edge of the region in full frame pixels
+	 * @param y int - top edge of the region in full frame pixels
+	 * @param regionWidth int - width of the region in full frame pixels
+	 * @param regionHeight int - height of the region in full frame pixels
+	 * @param subsample int - keep every subsample-th pixel, 1 for all of them
+	 */
+	public void retake(int x, int y, int regionWidth, int regionHeight, int subsample)
+	{
+		grab(new Rectangle(x, y, regionWidth, regionHeight), subsample);
+	}
+	
+	/**
+	 * Gets a new, smaller picture from the robot by keeping every
+	 * subsample-th pixel, e.g. 4 turns a 640x480 frame into 160x120.
+	 * @param subsample int - keep every subsample-th pixel, 1 for all of them
+	 */
+	public void retakeSubsampled(int subsample)
+	{
+		grab(null, subsample);
+	}
+	
+	/**
+	 * Requests a frame from the robot and decodes the wanted part of it
+	 * @param region Rectangle - part of the frame to decode, null for all of it
+	 * @param subsample int - keep every subsample-th pixel, 1 for all of them
+	 */
+	private void grab(Rectangle region, int subsample)
+	{
+		region = clipToFrame(region);
+		long requested;
+		BufferedImage grabbed;
+		cameraLock.lock();
+		try
 		{
-			cam = new Camera();
+			requested = System.nanoTime();
+			client.sendCommand(grabCommand());
+			grabbed = camera().grabImage(region, subsample, imagePool);
 		}
-		image = cam.grabImage();
+		finally {cameraLock.unlock();}
+		if(grabbed == null)
+		{
+			client.architectureError("Camera could not read a picture");
+			return;
+		}
+		releaseImage();//only once the new frame is in, so a failed grab keeps the old one
+		image = grabbed;
+		captureTime = requested;
+		receiveTime = System.nanoTime();
+		frameNumber++;
 		height = image.getHeight();
 		width = image.getWidth();
+		offsetX = region == null ? 0 : region.x;
+		offsetY = region == null ? 0 : region.y;
+		subsampling = Math.max(1, subsample);
 	}
 	
-	public void retake()
+	/**
+	 * Checks a region and trims the part left of or above the frame, so the
+	 * offsets reported are where the decoded pixels really start. The right
+	 * and bottom edges are trimmed by the decoder, which knows the frame size.
+	 * @param region Rectangle - the wanted region, or null for the whole frame
+	 * @return Rectangle - the region starting inside the frame, or null
+	 * @throws IllegalArgumentException - if the region is empty or entirely left of or above the frame
+	 */
+	static Rectangle clipToFrame(Rectangle region)
 	{
-		client.sendCommand("CAM " + getLocalAddress() + " grab image" +  "\n");
-		image = cam.grabImage();
-		height = image.getHeight();
-		width = image.getWidth();
+		if(region == null)
+			return null;
+		if(region.width <= 0 || region.height <= 0)
+			throw new IllegalArgumentException("Region must have a positive size, not "
+					+ region.width + "x" + region.height);
+		Rectangle clipped = region.intersection(new Rectangle(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE));
+		if(clipped.isEmpty())
+			throw new IllegalArgumentException("Region " + region.width + "x" + region.height + " at ("
+					+ region.x + ", " + region.y + ") is outside the frame");
+		return clipped;
 	}
 	
-	public void save(String filename)
+	/**
+	 * Saves the picture into the save directory on a background thread.
+	 * The format comes from the extension of filename, PNG if there is none.
+	 * @param filename String - name of the file to create
+	 * @return Future - completes with the saved file, or fails if it could not be written
+	 */
+	public Future<File> save(String filename)
 	{
-		try {
-			ImageIO.write(image, "PNG", new File("C:\\Documents and Settings\\csuser\\Start Menu\\My Documents\\My Pictures\\" + filename));
-		} catch (IOException e) {
-			System.err.println("Failed to save " + filename);
-		}
+		return ImageEncoder.getDefault().save(imageToKeep(), new File(saveDirectory, filename));
+	}
+	
+	/**
+	 * Saves the picture into the save directory on a background thread.
+	 * @param filename String - name of the file to create
+	 * @param format String - ImageEncoder.PNG, JPEG, BMP or another ImageIO format
+	 * @param quality float - 0.0 to 1.0, or ImageEncoder.DEFAULT_QUALITY
+	 * @return Future - completes with the saved file, or fails if it could not be written
+	 */
+	public Future<File> save(String filename, String format, float quality)
+	{
+		return ImageEncoder.getDefault().save(imageToKeep(), new File(saveDirectory, filename), format, quality);
+	}
+	
+	/**
+	 * The image, copied if pooling is on, since the pooled one is overwritten
+	 * by the next retake while a background save may still be reading it
+	 * @return BufferedImage - an image that stays valid
+	 */
+	private BufferedImage imageToKeep()
+	{
+		if (imagePool == null)
+			return image;
+		
+		return new BufferedImage(image.getColorModel(), image.copyData(null),
+				image.isAlphaPremultiplied(), null);
+	}
+	
+	/**
+	 * Gives the current image back to the pool, unless pooling is off or
+	 * something else has taken ownership of it with retainImage
+	 */
+	private void releaseImage()
+	{
+		ImagePool pool = imagePool;
+		if (pool != null && image != null && !retained)
+			pool.release(image);
+		retained = false;
+	}
+	
+	/**
+	 * Hands ownership of the current image to the caller, so the next retake
+	 * will not recycle it even when pooling is on. The caller should pass it
+	 * to recycle() when done with it.
+	 */
+	void retainImage()
+	{
+		retained = true;
+	}
+	
+	/**
+	 * Returns an image taken with retainImage to the pool, if pooling is on
+	 * @param retainedImage BufferedImage - the image to give back
+	 */
+	static void recycle(BufferedImage retainedImage)
+	{
+		ImagePool pool = imagePool;
+		if (pool != null)
+			pool.release(retainedImage);
+	}
+	
+	/**
+	 * Turns image pooling on or off for all pictures. With pooling on, each
+	 * retake decodes into the previous frame's pixels instead of allocating a
+	 * new image, so an image returned by getImage() or getWritableRaster() is
+	 * only valid until the next retake and viewers may briefly show a frame
+	 * that is being overwritten. Saving still works on a copy.
+	 * @param pool ImagePool - the pool to use, or null to turn pooling off
+	 */
+	public static void setImagePool(ImagePool pool)
+	{
+		imagePool = pool;
+	}
+	
+	/**
+	 * Sets the directory save() writes to. Defaults to the user's home directory.
+	 * @param directory String - the directory to save pictures in
+	 */
+	public static void setSaveDirectory(String directory)
+	{
+		saveDirectory = new File(directory);
+	}
+	
+	/**
+	 * Accessor for the directory save() writes to
+	 * @return String - the save directory
+	 */
+	public static String getSaveDirectory()
+	{
+		return saveDirectory.getPath();
 	}
 	
 	public void load(String filename)
@@ -59,11 +253,68 @@ public class Picture
 		}
 	}
 	
+	/**
+	 * Records every frame grabbed from the robot's camera
+	 * @param recorder FrameRecorder - where to record, or null to stop recording
+	 */
+	public static void setFrameRecorder(FrameRecorder recorder)
+	{
+		frameRecorder = recorder;
+		if (cam != null)
+			cam.setRecorder(recorder);
+	}
+	
+	/**
+	 * The camera socket, shared by every picture and opened the first time a
+	 * frame is wanted. Hold cameraLock from sending the grab command until
+	 * the frame has been read, so frames go to whoever asked for them.
+	 * @return Camera - the camera
+	 */
+	static Camera camera()
+	{
+		cameraLock.lock();
+		try
+		{
+			if (cam == null)
+			{
+				cam = new Camera();
+				cam.setRecorder(frameRecorder);
+			}
+			return cam;
+		}
+		finally {cameraLock.unlock();}
+	}
+	
+	/**
+	 * Drops a camera whose socket has been closed, so the next frame wanted
+	 * opens a new one
+	 * @param closed Camera - the closed camera
+	 */
+	static void forgetCamera(Camera closed)
+	{
+		cameraLock.lock();
+		try
+		{
+			if (cam == closed)
+				cam = null;
+		}
+		finally {cameraLock.unlock();}
+	}
+	
+	/**
+	 * The command that asks the robot for a frame
+	 * @return String - the command, routed to the camera
+	 */
+	static String grabCommand()
+	{
+		return "CAM " + getLocalAddress() + " grab image" +  "\n";
+	}
+	
 	/**
 	 * Find the address of the machine the client is running on
 	 * @return String The address of the local machine
 	 */
-	private String getLocalAddress()
+	private static String getLocalAddress()
 	{
 		String lAddress = null;
 		
@@ -78,11 +329,11 @@ public class Picture
 	/**
 	 * Gets a new picture from the robot.
 	 * Less overhead than creating a new picture object everytime.
+	 * Same as retake().
 	 */
 	public void retakePic()
 	{
-		client.sendCommand("CAM" + " grab image" + "\n");
-		image = cam.grabImage();
+		grab(null, 1);
 	}
 
     /**
@@ -90,10 +341,7 @@ public class Picture
 	 */
 	public void displayPicture()
 	{
-		if(display != null)
-			display.setVisible(false);
-		
-		display = new PictureDisplay(image, width, height, title, 20, 20);		
+		display = PictureViewers.showPicture(display, image, width, height, title, 20, 20);
 	}
 	
 	/**
@@ -101,10 +349,7 @@ public class Picture
 	 */
 	public void displayPicture(int width, int height)
 	{
-		if(display != null)
-			display.setVisible(false);
-		
-		new PictureDisplay(image, width, height, title, 20, 20);		
+		display = PictureViewers.showPicture(display, image, width, height, title, 20, 20);
 	}
 	
 	/**
@@ -112,16 +357,43 @@ public class Picture
 	 */
 	public void displayPicture(int width, int height, String title)
 	{
-		if(display != null)
-			display.setVisible(false);
-		
-		display = new PictureDisplay(image, width, height, title, 20, 20);		
+		display = PictureViewers.showPicture(display, image, width, height, title, 20, 20);
 	}
 	
 	public void hidePicture()
 	{
 		if(display != null)
-			display.Hide();
+			display.close();
+		display = null;
+	}
+	
+	/**
+	 * Shows the image in a live view that is reused for every call,
+	 * so it can be called once per frame to watch the camera.
+	 */
+	public void displayLive()
+	{
+		displayLive(title);
+	}
+	
+	/**
+	 * Shows the image in a live view that is reused for every call,
+	 * so it can be called once per frame to watch the camera.
+	 * @param title String - what to call the window if it has to be opened
+	 */
+	public void displayLive(String title)
+	{
+		liveView = PictureViewers.showLive(liveView, image, title);
+	}
+	
+	/**
+	 * Closes the live view window if it is open
+	 */
+	public void hideLive()
+	{
+		if(liveView != null)
+			liveView.close();
+		liveView = null;
 	}
 	
 	/**
@@ -129,10 +401,7 @@ public class Picture
 	 */
 	public void displayPicture(String title)
 	{
-		if(display != null)
-			display.setVisible(false);
-		
-		new PictureDisplay(image, width, height, title, 20, 20);		
+		display = PictureViewers.showPicture(display, image, width, height, title, 20, 20);
 	}
 	
 	/**
@@ -140,10 +409,7 @@ public class Picture
 	 */
 	public void displayPicture(int width, int height, String title, int x_pos, int y_pos)
 	{
-		if(display != null)
-			display.setVisible(false);
-		
-		new PictureDisplay(image, width, height, title, x_pos, y_pos);		
+		display = PictureViewers.showPicture(display, image, width, height, title, x_pos, y_pos);
 	}
 
 	/**
@@ -155,16 +421,33 @@ public class Picture
 	{
 		int[][][] array = new int[height][width][3];
 		
-		Raster ras = image.getData();
+		WritableRaster ras = image.getRaster();//no copy, unlike getData()
 		
+		if(ras.getNumBands() == 3)
+		{
+			int[] row = new int[width * 3];
+			for(int i = 0; i < height; i++)
+			{
+				ras.getPixels(0, i, width, 1, row);
+				for(int j = 0, k = 0; j < width; j++)
+				{
+					array[i][j][0] = row[k++]; //R
+					array[i][j][1] = row[k++]; //G
+					array[i][j][2] = row[k++]; //B
+				}
+			}
+			return array;
+		}
+		
+		int[] RGBpixel = new int[ras.getNumBands()];
 		for(int i = 0; i < height; i++)
 			for(int j = 0; j < width; j++)
 			{
-				int[] RGBpixel = ras.getPixel(j, i, new int[3]);
+				ras.getPixel(j, i, RGBpixel);
 				
 				array[i][j][0] = RGBpixel[0]; //R
-				array[i][j][1] = RGBpixel[1]; //G
-				array[i][j][2] = RGBpixel[2]; //B
+				array[i][j][1] = RGBpixel.length > 1 ? RGBpixel[1] : 0; //G
+				array[i][j][2] = RGBpixel.length > 2 ? RGBpixel[2] : 0; //B
 			}
 		
 		return array;
@@ -176,9 +459,17 @@ public class Picture
      */
     public void setThreeDArray(int[][][] array)
     {
-        BufferedImage newImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        ImagePool pool = imagePool;
+        BufferedImage newImage;
+        if(pool != null)
+            newImage = pool.acquire(width, height, BufferedImage.TYPE_INT_RGB);
+        else
+            newImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        
+        //write straight into the pixel array rather than through setRGB
+        int[] pixels = ((DataBufferInt)newImage.getRaster().getDataBuffer()).getData();
         int rgb;
-        for(int i = 0; i < height; i++)
+        for(int i = 0, p = 0; i < height; i++)
         {
             for(int j = 0; j < width; j++)
             {
@@ -188,14 +479,97 @@ public class Picture
                 rgb *= 256;  // asl 8
                 rgb += array[i][j][2];
                 
-                newImage.setRGB(j, i, rgb);
+                pixels[p++] = rgb;
             }
         }
+        if(image != newImage)
+            releaseImage();
         image = newImage;
         height = image.getHeight();
         width = image.getWidth();
     }
     
+    /**
+     * Accessor for the image as packed 0xRRGGBB pixels, one int per pixel
+     * in row order. Much faster to work on than getThreeDArray, and the
+     * layout PixelKernels works on.
+     * @return int[] - width * height pixels, a copy
+     */
+    public int[] getPackedPixels()
+    {
+        return getPackedPixels(image, new int[width * height]);
+    }
+
+    /**
+     * Copies any image's pixels out as packed 0xRRGGBB pixels, e.g. a frame
+     * from a VisionPipeline
+     * @param image BufferedImage - the image
+     * @param pixels int[] - receives width * height pixels in row order, reused by the caller
+     * @return int[] - pixels
+     */
+    public static int[] getPackedPixels(BufferedImage image, int[] pixels)
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int type = image.getType();
+        WritableRaster ras = image.getRaster();
+        if(type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+        {
+            ras.getDataElements(0, 0, width, height, pixels);//already packed
+            if(type == BufferedImage.TYPE_INT_ARGB)
+                for(int p = 0; p < width * height; p++)
+                    pixels[p] &= 0xFFFFFF;
+        }
+        else if(type == BufferedImage.TYPE_3BYTE_BGR)//what the camera's JPEGs decode to
+        {
+            byte[] row = new byte[width * 3];
+            for(int i = 0, p = 0; i < height; i++)
+            {
+                ras.getDataElements(0, i, width, 1, row);
+                for(int k = 0; k < row.length; k += 3)
+                    pixels[p++] = (row[k] & 0xFF) << 16 | (row[k + 1] & 0xFF) << 8 | (row[k + 2] & 0xFF);
+            }
+        }
+        else
+            image.getRGB(0, 0, width, height, pixels, 0, width);
+        return pixels;
+    }
+
+    /**
+     * Mutator for the image from packed 0xRRGGBB pixels
+     * @param pixels int[] - width * height pixels in row order
+     */
+    public void setPackedPixels(int[] pixels)
+    {
+        if(pixels.length < width * height)
+            throw new IllegalArgumentException("Need " + width * height + " pixels, got " + pixels.length);
+
+        ImagePool pool = imagePool;
+        BufferedImage newImage;
+        if(pool != null)
+            newImage = pool.acquire(width, height, BufferedImage.TYPE_INT_RGB);
+        else
+            newImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+        int[] data = ((DataBufferInt)newImage.getRaster().getDataBuffer()).getData();
+        System.arraycopy(pixels, 0, data, 0, width * height);
+        if(image != newImage)
+            releaseImage();
+        image = newImage;
+    }
+
+    /**
+     * Accessor for the image as grey levels, one int 0-255 per pixel in row
+     * order, converted with the fastest PixelKernels available
+     * @return int[] - width * height grey levels
+     */
+    public int[] getGrayPixels()
+    {
+        int[] pixels = getPackedPixels();
+        PixelKernels.getDefault().toGray(pixels, pixels, pixels.length);//in place
+        return pixels;
+    }
+
     /**
      * Accessor for image.
      * @return BufferedImage returns the wrapped image
@@ -213,7 +587,72 @@ public class Picture
     {
     	return image.getData();
     }
+    
+    /**
+     * Accessor for the image's own raster, without copying it.
+     * Changes to the raster change the picture.
+     * @return WritableRaster returns the wrapped image's raster
+     */
+    public WritableRaster getWritableRaster()
+    {
+    	return image.getRaster();
+    }
 
+	/**
+	 * When the frame was captured. The robot grabs the frame when it gets the
+	 * request, so this is when the request was sent.
+	 * @return long - System.nanoTime() of the capture
+	 */
+	public long getCaptureTime()
+	{
+		return captureTime;
+	}
+	
+	/**
+	 * When the frame finished arriving and decoding
+	 * @return long - System.nanoTime() of receipt
+	 */
+	public long getReceiveTime()
+	{
+		return receiveTime;
+	}
+	
+	/**
+	 * Number of frames this picture has taken, counting the current one
+	 * @return long - frame number
+	 */
+	public long getFrameNumber()
+	{
+		return frameNumber;
+	}
+	
+	/**
+	 * Where the left edge of this picture is in the full camera frame
+	 * @return int - x offset in full frame pixels
+	 */
+	public int getOffsetX()
+	{
+		return offsetX;
+	}
+	
+	/**
+	 * Where the top edge of this picture is in the full camera frame
+	 * @return int - y offset in full frame pixels
+	 */
+	public int getOffsetY()
+	{
+		return offsetY;
+	}
+	
+	/**
+	 * How many full frame pixels each pixel of this picture covers in each direction
+	 * @return int - 1 for a full resolution picture
+	 */
+	public int getSubsampling()
+	{
+		return subsampling;
+	}
+	
 	/**
 	 * Accessor method for height of image
 	 * @return height
@@ -238,11 +677,19 @@ public class Picture
 	
 	private static final long serialVersionUID = 1L;
 	
-	private static Camera cam;
+	private static Camera cam;//guarded by cameraLock
+	static final ReentrantLock cameraLock = new ReentrantLock();//one frame request at a time
+	private static FrameRecorder frameRecorder;
+	private static volatile ImagePool imagePool;
+	private static File saveDirectory = new File(System.getProperty("user.home"));
 	private BufferedImage image;
 	private int height, width;
+	private int offsetX = 0, offsetY = 0, subsampling = 1;
+	private long captureTime, receiveTime, frameNumber = 0;
+	private boolean retained = false;
 	private String title = "My Picture";
 	private ArchitectureClient client;
-	private PictureDisplay display;
+	private PictureViewer display;
+	private PictureViewer liveView;
 
 }
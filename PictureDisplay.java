@@ -7,9 +7,7 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.IOException;
 
-import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
 import javax.swing.JComponent;
 import javax.swing.JFrame;
@@ -18,8 +16,9 @@ import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
-public class PictureDisplay extends JPanel implements ActionListener
+public class PictureDisplay extends JPanel implements ActionListener, PictureViewer
 {
 	/**
 	 * This creates a small AWT window to display a picture
@@ -41,8 +40,8 @@ public class PictureDisplay extends JPanel implements ActionListener
         
         JPanel camArea = new JPanel();
         
-        ImageIcon videoFrame = new ImageIcon();
-        JLabel videoFeed = new JLabel(videoFrame);
+        videoFrame = new ImageIcon();
+        videoFeed = new JLabel(videoFrame);
         
         videoFrame.setImage(image);
         videoFeed.setIcon(videoFrame);
@@ -81,20 +80,44 @@ public class PictureDisplay extends JPanel implements ActionListener
 		if(action.getSource().equals(saveImageMenuItem))
 		{
 			FileDialog save_dialog = new FileDialog(frame, "Save image as PNG...", FileDialog.SAVE);
-			save_dialog.setFile("C:\\Documents and Settings\\csuser\\Start Menu\\My Documents\\My Pictures\\myPicture.png");
+			save_dialog.setDirectory(Picture.getSaveDirectory());
+			save_dialog.setFile("myPicture.png");
 			save_dialog.setVisible(true);
-			String filename = save_dialog.getDirectory() + save_dialog.getFile();
-			if(filename != null)
+			if(save_dialog.getFile() != null)
 			{
-				try {
-					ImageIO.write(image, "PNG", new File(filename));
-				} catch (IOException e) {
-					System.err.println("Failed to save " + filename);
-				}
+				//encode off the event thread so the window stays responsive
+				ImageEncoder.getDefault().save(image, new File(save_dialog.getDirectory(), save_dialog.getFile()));
 			}
 		}
 	}
 	
+	/**
+	 * Replaces the picture in this window without opening a new one
+	 * @param _image BufferedImage - the new picture
+	 */
+	public void showFrame(final BufferedImage _image)
+	{
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			public void run()
+			{
+				image = _image;
+				videoFrame.setImage(image);
+				videoFeed.repaint();
+			}
+		});
+	}
+	
+	public boolean isOpen()
+	{
+		return frame.isDisplayable();
+	}
+	
+	public void close()
+	{
+		Hide();
+	}
+	
 	public void Hide()
 	{
 		frame.setVisible(false);
@@ -110,6 +133,8 @@ public class PictureDisplay extends JPanel implements ActionListener
 	private static final long serialVersionUID = 1L;
 	private BufferedImage image;
 	private JFrame frame;
+	private ImageIcon videoFrame;
+	private JLabel videoFeed;
 	private JMenuBar menuBar;
 	private JMenu fileMenu;
 	private JMenuItem saveImageMenuItem, closeMenuItem;
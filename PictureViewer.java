@@ -0,0 +1,33 @@
+package bcibot;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Something that can show pictures from the robot. Picture only talks to
+ * viewers through this interface, so the Swing windows (PictureDisplay and
+ * LiveView) are never loaded on a headless machine, where MjpegViewer is
+ * used instead. Use PictureViewers to get the right one.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	PictureViewer.java
+ */
+
+public interface PictureViewer
+{
+	/**
+	 * Replaces the picture being shown. May be called from any thread.
+	 * @param image BufferedImage - the new picture
+	 */
+	public void showFrame(BufferedImage image);
+
+	/**
+	 * Checks whether the viewer can still show pictures
+	 * @return true if open, false once closed
+	 */
+	public boolean isOpen();
+
+	/**
+	 * Closes the viewer and releases its resources
+	 */
+	public void close();
+}
@@ -0,0 +1,120 @@
+package bcibot;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.BindException;
+
+/**
+ * Creates the PictureViewer that suits the machine the client runs on.
+ * With a display, pictures open in Swing windows. Without one, they are
+ * streamed as MJPEG over HTTP on the loopback interface instead, and no
+ * AWT toolkit or Swing class is ever loaded.
+ *
+ * Headless mode is chosen by the bcibot.headless system property if it is
+ * set, otherwise by java.awt.headless, otherwise by whether a DISPLAY is
+ * available on X11 systems. The MJPEG port comes from bcibot.mjpeg.port
+ * (0, the default, picks a free port). Each stream needs its own port, so
+ * when that port is already taken, e.g. by a still picture's stream while a
+ * live view is open, a free port is used instead. Stream URLs are logged at
+ * INFO level.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	PictureViewers.java
+ */
+
+public class PictureViewers
+{
+	private PictureViewers() {}
+
+	/**
+	 * Checks whether pictures will be streamed instead of shown in windows
+	 * @return true if headless, false if a display is available
+	 */
+	public static boolean isHeadless()
+	{
+		String forced = System.getProperty("bcibot.headless");
+		if (forced != null)
+			return Boolean.valueOf(forced).booleanValue();
+		if (Boolean.getBoolean("java.awt.headless"))
+			return true;
+
+		String os = System.getProperty("os.name", "").toLowerCase();
+		if (os.startsWith("windows") || os.startsWith("mac"))
+			return false;
+		return System.getenv("DISPLAY") == null && System.getenv("WAYLAND_DISPLAY") == null;
+	}
+
+	/**
+	 * Shows a still picture, replacing what the current viewer shows.
+	 * A window is reopened so the new size and title take effect; a headless
+	 * stream is reused.
+	 * @param current PictureViewer - the viewer already showing a picture, or null
+	 * @param image BufferedImage - the picture to show
+	 * @param width int - the width of the picture
+	 * @param height int - the height of the picture
+	 * @param title String - what to call the window
+	 * @param x_pos int - x position of the window
+	 * @param y_pos int - y position of the window
+	 * @return PictureViewer - the viewer now showing the picture
+	 */
+	public static PictureViewer showPicture(PictureViewer current, BufferedImage image,
+			int width, int height, String title, int x_pos, int y_pos)
+	{
+		if (isHeadless())
+			return showStream(current, image, title);
+
+		if (current != null)
+			current.close();
+		return new PictureDisplay(image, width, height, title, x_pos, y_pos);
+	}
+
+	/**
+	 * Shows one frame of a stream in a viewer that is reused between calls
+	 * @param current PictureViewer - the live viewer from the previous call, or null
+	 * @param image BufferedImage - the frame to show
+	 * @param title String - what to call the window if one has to be opened
+	 * @return PictureViewer - the viewer now showing the frame
+	 */
+	public static PictureViewer showLive(PictureViewer current, BufferedImage image, String title)
+	{
+		if (isHeadless())
+			return showStream(current, image, title);
+
+		if (current == null || !current.isOpen())
+			current = new LiveView(title, 20, 20);
+		current.showFrame(image);
+		return current;
+	}
+
+	private static PictureViewer showStream(PictureViewer current, BufferedImage image, String title)
+	{
+		if (current == null || !current.isOpen())
+		{
+			try {current = openStream(title, Integer.getInteger("bcibot.mjpeg.port", 0).intValue());}
+			catch (IOException e)
+			{
+				Log.error("Could not start picture stream: " + e);
+				return null;
+			}
+			Log.info(title + " streaming at " + ((MjpegViewer)current).getUrl());
+		}
+		current.showFrame(image);
+		return current;
+	}
+
+	/**
+	 * Opens a stream on the configured port, or on a free one if another
+	 * stream already has it
+	 */
+	private static MjpegViewer openStream(String title, int port) throws IOException
+	{
+		try {return new MjpegViewer(title, port);}
+		catch (BindException e)
+		{
+			if (port == 0)
+				throw e;
+			Log.info("Port " + port + " is in use, streaming " + title + " on a free port");
+			return new MjpegViewer(title, 0);
+		}
+	}
+}
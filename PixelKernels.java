@@ -0,0 +1,172 @@
+package bcibot;
+
+/**
+ * Whole-image pixel loops, on flat arrays of packed 0xRRGGBB pixels or of
+ * single channel values, one int per pixel in row order as returned by
+ * Picture.getPackedPixels. Working on flat arrays instead of the
+ * [row][column][channel] layout of Picture.getThreeDArray lets these loops
+ * be vectorised.
+ *
+ * Two backends do the same work:
+ *
+ * scalar  plain loops, always available
+ * vector  SIMD loops using the jdk.incubator.vector API, several pixels per
+ *         instruction. Built from vector/VectorPixelKernels.java with
+ *         --add-modules jdk.incubator.vector, and only used when the JVM
+ *         is also run with that module.
+ *
+ * getDefault() picks the vector backend when it can be loaded, unless the
+ * system property bcibot.kernels is "scalar". Both give identical results.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	PixelKernels.java
+ */
+
+public abstract class PixelKernels
+{
+	/**
+	 * The fastest backend this JVM can run
+	 * @return PixelKernels - the vector backend if available, otherwise the scalar one
+	 */
+	public static PixelKernels getDefault()
+	{
+		return Backends.DEFAULT;
+	}
+
+	/**
+	 * The plain loop backend
+	 * @return PixelKernels - the scalar backend
+	 */
+	public static PixelKernels getScalar()
+	{
+		return Backends.SCALAR;
+	}
+
+	/**
+	 * Checks whether the SIMD backend could be loaded
+	 * @return true if the vector backend is available
+	 */
+	public static boolean isVectorAvailable()
+	{
+		return Backends.VECTOR != null;
+	}
+
+	/**
+	 * Name of the backend, for printing
+	 * @return String - "scalar" or "vector"
+	 */
+	public abstract String getName();
+
+	/**
+	 * Converts colour pixels to grey levels, 0.30 R + 0.59 G + 0.11 B
+	 * @param rgb int[] - packed 0xRRGGBB pixels
+	 * @param gray int[] - receives a level 0-255 per pixel
+	 * @param count int - number of pixels
+	 */
+	public abstract void toGray(int[] rgb, int[] gray, int count);
+
+	/**
+	 * Marks the values at or above a threshold
+	 * @param values int[] - one value per pixel, e.g. grey levels or a channel
+	 * @param mask int[] - receives 255 where the value is at least threshold, else 0
+	 * @param count int - number of pixels
+	 * @param threshold int - the smallest value marked
+	 */
+	public abstract void threshold(int[] values, int[] mask, int count, int threshold);
+
+	/**
+	 * Marks the pixels close to a colour: each channel within tolerance of
+	 * the colour's, e.g. the pixels of a coloured ball
+	 * @param rgb int[] - packed 0xRRGGBB pixels
+	 * @param mask int[] - receives 255 where the pixel matches, else 0
+	 * @param count int - number of pixels
+	 * @param color int - the colour, packed 0xRRGGBB
+	 * @param tolerance int - largest difference allowed in each channel
+	 */
+	public abstract void matchColor(int[] rgb, int[] mask, int count, int color, int tolerance);
+
+	/**
+	 * Copies one colour channel out of packed pixels
+	 * @param rgb int[] - packed 0xRRGGBB pixels
+	 * @param channel int - RED, GREEN or BLUE
+	 * @param values int[] - receives the channel, 0-255 per pixel
+	 * @param count int - number of pixels
+	 */
+	public abstract void extractChannel(int[] rgb, int channel, int[] values, int count);
+
+	/**
+	 * Splits packed pixels into separate channels
+	 * @param rgb int[] - packed 0xRRGGBB pixels
+	 * @param red int[] - receives the red channel
+	 * @param green int[] - receives the green channel
+	 * @param blue int[] - receives the blue channel
+	 * @param count int - number of pixels
+	 */
+	public abstract void unpack(int[] rgb, int[] red, int[] green, int[] blue, int count);
+
+	/**
+	 * Joins separate channels into packed pixels. Only the low 8 bits of
+	 * each channel value are used.
+	 * @param red int[] - the red channel
+	 * @param green int[] - the green channel
+	 * @param blue int[] - the blue channel
+	 * @param rgb int[] - receives packed 0xRRGGBB pixels
+	 * @param count int - number of pixels
+	 */
+	public abstract void pack(int[] red, int[] green, int[] blue, int[] rgb, int count);
+
+	public String toString()
+	{
+		return "PixelKernels[" + getName() + "]";
+	}
+
+	/**
+	 * Shift that brings a channel of a packed pixel down to the low byte
+	 */
+	static int shift(int channel)
+	{
+		if (channel < RED || channel > BLUE)
+			throw new IllegalArgumentException("Unknown channel " + channel);
+		return 16 - 8 * channel;
+	}
+
+	/**
+	 * The backends, loaded the first time one is asked for
+	 */
+	private static class Backends
+	{
+		static final PixelKernels SCALAR = new ScalarPixelKernels();
+		static final PixelKernels VECTOR = loadVector();
+		static final PixelKernels DEFAULT = VECTOR != null
+				&& !"scalar".equalsIgnoreCase(System.getProperty("bcibot.kernels")) ? VECTOR : SCALAR;
+
+		private static PixelKernels loadVector()
+		{
+			try
+			{
+				PixelKernels k = (PixelKernels)Class.forName("bcibot.VectorPixelKernels")
+						.getDeclaredConstructor().newInstance();
+				k.toGray(new int[1], new int[1], 1);//links the vector classes now rather than mid frame
+				return k;
+			}
+			catch (Throwable t)//not built, or the module is not in the JVM
+			{
+				return null;
+			}
+		}
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	//CHANNEL CONSTANTS
+	public static final int RED = 0;
+	public static final int GREEN = 1;
+	public static final int BLUE = 2;
+
+	//grey level weights, out of 256
+	static final int GRAY_RED = 77;
+	static final int GRAY_GREEN = 150;
+	static final int GRAY_BLUE = 29;
+}
@@ -0,0 +1,126 @@
+package bcibot;
+
+/**
+ * Where the robot is and which way it faces on the floor. x and y are in
+ * inches, the units the robot is driven in; the heading is in radians,
+ * 0 along the x axis and increasing counter-clockwise (turning left), so
+ * the y axis is to the robot's left when it starts out at heading 0.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	Pose.java
+ */
+
+public class Pose
+{
+	/**
+	 * Constructor
+	 * @param _x double - inches along the x axis
+	 * @param _y double - inches along the y axis
+	 * @param _heading double - radians counter-clockwise from the x axis
+	 */
+	public Pose(double _x, double _y, double _heading)
+	{
+		x = _x;
+		y = _y;
+		heading = normalize(_heading);
+	}
+
+	/** @return double - inches along the x axis */
+	public double getX() {return x;}
+
+	/** @return double - inches along the y axis */
+	public double getY() {return y;}
+
+	/** @return double - radians counter-clockwise from the x axis, -PI to PI */
+	public double getHeading() {return heading;}
+
+	/** @return double - degrees counter-clockwise from the x axis, -180 to 180 */
+	public double getHeadingDegrees() {return Math.toDegrees(heading);}
+
+	/**
+	 * The pose after driving straight
+	 * @param inches double - distance, negative to back up
+	 * @return Pose - the new pose
+	 */
+	public Pose moved(double inches)
+	{
+		return new Pose(x + inches * Math.cos(heading), y + inches * Math.sin(heading), heading);
+	}
+
+	/**
+	 * The pose after turning on the spot
+	 * @param radians double - angle, positive to the left
+	 * @return Pose - the new pose
+	 */
+	public Pose turned(double radians)
+	{
+		return new Pose(x, y, heading + radians);
+	}
+
+	/**
+	 * The pose after driving along an arc, as Robot.doAngleArcTurn does
+	 * @param radius double - inches, positive arcs to the right, negative to the left
+	 * @param radians double - angle swept along the arc, negative to back along it
+	 * @return Pose - the new pose
+	 */
+	public Pose arced(double radius, double radians)
+	{
+		if (radius == 0)
+			return turned(-radians);//spins on the spot, to the right like a tiny positive radius
+
+		//the arc's centre is radius inches to the side, right for a positive radius
+		double side = heading - Math.signum(radius) * Math.PI / 2;
+		double r = Math.abs(radius);
+		double cx = x + r * Math.cos(side);
+		double cy = y + r * Math.sin(side);
+		double turn = radius > 0 ? -radians : radians;
+		double from = side + Math.PI;//direction from the centre back to the robot
+		return new Pose(cx + r * Math.cos(from + turn), cy + r * Math.sin(from + turn), heading + turn);
+	}
+
+	/**
+	 * Where a point seen from this pose is on the floor
+	 * @param bearing double - radians from straight ahead, positive to the left
+	 * @param range double - inches away
+	 * @return double[] - the point's x and y
+	 */
+	public double[] project(double bearing, double range)
+	{
+		double a = heading + bearing;
+		return new double[] {x + range * Math.cos(a), y + range * Math.sin(a)};
+	}
+
+	/**
+	 * Straight line distance to another pose
+	 * @param other Pose - the other pose
+	 * @return double - inches
+	 */
+	public double distanceTo(Pose other)
+	{
+		return Math.hypot(other.x - x, other.y - y);
+	}
+
+	public String toString()
+	{
+		return String.format("Pose[x=%.1f, y=%.1f, heading=%.1f deg]", x, y, getHeadingDegrees());
+	}
+
+	/**
+	 * Brings an angle into -PI to PI
+	 */
+	static double normalize(double radians)
+	{
+		radians %= 2 * Math.PI;
+		if (radians > Math.PI)
+			radians -= 2 * Math.PI;
+		else if (radians < -Math.PI)
+			radians += 2 * Math.PI;
+		return radians;
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private final double x, y, heading;
+}
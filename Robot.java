@@ -1,5 +1,9 @@
 package bcibot;
 
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * This class implements a control interface for an ER1 robot. It includes  
  * everything that is needed to drive the robot around, have the robot recite
@@ -22,21 +26,21 @@ public class Robot
 	 * Connects to a robot using the default address. Verbose output is specified as true.
 	 */
 	public Robot() 
-	{initializeRobot(DEFAULT_ADDRESS, DEFAULT_VERBOSE);}
+	{initializeRobot(DEFAULT_ADDRESS, DEFAULT_VERBOSE, ThreadMode.PLATFORM);}
 
 	/**
 	 * Connects to a robot with the given address. Verbose output is specified as true.
 	 * @param address String - the IP Address of the robot.
 	 */
 	public Robot(String _address)
-	{initializeRobot(_address, DEFAULT_VERBOSE);}
+	{initializeRobot(_address, DEFAULT_VERBOSE, ThreadMode.PLATFORM);}
 	
 	/**
 	 * Connects to a robot with the option to specify verbose output.
 	 * @param verbose boolean - true if verbose output is desired, else false.
 	 */
 	public Robot(boolean _verbose)
-	{initializeRobot(DEFAULT_ADDRESS, _verbose);}
+	{initializeRobot(DEFAULT_ADDRESS, _verbose, ThreadMode.PLATFORM);}
 
 	/**
 	 * Connects to a robot with the given address with the option to specify verbose output.
@@ -44,25 +48,47 @@ public class Robot
 	 * @param verbose boolean - true if verbose output is desired, else false.
 	 */
 	public Robot(String _address, boolean _verbose)
-	{initializeRobot(_address, _verbose);}	
+	{initializeRobot(_address, _verbose, ThreadMode.PLATFORM);}	
+	
+	/**
+	 * Connects to a robot, choosing the kind of thread its commands are sent
+	 * on. ThreadMode.VIRTUAL lets hundreds of robots share one JVM; it needs
+	 * Java 21 and falls back to platform threads on older JVMs.
+	 * @param address String - the IP Address of the robot.
+	 * @param verbose boolean - true if verbose output is desired, else false.
+	 * @param threadMode int - ThreadMode.PLATFORM or ThreadMode.VIRTUAL
+	 */
+	public Robot(String _address, boolean _verbose, int _threadMode)
+	{initializeRobot(_address, _verbose, _threadMode);}
 	
 	/**
 	 * Connects to a robot with the specified address with the option to specify verbose output.
 	 * @param address String - the IP Address of the robot.
 	 * @param verbose boolean - true if verbose output is desired, else false.
 	 */
-	private void initializeRobot(String _address, boolean _verbose)
+	private void initializeRobot(String _address, boolean _verbose, int _threadMode)
 	{
 		try{
-			client = new ArchitectureClient(_address);
+			client = new ArchitectureClient(_address, _threadMode);
+			frames = new SkippingPublisher<TimedFrame>("Frames", 1, client.getThreadMode());
+			speech = new SpeechQueue(client, new SpeechQueue.Speaker()
+			{
+				public void speak(String text)
+				{
+					sendCommand(ROUTE_SPEAK + SPEAK + QUOTE + text + QUOTE + NEWLINE);
+				}
+			});
 
 			//set booleans
 			multiTasking = false;
 			linkedCommands = false;
 			verbose = _verbose;
+			if(verbose && !Log.isEnabled(Log.INFO))
+				Log.setLevel(Log.INFO);
 			
 			setMovementSpeed(LOW_MOVEMENT_SPEED);
 			setTurningSpeed(LOW_TURNING_SPEED);
+			refreshGripperState();
 		}
 		catch(Exception e)
 		{
@@ -84,6 +110,7 @@ public class Robot
 		if(!multiTasking && !linkedCommands)
 			waitFor(ALL_DONE);
 		sendCommand(ROUTE_MOVE + MOVE + FORWARD + NEWLINE);
+		odometry.untracked();
 	}
 	
 	/**
@@ -94,6 +121,7 @@ public class Robot
 		if(!multiTasking && !linkedCommands)
 			waitFor(ALL_DONE);
 		sendCommand(ROUTE_MOVE + MOVE + BACKWARD + NEWLINE);
+		odometry.untracked();
 	}
 	
 	/**
@@ -128,7 +156,11 @@ public class Robot
 		if(units.compareTo(INCHES) != 0)
 			inches = doUnitConversion(amount, units, INCHES);
 
-		sendCommand(ROUTE_MOVE + MOVE + FORWARD + SPACE + (int)inches + NEWLINE);
+		final int distance = (int)inches;
+		track(sendCommand(ROUTE_MOVE + MOVE + FORWARD + SPACE + distance + NEWLINE), new Runnable()
+		{
+			public void run() {odometry.move(distance);}
+		});
 	}
 	
 	/**
@@ -145,7 +177,11 @@ public class Robot
 		if(units.compareTo(INCHES) != 0)
 			inches = doUnitConversion(amount, units, INCHES);
 
-		sendCommand(ROUTE_MOVE + MOVE + BACKWARD + SPACE + (int)inches + NEWLINE);
+		final int distance = (int)inches;
+		track(sendCommand(ROUTE_MOVE + MOVE + BACKWARD + SPACE + distance + NEWLINE), new Runnable()
+		{
+			public void run() {odometry.move(-distance);}
+		});
 	}
 	
 	/**
@@ -183,6 +219,7 @@ public class Robot
 			waitFor(ALL_DONE);
 		
 		sendCommand(ROUTE_MOVE + MOVE + LEFT + NEWLINE);
+		odometry.untracked();
 	}
 	
 	/**
@@ -194,6 +231,7 @@ public class Robot
 			waitFor(ALL_DONE);
 		
 		sendCommand(ROUTE_MOVE + MOVE + RIGHT + NEWLINE);
+		odometry.untracked();
 	}
 	
 	/**
@@ -228,7 +266,11 @@ public class Robot
 		if(units.compareTo(DEGREES) != 0)
 			degrees = doUnitConversion(amount, units, DEGREES);
 
-		sendCommand(ROUTE_MOVE + MOVE + LEFT + SPACE + (int)degrees + NEWLINE);
+		final int angle = (int)degrees;
+		track(sendCommand(ROUTE_MOVE + MOVE + LEFT + SPACE + angle + NEWLINE), new Runnable()
+		{
+			public void run() {odometry.turn(angle);}
+		});
 	}
 	
 	/**
@@ -245,7 +287,11 @@ public class Robot
 		if(units.compareTo(DEGREES) != 0)
 			degrees = doUnitConversion(amount, units, DEGREES);
 
-		sendCommand(ROUTE_MOVE + MOVE + RIGHT + SPACE + (int)degrees + NEWLINE);
+		final int angle = (int)degrees;
+		track(sendCommand(ROUTE_MOVE + MOVE + RIGHT + SPACE + angle + NEWLINE), new Runnable()
+		{
+			public void run() {odometry.turn(-angle);}
+		});
 	}
 	
 	/**
@@ -290,6 +336,7 @@ public class Robot
 			radius = doUnitConversion(radius, DEFAULT_MOVE_UNITS, INCHES);
 		
 		sendCommand(ROUTE_MOVE + ARC_CONT_F + (int)radius + NEWLINE);
+		odometry.untracked();
 	}
 	
 	/**
@@ -309,6 +356,7 @@ public class Robot
 			radius = doUnitConversion(radius, DEFAULT_MOVE_UNITS, INCHES);
 		
 		sendCommand(ROUTE_MOVE + ARC_CONT_B + (int)radius + NEWLINE);
+		odometry.untracked();
 	}
 	
 	/**
@@ -353,7 +401,11 @@ public class Robot
 		if(DEFAULT_TURN_UNITS.compareTo(DEGREES) != 0)
 			angle = doUnitConversion(angle, DEFAULT_TURN_UNITS, DEGREES);
 		
-		sendCommand(ROUTE_MOVE + ARC + (int)radius + SPACE + (int)angle + NEWLINE);
+		final int r = (int)radius, a = (int)angle;
+		track(sendCommand(ROUTE_MOVE + ARC + r + SPACE + a + NEWLINE), new Runnable()
+		{
+			public void run() {odometry.arc(r, a);}
+		});
 	}
 	
 	//**************************************************************************
@@ -418,6 +470,66 @@ public class Robot
 			System.err.println("\'" + units + "\' is not a valid unit type"); 
 	}
 	
+	//**************************************************************************
+	//POSE AND MAPPING METHODS *************************************************
+	//**************************************************************************
+	
+	/**
+	 * Where the robot will be once the movement commands it has accepted so
+	 * far are done, worked out from the commands themselves. Commands that
+	 * fail, are dropped or are cut short by stop() count as untracked moves
+	 * instead. Starts at the
+	 * origin facing along the x axis, in inches.
+	 * @return Pose - the robot's pose
+	 */
+	public Pose getPose()
+	{
+		return odometry.getPose();
+	}
+	
+	/**
+	 * Tells the robot where it is, e.g. after recognising a landmark or
+	 * after an open-ended move.
+	 * @param pose Pose - the robot's pose, in inches
+	 */
+	public void setPose(Pose pose)
+	{
+		odometry.setPose(pose);
+	}
+	
+	/**
+	 * Accessor for the pose tracker, e.g. to check for untracked moves.
+	 * @return DeadReckoning - the tracker the movement commands update
+	 */
+	public DeadReckoning getDeadReckoning()
+	{
+		return odometry;
+	}
+	
+	/**
+	 * Records an obstacle found in the current picture on a map, as seen
+	 * from the robot's current pose. Call it once the robot has stopped,
+	 * so the pose matches the picture.
+	 * @param map OccupancyGrid - the map
+	 * @param target Target - where the obstacle is in the picture
+	 * @param width double - the obstacle's real width in inches
+	 */
+	public void mapTarget(OccupancyGrid map, Target target, double width)
+	{
+		map.addTarget(getPose(), target, Math.toRadians(cameraFieldOfView), width);
+	}
+	
+	/**
+	 * Sets the camera's horizontal field of view, used to turn positions in
+	 * pictures into directions and distances. Defaults to 60 degrees, about
+	 * that of a typical webcam.
+	 * @param degrees double - the angle across the full frame
+	 */
+	public void setCameraFieldOfView(double degrees)
+	{
+		cameraFieldOfView = degrees;
+	}
+	
 	//**************************************************************************
 	//LINKED MOVEMENT METHODS **************************************************
 	//**************************************************************************
@@ -462,6 +574,24 @@ public class Robot
 		multiTasking = false;
 	}
 	
+	/**
+	 * Checks whether movement commands return without waiting for the robot
+	 * @return true if multitasking is enabled
+	 */
+	public boolean isMultitasking()
+	{
+		return multiTasking;
+	}
+	
+	/**
+	 * The kind of thread the robot's background work runs on
+	 * @return int - ThreadMode.PLATFORM or ThreadMode.VIRTUAL
+	 */
+	public int getThreadMode()
+	{
+		return client.getThreadMode();
+	}
+	
 	/**
 	 * Pauses the execution of the user's program.  The current use is to allow
 	 * the robot to move or turn a desired distance before telling it to stop.
@@ -474,6 +604,12 @@ public class Robot
 		while (System.currentTimeMillis() < end);
 	}
 	
+	/**
+	 * Pauses until a type of command has finished. Waiting threads sleep
+	 * until the client's queues empty, then share status queries to the
+	 * robot, so any number of threads can wait at once cheaply.
+	 * @param commandType String - ALL_DONE, MOVE_DONE, SPEAK_DONE, CAMERA_DONE or GRIPPER_DONE
+	 */
 	public void waitFor(String commandType)
 	{
 		if(!commandType.equalsIgnoreCase(MOVE_DONE)
@@ -481,51 +617,66 @@ public class Robot
 		&& !commandType.equalsIgnoreCase(GRIPPER_DONE)
 		&& !commandType.equalsIgnoreCase(CAMERA_DONE)
 		&& !commandType.equalsIgnoreCase(ALL_DONE))
+		{
 			System.err.println("INVALID type to wait for: \'" + commandType + "\'");
+			return;
+		}
 		
-		while(true)
+		try
 		{
-			try{Thread.sleep(250);}
-			catch (InterruptedException e){}
-			
-			//String response = sendCommand("STATUS" + NEWLINE); 		
-			//Scanner scan = new Scanner(response);
-			
-			/*if(scan.next().equals("true"))
-				IS_MOVE_DONE = true;
-			else 
-				IS_MOVE_DONE = false;
-			
-			if(scan.next().equals("true"))
-				IS_SPEAK_DONE = true;
-			else 
-				IS_SPEAK_DONE = false;
-			
-			if(scan.next().equals("true"))
-				IS_CAMERA_DONE = true;
-			else 
-				IS_CAMERA_DONE = false;
-			
-			if(scan.next().equals("true"))
-				IS_GRIPPER_DONE = true;
-			else 
-				IS_GRIPPER_DONE = false;
-			 */
-			
-			if(commandType.equalsIgnoreCase(ALL_DONE) 
-			&& client.isMOVE_DONE() && client.isSPEAK_DONE() 
-			&& client.isCAMERA_DONE() && client.isGRIPPER_DONE())
-				break;
-			if(commandType.equalsIgnoreCase(MOVE_DONE) && client.isMOVE_DONE())
-				break;
-			if(commandType.equalsIgnoreCase(SPEAK_DONE) && client.isSPEAK_DONE())
-				break;
-			if(commandType.equalsIgnoreCase(CAMERA_DONE) && client.isCAMERA_DONE())
-				break;
-			if(commandType.equalsIgnoreCase(GRIPPER_DONE) && client.isGRIPPER_DONE())
-				break;		
+			if(commandType.equalsIgnoreCase(SPEAK_DONE))
+				speech.awaitIdle();
+			client.getStatusMonitor().await(commandType, 0);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
 		}
 	}
+
+	/**
+	 * Runs an action once a type of command has finished, without blocking
+	 * the caller. The wait happens on a thread of the robot's ThreadMode, so
+	 * with virtual threads thousands of waiters cost next to nothing.
+	 * @param commandType String - ALL_DONE, MOVE_DONE, SPEAK_DONE, CAMERA_DONE or GRIPPER_DONE
+	 * @param action Runnable - what to run when it has finished
+	 * @return Thread - the waiting thread, interrupt it to give up
+	 */
+	public Thread whenDone(final String commandType, final Runnable action)
+	{
+		return client.startThread(new Runnable()
+		{
+			public void run()
+			{
+				waitFor(commandType);
+				if (!Thread.currentThread().isInterrupted())
+					action.run();
+			}
+		}, "Waiting for " + commandType);
+	}
+
+	/**
+	 * Checks without waiting whether a type of command has finished.
+	 * ALL_DONE covers movement, the camera and the gripper; speech runs
+	 * alongside them and is only waited for with SPEAK_DONE.
+	 * @param commandType String - ALL_DONE, MOVE_DONE, SPEAK_DONE, CAMERA_DONE or GRIPPER_DONE
+	 * @return true if finished, false if still running
+	 */
+	public boolean isDone(String commandType)
+	{
+		if(commandType.equalsIgnoreCase(SPEAK_DONE) && !speech.isIdle())
+			return false;
+		return client.getStatusMonitor().isDone(commandType);
+	}
+	
+	/**
+	 * Completion status of every module
+	 * @return RobotStatus - what has finished
+	 */
+	public RobotStatus getStatus()
+	{
+		return client.getStatusMonitor().getStatus();
+	}
 	
 	//**************************************************************************
 	//MOVEMENT HELPER METHODS **************************************************
@@ -572,11 +723,15 @@ public class Robot
 	}
 	
 	/**
-	 * Stops the movement of the robot.
+	 * Stops the movement of the robot. STOP is sent before anything else.
+	 * A move or turn by a distance that has not finished by then is cut
+	 * short, so when it completes it counts as untracked instead of moving
+	 * the pose.
 	 */
 	public void stop() 
 	{
         sendCommand(ROUTE_MOVE + STOP + NEWLINE);
+		stops.incrementAndGet();
     }
 	
 	//**************************************************************************
@@ -584,16 +739,46 @@ public class Robot
 	//**************************************************************************
 	
 	/**
-	 * Dictates the given message verbally.
+	 * Dictates the given message verbally. Returns immediately; the message is
+	 * spoken after any speech already queued, while the robot carries on moving.
+	 * Use waitFor(SPEAK_DONE) to wait until it has been said.
 	 * @param message String - the message to be spoken.
+	 * @throws CommandRejectedException - if the Speak queue is full and set to REJECT
 	 */
 	public void speak(String message)
 	{
-		System.out.println("About to speak"); 
-		if(!multiTasking)
-			waitFor(ALL_DONE);
-		System.out.println("Can speak!");
-		sendCommand(ROUTE_SPEAK + SPEAK + QUOTE + message + QUOTE + NEWLINE);
+		if(Log.isEnabled(Log.DEBUG))
+			Log.debug("Queueing speech: " + message);
+		speech.say(message);
+	}
+	
+	/**
+	 * Dictates the given message verbally and waits until it has been said.
+	 * @param message String - the message to be spoken.
+	 */
+	public void speakAndWait(String message)
+	{
+		speak(message);
+		waitFor(SPEAK_DONE);
+	}
+	
+	/**
+	 * Drops queued messages that have not started to be spoken.
+	 * @return int - number of messages dropped
+	 */
+	public int cancelSpeech()
+	{
+		return speech.cancelPending();
+	}
+	
+	/**
+	 * Drops queued messages and says this one next instead.
+	 * @param message String - the message to be spoken.
+	 * @return int - number of messages dropped
+	 */
+	public int interruptSpeech(String message)
+	{
+		return speech.interrupt(message);
 	}
 	
 	//**************************************************************************
@@ -621,10 +806,234 @@ public class Robot
 		if(!multiTasking)
 			waitFor(ALL_DONE);
 		
-		if (!havePicture())
-			picture = new Picture(client);
-		else
-			picture.retake();
+		cameraLock.lock();
+		try
+		{
+			if (!havePicture())
+				picture = new Picture(client);
+			else
+				picture.retake();
+			recordFrame();
+		}
+		finally {cameraLock.unlock();}
+	}
+	
+	/**
+	 * Take a picture with the robot's camera, decoding only part of the frame.
+	 * Use this in tracking loops that only need a small window or a thumbnail.
+	 * @param x int - left edge of the region in full frame pixels
+	 * @param y int - top edge of the region in full frame pixels
+	 * @param width int - width of the region in full frame pixels
+	 * @param height int - height of the region in full frame pixels
+	 * @param subsample int - keep every subsample-th pixel, 1 for all of them
+	 */
+	public void takePicture(int x, int y, int width, int height, int subsample)
+	{
+		if(!multiTasking)
+			waitFor(ALL_DONE);
+		
+		cameraLock.lock();
+		try
+		{
+			if (!havePicture())
+				picture = new Picture(client, x, y, width, height, subsample);
+			else
+				picture.retake(x, y, width, height, subsample);
+			recordFrame();
+		}
+		finally {cameraLock.unlock();}
+	}
+	
+	/**
+	 * Take a reduced size picture, keeping every subsample-th pixel.
+	 * @param subsample int - e.g. 4 turns a 640x480 frame into 160x120
+	 */
+	public void takeSubsampledPicture(int subsample)
+	{
+		if(!multiTasking)
+			waitFor(ALL_DONE);
+		
+		captureSubsampled(subsample);
+	}
+	
+	/**
+	 * Takes a reduced size picture straight away, without waiting for other
+	 * commands to finish
+	 */
+	private void captureSubsampled(int subsample)
+	{
+		cameraLock.lock();
+		try
+		{
+			if (!havePicture())
+				picture = new Picture(client, subsample);
+			else
+				picture.retakeSubsampled(subsample);
+			recordFrame();
+		}
+		finally {cameraLock.unlock();}
+	}
+	
+	/**
+	 * Adds the picture just taken to the frame history, together with the
+	 * Move command the robot was executing when it was captured, and hands
+	 * it to frame subscribers
+	 */
+	private void recordFrame()
+	{
+		boolean publish = frames.hasSubscribers();
+		if(frameHistory == null && !publish)
+			return;
+		
+		String move = client.getMotionHistory().floor(picture.getCaptureTime());
+		TimedFrame frame = new TimedFrame(picture.getImage(), picture.getCaptureTime(),
+				picture.getReceiveTime(), move);
+		picture.retainImage();
+		
+		if(publish)
+			frames.publish(frame);
+		if(frameHistory == null)
+			return;
+		TimedFrame evicted = frameHistory.add(frame.getCaptureTime(), frame);
+		if(evicted != null)
+			Picture.recycle(evicted.getImage());
+	}
+	
+	/**
+	 * Every picture taken, as a Flow.Publisher. A subscriber that falls
+	 * behind skips to the latest picture instead of queueing old ones. With
+	 * image pooling on, a frame's image is only valid until it leaves the
+	 * frame history.
+	 * @return SkippingPublisher - the publisher to subscribe to
+	 */
+	public SkippingPublisher<TimedFrame> getFramePublisher()
+	{
+		return frames;
+	}
+	
+	/**
+	 * Streams the camera to frame subscribers: pictures are taken one after
+	 * another on a background thread, but only while some subscriber has
+	 * requested a frame it has not got, so the camera rests when nobody is
+	 * keeping up. Does not wait for other commands to finish.
+	 * @param subsample int - keep every subsample-th pixel, 1 for all of them
+	 */
+	public void startFrameStream(final int subsample)
+	{
+		stopFrameStream();
+		frameStream = client.startThread(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					while (!Thread.currentThread().isInterrupted())
+					{
+						if (frames.awaitDemand(STREAM_IDLE_CHECK))
+							captureSubsampled(subsample);
+					}
+				}
+				catch (InterruptedException e) {}
+				catch (RuntimeException e) {Log.error("Frame stream stopped: " + e);}
+			}
+		}, "Frame stream");
+	}
+	
+	/**
+	 * Creates a vision pipeline on this robot's camera, which receives,
+	 * decodes, analyses and acts on frames on separate threads so they
+	 * overlap. Call start() on it to begin. Turn on multitasking if the
+	 * action drives the robot, so its commands do not wait for each other.
+	 * @param processor FrameProcessor - analyses each frame
+	 * @param action FrameAction - acts on each result, or null for none
+	 * @return VisionPipeline - the pipeline, not started
+	 */
+	public <R> VisionPipeline<R> createVisionPipeline(FrameProcessor<R> processor, FrameAction<R> action)
+	{
+		return new VisionPipeline<R>(client, processor, action);
+	}
+	
+	/**
+	 * Stops the camera stream started by startFrameStream. Subscribers stay
+	 * subscribed and still get pictures taken by other means.
+	 */
+	public void stopFrameStream()
+	{
+		Thread t = frameStream;
+		frameStream = null;
+		if (t == null)
+			return;
+		t.interrupt();
+		try {t.join(STREAM_STOP_WAIT);}
+		catch (InterruptedException e) {Thread.currentThread().interrupt();}
+	}
+	
+	/**
+	 * Finds the recent picture captured closest to a time
+	 * @param nanos long - a System.nanoTime() value
+	 * @return TimedFrame - the closest picture, or null if none are kept
+	 */
+	public TimedFrame getFrameNearest(long nanos)
+	{
+		if(frameHistory == null)
+			return null;
+		return frameHistory.nearest(nanos);
+	}
+	
+	/**
+	 * Finds the Move command the robot was executing at a time, for example
+	 * at a picture's capture time to correct for camera latency
+	 * @param nanos long - a System.nanoTime() value
+	 * @return String - the command, or null if none was sent before then
+	 */
+	public String getMoveCommandAt(long nanos)
+	{
+		return client.getMotionHistory().floor(nanos);
+	}
+	
+	/**
+	 * Sets how many recent pictures are kept for time lookups. None are
+	 * kept until this is called, since each one holds a whole decoded frame.
+	 * Clears the pictures kept so far, returning their images to the pool
+	 * when image pooling is on.
+	 * @param frames int - number of pictures to keep, 0 for none
+	 */
+	public void setFrameHistorySize(int frames)
+	{
+		cameraLock.lock();//recordFrame adds under it
+		try
+		{
+			TimeRingBuffer<TimedFrame> old = frameHistory;
+			frameHistory = frames > 0 ? new TimeRingBuffer<TimedFrame>(frames) : null;
+			if(old == null)
+				return;
+			BufferedImage current = picture == null ? null : picture.getImage();
+			for(TimedFrame frame : old.drain())
+			{
+				//the picture still shows its newest frame, so that one cannot be reused yet
+				if(frame.getImage() != current)
+					Picture.recycle(frame.getImage());
+			}
+		}
+		finally {cameraLock.unlock();}
+	}
+	
+	/**
+	 * Reuse image memory between pictures instead of allocating a new image
+	 * for every one. A picture's image is then only valid until the next
+	 * picture is taken.
+	 */
+	public void enableImagePooling()
+	{
+		Picture.setImagePool(ImagePool.getDefault());
+	}
+	
+	/**
+	 * Allocate a new image for every picture (the default).
+	 */
+	public void disableImagePooling()
+	{
+		Picture.setImagePool(null);
 	}
 	
 	/**
@@ -640,11 +1049,13 @@ public class Robot
 	}
 	
 	/**
-	 * Save an image
+	 * Save an image on a background thread, so the robot can keep moving
+	 * @param filename String - name of the file, saved in Picture's save directory
+	 * @return Future - completes with the saved file, or fails if it could not be written
 	 */
-	public void savePicture(String filename)
+	public java.util.concurrent.Future<java.io.File> savePicture(String filename)
 	{
-		picture.save(filename);
+		return picture.save(filename);
 	}
 	
 	/**
@@ -655,6 +1066,51 @@ public class Robot
 		picture.load(filename);
 	}
 	
+	/**
+	 * Starts recording every picture taken to segment files in a directory.
+	 * Frames are written on a background thread and can be read back with FrameArchive.
+	 * @param directory String - where to write the recording
+	 * @param compress boolean - true to deflate frames, false to store them raw
+	 */
+	public void startFrameRecording(String directory, boolean compress)
+	{
+		stopFrameRecording();
+		try
+		{
+			frameRecorder = new FrameRecorder(new java.io.File(directory), FRAME_SEGMENT_SIZE, compress, client.getThreadMode());
+			Picture.setFrameRecorder(frameRecorder);
+		}
+		catch(java.io.IOException e)
+		{
+			Log.error("Could not record frames to " + directory + ": " + e);
+		}
+	}
+	
+	/**
+	 * Stops recording pictures and closes the recording.
+	 */
+	public void stopFrameRecording()
+	{
+		stopFrameRecording(0);
+	}
+	
+	/**
+	 * Stops recording pictures and closes the recording, discarding any
+	 * pictures not yet written at the deadline.
+	 * @param timeoutMillis long - longest to wait, 0 to wait forever
+	 * @return true if every picture was written
+	 */
+	public boolean stopFrameRecording(long timeoutMillis)
+	{
+		if(frameRecorder == null)
+			return true;
+		
+		Picture.setFrameRecorder(null);
+		boolean written = frameRecorder.close(timeoutMillis);
+		frameRecorder = null;
+		return written;
+	}
+	
 	/**
 	 * Displays the last-taken picture from the robot, or if there is no previous
 	 * picture, it takes a picture and displays it.
@@ -730,6 +1186,25 @@ public class Robot
 		picture.displayPicture(title);
 	}
 	
+	/**
+	 * Takes a new picture and shows it in a live view window. The same window
+	 * is reused on every call, so calling this in a loop streams the camera.
+	 */
+	public void displayLive()
+	{
+		takePicture();
+		picture.displayLive();
+	}
+	
+	/**
+	 * Closes the live view window opened by displayLive.
+	 */
+	public void hideLive()
+	{
+		if (havePicture())
+			picture.hideLive();
+	}
+	
 	public void hidePicture()
 	{
 		if(!multiTasking)
@@ -751,14 +1226,13 @@ public class Robot
 	 */
 	public void openGripper()
 	{
-		if(isGripperDetected())
-		{
-			if(!isGripperOpen())
-			{
-				sendCommand(ROUTE_GRIPPER + OPEN_GRIPPER + NEWLINE);
-			}
-			else{System.out.println("Gripper already open");}
-		}
+		GripperState gripper = client.getGripperState();
+		if(gripper.isMissing())
+			Log.error("Gripper not detected");
+		else if(gripper.getPosition() == GripperState.OPEN)
+			System.out.println("Gripper already open");
+		else
+			sendCommand(ROUTE_GRIPPER + OPEN_GRIPPER + NEWLINE);
 	}
 	
 	/**
@@ -767,14 +1241,13 @@ public class Robot
 	 */
 	public void closeGripper()
 	{
-		if(isGripperDetected())
-		{
-			if(!isGripperClosed())
-			{
-				sendCommand(ROUTE_GRIPPER + CLOSE_GRIPPER + NEWLINE);
-			}
-			else{System.out.println("Gripper already closed");}
-		}
+		GripperState gripper = client.getGripperState();
+		if(gripper.isMissing())
+			Log.error("Gripper not detected");
+		else if(gripper.getPosition() == GripperState.CLOSED)
+			System.out.println("Gripper already closed");
+		else
+			sendCommand(ROUTE_GRIPPER + CLOSE_GRIPPER + NEWLINE);
 	}
 
 	/**
@@ -783,97 +1256,366 @@ public class Robot
 	 */
 	public void stopGripper()
 	{
-		if(isGripperDetected())
-		{
-			if(isGripperOpening() || isGripperClosing())
-			{
-				sendCommand(ROUTE_GRIPPER + STOP_GRIPPER + NEWLINE);
-			}
-			else{System.out.println("Gripper is already stopped.");}
-		}
+		GripperState gripper = client.getGripperState();
+		if(gripper.isMissing())
+			Log.error("Gripper not detected");
+		else if(isGripperOpening() || isGripperClosing() || isAutogripEnabled()
+				|| gripper.getPosition() == GripperState.UNKNOWN)
+			sendCommand(ROUTE_GRIPPER + STOP_GRIPPER + NEWLINE);
+		else
+			System.out.println("Gripper is already stopped.");
+	}
+	
+	/**
+	 * Asks the robot to report the gripper's state. The answer updates the
+	 * cached state used by the isGripper methods.
+	 */
+	public void refreshGripperState()
+	{
+		sendCommand(ROUTE_GRIPPER + GRIPPER_STATUS + NEWLINE);
+	}
+	
+	/**
+	 * The gripper's cached state, for adding listeners or waiting on it
+	 * @return GripperState - the gripper state
+	 */
+	public GripperState getGripperState()
+	{
+		return client.getGripperState();
+	}
+	
+	/**
+	 * Waits until the gripper is fully open or closed, or a timeout passes.
+	 * @param timeoutMillis long - longest to wait, 0 to wait forever
+	 * @return true if the gripper finished, false if the wait timed out
+	 */
+	public boolean waitForGripper(long timeoutMillis)
+	{
+		GripperState gripper = client.getGripperState();
+		int position = gripper.getPosition();
+		int target = position == GripperState.OPENING ? GripperState.OPEN
+				: position == GripperState.CLOSING ? GripperState.CLOSED : position;
+		try {return gripper.awaitPosition(target, timeoutMillis);}
+		catch(InterruptedException e) {return false;}
 	}
 
 	/**
 	 * Determines whether the gripper is detected or not
 	 * @return boolean true if gripper is detected, else false.
 	 */
-	public boolean isGripperDetected(){return false;}
+	public boolean isGripperDetected(){return client.getGripperState().isDetected();}
 		
 	/**
 	 * Determines whether or not the gripper is completely open. True if it is, else false
 	 * @return boolean True if the gripper is completely open, else false.
 	 */
-	public boolean isGripperOpen() {return false;}
+	public boolean isGripperOpen() {return client.getGripperState().getPosition() == GripperState.OPEN;}
 	
 	/**
 	 * Determines whether or not the gripper is completely closed. True if it is, else false
 	 * @return boolean True if the gripper is completely closed, else false.
 	 */
-	public boolean isGripperClosed() {return false;}
+	public boolean isGripperClosed() {return client.getGripperState().getPosition() == GripperState.CLOSED;}
 	
 	/**
 	 * Determines whether or not the gripper is in the process of closing. 
 	 */
-	public boolean isGripperClosing(){return false;} 
+	public boolean isGripperClosing(){return client.getGripperState().getPosition() == GripperState.CLOSING;} 
 	
 	/**
 	 * Determines whether or not the gripper is in the process of opening. 
 	 */
-	public boolean isGripperOpening(){return false;} 
+	public boolean isGripperOpening(){return client.getGripperState().getPosition() == GripperState.OPENING;} 
 	
 	/**
 	 * Determines if autogrip is enabled. If it is, then true is returned, else false.
 	 * @return boolean True if enabled, else false.
 	 */
-	public boolean isAutogripEnabled(){return false;}
+	public boolean isAutogripEnabled(){return client.getGripperState().isAutoGrip();}
 
 	/**
-	 * Enables the auto grip if it is disabled.
+	 * Enables the auto grip if it is disabled. The gripper then closes by
+	 * itself when something breaks the beam between its fingers.
 	 */
-	public void enableAutoGrip(){}
+	public void enableAutoGrip()
+	{
+		if(!isAutogripEnabled())
+			sendCommand(ROUTE_GRIPPER + AUTO_GRIPPER + NEWLINE);
+	}
 
 	/**
-	 * Disables the auto grip if it is enabled.
+	 * Disables the auto grip if it is enabled. The gripper has no separate
+	 * command for this, so it is stopped, which also ends auto grip.
 	 */
-	public void disableAutoGrip(){}
+	public void disableAutoGrip()
+	{
+		if(isAutogripEnabled())
+			sendCommand(ROUTE_GRIPPER + STOP_GRIPPER + NEWLINE);
+	}
 	
 	//**************************************************************************
 	//OTHER COMMANDS ***********************************************************
 	//**************************************************************************
 	
+	/**
+	 * Disconnects from the robot once every queued command and message has
+	 * been sent.
+	 */
+	public void close()
+	{
+		close(0);
+	}
+	
+	/**
+	 * Disconnects from the robot once every queued command and message has
+	 * been sent, or at the deadline, when whatever is left is cancelled.
+	 * Background sampling and recording are stopped first.
+	 * @param timeoutMillis long - longest to wait, 0 to wait forever
+	 * @return true if everything was sent, false if something was cancelled
+	 */
+	public boolean close(long timeoutMillis)
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		stopFrameStream();
+		frames.close();
+		stopTelemetry();
+		stopRecording();
+		boolean recorded = stopFrameRecording(timeoutMillis <= 0 ? 0 : Math.max(1, deadline - System.currentTimeMillis()));
+		
+		boolean spoken;
+		try {spoken = speech.awaitIdle(timeoutMillis);}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			spoken = false;
+		}
+		speech.close();
+		
+		long left = timeoutMillis <= 0 ? 0 : Math.max(1, deadline - System.currentTimeMillis());
+		return client.close(left) && spoken && recorded;
+	}
+	
+	/**
+	 * Disconnects from the robot straight away, cancelling queued commands
+	 * and messages.
+	 * @return int - number of commands and messages cancelled
+	 */
+	public int closeNow()
+	{
+		stopFrameStream();
+		frames.close();
+		stopTelemetry();
+		int cancelled = speech.cancelPending();
+		speech.close();
+		cancelled += client.closeNow();
+		stopRecording();
+		stopFrameRecording(1);//pictures not yet written are dropped
+		return cancelled;
+	}
+	
+	/**
+	 * Limits how many commands may wait on a connection, so a script that
+	 * sends commands faster than the robot carries them out cannot use up
+	 * memory. Every connection holds 64 and makes the caller wait by default.
+	 * The Speak limits also apply to messages waiting to be spoken.
+	 * @param channel String - Move, Speak, Gripper, Camera or Battery
+	 * @param capacity int - most commands queued
+	 * @param policy int - CommandQueue.BLOCK, REJECT, DROP_OLDEST or COALESCE
+	 */
+	public void setCommandQueueLimits(String channel, int capacity, int policy)
+	{
+		if(channel.equalsIgnoreCase("Speak"))
+			speech.setLimits(capacity, policy);
+		client.setQueueLimits(channel, capacity, policy);
+	}
+	
+	/**
+	 * Sets how long the robot may stay silent while it works on a command
+	 * before the command is given up on and the connection reconnects. The
+	 * robot answers every events poll while it works, so this is not a limit
+	 * on how long a move may take. Move waits 60s by default, Speak 30s,
+	 * Gripper 15s, Camera 10s and Battery 5s.
+	 * @param channel String - Move, Speak, Gripper, Camera or Battery
+	 * @param timeoutMillis long - the timeout, 0 to wait forever
+	 */
+	public void setCommandTimeout(String channel, long timeoutMillis)
+	{
+		client.setCommandTimeout(channel, timeoutMillis);
+	}
+	
+	/**
+	 * Number of commands waiting to be sent on a connection
+	 * @param channel String - Move, Speak, Gripper, Camera or Battery
+	 * @return int - queued commands
+	 */
+	public int getCommandQueueDepth(String channel)
+	{
+		return client.getQueueDepth(channel);
+	}
+	
+	/**
+	 * Starts sampling battery voltage, motor current and connection health
+	 * in the background. Restarts at the new rate if already sampling.
+	 * @param hz double - samples per second
+	 * @return TelemetrySampler - the sampler, whose series hold the readings
+	 * @throws IllegalArgumentException - if hz is not a positive number
+	 */
+	public TelemetrySampler startTelemetry(double hz)
+	{
+		if(telemetry == null)
+			telemetry = new TelemetrySampler(client, ROUTE_BATTERY + BATTERY_STATUS + NEWLINE);
+		telemetry.start(hz);
+		return telemetry;
+	}
+	
+	/**
+	 * Stops sampling. The readings taken so far are kept.
+	 */
+	public void stopTelemetry()
+	{
+		if(telemetry != null)
+			telemetry.stop();
+	}
+	
+	/**
+	 * The telemetry sampler, if telemetry has been started
+	 * @return TelemetrySampler - the sampler, or null
+	 */
+	public TelemetrySampler getTelemetry()
+	{
+		return telemetry;
+	}
+	
+	/**
+	 * Most recent battery voltage sampled
+	 * @return double - volts, or NaN if telemetry is off or nothing has been read
+	 */
+	public double getBatteryVoltage()
+	{
+		return telemetry == null ? Double.NaN : telemetry.getVoltage().latest();
+	}
+	
+	/**
+	 * Calls a listener for every event the robot reports: moves finishing,
+	 * the gripper, sensors, the battery and errors. The listener runs on a
+	 * thread of its own.
+	 * @param listener RobotEventListener - who to tell
+	 * @return EventSubscription - cancel it to stop listening
+	 */
+	public EventSubscription addEventListener(RobotEventListener listener)
+	{
+		return client.getEventBus().subscribe(listener);
+	}
+	
+	/**
+	 * Calls a listener for some types of event only.
+	 * @param listener RobotEventListener - who to tell
+	 * @param types int - RobotEvent type constants or'ed together
+	 * @return EventSubscription - cancel it to stop listening
+	 */
+	public EventSubscription addEventListener(RobotEventListener listener, int types)
+	{
+		return client.getEventBus().subscribe(listener, types, DEFAULT_EVENT_QUEUE);
+	}
+	
+	/**
+	 * Starts recording every command sent to the robot and its response
+	 * into a binary log that CommandReplayer can play back.
+	 * Any recording already in progress is stopped first.
+	 * @param filename String - the log file to write
+	 */
+	public void startRecording(String filename)
+	{
+		stopRecording();
+		try
+		{
+			recorder = new CommandRecorder(new java.io.File(filename));
+			client.setRecorder(recorder);
+		}
+		catch(java.io.IOException e)
+		{
+			Log.error("Could not record to " + filename + ": " + e);
+		}
+	}
+	
+	/**
+	 * Stops recording and closes the log file.
+	 */
+	public void stopRecording()
+	{
+		if(recorder == null)
+			return;
+		
+		client.setRecorder(null);
+		recorder.close();
+		recorder = null;
+	}
+	
+	/**
+	 * Updates the pose once a movement command is accepted by the robot, or
+	 * counts an untracked move if it fails, times out or is dropped from the
+	 * queue, or if stop() was called before it finished. Commands held for a
+	 * linked list update the pose straight away.
+	 * @param command PendingCommand - the command sent, null if held or not sent
+	 * @param update Runnable - applies the command to the pose
+	 */
+	private void track(final PendingCommand command, final Runnable update)
+	{
+		if(command == null)
+		{
+			if(linkedCommands)
+				update.run();
+			else
+				odometry.untracked();
+			return;
+		}
+		final int stopsAtSend = stops.get();
+		command.whenDone(new Runnable()
+		{
+			public void run()
+			{
+				if(command.isSucceeded() && stops.get() == stopsAtSend)
+					update.run();
+				else
+					odometry.untracked();
+			}
+		});
+	}
+	
 	/**
 	 * Helper method for sending commands
-	 * Prints command to output if verbose is turned on
+	 * Logs the command at INFO level if verbose is turned on
 	 * @param command String - command to send
+	 * @return PendingCommand - the command queued, or null if it is held for
+	 *                          a linked list, sent in one, or could not be queued
 	 */
-	private String sendCommand(String command)
+	private PendingCommand sendCommand(String command)
 	{
 		if(command.startsWith(ROUTE_MOVE + SEND_LINKED_COMMANDS))
 		{
 			if(verbose)
 			{
-				System.out.println("Sending list: ");
+				StringBuilder out = new StringBuilder("Sending list: \n");
 				String[] list = command.replace(ROUTE_MOVE + SEND_LINKED_COMMANDS, "").split("[" + LINK_COM_SEPARATOR + "]");
 				for(int i = 0; i < list.length; i++)
 					if(list[i].length() > 4)
-						System.out.print(list[i].replace(ROUTE_MOVE, ""));
+						out.append(list[i].replace(ROUTE_MOVE, ""));
+				Log.info(out.toString().trim());
 			}
 			client.sendCommand(ROUTE_MOVE + command.replace(ROUTE_MOVE, "").replace("\n", "") + "\n");
-			return "OK";
+			return null;
 		}
 		else if(linkedCommands && command.startsWith(ROUTE_MOVE))
 		{
 			LINKED_COMMANDS += command + LINK_COM_SEPARATOR;
-			return "holding on to linked movement commands";
+			return null;//holding on to linked movement commands
 		}
 		else 
 		{
 			if(verbose)
-				System.out.print("Sending command: " + command);
-			System.out.flush();//dont forget to flush
+				Log.info("Sending command: " + command.trim());
 			
-			client.sendCommand(command);
-			return "OK";
+			return client.sendCommand(command, 0);
 		}
 	}
 	
@@ -882,7 +1624,19 @@ public class Robot
 	//**************************************************************************
 	
 	private ArchitectureClient client;//The Architecture Client Software
-	private Picture picture;//the robot's current picture object
+	private Picture picture;//the robot's current picture object, guarded by cameraLock
+	private final ReentrantLock cameraLock = new ReentrantLock();//one picture taken at a time
+	private SkippingPublisher<TimedFrame> frames;//every picture taken
+	private volatile Thread frameStream;//takes pictures while subscribers want them
+	private static final long STREAM_IDLE_CHECK = 500;//ms between checks that the stream is still wanted
+	private static final long STREAM_STOP_WAIT = 2000;//ms to let a picture in progress finish
+	private CommandRecorder recorder;//records commands while not null
+	private FrameRecorder frameRecorder;//records pictures while not null
+	private TelemetrySampler telemetry;//samples battery and link health once started
+	private final DeadReckoning odometry = new DeadReckoning();//pose from the movement commands sent
+	private final AtomicInteger stops = new AtomicInteger();//calls to stop(), so moves it cut short are not added to the pose
+	private volatile double cameraFieldOfView = 60;//degrees across the camera's frame
+	private TimeRingBuffer<TimedFrame> frameHistory;//recent pictures by capture time, null until setFrameHistorySize
 	
 	//BOOLEAN CONSTANTS
 	private boolean verbose;
@@ -911,11 +1665,6 @@ public class Robot
 	public static final String CAMERA_DONE = "camera done";
 	public static final String GRIPPER_DONE = "gripper done";
 	
-	/*private boolean IS_MOVE_DONE = true;
-	private boolean IS_SPEAK_DONE = true;
-	private boolean IS_CAMERA_DONE = true;
-	private boolean IS_GRIPPER_DONE = true;*/
-	
 	//LINKED MOVEMENT VARIABLES
 	private static final String SEND_LINKED_COMMANDS = "link "; //command to send list
 	private static final String LINK_COM_SEPARATOR = "|";//separator between linked commands
@@ -927,13 +1676,21 @@ public class Robot
 	private final String SET_MOVEMENT_SPEED = "set m ";//used to decrease speed
 	private final String SET_TURNING_SPEED = "set t ";//used to decrease speed
 	
-	//SPEECH COMMAND CONSTANTS
-	private final String SPEAK = "speak ";//Signals the robot to speak
+	//SPEECH VARIABLES
+	private SpeechQueue speech;//speaks queued messages in the background
 	
 	//GRIPPER COMMAND CONSTANTS
 	private final String STOP_GRIPPER = "gripper stop";//Signal to stop gripper
 	private final String OPEN_GRIPPER = "gripper open";//Signal to open gripper
 	private final String CLOSE_GRIPPER = "gripper close";//Signal to close gripper
+	private final String AUTO_GRIPPER = "gripper auto";//Signal to close gripper when something is between its fingers
+	private final String GRIPPER_STATUS = "gripper status";//Asks the robot for the gripper's state
+	
+	//BATTERY COMMAND CONSTANTS
+	private final String BATTERY_STATUS = "battery";//Asks the battery module for its state
+	
+	//SPEECH COMMAND CONSTANTS
+	private final String SPEAK = "speak ";//Signals the robot to speak
 	
 	//GENERAL COMMAND CONSTANTS
 	private final String SPACE = " ";//space character
@@ -945,7 +1702,11 @@ public class Robot
 	private final String ROUTE_SPEAK = "SPK ";//routes to speech module
 	private final String ROUTE_GRIPPER = "GRP ";//routes to gripper module
 	//private final String ROUTE_CAMERA = "CAM ";//routes to camera module
-	//private final String ROUTE_BATTERY = "BAT ";//routes to battery module
+	private final String ROUTE_BATTERY = "BAT ";//routes to battery module
+	
+	//RECORDING CONSTANTS
+	private static final int FRAME_SEGMENT_SIZE = 64 * 1024 * 1024;//bytes per frame segment file
+	private static final int DEFAULT_EVENT_QUEUE = 256;//events held for a slow listener
 	
 	//CALCULATION CONSTANTS    constant * units = inches
 	private static final double CM_TO_INCHES = 2.54;
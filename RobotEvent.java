@@ -0,0 +1,180 @@
+package bcibot;
+
+/**
+ * One line received from the robot, sorted into a type. The robot answers
+ * every command and every "events" poll with lines of text; RobotEvent.parse
+ * turns each of them into an event so listeners can react to motion
+ * finishing, the gripper moving, sensors, the battery and errors.
+ *
+ * Types are bit flags, so a set of types can be given as one mask.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	RobotEvent.java
+ */
+
+public class RobotEvent
+{
+	/**
+	 * Constructor
+	 * @param _type int - one of the type constants
+	 * @param _channel String - the connection the line arrived on
+	 * @param _text String - the line as received
+	 * @param _value double - the number carried by the line, or NaN
+	 * @param _time long - System.nanoTime() the line arrived
+	 */
+	public RobotEvent(int _type, String _channel, String _text, double _value, long _time)
+	{
+		type = _type;
+		channel = _channel;
+		text = _text;
+		value = _value;
+		time = _time;
+	}
+
+	/**
+	 * Sorts a line from the robot into an event
+	 * @param channel String - the connection the line arrived on
+	 * @param line String - the line received
+	 * @param time long - System.nanoTime() the line arrived
+	 * @return RobotEvent - the event
+	 */
+	public static RobotEvent parse(String channel, String line, long time)
+	{
+		String l = line.trim().toLowerCase();
+		int type;
+
+		if (l.equals("ok"))
+			type = ACK;
+		else if (l.indexOf("error") >= 0 || l.indexOf("fail") >= 0)
+			type = ERROR;
+		else if (hasWord(l, "battery") || hasWord(l, "power") || hasWord(l, "voltage"))
+			type = BATTERY;
+		else if (hasWord(l, "ir") || hasWord(l, "sensor") || hasWord(l, "bumper")
+				|| hasWord(l, "range") || hasWord(l, "obstacle"))
+			type = SENSOR;
+		else if (hasWord(l, "gripper") || channel.equalsIgnoreCase("Gripper"))
+			type = GRIPPER;
+		else if (hasWord(l, "move") || hasWord(l, "motion") || hasWord(l, "arc")
+				|| hasWord(l, "turn") || channel.equalsIgnoreCase("Move"))
+			type = MOTION;
+		else
+			type = RESPONSE;
+
+		return new RobotEvent(type, channel, line, firstNumber(l), time);
+	}
+
+	/** @return int - the event's type constant */
+	public int getType() {return type;}
+
+	/** @return String - the connection the line arrived on */
+	public String getChannel() {return channel;}
+
+	/** @return String - the line as received */
+	public String getText() {return text;}
+
+	/** @return double - the first number in the line, NaN if it has none */
+	public double getValue() {return value;}
+
+	/** @return long - System.nanoTime() the line arrived */
+	public long getTime() {return time;}
+
+	/**
+	 * Checks whether the event is one of a set of types
+	 * @param mask int - type constants or'ed together
+	 * @return true if the event's type is in the mask
+	 */
+	public boolean is(int mask)
+	{
+		return (type & mask) != 0;
+	}
+
+	/**
+	 * Checks whether the robot reports this on its own, like a sensor
+	 * reading, rather than as the answer to a command on its channel. The
+	 * Battery channel's answers are battery readings, so they are not.
+	 * @return true for sensor events, and battery events on other channels
+	 */
+	public boolean isUnsolicited()
+	{
+		return type == SENSOR || (type == BATTERY && !channel.equalsIgnoreCase("Battery"));
+	}
+
+	/**
+	 * Name of a type constant, for printing
+	 * @param type int - a type constant
+	 * @return String - its name
+	 */
+	public static String typeName(int type)
+	{
+		switch (type)
+		{
+			case MOTION: return "motion";
+			case GRIPPER: return "gripper";
+			case SENSOR: return "sensor";
+			case BATTERY: return "battery";
+			case ERROR: return "error";
+			case ACK: return "ack";
+			default: return "response";
+		}
+	}
+
+	public String toString()
+	{
+		return typeName(type) + "[" + channel + "] " + text;
+	}
+
+	/**
+	 * Checks for a whole word, so "ir" does not match "direction"
+	 */
+	private static boolean hasWord(String line, String word)
+	{
+		int from = 0;
+		int at;
+		while ((at = line.indexOf(word, from)) >= 0)
+		{
+			int end = at + word.length();
+			if ((at == 0 || !Character.isLetter(line.charAt(at - 1)))
+					&& (end == line.length() || !Character.isLetter(line.charAt(end))))
+				return true;
+			from = at + 1;
+		}
+		return false;
+	}
+
+	private static double firstNumber(String line)
+	{
+		int i = 0;
+		int n = line.length();
+		while (i < n && !Character.isDigit(line.charAt(i)))
+			i++;
+		if (i == n)
+			return Double.NaN;
+
+		int start = (i > 0 && line.charAt(i - 1) == '-') ? i - 1 : i;
+		while (i < n && (Character.isDigit(line.charAt(i)) || line.charAt(i) == '.'))
+			i++;
+		try {return Double.parseDouble(line.substring(start, i));}
+		catch (NumberFormatException e) {return Double.NaN;}
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	//TYPE CONSTANTS
+	public static final int MOTION = 1;//a move finished or changed
+	public static final int GRIPPER = 2;//the gripper moved or reported its state
+	public static final int SENSOR = 4;//IR, bumper or other sensor readings
+	public static final int BATTERY = 8;//battery level
+	public static final int ERROR = 16;//the robot reported an error
+	public static final int ACK = 32;//a bare OK
+	public static final int RESPONSE = 64;//any other reply
+	public static final int ALL = 127;
+	public static final int ALL_BUT_ACK = ALL & ~ACK;
+
+	private final int type;
+	private final String channel;
+	private final String text;
+	private final double value;
+	private final long time;
+}
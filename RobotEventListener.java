@@ -0,0 +1,19 @@
+package bcibot;
+
+/**
+ * Receives events from the robot through an EventBus subscription.
+ * Each subscription calls its listener from its own thread, one event at a
+ * time and in arrival order, so a slow listener only delays itself.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	RobotEventListener.java
+ */
+
+public interface RobotEventListener
+{
+	/**
+	 * Called for each event the subscription accepts
+	 * @param event RobotEvent - the event
+	 */
+	public void robotEvent(RobotEvent event);
+}
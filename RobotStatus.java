@@ -0,0 +1,89 @@
+package bcibot;
+
+/**
+ * Which of the robot's modules have finished their commands, at one moment.
+ * A module counts as done only when the client has nothing queued for it and,
+ * if the robot answered a status query, the robot says it is idle too.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	RobotStatus.java
+ */
+
+public class RobotStatus
+{
+	/**
+	 * Constructor
+	 * @param _move boolean - movement finished
+	 * @param _speak boolean - speech finished
+	 * @param _camera boolean - camera finished
+	 * @param _gripper boolean - gripper finished
+	 * @param _fromRobot boolean - true if the robot itself reported this
+	 * @param _time long - System.nanoTime() the status was taken
+	 */
+	public RobotStatus(boolean _move, boolean _speak, boolean _camera, boolean _gripper,
+			boolean _fromRobot, long _time)
+	{
+		move = _move;
+		speak = _speak;
+		camera = _camera;
+		gripper = _gripper;
+		fromRobot = _fromRobot;
+		time = _time;
+	}
+
+	/**
+	 * Checks whether a type of command has finished.
+	 * ALL_DONE covers movement, the camera and the gripper, as in Robot.
+	 * @param commandType String - Robot.ALL_DONE, MOVE_DONE, SPEAK_DONE, CAMERA_DONE or GRIPPER_DONE
+	 * @return true if finished, false if still running or the type is unknown
+	 */
+	public boolean isDone(String commandType)
+	{
+		if (commandType.equalsIgnoreCase(Robot.ALL_DONE))
+			return move && camera && gripper;
+		if (commandType.equalsIgnoreCase(Robot.MOVE_DONE))
+			return move;
+		if (commandType.equalsIgnoreCase(Robot.SPEAK_DONE))
+			return speak;
+		if (commandType.equalsIgnoreCase(Robot.CAMERA_DONE))
+			return camera;
+		if (commandType.equalsIgnoreCase(Robot.GRIPPER_DONE))
+			return gripper;
+		return false;
+	}
+
+	/** @return true if movement has finished */
+	public boolean isMoveDone() {return move;}
+
+	/** @return true if speech has finished */
+	public boolean isSpeakDone() {return speak;}
+
+	/** @return true if the camera has finished */
+	public boolean isCameraDone() {return camera;}
+
+	/** @return true if the gripper has finished */
+	public boolean isGripperDone() {return gripper;}
+
+	/** @return true if the robot answered a status query, false if only the client's own queues were checked */
+	public boolean isFromRobot() {return fromRobot;}
+
+	/** @return long - System.nanoTime() the status was taken */
+	public long getTime() {return time;}
+
+	public String toString()
+	{
+		return "Status[move=" + move + ", speak=" + speak + ", camera=" + camera
+				+ ", gripper=" + gripper + (fromRobot ? ", robot" : ", local") + "]";
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private final boolean move;
+	private final boolean speak;
+	private final boolean camera;
+	private final boolean gripper;
+	private final boolean fromRobot;
+	private final long time;
+}
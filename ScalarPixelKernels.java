@@ -0,0 +1,102 @@
+package bcibot;
+
+/**
+ * PixelKernels with plain loops. Always available, and used by the vector
+ * backend for the pixels left over after the last full vector.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	ScalarPixelKernels.java
+ */
+
+class ScalarPixelKernels extends PixelKernels
+{
+	public String getName()
+	{
+		return "scalar";
+	}
+
+	public void toGray(int[] rgb, int[] gray, int count)
+	{
+		toGray(rgb, gray, 0, count);
+	}
+
+	public void threshold(int[] values, int[] mask, int count, int threshold)
+	{
+		threshold(values, mask, 0, count, threshold);
+	}
+
+	public void matchColor(int[] rgb, int[] mask, int count, int color, int tolerance)
+	{
+		matchColor(rgb, mask, 0, count, color, tolerance);
+	}
+
+	public void extractChannel(int[] rgb, int channel, int[] values, int count)
+	{
+		extractChannel(rgb, shift(channel), values, 0, count);
+	}
+
+	public void unpack(int[] rgb, int[] red, int[] green, int[] blue, int count)
+	{
+		unpack(rgb, red, green, blue, 0, count);
+	}
+
+	public void pack(int[] red, int[] green, int[] blue, int[] rgb, int count)
+	{
+		pack(red, green, blue, rgb, 0, count);
+	}
+
+	//**************************************************************************
+	//Loops over a range********************************************************
+	//**************************************************************************
+
+	static void toGray(int[] rgb, int[] gray, int from, int to)
+	{
+		for (int i = from; i < to; i++)
+		{
+			int p = rgb[i];
+			gray[i] = (GRAY_RED * ((p >> 16) & 0xFF) + GRAY_GREEN * ((p >> 8) & 0xFF)
+					+ GRAY_BLUE * (p & 0xFF)) >> 8;
+		}
+	}
+
+	static void threshold(int[] values, int[] mask, int from, int to, int threshold)
+	{
+		for (int i = from; i < to; i++)
+			mask[i] = values[i] >= threshold ? 255 : 0;
+	}
+
+	static void matchColor(int[] rgb, int[] mask, int from, int to, int color, int tolerance)
+	{
+		int r = (color >> 16) & 0xFF, g = (color >> 8) & 0xFF, b = color & 0xFF;
+		for (int i = from; i < to; i++)
+		{
+			int p = rgb[i];
+			mask[i] = Math.abs(((p >> 16) & 0xFF) - r) <= tolerance
+					&& Math.abs(((p >> 8) & 0xFF) - g) <= tolerance
+					&& Math.abs((p & 0xFF) - b) <= tolerance ? 255 : 0;
+		}
+	}
+
+	static void extractChannel(int[] rgb, int shift, int[] values, int from, int to)
+	{
+		for (int i = from; i < to; i++)
+			values[i] = (rgb[i] >> shift) & 0xFF;
+	}
+
+	static void unpack(int[] rgb, int[] red, int[] green, int[] blue, int from, int to)
+	{
+		for (int i = from; i < to; i++)
+		{
+			int p = rgb[i];
+			red[i] = (p >> 16) & 0xFF;
+			green[i] = (p >> 8) & 0xFF;
+			blue[i] = p & 0xFF;
+		}
+	}
+
+	static void pack(int[] red, int[] green, int[] blue, int[] rgb, int from, int to)
+	{
+		for (int i = from; i < to; i++)
+			rgb[i] = (red[i] & 0xFF) << 16 | (green[i] & 0xFF) << 8 | (blue[i] & 0xFF);
+	}
+}
@@ -0,0 +1,335 @@
+package bcibot;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A Flow.Publisher that never lets a slow subscriber hold anything up.
+ *
+ * Each subscriber gets a small buffer of its own and a thread that hands
+ * items over as the subscriber requests them. When a subscriber falls behind
+ * and its buffer is full, the oldest item it has not been given yet is
+ * skipped to make room for the new one. With a buffer of one, a subscriber
+ * always gets the latest item and never a stale backlog, which is what a
+ * vision stage wants from a camera. Nothing is ever queued without bound
+ * and publish never waits.
+ *
+ * A producer that is expensive to run, such as the camera, can call
+ * awaitDemand to do no work while nobody has asked for anything.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	SkippingPublisher.java
+ */
+
+public class SkippingPublisher<T> implements Flow.Publisher<T>
+{
+	/**
+	 * Constructor
+	 * @param _name String - what is published, used to name delivery threads
+	 * @param _capacity int - items buffered per subscriber before the oldest are skipped
+	 * @param _threadMode int - ThreadMode of the delivery threads
+	 */
+	public SkippingPublisher(String _name, int _capacity, int _threadMode)
+	{
+		name = _name;
+		capacity = Math.max(1, _capacity);
+		threadMode = _threadMode;
+	}
+
+	/**
+	 * Adds a subscriber. It is given its Subscription on its own delivery
+	 * thread, and is completed straight away if the publisher is closed.
+	 * @param subscriber Flow.Subscriber - who to deliver to
+	 */
+	public void subscribe(Flow.Subscriber<? super T> subscriber)
+	{
+		if (subscriber == null)
+			throw new NullPointerException("subscriber");
+
+		Slot slot = new Slot(subscriber);
+		boolean open;
+		demandLock.lock();
+		try
+		{
+			open = !closed;
+			if (open)
+				slots.add(slot);
+		}
+		finally {demandLock.unlock();}
+		if (!open)
+			slot.complete();
+		ThreadMode.newThread(threadMode, slot, name + " subscriber", true).start();
+	}
+
+	/**
+	 * Offers an item to every subscriber. Never waits.
+	 * @param item T - the item, not null
+	 */
+	public void publish(T item)
+	{
+		if (item == null)
+			throw new NullPointerException("item");
+		for (Slot slot : slots)
+			slot.offer(item);
+	}
+
+	/**
+	 * Checks whether anyone is subscribed, so producers can skip building
+	 * items nobody will see
+	 * @return true if there is at least one subscriber
+	 */
+	public boolean hasSubscribers()
+	{
+		return !slots.isEmpty();
+	}
+
+	/**
+	 * Checks whether any subscriber has asked for an item it has not got yet
+	 * @return true if an item published now would be delivered
+	 */
+	public boolean hasDemand()
+	{
+		for (Slot slot : slots)
+		{
+			if (slot.wantsMore())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Blocks until some subscriber asks for an item, the publisher is
+	 * closed, or the time runs out
+	 * @param timeoutMillis long - longest to wait, 0 to wait forever
+	 * @return true if there is demand, false otherwise
+	 * @throws InterruptedException - if interrupted while waiting
+	 */
+	public boolean awaitDemand(long timeoutMillis) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		demandLock.lockInterruptibly();
+		try
+		{
+			while (!closed && !hasDemand())
+			{
+				if (timeoutMillis <= 0)
+					demandChanged.await();
+				else
+				{
+					long left = deadline - System.currentTimeMillis();
+					if (left <= 0)
+						return false;
+					demandChanged.await(left, TimeUnit.MILLISECONDS);
+				}
+			}
+			return !closed;
+		}
+		finally {demandLock.unlock();}
+	}
+
+	/**
+	 * Completes every subscriber once it has been given what it asked for
+	 * from its buffer. Items published afterwards are ignored.
+	 */
+	public void close()
+	{
+		demandLock.lock();
+		try
+		{
+			closed = true;
+			demandChanged.signalAll();
+		}
+		finally {demandLock.unlock();}
+		for (Slot slot : slots)
+			slot.complete();
+	}
+
+	/** @return int - current subscribers */
+	public int getSubscriberCount() {return slots.size();}
+
+	/** @return long - items skipped because a subscriber fell behind, over all subscribers */
+	public long getSkippedCount() {return skipped.get();}
+
+	/** @return long - items handed to subscribers */
+	public long getDeliveredCount() {return delivered.get();}
+
+	private void demandChanged()
+	{
+		demandLock.lock();
+		try {demandChanged.signalAll();}
+		finally {demandLock.unlock();}
+	}
+
+	//**************************************************************************
+	//Subscriptions*************************************************************
+	//**************************************************************************
+
+	/**
+	 * One subscriber's buffer, demand and delivery thread
+	 */
+	private class Slot implements Flow.Subscription, Runnable
+	{
+		Slot(Flow.Subscriber<? super T> _subscriber)
+		{
+			subscriber = _subscriber;
+		}
+
+		public void request(long n)
+		{
+			lock.lock();
+			try
+			{
+				if (n <= 0)
+					error = new IllegalArgumentException("request(" + n + "), demand must be positive");
+				else
+					demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;//unbounded once it overflows
+				ready.signal();
+			}
+			finally {lock.unlock();}
+			demandChanged();
+		}
+
+		public void cancel()
+		{
+			lock.lock();
+			try
+			{
+				cancelled = true;
+				items.clear();
+				ready.signal();
+			}
+			finally {lock.unlock();}
+			slots.remove(this);
+			demandChanged();
+		}
+
+		void offer(T item)
+		{
+			lock.lock();
+			try
+			{
+				if (cancelled || completing)
+					return;
+				if (items.size() >= capacity)
+				{
+					items.poll();
+					skipped.incrementAndGet();
+				}
+				items.add(item);
+				ready.signal();
+			}
+			finally {lock.unlock();}
+		}
+
+		void complete()
+		{
+			lock.lock();
+			try
+			{
+				completing = true;
+				ready.signal();
+			}
+			finally {lock.unlock();}
+		}
+
+		boolean wantsMore()
+		{
+			lock.lock();
+			try {return !cancelled && demand > items.size();}
+			finally {lock.unlock();}
+		}
+
+		/**
+		 * The delivery thread: one signal at a time, only as many items as requested
+		 */
+		public void run()
+		{
+			try {subscriber.onSubscribe(this);}
+			catch (Throwable t)
+			{
+				cancel();
+				return;
+			}
+
+			while (true)
+			{
+				T item;
+				Throwable failure;
+				lock.lock();
+				try
+				{
+					while (!cancelled && error == null && (demand == 0 || items.isEmpty()) && !completing)
+						ready.awaitUninterruptibly();
+					if (cancelled)
+						return;
+					failure = error;
+					if (failure == null && (demand == 0 || items.isEmpty()))
+						failure = COMPLETE;//completing, nothing more can be delivered
+					item = failure == null ? items.poll() : null;
+					if (item != null && demand != Long.MAX_VALUE)
+						demand--;
+				}
+				finally {lock.unlock();}
+
+				if (failure != null)
+				{
+					slots.remove(this);
+					try
+					{
+						if (failure == COMPLETE)
+							subscriber.onComplete();
+						else
+							subscriber.onError(failure);
+					}
+					catch (Throwable t) {}
+					return;
+				}
+
+				try
+				{
+					subscriber.onNext(item);
+					delivered.incrementAndGet();
+				}
+				catch (Throwable t)
+				{
+					Log.error(name + " subscriber failed, cancelled: " + t);
+					cancel();
+					return;
+				}
+			}
+		}
+
+		private final Flow.Subscriber<? super T> subscriber;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition ready = lock.newCondition();
+
+		//guarded by lock
+		private final ArrayDeque<T> items = new ArrayDeque<T>();
+		private long demand = 0;
+		private boolean cancelled = false;
+		private boolean completing = false;
+		private Throwable error;
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static final Throwable COMPLETE = new Throwable("complete");
+
+	private final String name;
+	private final int capacity;
+	private final int threadMode;
+	private final CopyOnWriteArrayList<Slot> slots = new CopyOnWriteArrayList<Slot>();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+
+	private final ReentrantLock demandLock = new ReentrantLock();
+	private final Condition demandChanged = demandLock.newCondition();
+	private boolean closed = false;//guarded by demandLock
+}
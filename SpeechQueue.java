@@ -0,0 +1,378 @@
+package bcibot;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Schedules speech for the robot on its own thread, so speaking never blocks
+ * the caller or waits for the robot to stop moving.
+ *
+ * Utterances are spoken in the order they were queued, one at a time. Short
+ * utterances queued back to back are merged into a single speak command, so
+ * a burst of announcements costs one round trip instead of one each. Speech
+ * that has not started yet can be cancelled; only one utterance is ever
+ * handed to the Speak connection at a time, so everything else stays here
+ * where it can still be dropped.
+ *
+ * The queue is bounded like a CommandQueue and takes the same policies:
+ * when it is full a new message waits for room (BLOCK, the default), is
+ * refused with a CommandRejectedException (REJECT), pushes out the oldest
+ * waiting message (DROP_OLDEST), or replaces the newest one (COALESCE).
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	SpeechQueue.java
+ */
+
+public class SpeechQueue
+{
+	/**
+	 * Sends one piece of text to the robot's speech module
+	 */
+	public interface Speaker
+	{
+		/**
+		 * Sends a speak command, returning once it has been handed to the connection
+		 * @param text String - what to say, possibly several merged messages
+		 */
+		void speak(String text);
+	}
+
+	/**
+	 * Constructor, starts the speech thread
+	 * @param _client ArchitectureClient - the client whose Speak connection is waited on
+	 * @param _speaker Speaker - sends each speak command, e.g. through Robot's logging
+	 */
+	public SpeechQueue(ArchitectureClient _client, Speaker _speaker)
+	{
+		client = _client;
+		speaker = _speaker;
+
+		client.startThread(new Runnable()
+		{
+			public void run()
+			{
+				speakLoop();
+			}
+		}, "Speech queue");
+	}
+
+	/**
+	 * Changes the capacity and overflow policy. Messages already queued stay.
+	 * @param _capacity int - most messages held, at least 1
+	 * @param _policy int - CommandQueue.BLOCK, REJECT, DROP_OLDEST or COALESCE
+	 */
+	public void setLimits(int _capacity, int _policy)
+	{
+		if (_policy < CommandQueue.BLOCK || _policy > CommandQueue.COALESCE)
+			throw new IllegalArgumentException("Unknown queue policy " + _policy);
+		lock.lock();
+		try
+		{
+			capacity = Math.max(1, _capacity);
+			policy = _policy;
+			changed.signalAll();
+		}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Queues a message to be spoken. Returns immediately unless the queue
+	 * is full and its policy is BLOCK. A message still waiting for room when
+	 * the caller is interrupted is not queued.
+	 * @param message String - what to say
+	 * @throws CommandRejectedException - if full and the policy is REJECT
+	 */
+	public void say(String message)
+	{
+		if (message == null || message.trim().length() == 0)
+			return;
+
+		lock.lock();
+		try
+		{
+			while (!closed && pending.size() >= capacity)
+			{
+				if (policy == CommandQueue.REJECT)
+				{
+					rejected++;
+					throw new CommandRejectedException(message, capacity);
+				}
+				if (policy == CommandQueue.DROP_OLDEST)
+				{
+					pending.poll();
+					dropped++;
+					continue;
+				}
+				if (policy == CommandQueue.COALESCE)
+				{
+					pending.pollLast();
+					dropped++;
+					continue;
+				}
+				try {changed.await();}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			if (closed)
+				return;
+			pending.add(message.trim());
+			changed.signalAll();
+		}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Drops every message that has not started to be spoken.
+	 * The message being spoken, if any, still finishes.
+	 * @return int - number of messages dropped
+	 */
+	public int cancelPending()
+	{
+		lock.lock();
+		try
+		{
+			int dropped = pending.size();
+			pending.clear();
+			changed.signalAll();
+			return dropped;
+		}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Replaces whatever is waiting to be spoken with a new message
+	 * @param message String - what to say next
+	 * @return int - number of messages dropped
+	 */
+	public int interrupt(String message)
+	{
+		lock.lock();
+		try
+		{
+			int dropped = cancelPending();
+			say(message);
+			return dropped;
+		}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Checks whether all queued speech has been spoken
+	 * @return true if nothing is waiting or being spoken
+	 */
+	public boolean isIdle()
+	{
+		lock.lock();
+		try {return pending.isEmpty() && !speaking;}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Blocks until all queued speech has been spoken
+	 * @throws InterruptedException - if interrupted while waiting
+	 */
+	public void awaitIdle() throws InterruptedException
+	{
+		awaitIdle(0);
+	}
+
+	/**
+	 * Blocks until all queued speech has been spoken or the time runs out
+	 * @param timeoutMillis long - longest to wait, 0 to wait forever
+	 * @return true if idle, false if the wait timed out
+	 * @throws InterruptedException - if interrupted while waiting
+	 */
+	public boolean awaitIdle(long timeoutMillis) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		lock.lockInterruptibly();
+		try
+		{
+			while (!isIdle() && !closed)
+			{
+				if (timeoutMillis <= 0)
+					changed.await();
+				else
+				{
+					long left = deadline - System.currentTimeMillis();
+					if (left <= 0)
+						return false;
+					changed.await(left, TimeUnit.MILLISECONDS);
+				}
+			}
+			return true;
+		}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Number of messages waiting to be spoken
+	 * @return int - queued messages
+	 */
+	public int getPendingCount()
+	{
+		lock.lock();
+		try {return pending.size();}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Number of messages pushed out of the queue by DROP_OLDEST or COALESCE
+	 * @return long - messages dropped
+	 */
+	public long getDroppedCount()
+	{
+		lock.lock();
+		try {return dropped;}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Number of messages refused by REJECT, here or by the Speak connection
+	 * @return long - messages rejected
+	 */
+	public long getRejectedCount()
+	{
+		lock.lock();
+		try {return rejected;}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Number of speak commands sent, each possibly several merged messages
+	 * @return long - speak commands sent
+	 */
+	public long getSpokenCount()
+	{
+		lock.lock();
+		try {return spoken;}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Drops pending speech and stops the speech thread
+	 */
+	public void close()
+	{
+		lock.lock();
+		try
+		{
+			closed = true;
+			pending.clear();
+			changed.signalAll();
+		}
+		finally {lock.unlock();}
+	}
+
+	//**************************************************************************
+	//Speech Thread*************************************************************
+	//**************************************************************************
+
+	private void speakLoop()
+	{
+		try
+		{
+			while (true)
+			{
+				String text;
+				lock.lockInterruptibly();
+				try
+				{
+					while (pending.isEmpty() && !closed)
+						changed.await();
+					if (closed)
+						return;
+					text = nextBatch();
+					speaking = true;
+					changed.signalAll();//room for a blocked caller
+				}
+				finally {lock.unlock();}
+
+				boolean sent = false, refused = false;
+				try
+				{
+					speaker.speak(text);
+					sent = true;
+					client.waitForSPEAK_DONE();
+				}
+				catch (CommandRejectedException e)
+				{
+					//the Speak connection is full; drop this one and carry on
+					refused = true;
+					Log.error("Speech dropped: " + e.getMessage());
+				}
+				catch (RuntimeException e)
+				{
+					Log.error("Speech error: " + e);
+				}
+				finally
+				{
+					lock.lock();
+					try
+					{
+						speaking = false;
+						if (sent)
+							spoken++;
+						if (refused)
+							rejected++;
+						changed.signalAll();
+					}
+					finally {lock.unlock();}
+				}
+			}
+		}
+		catch (InterruptedException e) {}
+	}
+
+	/**
+	 * Takes the next message off the queue, merged with any short messages
+	 * queued right behind it
+	 */
+	private String nextBatch()
+	{
+		String first = pending.poll();
+		if (first.length() >= SHORT_MESSAGE)
+			return first;
+
+		StringBuilder text = new StringBuilder(first);
+		while (!pending.isEmpty())
+		{
+			String next = pending.peek();
+			if (next.length() >= SHORT_MESSAGE || text.length() + next.length() + 2 > MAX_BATCH)
+				break;
+
+			char last = text.charAt(text.length() - 1);
+			text.append(last == '.' || last == ',' || last == '!' || last == '?' ? " " : ", ");
+			text.append(pending.poll());
+		}
+		return text.toString();
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static final int SHORT_MESSAGE = 40;//characters, shorter messages are merged
+	private static final int MAX_BATCH = 160;//characters in one merged speak command
+
+	private final ArchitectureClient client;
+	private final Speaker speaker;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+
+	//guarded by lock
+	private final ArrayDeque<String> pending = new ArrayDeque<String>();
+	private int capacity = CommandQueue.DEFAULT_CAPACITY;
+	private int policy = CommandQueue.BLOCK;
+	private boolean speaking = false;
+	private boolean closed = false;
+	private long spoken = 0;
+	private long dropped = 0;
+	private long rejected = 0;
+}
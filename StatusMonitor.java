@@ -0,0 +1,374 @@
+package bcibot;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Answers "has this module finished?" for any number of threads at once.
+ *
+ * Two sources are combined. The client's own done flags say whether a
+ * connection still has commands queued or in flight, and are free to read.
+ * The robot's status port, when the architecture provides one, says whether
+ * the module itself is still busy, for example whether the wheels are still
+ * turning after a move was acknowledged. A module is done only when both
+ * agree.
+ *
+ * Queries to the robot are coalesced: while one is in flight every other
+ * caller waits for its answer instead of sending its own, and an answer is
+ * reused until it is older than the caller allows. The robot is only asked
+ * once the client has nothing left queued for the module, and waiters sleep
+ * on the client's done flags rather than polling them.
+ *
+ * If the status port cannot be reached the local flags are used alone.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	StatusMonitor.java
+ */
+
+public class StatusMonitor
+{
+	/**
+	 * Constructor, does not connect until the first query
+	 * @param _client ArchitectureClient - the client whose flags are read
+	 * @param _address String - IP of the robot
+	 * @param _port int - the robot's status port
+	 */
+	public StatusMonitor(ArchitectureClient _client, String _address, int _port)
+	{
+		client = _client;
+		address = _address;
+		port = _port;
+	}
+
+	/**
+	 * Current status, reusing an answer from the robot up to the poll interval old
+	 * @return RobotStatus - the status
+	 */
+	public RobotStatus getStatus()
+	{
+		return getStatus(pollInterval);
+	}
+
+	/**
+	 * Current status
+	 * @param maxAgeMillis long - oldest answer from the robot that may be reused
+	 * @return RobotStatus - the status
+	 */
+	public RobotStatus getStatus(long maxAgeMillis)
+	{
+		boolean move = client.isMOVE_DONE();
+		boolean speak = client.isSPEAK_DONE();
+		boolean camera = client.isCAMERA_DONE();
+		boolean gripper = client.isGRIPPER_DONE();
+
+		boolean[] remote = remoteStatus(maxAgeMillis * 1000000L);
+		if (remote == null)
+			return new RobotStatus(move, speak, camera, gripper, false, System.nanoTime());
+
+		return new RobotStatus(move && remote[MOVE], speak && remote[SPEAK],
+				camera && remote[CAMERA], gripper && remote[GRIPPER], true, System.nanoTime());
+	}
+
+	/**
+	 * Checks whether a type of command has finished
+	 * @param commandType String - Robot.ALL_DONE, MOVE_DONE, SPEAK_DONE, CAMERA_DONE or GRIPPER_DONE
+	 * @return true if finished
+	 */
+	public boolean isDone(String commandType)
+	{
+		//only bother the robot when nothing is queued locally
+		if (!localStatus().isDone(commandType))
+			return false;
+		return getStatus().isDone(commandType);
+	}
+
+	/**
+	 * Blocks until a type of command has finished
+	 * @param commandType String - Robot.ALL_DONE, MOVE_DONE, SPEAK_DONE, CAMERA_DONE or GRIPPER_DONE
+	 * @param timeoutMillis long - longest to wait, 0 to wait forever
+	 * @return true if finished, false if the wait timed out
+	 * @throws InterruptedException - if interrupted while waiting
+	 */
+	public boolean await(String commandType, long timeoutMillis) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (true)
+		{
+			if (isDone(commandType))
+				return true;
+
+			long wait = pollInterval;
+			if (timeoutMillis > 0)
+			{
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0)
+					return false;
+				wait = Math.min(wait, left);
+			}
+			//woken early by any done flag changing
+			client.awaitStatusChange(wait);
+		}
+	}
+
+	/**
+	 * Sets how often waiters ask the robot while its queues are empty,
+	 * which is also how long an answer is shared between callers
+	 * @param millis long - the interval
+	 */
+	public void setPollInterval(long millis)
+	{
+		pollInterval = Math.max(1, millis);
+	}
+
+	/**
+	 * Checks whether the robot's status port is being used
+	 * @return true until a connection to it has failed
+	 */
+	public boolean isQueryAvailable()
+	{
+		return available;
+	}
+
+	/**
+	 * Number of status queries actually sent to the robot
+	 * @return long - queries sent
+	 */
+	public long getQueryCount()
+	{
+		lock.lock();
+		try {return queries;}
+		finally {lock.unlock();}
+	}
+
+	/**
+	 * Closes the connection to the status port. A query in flight fails
+	 * at once and its callers fall back to the local flags.
+	 */
+	public void close()
+	{
+		lock.lock();
+		try
+		{
+			available = false;
+			//only the socket: the querying thread may be using the streams
+			if (socket != null)
+			{
+				try {socket.close();}
+				catch (IOException e) {}
+			}
+			answered.signalAll();
+		}
+		finally {lock.unlock();}
+	}
+
+	//**************************************************************************
+	//Robot Queries*************************************************************
+	//**************************************************************************
+
+	private RobotStatus localStatus()
+	{
+		return new RobotStatus(client.isMOVE_DONE(), client.isSPEAK_DONE(),
+				client.isCAMERA_DONE(), client.isGRIPPER_DONE(), false, System.nanoTime());
+	}
+
+	/**
+	 * The robot's own view, shared between concurrent callers
+	 * @return boolean[] - done flags indexed MOVE, SPEAK, CAMERA, GRIPPER, or null if unavailable
+	 */
+	private boolean[] remoteStatus(long maxAgeNanos)
+	{
+		lock.lock();
+		try
+		{
+			while (true)
+			{
+				if (!available)
+					return null;
+				if (cached != null && System.nanoTime() - cachedTime <= maxAgeNanos)
+					return cached;
+				if (!querying)
+					break;
+				try {answered.await();}//someone else's query will answer for us
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					return cached;
+				}
+			}
+			querying = true;
+			queries++;
+		}
+		finally {lock.unlock();}
+
+		boolean[] result = null;
+		try {result = query();}
+		finally
+		{
+			lock.lock();
+			try
+			{
+				if (result != null)
+				{
+					cached = result;
+					cachedTime = System.nanoTime();
+				}
+				querying = false;
+				answered.signalAll();
+			}
+			finally {lock.unlock();}
+		}
+		return result;
+	}
+
+	/**
+	 * Sends one STATUS query. Called by one thread at a time, but close()
+	 * may run at any moment, so the streams are read into locals under the
+	 * lock and a closed monitor reads as unavailable.
+	 */
+	private boolean[] query()
+	{
+		PrintWriter out;
+		BufferedReader in;
+		lock.lock();
+		try
+		{
+			if (!available)
+				return null;
+			out = this.out;
+			in = this.in;
+		}
+		finally {lock.unlock();}
+
+		try
+		{
+			if (out == null || in == null)
+			{
+				Socket s = new Socket();
+				s.connect(new InetSocketAddress(address, port), QUERY_TIMEOUT);
+				s.setSoTimeout(QUERY_TIMEOUT);
+				s.setTcpNoDelay(true);
+				out = new PrintWriter(s.getOutputStream(), true);
+				in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+
+				lock.lock();
+				try
+				{
+					if (!available)
+					{
+						s.close();//closed while connecting
+						return null;
+					}
+					socket = s;
+					this.out = out;
+					this.in = in;
+				}
+				finally {lock.unlock();}
+			}
+
+			out.println(STATUS);
+			String reply = in.readLine();
+			if (reply == null)
+				throw new IOException("status connection closed");
+
+			boolean[] result = parse(reply);
+			if (result == null)
+				giveUp("unrecognised status reply: " + reply);
+			return result;
+		}
+		catch (IOException e)
+		{
+			if (available)
+				giveUp(e.toString());
+			else
+				giveUp(null);//closed, nothing to report
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the four done flags, in the order move, speak, camera, gripper
+	 * @return boolean[] - the flags, or null if the reply has fewer than four
+	 */
+	static boolean[] parse(String reply)
+	{
+		boolean[] result = new boolean[4];
+		int found = 0;
+		for (String word : reply.trim().split("[\\s,;]+"))
+		{
+			if (found == 4)
+				break;
+			String w = word.toLowerCase();
+			if (w.equals("true") || w.equals("1") || w.equals("done") || w.equals("idle"))
+				result[found++] = true;
+			else if (w.equals("false") || w.equals("0") || w.equals("busy"))
+				result[found++] = false;
+		}
+		return found == 4 ? result : null;
+	}
+
+	private void giveUp(String reason)
+	{
+		lock.lock();
+		try
+		{
+			disconnect();
+			available = false;
+		}
+		finally {lock.unlock();}
+		if (reason != null && Log.isEnabled(Log.INFO))
+			Log.info("Robot status port " + port + " not used (" + reason + "), using local completion flags");
+	}
+
+	private void disconnect()
+	{
+		if (socket != null)
+		{
+			try {socket.close();}
+			catch (IOException e) {}
+		}
+		socket = null;
+		out = null;
+		in = null;
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static final String STATUS = "STATUS";
+	private static final int QUERY_TIMEOUT = 2000;//ms
+	private static final long DEFAULT_POLL_INTERVAL = 50;//ms
+
+	private static final int MOVE = 0;
+	private static final int SPEAK = 1;
+	private static final int CAMERA = 2;
+	private static final int GRIPPER = 3;
+
+	private final ArchitectureClient client;
+	private final String address;
+	private final int port;
+	private volatile long pollInterval = DEFAULT_POLL_INTERVAL;
+	private volatile boolean available = true;
+
+	//guarded by lock, the streams only used by the thread holding the query
+	private Socket socket;
+	private PrintWriter out;
+	private BufferedReader in;
+
+	//a lock rather than a monitor, so virtual threads waiting for another's
+	//query park instead of pinning their carrier
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition answered = lock.newCondition();
+
+	//guarded by lock
+	private boolean[] cached;
+	private long cachedTime;
+	private boolean querying = false;
+	private long queries = 0;
+}
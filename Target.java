@@ -0,0 +1,42 @@
+package bcibot;
+
+/**
+ * Where a TargetDetector found its target in a picture.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	Target.java
+ */
+
+public class Target
+{
+	/**
+	 * Constructor
+	 * @param _offset double - horizontal position, -1.0 at the left edge of the
+	 *                         full frame, 0.0 in the middle, 1.0 at the right edge
+	 * @param _size double - how big the target looks, as a fraction of the frame
+	 *                       width; grows as the robot gets closer
+	 */
+	public Target(double _offset, double _size)
+	{
+		offset = _offset;
+		size = _size;
+	}
+
+	/** @return double - horizontal position, -1.0 (left) to 1.0 (right) */
+	public double getOffset() {return offset;}
+
+	/** @return double - apparent size as a fraction of the frame width */
+	public double getSize() {return size;}
+
+	public String toString()
+	{
+		return "Target[offset=" + offset + ", size=" + size + "]";
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private final double offset;
+	private final double size;
+}
@@ -0,0 +1,19 @@
+package bcibot;
+
+/**
+ * Finds a target in a picture for VisualServoController.
+ * Called on the controller's thread once per control cycle.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	TargetDetector.java
+ */
+
+public interface TargetDetector
+{
+	/**
+	 * Looks for the target
+	 * @param picture Picture - the latest picture from the robot
+	 * @return Target - where the target is, or null if it is not in the picture
+	 */
+	public Target detect(Picture picture);
+}
@@ -0,0 +1,269 @@
+package bcibot;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples battery and connection health at a fixed rate into TimeSeriesRings,
+ * so a long mission's battery curve and link quality can be looked at, or
+ * summarised, without storing every reading.
+ *
+ * Each tick asks the battery module for its state on the Battery connection
+ * (unless the last question is still unanswered) and reads the health of
+ * every connection from counters the connections already keep, which costs
+ * nothing on the robot. Battery replies arrive through
+ * ArchitectureClient.responseReceived and are parsed for a voltage and a
+ * motor current, either labelled ("battery 12.4 current 1.3") or as the
+ * first two numbers on the line.
+ *
+ * Each series holds the last 3600 raw samples, an hour at 1Hz, and a day
+ * of minute summaries at whatever rate it is sampled, in fixed memory.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	TelemetrySampler.java
+ */
+
+public class TelemetrySampler
+{
+	/**
+	 * Constructor, does not sample until started
+	 * @param _client ArchitectureClient - the client to sample
+	 * @param _query String - routed command that asks the battery module for its state
+	 */
+	public TelemetrySampler(ArchitectureClient _client, String _query)
+	{
+		client = _client;
+		query = _query;
+		client.setTelemetry(this);
+	}
+
+	/**
+	 * Starts sampling. Restarts at the new rate if already running.
+	 * Summaries stay a minute long, so a minute of samples at the new rate
+	 * goes into each from then on.
+	 * @param hz double - samples per second
+	 * @throws IllegalArgumentException - if hz is not a positive number
+	 */
+	public synchronized void start(double hz)
+	{
+		if (!(hz > 0) || Double.isInfinite(hz))
+			throw new IllegalArgumentException("Telemetry rate must be a positive number of Hz, not " + hz);
+		stop();
+		if (executor == null)
+		{
+			executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					return ThreadMode.newThread(client.getThreadMode(), r, "Telemetry", true);
+				}
+			});
+		}
+
+		period = Math.max(1, (long)(1000000000L / hz));
+		int rollup = (int)Math.max(1, Math.min(Integer.MAX_VALUE, Math.round(ROLLUP_SECONDS * hz)));
+		TimeSeriesRing[] all = {voltage, current, latency, queueDepth, errors, timeouts, connected};
+		for (TimeSeriesRing series : all)
+			series.setRollup(rollup);
+		task = executor.scheduleAtFixedRate(new Runnable()
+		{
+			public void run()
+			{
+				try {sample();}
+				catch (RuntimeException e) {Log.error("Telemetry error: " + e);}
+			}
+		}, 0, period, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Stops sampling. The series keep what they hold.
+	 */
+	public synchronized void stop()
+	{
+		if (task != null)
+			task.cancel(false);
+		task = null;
+	}
+
+	/**
+	 * Checks whether sampling is running
+	 * @return true if started and not stopped
+	 */
+	public synchronized boolean isRunning()
+	{
+		return task != null;
+	}
+
+	/** @return TimeSeriesRing - battery voltage reported by the robot */
+	public TimeSeriesRing getVoltage() {return voltage;}
+
+	/** @return TimeSeriesRing - motor current reported by the robot */
+	public TimeSeriesRing getCurrent() {return current;}
+
+	/** @return TimeSeriesRing - slowest last round trip of any connection, in ms */
+	public TimeSeriesRing getLatency() {return latency;}
+
+	/** @return TimeSeriesRing - commands queued on all connections */
+	public TimeSeriesRing getQueueDepth() {return queueDepth;}
+
+	/** @return TimeSeriesRing - errors reported by all connections so far */
+	public TimeSeriesRing getErrors() {return errors;}
+
+	/** @return TimeSeriesRing - commands the robot did not answer in time, so far */
+	public TimeSeriesRing getTimeouts() {return timeouts;}
+
+	/** @return TimeSeriesRing - connections with an open socket */
+	public TimeSeriesRing getConnected() {return connected;}
+
+	//**************************************************************************
+	//Sampling******************************************************************
+	//**************************************************************************
+
+	/**
+	 * One tick: ask for the battery and read connection health
+	 */
+	private void sample()
+	{
+		long now = System.nanoTime();
+
+		//never pile questions up behind a slow or missing battery module
+		Connection battery = client.getConnection("Battery");
+		if ((battery == null || battery.isConnected())
+				&& (!awaitingReply || now - querySent > REPLY_TIMEOUT_PERIODS * period))
+		{
+			awaitingReply = true;
+			querySent = now;
+			client.sendCommand(query);
+		}
+
+		double slowest = 0;
+		int queued = 0;
+		long errorCount = 0;
+		long timeoutCount = 0;
+		int open = 0;
+		for (int i = 0; i < CONNECTIONS.length; i++)
+		{
+			Connection c = client.getConnection(CONNECTIONS[i]);
+			if (c == null)
+				continue;
+			slowest = Math.max(slowest, c.getLastRoundTripNanos() / 1000000.0);
+			queued += c.getPendingCount();
+			errorCount += c.getErrorCount();
+			timeoutCount += c.getTimeoutCount();
+			if (c.isConnected())
+				open++;
+		}
+		latency.add(now, slowest);
+		queueDepth.add(now, queued);
+		errors.add(now, errorCount);
+		timeouts.add(now, timeoutCount);
+		connected.add(now, open);
+	}
+
+	/**
+	 * Handles a line from the Battery connection
+	 * @param line String - the line received
+	 */
+	void batteryReply(String line)
+	{
+		String l = line.trim().toLowerCase();
+		if (l.length() == 0 || l.equals("ok"))
+			return;
+		awaitingReply = false;
+
+		double volts = numberAfter(l, "volt");
+		if (Double.isNaN(volts))
+			volts = numberAfter(l, "battery");
+		double amps = numberAfter(l, "current");
+		if (Double.isNaN(amps))
+			amps = numberAfter(l, "amp");
+
+		if (Double.isNaN(volts) && Double.isNaN(amps))
+		{
+			//unlabelled: voltage then current
+			int end = numberEnd(l, firstDigit(l, 0));
+			volts = numberAfter(l, "");
+			if (end >= 0)
+				amps = numberAfter(l.substring(end), "");
+		}
+
+		long now = System.nanoTime();
+		if (!Double.isNaN(volts))
+			voltage.add(now, volts);
+		if (!Double.isNaN(amps))
+			current.add(now, amps);
+	}
+
+	/**
+	 * First number after a label
+	 * @return double - the number, or NaN if there is none
+	 */
+	private static double numberAfter(String line, String label)
+	{
+		int at = line.indexOf(label);
+		if (at < 0)
+			return Double.NaN;
+
+		int i = firstDigit(line, at + label.length());
+		if (i < 0)
+			return Double.NaN;
+		int start = (i > 0 && line.charAt(i - 1) == '-') ? i - 1 : i;
+		try {return Double.parseDouble(line.substring(start, numberEnd(line, i)));}
+		catch (NumberFormatException e) {return Double.NaN;}
+	}
+
+	/**
+	 * Index just past the number starting at a digit
+	 * @return int - the end, or -1 if there is no number
+	 */
+	private static int numberEnd(String line, int digit)
+	{
+		if (digit < 0)
+			return -1;
+		int end = digit;
+		while (end < line.length() && (Character.isDigit(line.charAt(end)) || line.charAt(end) == '.'))
+			end++;
+		return end;
+	}
+
+	private static int firstDigit(String line, int from)
+	{
+		for (int i = from; i < line.length(); i++)
+		{
+			if (Character.isDigit(line.charAt(i)))
+				return i;
+		}
+		return -1;
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static final String[] CONNECTIONS = {"Move", "Speak", "Gripper", "Camera", "Battery"};
+	private static final int RAW_SAMPLES = 3600;//an hour at 1Hz
+	private static final int ROLLUP = 60;//raw samples per summary until started, a minute at 1Hz
+	private static final double ROLLUP_SECONDS = 60;//length of each summary
+	private static final int ROLLUP_SAMPLES = 1440;//a day of minutes
+	private static final int REPLY_TIMEOUT_PERIODS = 5;//ticks before asking again without a reply
+
+	private final ArchitectureClient client;
+	private final String query;
+	private ScheduledExecutorService executor;
+	private ScheduledFuture<?> task;
+	private volatile long period = 1000000000L;
+
+	private volatile boolean awaitingReply = false;
+	private volatile long querySent;
+
+	private final TimeSeriesRing voltage = new TimeSeriesRing("voltage", RAW_SAMPLES, ROLLUP, ROLLUP_SAMPLES);
+	private final TimeSeriesRing current = new TimeSeriesRing("current", RAW_SAMPLES, ROLLUP, ROLLUP_SAMPLES);
+	private final TimeSeriesRing latency = new TimeSeriesRing("latency", RAW_SAMPLES, ROLLUP, ROLLUP_SAMPLES);
+	private final TimeSeriesRing queueDepth = new TimeSeriesRing("queue depth", RAW_SAMPLES, ROLLUP, ROLLUP_SAMPLES);
+	private final TimeSeriesRing errors = new TimeSeriesRing("errors", RAW_SAMPLES, ROLLUP, ROLLUP_SAMPLES);
+	private final TimeSeriesRing timeouts = new TimeSeriesRing("timeouts", RAW_SAMPLES, ROLLUP, ROLLUP_SAMPLES);
+	private final TimeSeriesRing connected = new TimeSeriesRing("connected", RAW_SAMPLES, ROLLUP, ROLLUP_SAMPLES);
+}
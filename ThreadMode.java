@@ -0,0 +1,141 @@
+package bcibot;
+
+import java.lang.reflect.Method;
+
+/**
+ * Chooses what kind of thread a client runs its blocking work on: the
+ * Connection senders and readers, the speech queue, completion waiters,
+ * event delivery, telemetry, the visual servo loop and the recorders.
+ *
+ * PLATFORM  ordinary threads, one operating system thread each (the default)
+ * VIRTUAL   virtual threads, which park instead of holding an operating system
+ *           thread while they wait on a socket or a lock, so hundreds of
+ *           robot sessions, real or simulated, fit in one JVM
+ *
+ * Virtual threads need Java 21. They are looked up when first asked for, so
+ * the client still builds and runs on older JVMs, where VIRTUAL falls back
+ * to platform threads.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	ThreadMode.java
+ */
+
+public final class ThreadMode
+{
+	private ThreadMode() {}
+
+	/**
+	 * Checks whether this JVM can start virtual threads
+	 * @return true on Java 21 or later
+	 */
+	public static boolean isVirtualAvailable()
+	{
+		return Virtual.BUILDER != null;
+	}
+
+	/**
+	 * Creates an unstarted thread. Virtual threads are always daemons, so in
+	 * VIRTUAL mode the JVM can exit with commands still queued: close the
+	 * client before main returns.
+	 * @param mode int - PLATFORM or VIRTUAL
+	 * @param task Runnable - what the thread runs
+	 * @param name String - the thread's name
+	 * @param daemon boolean - whether a platform thread is a daemon
+	 * @return Thread - the thread, not started
+	 */
+	static Thread newThread(int mode, Runnable task, String name, boolean daemon)
+	{
+		if (mode == VIRTUAL && Virtual.BUILDER != null)
+		{
+			try
+			{
+				Object builder = Virtual.OF_VIRTUAL.invoke(null);
+				builder = Virtual.NAME.invoke(builder, name);
+				return (Thread)Virtual.UNSTARTED.invoke(builder, task);
+			}
+			catch (Exception e)
+			{
+				Log.error("Could not create virtual thread " + name + ": " + e);
+			}
+		}
+
+		Thread t = new Thread(task, name);
+		t.setDaemon(daemon);
+		return t;
+	}
+
+	/**
+	 * Checks a mode constant
+	 * @param mode int - the value to check
+	 * @return int - the mode, VIRTUAL only if it is available
+	 * @throws IllegalArgumentException - if mode is not a mode constant
+	 */
+	static int validate(int mode)
+	{
+		if (mode != PLATFORM && mode != VIRTUAL)
+			throw new IllegalArgumentException("Unknown thread mode " + mode);
+		if (mode == VIRTUAL && !isVirtualAvailable())
+		{
+			if (Log.isEnabled(Log.INFO))
+				Log.info("Virtual threads need Java 21, using platform threads");
+			return PLATFORM;
+		}
+		return mode;
+	}
+
+	/**
+	 * Name of a mode constant, for printing
+	 * @param mode int - a mode constant
+	 * @return String - its name
+	 */
+	public static String modeName(int mode)
+	{
+		switch (mode)
+		{
+			case PLATFORM: return "platform";
+			case VIRTUAL: return "virtual";
+			default: return "unknown";
+		}
+	}
+
+	/**
+	 * Thread.ofVirtual() and its builder, found by reflection the first time
+	 * virtual threads are asked for
+	 */
+	private static class Virtual
+	{
+		static final Class<?> BUILDER;
+		static final Method OF_VIRTUAL;
+		static final Method NAME;
+		static final Method UNSTARTED;
+
+		static
+		{
+			Class<?> builder = null;
+			Method ofVirtual = null, name = null, unstarted = null;
+			try
+			{
+				builder = Class.forName("java.lang.Thread$Builder");
+				ofVirtual = Thread.class.getMethod("ofVirtual");
+				name = builder.getMethod("name", String.class);
+				unstarted = builder.getMethod("unstarted", Runnable.class);
+			}
+			catch (Exception e)
+			{
+				builder = null;//older JVM
+			}
+			BUILDER = builder;
+			OF_VIRTUAL = ofVirtual;
+			NAME = name;
+			UNSTARTED = unstarted;
+		}
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	//MODE CONSTANTS
+	public static final int PLATFORM = 0;
+	public static final int VIRTUAL = 1;
+}
@@ -0,0 +1,189 @@
+package bcibot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed size, time-indexed ring buffer. Entries are added in time order and
+ * the oldest entry is overwritten once the buffer is full. Lookups binary
+ * search the primitive time array, so finding the entry nearest to a time
+ * costs O(log n) and no allocation.
+ *
+ * Times are System.nanoTime() values.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	TimeRingBuffer.java
+ */
+
+public class TimeRingBuffer<T>
+{
+	/**
+	 * Constructor, creates an empty buffer
+	 * @param capacity int - most entries kept
+	 */
+	public TimeRingBuffer(int capacity)
+	{
+		times = new long[capacity];
+		values = new Object[capacity];
+	}
+
+	/**
+	 * Adds an entry. A time earlier than the newest entry is moved up to it,
+	 * so the buffer always stays sorted.
+	 * @param time long - System.nanoTime() of the entry
+	 * @param value T - the entry
+	 * @return T - the entry that was overwritten, or null if the buffer was not full
+	 */
+	public synchronized T add(long time, T value)
+	{
+		if (values.length == 0)
+			return value;
+
+		if (size > 0 && time < times[slot(size - 1)])
+			time = times[slot(size - 1)];
+
+		T evicted = null;
+		int slot;
+		if (size < values.length)
+			slot = slot(size++);
+		else
+		{
+			slot = start;
+			evicted = get(slot);
+			start = (start + 1) % values.length;
+		}
+		times[slot] = time;
+		values[slot] = value;
+		return evicted;
+	}
+
+	/**
+	 * Finds the entry closest in time
+	 * @param time long - System.nanoTime() to look for
+	 * @return T - the nearest entry, or null if empty
+	 */
+	public synchronized T nearest(long time)
+	{
+		if (size == 0)
+			return null;
+
+		int i = search(time);//first entry at or after time
+		if (i == size)
+			return get(slot(size - 1));
+		if (i > 0 && time - times[slot(i - 1)] <= times[slot(i)] - time)
+			return get(slot(i - 1));
+		return get(slot(i));
+	}
+
+	/**
+	 * Finds the latest entry at or before a time, e.g. the command that was
+	 * in effect at that moment
+	 * @param time long - System.nanoTime() to look for
+	 * @return T - the entry, or null if every entry is later
+	 */
+	public synchronized T floor(long time)
+	{
+		int i = search(time);
+		if (i < size && times[slot(i)] == time)
+			return get(slot(i));
+		return i == 0 ? null : get(slot(i - 1));
+	}
+
+	/**
+	 * The most recently added entry
+	 * @return T - the newest entry, or null if empty
+	 */
+	public synchronized T latest()
+	{
+		return size == 0 ? null : get(slot(size - 1));
+	}
+
+	/**
+	 * Time of the entry found by the same rules as nearest()
+	 * @param time long - System.nanoTime() to look for
+	 * @return long - time of the nearest entry, or -1 if empty
+	 */
+	public synchronized long nearestTime(long time)
+	{
+		if (size == 0)
+			return -1;
+
+		int i = search(time);
+		if (i == size)
+			return times[slot(size - 1)];
+		if (i > 0 && time - times[slot(i - 1)] <= times[slot(i)] - time)
+			return times[slot(i - 1)];
+		return times[slot(i)];
+	}
+
+	/**
+	 * Number of entries held
+	 * @return int - entry count
+	 */
+	public synchronized int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Removes every entry and returns them, e.g. to recycle what they hold
+	 * @return List - the entries, oldest first
+	 */
+	public synchronized List<T> drain()
+	{
+		ArrayList<T> entries = new ArrayList<T>(size);
+		for (int i = 0; i < size; i++)
+			entries.add(get(slot(i)));
+		clear();
+		return entries;
+	}
+
+	/**
+	 * Removes every entry
+	 */
+	public synchronized void clear()
+	{
+		for (int i = 0; i < values.length; i++)
+			values[i] = null;
+		size = 0;
+		start = 0;
+	}
+
+	/**
+	 * Binary search over entries in time order
+	 * @return int - logical index of the first entry at or after time, size if none
+	 */
+	private int search(long time)
+	{
+		int lo = 0, hi = size;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (times[slot(mid)] < time)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	private int slot(int index)
+	{
+		return (start + index) % values.length;
+	}
+
+	@SuppressWarnings("unchecked")
+	private T get(int slot)
+	{
+		return (T)values[slot];
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private final long[] times;
+	private final Object[] values;
+	private int start = 0;
+	private int size = 0;
+}
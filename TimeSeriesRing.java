@@ -0,0 +1,361 @@
+package bcibot;
+
+/**
+ * Fixed memory time series of doubles. Recent samples are kept as they are
+ * in a ring of primitive arrays; every few samples are also rolled up into a
+ * second, coarser ring holding the minimum, maximum and mean of each group,
+ * so hours of history fit in the same fixed footprint as minutes of raw data.
+ *
+ * summarize() reduces any time range to a set number of buckets, reading the
+ * raw ring where it still covers the range and the rolled up ring where it
+ * does not. Nothing is allocated per sample.
+ *
+ * Times are System.nanoTime() values and must be added in order.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	TimeSeriesRing.java
+ */
+
+public class TimeSeriesRing
+{
+	/**
+	 * Constructor, creates an empty series
+	 * @param _name String - what is being measured, for printing
+	 * @param capacity int - raw samples kept
+	 * @param _rollup int - raw samples per rolled up entry
+	 * @param rollupCapacity int - rolled up entries kept
+	 */
+	public TimeSeriesRing(String _name, int capacity, int _rollup, int rollupCapacity)
+	{
+		name = _name;
+		times = new long[capacity];
+		values = new double[capacity];
+		rollup = Math.max(1, _rollup);
+		rollTimes = new long[rollupCapacity];
+		rollCount = new int[rollupCapacity];
+		rollMin = new double[rollupCapacity];
+		rollMax = new double[rollupCapacity];
+		rollMean = new double[rollupCapacity];
+	}
+
+	/**
+	 * Adds a sample
+	 * @param time long - System.nanoTime() of the sample
+	 * @param value double - the sample
+	 */
+	public synchronized void add(long time, double value)
+	{
+		int slot = (start + size) % times.length;
+		if (size < times.length)
+			size++;
+		else
+			start = (start + 1) % times.length;
+		times[slot] = time;
+		values[slot] = value;
+
+		//roll up
+		if (pending == 0)
+		{
+			pendingTime = time;
+			pendingMin = value;
+			pendingMax = value;
+			pendingSum = 0;
+		}
+		pendingMin = Math.min(pendingMin, value);
+		pendingMax = Math.max(pendingMax, value);
+		pendingSum += value;
+		if (++pending >= rollup)
+			rollUp();
+	}
+
+	/**
+	 * Changes how many raw samples go into each rolled up entry, e.g. when
+	 * samples start coming at a different rate. Entries already rolled up
+	 * keep their own counts.
+	 * @param _rollup int - raw samples per rolled up entry from now on
+	 */
+	public synchronized void setRollup(int _rollup)
+	{
+		rollup = Math.max(1, _rollup);
+		if (pending >= rollup)
+			rollUp();
+	}
+
+	/**
+	 * Raw samples per rolled up entry
+	 * @return int - samples
+	 */
+	public synchronized int getRollup()
+	{
+		return rollup;
+	}
+
+	/**
+	 * Moves the roll up being built into the rolled up ring
+	 */
+	private void rollUp()
+	{
+		int r = (rollStart + rollSize) % rollTimes.length;
+		if (rollSize < rollTimes.length)
+			rollSize++;
+		else
+			rollStart = (rollStart + 1) % rollTimes.length;
+		rollTimes[r] = pendingTime;
+		rollCount[r] = pending;
+		rollMin[r] = pendingMin;
+		rollMax[r] = pendingMax;
+		rollMean[r] = pendingSum / pending;
+		pending = 0;
+	}
+
+	/**
+	 * Name of the series
+	 * @return String - the name
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Number of raw samples held
+	 * @return int - samples
+	 */
+	public synchronized int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Most recent sample
+	 * @return double - the sample, or NaN if there is none
+	 */
+	public synchronized double latest()
+	{
+		return size == 0 ? Double.NaN : values[(start + size - 1) % times.length];
+	}
+
+	/**
+	 * Time of the most recent sample
+	 * @return long - System.nanoTime() of the sample, or 0 if there is none
+	 */
+	public synchronized long latestTime()
+	{
+		return size == 0 ? 0 : times[(start + size - 1) % times.length];
+	}
+
+	/**
+	 * Time of the oldest sample still summarised, raw or rolled up
+	 * @return long - System.nanoTime(), or 0 if empty
+	 */
+	public synchronized long earliestTime()
+	{
+		if (rollSize > 0 && (size == 0 || rollTimes[rollStart] < times[start]))
+			return rollTimes[rollStart];
+		return size == 0 ? 0 : times[start];
+	}
+
+	/**
+	 * Copies the raw samples, oldest first
+	 * @param timesOut long[] - receives the times, at least size() long
+	 * @param valuesOut double[] - receives the values, at least size() long
+	 * @return int - number of samples copied
+	 */
+	public synchronized int copy(long[] timesOut, double[] valuesOut)
+	{
+		int n = Math.min(size, Math.min(timesOut.length, valuesOut.length));
+		int skip = size - n;//keep the newest
+		for (int i = 0; i < n; i++)
+		{
+			int slot = (start + skip + i) % times.length;
+			timesOut[i] = times[slot];
+			valuesOut[i] = values[slot];
+		}
+		return n;
+	}
+
+	/**
+	 * Reduces a time range to evenly spaced buckets
+	 * @param from long - System.nanoTime() the range starts
+	 * @param to long - System.nanoTime() the range ends
+	 * @param buckets int - how many buckets to divide it into
+	 * @return Summary - minimum, maximum and mean of each bucket
+	 */
+	public synchronized Summary summarize(long from, long to, int buckets)
+	{
+		Summary s = new Summary(name, from, to, buckets);
+		if (to <= from || buckets <= 0)
+			return s;
+
+		//raw samples cover everything from the oldest one on
+		long rawFrom = size > 0 ? times[start] : Long.MAX_VALUE;
+		for (int i = 0; i < rollSize; i++)
+		{
+			int r = (rollStart + i) % rollTimes.length;
+			if (rollTimes[r] >= rawFrom)
+				break;
+			s.add(rollTimes[r], rollMin[r], rollMax[r], rollMean[r], rollCount[r]);
+		}
+		for (int i = 0; i < size; i++)
+		{
+			int slot = (start + i) % times.length;
+			double v = values[slot];
+			s.add(times[slot], v, v, v, 1);
+		}
+		return s;
+	}
+
+	/**
+	 * Summarises everything held, raw and rolled up
+	 * @param buckets int - how many buckets to divide it into
+	 * @return Summary - minimum, maximum and mean of each bucket
+	 */
+	public Summary summarize(int buckets)
+	{
+		long from;
+		long to;
+		synchronized (this)
+		{
+			from = earliestTime();
+			to = latestTime() + 1;
+		}
+		return summarize(from, to, buckets);
+	}
+
+	/**
+	 * Forgets every sample
+	 */
+	public synchronized void clear()
+	{
+		size = start = 0;
+		rollSize = rollStart = 0;
+		pending = 0;
+	}
+
+	public String toString()
+	{
+		return name + "[" + size() + " samples, latest " + latest() + "]";
+	}
+
+	//**************************************************************************
+	//Summary*******************************************************************
+	//**************************************************************************
+
+	/**
+	 * A time series reduced to buckets. Buckets with no samples have a count
+	 * of 0 and NaN statistics.
+	 */
+	public static class Summary
+	{
+		Summary(String _name, long _from, long _to, int buckets)
+		{
+			name = _name;
+			from = _from;
+			to = _to;
+			min = new double[buckets];
+			max = new double[buckets];
+			mean = new double[buckets];
+			count = new int[buckets];
+			for (int i = 0; i < buckets; i++)
+			{
+				min[i] = Double.NaN;
+				max[i] = Double.NaN;
+				mean[i] = Double.NaN;
+			}
+		}
+
+		/**
+		 * Adds a group of samples to whichever bucket its time falls in
+		 */
+		void add(long time, double lo, double hi, double avg, int n)
+		{
+			if (time < from || time >= to)
+				return;
+			int b = (int)((time - from) * (double)count.length / (to - from));
+			if (b >= count.length)
+				b = count.length - 1;
+
+			if (count[b] == 0)
+			{
+				min[b] = lo;
+				max[b] = hi;
+				mean[b] = avg;
+			}
+			else
+			{
+				min[b] = Math.min(min[b], lo);
+				max[b] = Math.max(max[b], hi);
+				mean[b] = (mean[b] * count[b] + avg * n) / (count[b] + n);
+			}
+			count[b] += n;
+		}
+
+		/** @return int - number of buckets */
+		public int getBuckets() {return count.length;}
+
+		/** @param b int - bucket @return long - System.nanoTime() the bucket starts */
+		public long getStart(int b) {return from + (to - from) * b / count.length;}
+
+		/** @param b int - bucket @return double - smallest sample, NaN if empty */
+		public double getMin(int b) {return min[b];}
+
+		/** @param b int - bucket @return double - largest sample, NaN if empty */
+		public double getMax(int b) {return max[b];}
+
+		/** @param b int - bucket @return double - mean of the samples, NaN if empty */
+		public double getMean(int b) {return mean[b];}
+
+		/** @param b int - bucket @return int - samples in the bucket */
+		public int getCount(int b) {return count[b];}
+
+		public String toString()
+		{
+			StringBuilder s = new StringBuilder(name).append(':');
+			for (int b = 0; b < count.length; b++)
+			{
+				if (count[b] == 0)
+					s.append(" -");
+				else
+					s.append(String.format(" %.2f/%.2f/%.2f", min[b], mean[b], max[b]));
+			}
+			return s.toString();
+		}
+
+		private final String name;
+		private final long from;
+		private final long to;
+		private final double[] min;
+		private final double[] max;
+		private final double[] mean;
+		private final int[] count;
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private final String name;
+
+	//raw samples, guarded by this
+	private final long[] times;
+	private final double[] values;
+	private int start = 0;
+	private int size = 0;
+
+	//rolled up samples, guarded by this
+	private int rollup;
+	private final long[] rollTimes;
+	private final int[] rollCount;//raw samples in each entry
+	private final double[] rollMin;
+	private final double[] rollMax;
+	private final double[] rollMean;
+	private int rollStart = 0;
+	private int rollSize = 0;
+
+	//the roll up being built
+	private int pending = 0;
+	private long pendingTime;
+	private double pendingMin;
+	private double pendingMax;
+	private double pendingSum;
+}
@@ -0,0 +1,55 @@
+package bcibot;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * One camera frame with when it was captured and received, and the Move
+ * command that was in effect when it was captured. Lets vision code work out
+ * what the robot was doing at the moment the picture was taken rather than
+ * when it arrived.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	TimedFrame.java
+ */
+
+public class TimedFrame
+{
+	/**
+	 * Constructor
+	 * @param _image BufferedImage - the frame
+	 * @param _captureTime long - System.nanoTime() the frame was captured
+	 * @param _receiveTime long - System.nanoTime() the frame was decoded
+	 * @param _moveCommand String - Move command in effect at capture, or null if none
+	 */
+	public TimedFrame(BufferedImage _image, long _captureTime, long _receiveTime, String _moveCommand)
+	{
+		image = _image;
+		captureTime = _captureTime;
+		receiveTime = _receiveTime;
+		moveCommand = _moveCommand;
+	}
+
+	/** @return BufferedImage - the frame */
+	public BufferedImage getImage() {return image;}
+
+	/** @return long - System.nanoTime() the frame was captured */
+	public long getCaptureTime() {return captureTime;}
+
+	/** @return long - System.nanoTime() the frame was decoded */
+	public long getReceiveTime() {return receiveTime;}
+
+	/** @return long - nanoseconds between capture and receipt */
+	public long getLatency() {return receiveTime - captureTime;}
+
+	/** @return String - Move command in effect at capture, or null if none */
+	public String getMoveCommand() {return moveCommand;}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private final BufferedImage image;
+	private final long captureTime;
+	private final long receiveTime;
+	private final String moveCommand;
+}
@@ -0,0 +1,572 @@
+package bcibot;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Streams camera frames through four stages, each on its own thread:
+ *
+ * receive   asks the robot for a frame and reads its encoded bytes
+ * decode    decodes them (JPEG, PNG or BMP) into an image
+ * process   hands the image to a FrameProcessor
+ * act       hands the result to a FrameAction, which drives the robot
+ *
+ * The stages overlap instead of running one after another on the caller's
+ * thread as Picture does: frame N+1 is decoded while frame N is analysed,
+ * and the robot is asked for the next frame as soon as the last one has
+ * arrived, so capture and transfer overlap with decoding too.
+ *
+ * Given a MotionDetector, the process stage first checks each frame
+ * against it and drops frames in which nothing changed, so neither the
+ * processor nor the action runs for a still scene.
+ *
+ * Stages hand frames over through small bounded queues. A stage that falls
+ * behind fills the queue in front of it, which in the end stops the receive
+ * stage asking for frames, so frames never pile up and no frame is older
+ * than the queues are long. Each stage is timed, so the slowest stage, which
+ * sets the frame rate, can be found.
+ *
+ * While the pipeline runs it owns the camera: Picture and Robot.takePicture
+ * wait until it stops.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	VisionPipeline.java
+ */
+
+public class VisionPipeline<R>
+{
+	/**
+	 * Constructor, the pipeline does nothing until start() is called
+	 * @param _client ArchitectureClient - the client whose camera is used
+	 * @param _processor FrameProcessor - analyses each frame
+	 * @param _action FrameAction - acts on each result, or null for none
+	 */
+	public VisionPipeline(ArchitectureClient _client, FrameProcessor<R> _processor, FrameAction<R> _action)
+	{
+		client = _client;
+		processor = _processor;
+		action = _action;
+	}
+
+	/**
+	 * Decodes only part of each frame, which makes decoding much cheaper.
+	 * The part left of or above the frame is trimmed, as Picture does; a
+	 * region past the right or bottom edge makes every frame an error.
+	 * @param _region Rectangle - the part to decode in full frame pixels, null for all of it
+	 * @throws IllegalArgumentException - if the region is empty or entirely left of or above the frame
+	 */
+	public void setRegion(Rectangle _region)
+	{
+		checkStopped();
+		region = Picture.clipToFrame(_region);
+	}
+
+	/**
+	 * Decodes a reduced size frame, keeping every subsample-th pixel
+	 * @param _subsample int - e.g. 4 turns a 640x480 frame into 160x120
+	 */
+	public void setSubsample(int _subsample)
+	{
+		checkStopped();
+		subsample = Math.max(1, _subsample);
+	}
+
+	/**
+	 * Sets how many frames may wait between two stages. Longer queues smooth
+	 * out uneven stage times at the cost of older frames.
+	 * @param _capacity int - frames per queue, at least 1 (default 2)
+	 */
+	public void setQueueCapacity(int _capacity)
+	{
+		checkStopped();
+		capacity = Math.max(1, _capacity);
+	}
+
+	/**
+	 * Decodes into pooled images instead of allocating one per frame. Each
+	 * image goes back to the pool once the act stage is done with it, so
+	 * neither the processor nor the action may keep it.
+	 * @param _pool ImagePool - the pool, or null to allocate (the default)
+	 */
+	public void setImagePool(ImagePool _pool)
+	{
+		checkStopped();
+		pool = _pool;
+	}
+
+	/**
+	 * Skips frames in which nothing changed. The detector is only used by
+	 * the process stage while the pipeline runs.
+	 * @param _detector MotionDetector - the detector, or null to process every frame (the default)
+	 */
+	public void setMotionDetector(MotionDetector _detector)
+	{
+		checkStopped();
+		motion = _detector;
+	}
+
+	/**
+	 * Starts the stage threads. Timings are reset.
+	 */
+	public void start()
+	{
+		control.lock();
+		try
+		{
+			if (running)
+				return;
+
+			decodeQueue = new ArrayBlockingQueue<Job>(capacity);
+			processQueue = new ArrayBlockingQueue<Job>(capacity);
+			actQueue = new ArrayBlockingQueue<Job>(capacity);
+			for (StageTimer t : timers)
+				t.reset();
+			errors.set(0);
+			skipped.set(0);
+			MotionDetector m = motion;
+			if (m != null)
+				m.reset();
+			startTime = System.nanoTime();
+			stopTime = 0;
+			abandoned = false;
+			camera = null;
+			running = true;
+
+			threads = new Thread[4];
+			threads[0] = client.startThread(new Runnable()
+			{
+				public void run() {receiveLoop();}
+			}, "Vision receive");
+			threads[1] = client.startThread(new Runnable()
+			{
+				public void run() {decodeLoop();}
+			}, "Vision decode");
+			threads[2] = client.startThread(new Runnable()
+			{
+				public void run() {processLoop();}
+			}, "Vision process");
+			threads[3] = client.startThread(new Runnable()
+			{
+				public void run() {actLoop();}
+			}, "Vision act");
+		}
+		finally {control.unlock();}
+	}
+
+	/**
+	 * Stops asking for frames and lets the frames already on their way
+	 * through finish. Stages still busy at the deadline are interrupted, and
+	 * a receive stage still waiting for a frame has the camera closed under
+	 * it, so the camera is free again once this returns; the next picture
+	 * taken opens a new camera connection.
+	 * @param timeoutMillis long - longest to wait, 0 to wait forever
+	 * @return true if every stage finished, false if some were interrupted
+	 */
+	public boolean stop(long timeoutMillis)
+	{
+		control.lock();
+		try
+		{
+			if (!running)
+				return true;
+			running = false;
+
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			boolean finished = true;
+			for (Thread t : threads)
+			{
+				try
+				{
+					if (timeoutMillis <= 0)
+						t.join();
+					else
+						t.join(Math.max(1, deadline - System.currentTimeMillis()));
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				if (t.isAlive())
+				{
+					if (t == threads[0])
+						abandonCamera();
+					t.interrupt();
+					finished = false;
+				}
+			}
+			if (!finished)
+			{
+				//give the receive stage a moment to let go of the camera
+				try {threads[0].join(ABANDON_WAIT);}
+				catch (InterruptedException e) {Thread.currentThread().interrupt();}
+			}
+			stopTime = System.nanoTime();
+			threads = null;
+			return finished;
+		}
+		finally {control.unlock();}
+	}
+
+	/**
+	 * Checks whether the pipeline is running
+	 * @return true if started and not stopped
+	 */
+	public boolean isRunning()
+	{
+		return running;
+	}
+
+	/** @return StageTimer - time spent waiting for each frame to arrive */
+	public StageTimer getReceiveTiming() {return timers[RECEIVE];}
+
+	/** @return StageTimer - time spent decoding each frame */
+	public StageTimer getDecodeTiming() {return timers[DECODE];}
+
+	/** @return StageTimer - time the FrameProcessor took on each frame */
+	public StageTimer getProcessTiming() {return timers[PROCESS];}
+
+	/** @return StageTimer - time the FrameAction took on each frame */
+	public StageTimer getActTiming() {return timers[ACT];}
+
+	/** @return StageTimer - time from asking for each frame to its action finishing */
+	public StageTimer getLatency() {return timers[LATENCY];}
+
+	/** @return long - frames that failed to arrive, decode or be processed */
+	public long getErrorCount() {return errors.get();}
+
+	/** @return long - frames dropped by the MotionDetector because nothing changed */
+	public long getSkippedCount() {return skipped.get();}
+
+	/**
+	 * Frames that made it through every stage or were skipped as unchanged,
+	 * per second since start
+	 * @return double - the frame rate, 0 before start
+	 */
+	public double getFrameRate()
+	{
+		long begin = startTime;
+		if (begin == 0)
+			return 0;
+		long end = stopTime != 0 ? stopTime : System.nanoTime();
+		return (timers[ACT].getCount() + skipped.get()) * 1e9 / Math.max(1, end - begin);
+	}
+
+	public String toString()
+	{
+		StringBuilder s = new StringBuilder("VisionPipeline[");
+		s.append(String.format("%.1f fps", getFrameRate()));
+		for (StageTimer t : timers)
+			s.append(", ").append(t);
+		return s.append(']').toString();
+	}
+
+	//**************************************************************************
+	//Stages********************************************************************
+	//**************************************************************************
+
+	private void receiveLoop()
+	{
+		Picture.cameraLock.lock();
+		try
+		{
+			String grab = Picture.grabCommand();
+			long requested = System.nanoTime();
+			client.sendCommand(grab);
+			camera = Picture.camera();//opened once the robot is asked for a frame
+
+			while (true)
+			{
+				long start = System.nanoTime();
+				byte[] data = camera.receiveEncoded();
+				long received = System.nanoTime();
+				timers[RECEIVE].add(received - start);
+
+				Job job = new Job(data, requested);
+				boolean more = running;
+				if (more)
+				{
+					//ask for the next frame before handing this one on
+					requested = System.nanoTime();
+					client.sendCommand(grab);
+				}
+				decodeQueue.put(job);
+				if (!more)
+					break;//every frame asked for has been read
+			}
+		}
+		catch (InterruptedException e) {}
+		catch (IOException e)
+		{
+			if (abandoned)
+				Picture.forgetCamera(camera);//closed by stop(), nothing went wrong
+			else
+			{
+				errors.incrementAndGet();
+				Log.error("Vision pipeline stopped receiving: " + e);
+			}
+		}
+		finally
+		{
+			Picture.cameraLock.unlock();
+			end(decodeQueue);
+		}
+	}
+
+	private void decodeLoop()
+	{
+		try
+		{
+			while (true)
+			{
+				Job job = decodeQueue.take();
+				if (job == END)
+					break;
+
+				long start = System.nanoTime();
+				try
+				{
+					BufferedImage image = camera.decodeFrame(job.data, region, subsample, pool);
+					long decoded = System.nanoTime();
+					job.data = null;
+					job.frame = new TimedFrame(image, job.requested, decoded,
+							client.getMotionHistory().floor(job.requested));
+					timers[DECODE].add(decoded - start);
+				}
+				catch (IOException e)
+				{
+					errors.incrementAndGet();
+					Log.error("Vision pipeline could not decode a frame: " + e);
+					continue;
+				}
+				catch (RuntimeException e)
+				{
+					//e.g. the region is outside this frame; the next may still decode
+					errors.incrementAndGet();
+					Log.error("Vision pipeline could not decode a frame: " + e);
+					continue;
+				}
+				processQueue.put(job);
+			}
+		}
+		catch (InterruptedException e) {}
+		finally {end(processQueue);}
+	}
+
+	private void processLoop()
+	{
+		try
+		{
+			while (true)
+			{
+				Job job = processQueue.take();
+				if (job == END)
+					break;
+
+				long start = System.nanoTime();
+				MotionDetector m = motion;
+				if (m != null && !m.update(job.frame.getImage()))
+				{
+					skipped.incrementAndGet();
+					recycle(job);
+					continue;
+				}
+				try {job.result = processor.process(job.frame);}
+				catch (RuntimeException e)
+				{
+					errors.incrementAndGet();
+					Log.error("Vision pipeline processor failed: " + e);
+					recycle(job);
+					continue;
+				}
+				timers[PROCESS].add(System.nanoTime() - start);
+				actQueue.put(job);
+			}
+		}
+		catch (InterruptedException e) {}
+		finally {end(actQueue);}
+	}
+
+	private void actLoop()
+	{
+		try
+		{
+			while (true)
+			{
+				Job job = actQueue.take();
+				if (job == END)
+					break;
+
+				long start = System.nanoTime();
+				try
+				{
+					if (action != null)
+						action.act(job.frame, job.result);
+				}
+				catch (RuntimeException e)
+				{
+					errors.incrementAndGet();
+					Log.error("Vision pipeline action failed: " + e);
+				}
+				long done = System.nanoTime();
+				timers[ACT].add(done - start);
+				timers[LATENCY].add(done - job.requested);
+				recycle(job);
+			}
+		}
+		catch (InterruptedException e) {}
+	}
+
+	/**
+	 * Closes the camera under a receive stage stuck waiting for a frame that
+	 * is not coming, which is the only way to unblock its read
+	 */
+	private void abandonCamera()
+	{
+		Camera c = camera;
+		if (c == null)
+			return;//still opening the camera
+		abandoned = true;
+		c.close();
+	}
+
+	/**
+	 * Tells the next stage there is nothing more to come
+	 */
+	private void end(BlockingQueue<Job> queue)
+	{
+		try {queue.put(END);}
+		catch (InterruptedException e)
+		{
+			queue.clear();//stopping anyway, make room for the marker
+			queue.offer(END);
+		}
+	}
+
+	private void recycle(Job job)
+	{
+		ImagePool p = pool;
+		if (p != null && job.frame != null)
+			p.release(job.frame.getImage());
+	}
+
+	private void checkStopped()
+	{
+		if (running)
+			throw new IllegalStateException("Stop the pipeline before changing it");
+	}
+
+	/**
+	 * One frame on its way through the stages
+	 */
+	private class Job
+	{
+		Job(byte[] _data, long _requested)
+		{
+			data = _data;
+			requested = _requested;
+		}
+
+		byte[] data;
+		final long requested;
+		TimedFrame frame;
+		R result;
+	}
+
+	/**
+	 * How long one stage takes per frame
+	 */
+	public static class StageTimer
+	{
+		StageTimer(String _name)
+		{
+			name = _name;
+		}
+
+		void add(long nanos)
+		{
+			count.incrementAndGet();
+			total.addAndGet(nanos);
+			long m;
+			while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos));
+		}
+
+		void reset()
+		{
+			count.set(0);
+			total.set(0);
+			max.set(0);
+		}
+
+		/** @return String - the stage's name */
+		public String getName() {return name;}
+
+		/** @return long - frames the stage has finished */
+		public long getCount() {return count.get();}
+
+		/** @return double - mean time per frame in ms, 0 if none */
+		public double getMeanMillis()
+		{
+			long n = count.get();
+			return n == 0 ? 0 : total.get() / 1e6 / n;
+		}
+
+		/** @return double - longest time for one frame in ms */
+		public double getMaxMillis() {return max.get() / 1e6;}
+
+		public String toString()
+		{
+			return String.format("%s %d x %.1fms (max %.1fms)", name, getCount(), getMeanMillis(), getMaxMillis());
+		}
+
+		private final String name;
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong total = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static final int RECEIVE = 0;
+	private static final int DECODE = 1;
+	private static final int PROCESS = 2;
+	private static final int ACT = 3;
+	private static final int LATENCY = 4;
+
+	private static final long ABANDON_WAIT = 1000;//ms for the receive stage to notice its camera closed
+
+	private final Job END = new Job(null, 0);//marks the end of the frames
+
+	private final ArchitectureClient client;
+	private final FrameProcessor<R> processor;
+	private final FrameAction<R> action;
+
+	//settings, only changed while stopped
+	private volatile Rectangle region = null;
+	private volatile int subsample = 1;
+	private volatile int capacity = 2;
+	private volatile ImagePool pool = null;
+	private volatile MotionDetector motion = null;
+
+	private final ReentrantLock control = new ReentrantLock();//start and stop
+	private volatile boolean running = false;
+	private Thread[] threads;
+	private volatile Camera camera;//set by the receive stage before it hands anything on
+	private volatile boolean abandoned = false;//stop() closed the camera at the deadline
+	private volatile BlockingQueue<Job> decodeQueue;
+	private volatile BlockingQueue<Job> processQueue;
+	private volatile BlockingQueue<Job> actQueue;
+
+	private final StageTimer[] timers = {new StageTimer("receive"), new StageTimer("decode"),
+			new StageTimer("process"), new StageTimer("act"), new StageTimer("latency")};
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private volatile long startTime = 0;
+	private volatile long stopTime = 0;
+}
@@ -0,0 +1,341 @@
+package bcibot;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Drives the robot towards a target seen by the camera with a fixed rate
+ * control loop. Instead of the usual stop, look, turn, wait cycle, each
+ * control cycle takes a picture, asks the TargetDetector where the target
+ * is, and steers with continuous arc turns, so the robot keeps moving
+ * smoothly while it tracks.
+ *
+ * Steering: an offset of x (-1 to 1) gives an arc of radius turnGain / x,
+ * so the further off-centre the target, the tighter the turn. Offsets inside
+ * the dead band drive straight. Speed: forwardGain * (stopSize - size),
+ * rounded to the robot's speed levels, so the robot slows as the target
+ * grows and stops once it looks at least stopSize wide.
+ *
+ * Commands are coalesced: a command is only sent when it differs from the
+ * last one sent, and never while the Move channel is still busy, so the
+ * robot's queue never backs up behind the loop.
+ *
+ * Each cycle runs holding a lock that stop() also takes, so once stop()
+ * has sent STOP no cycle still in flight can set the robot moving again.
+ *
+ * Radii are in the robot's default movement units.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	VisualServoController.java
+ */
+
+public class VisualServoController
+{
+	/**
+	 * Constructor, the controller does nothing until start() is called
+	 * @param _robot Robot - the robot to drive
+	 * @param _detector TargetDetector - finds the target in each picture
+	 */
+	public VisualServoController(Robot _robot, TargetDetector _detector)
+	{
+		robot = _robot;
+		detector = _detector;
+	}
+
+	/**
+	 * Starts the control loop. Turns on multitasking so robot commands do not
+	 * wait for each other; stop() puts back the mode the robot was in.
+	 */
+	public synchronized void start()
+	{
+		if (task != null)
+			return;
+
+		restoreMultitasking = !robot.isMultitasking();
+		robot.enableMultitasking();
+		stepLock.lock();
+		try
+		{
+			lastMode = NONE;
+			lastSpeed = -1;
+			missed = 0;
+			stopped = false;
+		}
+		finally {stepLock.unlock();}
+
+		if (executor == null)
+		{
+			executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					return ThreadMode.newThread(robot.getThreadMode(), r, "Visual servo", true);
+				}
+			});
+		}
+
+		long period = (long)(1000000000L / rate);
+		task = executor.scheduleAtFixedRate(new Runnable()
+		{
+			public void run()
+			{
+				stepLock.lock();
+				try
+				{
+					if (!stopped)
+						step();
+				}
+				catch (RuntimeException e) {Log.error("Visual servo error: " + e);}
+				finally {stepLock.unlock();}
+			}
+		}, 0, period, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Stops the control loop and the robot, and turns multitasking back off
+	 * if start() turned it on. Waits for a control cycle already under way
+	 * to finish first, so its command cannot follow the STOP.
+	 */
+	public synchronized void stop()
+	{
+		if (task == null)
+			return;
+
+		task.cancel(false);
+		task = null;
+		stepLock.lock();
+		try
+		{
+			stopped = true;
+			robot.stop();
+			lastMode = STOPPED;
+		}
+		finally {stepLock.unlock();}
+		if (restoreMultitasking)
+			robot.disableMultitasking();
+		restoreMultitasking = false;
+	}
+
+	/**
+	 * Checks whether the loop is running
+	 * @return true if started and not stopped
+	 */
+	public synchronized boolean isRunning()
+	{
+		return task != null;
+	}
+
+	/**
+	 * Checks whether the robot has reached the target and stopped
+	 * @return true if the last control cycle saw the target at stopSize or larger
+	 */
+	public boolean hasArrived()
+	{
+		return arrived;
+	}
+
+	/**
+	 * The target seen by the most recent control cycle
+	 * @return Target - the target, or null if it was not seen
+	 */
+	public Target getLastTarget()
+	{
+		return lastTarget;
+	}
+
+	//**************************************************************************
+	//Settings******************************************************************
+	//**************************************************************************
+
+	/**
+	 * Sets how often the loop runs. Takes effect at the next start().
+	 * @param hz double - control cycles per second
+	 */
+	public void setRate(double hz)
+	{
+		rate = hz;
+	}
+
+	/**
+	 * Sets the steering gain
+	 * @param gain double - arc radius used when the target is at the edge of the frame
+	 */
+	public void setTurnGain(double gain)
+	{
+		turnGain = gain;
+	}
+
+	/**
+	 * Sets the speed gain
+	 * @param gain double - speed levels per unit of (stopSize - size)
+	 */
+	public void setForwardGain(double gain)
+	{
+		forwardGain = gain;
+	}
+
+	/**
+	 * Sets how big the target must look for the robot to stop
+	 * @param size double - fraction of the frame width
+	 */
+	public void setStopSize(double size)
+	{
+		stopSize = size;
+	}
+
+	/**
+	 * Sets the offsets treated as straight ahead
+	 * @param band double - offsets between -band and band drive straight
+	 */
+	public void setDeadBand(double band)
+	{
+		deadBand = band;
+	}
+
+	/**
+	 * Sets how many cycles in a row the target may be missing before stopping
+	 * @param cycles int - missed cycles tolerated
+	 */
+	public void setLostCycles(int cycles)
+	{
+		lostCycles = cycles;
+	}
+
+	/**
+	 * Takes reduced size pictures to speed up each cycle
+	 * @param _subsample int - keep every subsample-th pixel, 1 for full pictures
+	 */
+	public void setSubsample(int _subsample)
+	{
+		subsample = _subsample;
+	}
+
+	//**************************************************************************
+	//Control Loop**************************************************************
+	//**************************************************************************
+
+	/**
+	 * One control cycle: look, decide, and send a command if it changed
+	 */
+	private void step()
+	{
+		if (subsample > 1)
+			robot.takeSubsampledPicture(subsample);
+		else
+			robot.takePicture();
+
+		Target target = detector.detect(robot.getPicture());
+		lastTarget = target;
+
+		if (target == null)
+		{
+			arrived = false;
+			if (++missed >= lostCycles)
+				command(STOPPED, 0, lastSpeed);
+			return;
+		}
+		missed = 0;
+
+		arrived = target.getSize() >= stopSize;
+		if (arrived)
+		{
+			command(STOPPED, 0, lastSpeed);
+			return;
+		}
+
+		int speed = (int)Math.round(forwardGain * (stopSize - target.getSize()));
+		speed = Math.max(Robot.LOW_MOVEMENT_SPEED, Math.min(Robot.HIGH_MOVEMENT_SPEED, speed));
+
+		double offset = target.getOffset();
+		if (Math.abs(offset) <= deadBand)
+		{
+			command(STRAIGHT, 0, speed);
+			return;
+		}
+
+		//quantise the curvature so small wobbles do not resend the command
+		int curvature = (int)Math.round(offset / turnGain / CURVATURE_STEP);
+		if (curvature == 0)
+			command(STRAIGHT, 0, speed);
+		else
+			command(ARC, curvature, speed);
+	}
+
+	/**
+	 * Sends a motion command unless it is the same as the last one, or the
+	 * Move channel is still working on an earlier command
+	 */
+	private void command(int mode, int curvature, int speed)
+	{
+		boolean changed = mode != lastMode || curvature != lastCurvature
+				|| (mode != STOPPED && speed != lastSpeed);
+		if (!changed)
+			return;
+		if (mode != STOPPED && !robot.isDone(Robot.MOVE_DONE))
+			return;//try again next cycle with fresher information
+
+		if (mode == STOPPED)
+			robot.stop();
+		else
+		{
+			if (speed != lastSpeed)
+			{
+				robot.setMovementSpeed(speed);
+				robot.setTurningSpeed(speed);
+				lastSpeed = speed;
+			}
+			if (mode == STRAIGHT)
+				robot.moveForward();
+			else
+			{
+				double radius = 1.0 / (curvature * CURVATURE_STEP);
+				if (Math.abs(radius) < MIN_RADIUS)
+					radius = radius < 0 ? -MIN_RADIUS : MIN_RADIUS;
+				robot.doForwardArcTurn(radius);
+			}
+		}
+
+		lastMode = mode;
+		lastCurvature = curvature;
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static final int NONE = 0;
+	private static final int STOPPED = 1;
+	private static final int STRAIGHT = 2;
+	private static final int ARC = 3;
+
+	private static final double CURVATURE_STEP = 0.005;//1/radius resolution
+	private static final double MIN_RADIUS = 6;
+
+	private final Robot robot;
+	private final TargetDetector detector;
+	private ScheduledExecutorService executor;
+	private ScheduledFuture<?> task;
+	private boolean restoreMultitasking = false;//start() turned multitasking on
+
+	private double rate = 5;
+	private double turnGain = 24;
+	private double forwardGain = 10;
+	private double stopSize = 0.5;
+	private double deadBand = 0.05;
+	private int lostCycles = 3;
+	private int subsample = 1;
+
+	//only touched holding stepLock
+	private final ReentrantLock stepLock = new ReentrantLock();
+	private boolean stopped = true;//no cycle may send a command
+	private int lastMode = NONE;
+	private int lastCurvature = 0;
+	private int lastSpeed = -1;
+	private int missed = 0;
+	private volatile Target lastTarget;
+	private volatile boolean arrived = false;
+}
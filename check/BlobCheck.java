@@ -0,0 +1,223 @@
+package bcibot;
+
+import java.awt.Rectangle;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks BlobDetector's single pass union-find labelling against a plain
+ * 8-connected flood fill on random masks, whole and windowed, and checks
+ * that BlobTracker follows moving blobs through its search window, gates
+ * out a blob that jumps too far and drops tracks that stay unseen.
+ *
+ * Usage: java -cp out bcibot.BlobCheck [masks] [seed]. masks defaults to
+ * 500 and seed to 1. A mask that labels wrongly is reported with the seed
+ * and round that made it; round r of a seed is the same mask however many
+ * are asked for. The exit status is 1 if anything failed.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	BlobCheck.java
+ */
+
+public class BlobCheck
+{
+	public static void main(String[] args)
+	{
+		int masks = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+
+		checkAgainstFloodFill(masks, seed);
+		checkTrackerWindow();
+		checkTrackerGate();
+
+		System.out.println(failures == 0 ? "Blob checks passed" : "Blob checks: " + failures + " failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Random masks of every density, including U shapes and diagonals that
+	 * only join late in the scan, give the flood fill's blobs. Each round
+	 * has its own Random, so a failing round does not depend on the others.
+	 */
+	private static void checkAgainstFloodFill(int masks, long seed)
+	{
+		BlobDetector detector = new BlobDetector(1);
+		for (int round = 0; round < masks; round++)
+		{
+			Random random = new Random(seed * 1000003 + round);
+			int width = 1 + random.nextInt(80), height = 1 + random.nextInt(60);
+			int[] mask = new int[width * height];
+			double density = random.nextDouble();
+			for (int i = 0; i < mask.length; i++)
+				mask[i] = random.nextDouble() < density ? 1 + random.nextInt(255) : 0;
+
+			Rectangle window = null;
+			if (round % 2 == 1)
+			{
+				int x = random.nextInt(width), y = random.nextInt(height);
+				window = new Rectangle(x, y, 1 + random.nextInt(width - x), 1 + random.nextInt(height - y));
+			}
+
+			List<Blob> found = detector.detect(mask, width, height, window);
+			List<Blob> expected = floodFill(mask, width, height, window);
+			if (!same(found, expected))
+			{
+				check("blobs of a " + width + "x" + height + " mask" + (window == null ? "" : " in " + window)
+						+ " (seed " + seed + ", round " + round + "): found " + found + ", flood fill " + expected, false);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * A square moving a few pixels a frame is followed by window scans only
+	 */
+	private static void checkTrackerWindow()
+	{
+		int width = 160, height = 120;
+		BlobTracker tracker = new BlobTracker(new BlobDetector(5), 4);
+		tracker.setFullScanInterval(0);//only the first frame, while nothing is tracked
+		for (int frame = 0; frame < 100; frame++)
+		{
+			int[] mask = new int[width * height];
+			square(mask, width, 20 + frame, 50 + frame / 3, 10);
+			List<Blob> found = tracker.update(mask, width, height);
+			if (found.size() != 1 || found.get(0).getArea() != 100)
+			{
+				check("tracker follows the square at frame " + frame + ": " + found, false);
+				return;
+			}
+		}
+		check("tracker searched in full only once", tracker.getFullScans() == 1 && tracker.getWindowScans() == 99);
+		check("tracker scanned fewer pixels than full frames", tracker.getPixelsScanned() < 100L * width * height / 10);
+	}
+
+	/**
+	 * A blob far outside the gate starts a new track instead of moving the
+	 * old one, and a track unseen for too long is dropped
+	 */
+	private static void checkTrackerGate()
+	{
+		int width = 160, height = 120;
+		BlobTracker tracker = new BlobTracker(new BlobDetector(5), 4);
+		tracker.setFullScanInterval(1);//every frame in full, so the jump is seen
+		tracker.setMaxMissed(2);
+
+		int[] mask = new int[width * height];
+		square(mask, width, 10, 10, 8);
+		tracker.update(mask, width, height);
+
+		mask = new int[width * height];
+		square(mask, width, 120, 90, 8);
+		tracker.update(mask, width, height);
+		check("a jump past the gate starts a second track", tracker.getTracked().size() == 2);
+
+		for (int i = 0; i < 2; i++)
+			tracker.update(mask, width, height);
+		List<Blob> tracked = tracker.getTracked();
+		check("the unseen track is dropped after maxMissed frames", tracked.size() == 1
+				&& tracked.get(0).getX() == 120 && tracked.get(0).getY() == 90);
+	}
+
+	/**
+	 * Plain 8-connected flood fill, the reference
+	 */
+	private static List<Blob> floodFill(int[] mask, int width, int height, Rectangle window)
+	{
+		Rectangle area = window == null ? new Rectangle(0, 0, width, height)
+				: window.intersection(new Rectangle(0, 0, width, height));
+		boolean[] seen = new boolean[mask.length];
+		List<Blob> blobs = new ArrayList<Blob>();
+		for (int y = area.y; y < area.y + area.height; y++)
+		{
+			for (int x = area.x; x < area.x + area.width; x++)
+			{
+				int start = y * width + x;
+				if (mask[start] == 0 || seen[start])
+					continue;
+
+				int count = 0, minX = x, minY = y, maxX = x, maxY = y;
+				long sumX = 0, sumY = 0;
+				ArrayDeque<Integer> stack = new ArrayDeque<Integer>();
+				stack.push(start);
+				seen[start] = true;
+				while (!stack.isEmpty())
+				{
+					int p = stack.pop();
+					int px = p % width, py = p / width;
+					count++;
+					sumX += px;
+					sumY += py;
+					minX = Math.min(minX, px);
+					maxX = Math.max(maxX, px);
+					minY = Math.min(minY, py);
+					maxY = Math.max(maxY, py);
+					for (int dy = -1; dy <= 1; dy++)
+					{
+						for (int dx = -1; dx <= 1; dx++)
+						{
+							int nx = px + dx, ny = py + dy;
+							if (!area.contains(nx, ny))
+								continue;
+							int n = ny * width + nx;
+							if (mask[n] != 0 && !seen[n])
+							{
+								seen[n] = true;
+								stack.push(n);
+							}
+						}
+					}
+				}
+				blobs.add(new Blob(count, minX, minY, maxX, maxY, sumX / (double)count, sumY / (double)count));
+			}
+		}
+		return blobs;
+	}
+
+	/**
+	 * Compares blobs regardless of the order of those of equal area
+	 */
+	private static boolean same(List<Blob> found, List<Blob> expected)
+	{
+		if (found.size() != expected.size())
+			return false;
+		List<String> a = new ArrayList<String>(), b = new ArrayList<String>();
+		for (Blob blob : found)
+			a.add(describe(blob));
+		for (Blob blob : expected)
+			b.add(describe(blob));
+		Collections.sort(a);
+		Collections.sort(b);
+		return a.equals(b);
+	}
+
+	private static String describe(Blob b)
+	{
+		return String.format("%d %s %.6f %.6f", b.getArea(), b.getBounds(), b.getCenterX(), b.getCenterY());
+	}
+
+	private static void square(int[] mask, int width, int x, int y, int side)
+	{
+		for (int row = y; row < y + side; row++)
+			for (int column = x; column < x + side; column++)
+				mask[row * width + column] = 1;
+	}
+
+	private static void check(String what, boolean passed)
+	{
+		if (!passed)
+		{
+			failures++;
+			System.out.println("FAILED: " + what);
+		}
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static int failures = 0;
+}
@@ -0,0 +1,206 @@
+package bcibot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks CommandQueue's overflow policies without a robot: a consumer
+ * thread stands in for a Connection's sending thread. Covers the order of
+ * 300 commands through a small blocking queue, REJECT, DROP_OLDEST, which
+ * commands COALESCE may merge, and that it never merges relative moves.
+ *
+ * A policy that blocks where it should not would hang, so a watchdog ends
+ * the run after 30s. Failures are printed with the policy they belong to.
+ * Run with java -cp out bcibot.CommandQueueCheck once everything, check/
+ * included, is compiled into out.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	CommandQueueCheck.java
+ */
+
+public class CommandQueueCheck
+{
+	public static void main(String[] args) throws Exception
+	{
+		//a policy that blocks when it should not would hang the check
+		Thread watchdog = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try {Thread.sleep(TIMEOUT);}
+				catch (InterruptedException e) {return;}
+				System.out.println("FAILED: timed out, a queue blocked");
+				System.exit(1);
+			}
+		}, "Queue check watchdog");
+		watchdog.setDaemon(true);
+		watchdog.start();
+
+		checkBlockingOrder();
+		checkReject();
+		checkDropOldest();
+		checkCoalesce();
+		checkKinds();
+
+		System.out.println("CommandQueue: " + passed + " passed, " + failed + " failed");
+		System.exit(failed == 0 ? 0 : 1);
+	}
+
+	/**
+	 * 300 commands through an 8 command queue arrive complete and in order
+	 */
+	private static void checkBlockingOrder() throws Exception
+	{
+		policy = "BLOCK";
+		CommandQueue q = new CommandQueue(8, CommandQueue.BLOCK);
+		List<String> sent = drain(q, 300, 0);
+		for (int i = 0; i < 300; i++)
+			q.add(new PendingCommand("move forward " + i, 0));
+		await(sent, 300);
+		boolean inOrder = true;
+		for (int i = 0; i < 300; i++)
+			inOrder &= sent.get(i).equals("move forward " + i);
+		check("BLOCK keeps 300 commands in order", inOrder && sent.size() == 300);
+		check("BLOCK never holds more than its capacity", q.getHighWater() <= 8);
+	}
+
+	private static void checkReject() throws Exception
+	{
+		policy = "REJECT";
+		CommandQueue q = new CommandQueue(1, CommandQueue.REJECT);
+		q.add(new PendingCommand("move forward 1", 0));
+		PendingCommand second = new PendingCommand("move forward 2", 0);
+		boolean thrown = false;
+		try {q.add(second);}
+		catch (CommandRejectedException e) {thrown = true;}
+		check("REJECT throws when full", thrown);
+		check("REJECT fails the refused command", second.isDone() && second.getError() instanceof CommandRejectedException);
+		check("REJECT counts it", q.getRejectedCount() == 1 && q.size() == 1);
+	}
+
+	private static void checkDropOldest() throws Exception
+	{
+		policy = "DROP_OLDEST";
+		CommandQueue q = new CommandQueue(3, CommandQueue.DROP_OLDEST);
+		PendingCommand[] commands = new PendingCommand[5];
+		for (int i = 0; i < 5; i++)
+		{
+			commands[i] = new PendingCommand("move forward " + i, 0);
+			q.add(commands[i]);
+		}
+		check("DROP_OLDEST keeps the newest", q.toArray()[0].equals("move forward 2") && q.size() == 3);
+		check("DROP_OLDEST cancels what it drops", commands[0].isCancelled() && commands[1].isCancelled()
+				&& !commands[2].isDone());
+		check("DROP_OLDEST counts them", q.getDroppedCount() == 2);
+	}
+
+	private static void checkCoalesce() throws Exception
+	{
+		policy = "COALESCE";
+		//continuous motion replaces the newest queued motion
+		CommandQueue q = new CommandQueue(1, CommandQueue.COALESCE);
+		PendingCommand first = new PendingCommand("f cont arc 10", 0);
+		q.add(first);
+		q.add(new PendingCommand("f cont arc 20", 0));
+		q.add(new PendingCommand("stop", 0));
+		check("COALESCE replaces continuous motion", q.size() == 1 && q.toArray()[0].equals("stop")
+				&& first.isCancelled() && q.getCoalescedCount() == 2);
+
+		//relative moves wait for room instead, so none is lost
+		q = new CommandQueue(1, CommandQueue.COALESCE);
+		List<String> sent = drain(q, 3, 20);
+		q.add(new PendingCommand("move forward 10", 0));
+		q.add(new PendingCommand("move forward 3", 0));
+		q.add(new PendingCommand("move left 90", 0));
+		await(sent, 3);
+		check("COALESCE sends every relative move", sent.size() == 3 && sent.get(0).equals("move forward 10")
+				&& sent.get(1).equals("move forward 3") && q.getCoalescedCount() == 0);
+	}
+
+	private static void checkKinds()
+	{
+		policy = "kind";
+		String[] merged = {"move forward", "move left", "f cont arc -20", "b cont arc 5", "stop"};
+		for (String c : merged)
+			check("\"" + c + "\" sets the motion", "motion".equals(CommandQueue.kind(c)));
+		check("speeds are separate kinds", "set m".equals(CommandQueue.kind("set m 30"))
+				&& "set t".equals(CommandQueue.kind("set t 5")));
+		String[] kept = {"move forward 10", "move right 90", "arc 10 90", "increase speed", "gripper status", "link a|b"};
+		for (String c : kept)
+			check("\"" + c + "\" is never merged", CommandQueue.kind(c) == null);
+	}
+
+	/**
+	 * Starts a thread taking commands off the queue as a Connection would
+	 * @return List - the texts taken, notified on each one
+	 */
+	private static List<String> drain(final CommandQueue q, final int count, final long pauseMillis)
+	{
+		final List<String> sent = new ArrayList<String>();
+		Thread t = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					int taken = 0;
+					while (taken < count)
+					{
+						Thread.sleep(pauseMillis);
+						PendingCommand c = q.poll();
+						if (c == null)
+						{
+							Thread.sleep(1);
+							continue;
+						}
+						c.complete("done");
+						taken++;
+						synchronized (sent)
+						{
+							sent.add(c.getText());
+							sent.notifyAll();
+						}
+					}
+				}
+				catch (InterruptedException e) {}
+			}
+		}, "Queue check consumer");
+		t.setDaemon(true);
+		t.start();
+		return sent;
+	}
+
+	/**
+	 * Waits up to 10s for the consumer to take count commands
+	 */
+	private static void await(List<String> sent, int count) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+		synchronized (sent)
+		{
+			while (sent.size() < count && System.currentTimeMillis() < deadline)
+				sent.wait(100);
+		}
+	}
+
+	private static void check(String what, boolean ok)
+	{
+		if (ok)
+			passed++;
+		else
+		{
+			failed++;
+			System.out.println("[" + policy + "] " + what);
+		}
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static final long TIMEOUT = 30000;//ms for the whole check
+
+	private static String policy;//being checked, for the failure messages
+	private static int passed = 0;
+	private static int failed = 0;
+}
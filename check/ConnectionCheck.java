@@ -0,0 +1,219 @@
+package bcibot;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a Connection against a fake robot on the local machine to exercise
+ * the command timeout: a command the robot keeps answering "OK" to runs
+ * well past the timeout and still succeeds, a command the robot goes quiet
+ * on times out after the silence, and the connection then reconnects so the
+ * next command goes through. Then checks the reader: a sensor event the
+ * robot reports while a command runs reaches listeners without answering
+ * the command, and one it reports between commands still reaches them.
+ *
+ * Needs ports 9010 to 9013 free. From the source directory:
+ * <pre>
+ *   javac -d out *.java check/*.java
+ *   java -cp out bcibot.ConnectionCheck
+ * </pre>
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	ConnectionCheck.java
+ */
+
+public class ConnectionCheck
+{
+	public static void main(String[] args) throws Exception
+	{
+		FakeRobot move = new FakeRobot(9010);
+		for (int port = 9011; port <= 9013; port++)
+			new FakeRobot(port);
+
+		ArchitectureClient client = new ArchitectureClient("127.0.0.1");
+		Connection c = client.getConnection("Move");
+		c.setDefaultTimeout(TIMEOUT);
+
+		//eight polls at up to TIMEOUT / 2 apart, well past TIMEOUT in all
+		long start = System.nanoTime();
+		PendingCommand slow = c.addCommand("slow 8");
+		slow.await(10000);
+		long took = (System.nanoTime() - start) / 1000000;
+		boolean ok = expect(slow.isSucceeded() && "done".equals(slow.getResponse()),
+				"a command answered with OKs for " + took + "ms outlives a " + TIMEOUT + "ms timeout: " + slow);
+		ok &= expect(took > TIMEOUT, "the slow command took longer than the timeout");
+
+		start = System.nanoTime();
+		PendingCommand silent = c.addCommand("silent");
+		silent.await(10000);
+		took = (System.nanoTime() - start) / 1000000;
+		ok &= expect(silent.isTimedOut() && silent.getError() instanceof CommandTimeoutException,
+				"a command the robot goes quiet on times out: " + silent);
+		ok &= expect(took >= TIMEOUT && took < TIMEOUT + 1000, "it times out after the silence, took " + took + "ms");
+		ok &= expect(c.getTimeoutCount() == 1, "the timeout is counted");
+
+		PendingCommand after = c.addCommand("quick");
+		after.await(10000);
+		ok &= expect(after.isSucceeded(), "the next command succeeds: " + after);
+		ok &= expect(move.accepted.get() == 2, "the connection reconnected after the timeout, "
+				+ move.accepted.get() + " connections");
+
+		final List<RobotEvent> sensed = new ArrayList<RobotEvent>();
+		client.getEventBus().subscribe(new RobotEventListener()
+		{
+			public void robotEvent(RobotEvent event)
+			{
+				synchronized (sensed)
+				{
+					sensed.add(event);
+					sensed.notifyAll();
+				}
+			}
+		}, RobotEvent.SENSOR, 64);
+
+		PendingCommand busy = c.addCommand("busy");
+		busy.await(10000);
+		ok &= expect(busy.isSucceeded() && "done".equals(busy.getResponse()),
+				"a sensor event during a command is not its answer: " + busy);
+		ok &= expect(awaitEvents(sensed, 1), "the sensor event during the command is published");
+
+		c.addCommand("later").await(10000);
+		ok &= expect(awaitEvents(sensed, 2) && sensed.get(1).getText().equals(IDLE_EVENT),
+				"a sensor event between commands is polled for and published: " + sensed);
+
+		client.close(2000);
+		System.out.println(ok ? "Connection checks passed" : "Connection checks FAILED");
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * Waits up to 5s for the listener to have seen count events
+	 */
+	private static boolean awaitEvents(List<RobotEvent> seen, int count) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 5000;
+		synchronized (seen)
+		{
+			while (seen.size() < count && System.currentTimeMillis() < deadline)
+				seen.wait(100);
+			return seen.size() >= count;
+		}
+	}
+
+	private static boolean expect(boolean passed, String what)
+	{
+		if (!passed)
+			System.out.println("FAILED: " + what);
+		return passed;
+	}
+
+	/**
+	 * Answers every command on one port the way the robot does. "slow n"
+	 * is answered "OK" and then "OK" to n events polls before "done";
+	 * "busy" reports a sensor event on its first poll before "done";
+	 * "later" is answered "done" and leaves a sensor event for the next idle
+	 * poll; "silent" is never answered; anything else is answered "done".
+	 */
+	private static class FakeRobot implements Runnable
+	{
+		FakeRobot(int port) throws Exception
+		{
+			server = new ServerSocket(port);
+			Thread t = new Thread(this, "Fake robot " + port);
+			t.setDaemon(true);
+			t.start();
+		}
+
+		public void run()
+		{
+			while (true)
+			{
+				try
+				{
+					final Socket s = server.accept();
+					accepted.incrementAndGet();
+					Thread t = new Thread(new Runnable()
+					{
+						public void run() {answer(s);}
+					}, "Fake robot connection");
+					t.setDaemon(true);
+					t.start();
+				}
+				catch (Exception e) {return;}
+			}
+		}
+
+		private void answer(Socket s)
+		{
+			try
+			{
+				BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+				PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+				int polls = -1;//events polls left to answer "OK", -1 when idle
+				String event = null;//reported at the next poll
+				String line;
+				while ((line = in.readLine()) != null)
+				{
+					line = line.trim();
+					if (line.length() == 0)
+						continue;
+					if (line.equals("events"))
+					{
+						if (event != null)
+						{
+							out.println(event);
+							event = null;
+						}
+						else if (polls > 0)
+						{
+							polls--;
+							out.println("OK");
+						}
+						else if (polls == 0)
+						{
+							polls = -1;
+							out.println("done");
+						}
+						else
+							out.println("OK");
+					}
+					else if (line.startsWith("slow"))
+					{
+						polls = Integer.parseInt(line.substring(5));
+						out.println("OK");
+					}
+					else if (line.equals("busy"))
+					{
+						polls = 0;
+						event = "ir sensor 30";
+						out.println("OK");
+					}
+					else if (line.equals("later"))
+					{
+						event = IDLE_EVENT;
+						out.println("done");
+					}
+					else if (!line.equals("silent"))
+						out.println("done");
+				}
+			}
+			catch (Exception e) {}
+		}
+
+		private final ServerSocket server;
+		final AtomicInteger accepted = new AtomicInteger();
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static final long TIMEOUT = 400;//ms of silence allowed
+	private static final String IDLE_EVENT = "bumper sensor 1";
+}
@@ -0,0 +1,266 @@
+package bcibot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Puts the EventBus subscription rings under load: events published from
+ * several threads reach a listener once each and in each thread's order, a
+ * listener that sleeps drops its own events without slowing publishers or
+ * other listeners, masks and cancel() are honoured, a throwing listener
+ * keeps getting events, and an idle delivery thread is woken at once rather
+ * than by its park timeout.
+ *
+ * Each check prints "ok" or "FAIL" and what it checked; the exit status is
+ * the number that failed. Run as java -cp out bcibot.EventBusCheck.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	EventBusCheck.java
+ */
+
+public class EventBusCheck
+{
+	public static void main(String[] args) throws Exception
+	{
+		checkOrder();
+		checkSlowListener();
+		checkMasksAndCancel();
+		checkThrowingListener();
+		checkWakeUp();
+
+		System.out.println((run - failed) + " of " + run + " event bus checks passed");
+		System.exit(failed);
+	}
+
+	/**
+	 * Four threads publish 20000 numbered events each into one roomy ring
+	 */
+	private static void checkOrder() throws InterruptedException
+	{
+		final EventBus bus = new EventBus();
+		final int threads = 4, each = 20000;
+		final int[] next = new int[threads];
+		final int[] outOfOrder = new int[1];
+		final Listener listener = new Listener()
+		{
+			void handle(RobotEvent event)
+			{
+				int p = event.getChannel().charAt(0) - '0';
+				if ((int)event.getValue() != next[p])
+					outOfOrder[0]++;
+				next[p] = (int)event.getValue() + 1;
+			}
+		};
+		EventSubscription s = bus.subscribe(listener, RobotEvent.ALL, threads * each);
+
+		Thread[] publishers = new Thread[threads];
+		for (int p = 0; p < threads; p++)
+		{
+			final String channel = String.valueOf(p);
+			publishers[p] = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					for (int i = 0; i < each; i++)
+						bus.publish(new RobotEvent(RobotEvent.SENSOR, channel, "ir sensor " + i, i, i));
+				}
+			});
+			publishers[p].start();
+		}
+		for (Thread t : publishers)
+			t.join();
+		awaitHandled(listener, threads * each);
+
+		verify(s.getDeliveredCount() == threads * each && s.getDroppedCount() == 0,
+				"a roomy ring delivers all " + threads * each + " events, got " + s.getDeliveredCount());
+		verify(outOfOrder[0] == 0 && Arrays.equals(next, new int[] {each, each, each, each}),
+				"each publisher's events arrive once and in order, " + outOfOrder[0] + " out of order");
+		s.cancel();
+	}
+
+	/**
+	 * A listener taking a millisecond an event, in a ring of 16, beside one that keeps up
+	 */
+	private static void checkSlowListener() throws InterruptedException
+	{
+		EventBus bus = new EventBus();
+		final List<Integer> slowSeen = new ArrayList<Integer>();
+		final Listener slowListener = new Listener()
+		{
+			void handle(RobotEvent event)
+			{
+				slowSeen.add((int)event.getValue());
+				try {Thread.sleep(1);}
+				catch (InterruptedException e) {}
+			}
+		};
+		EventSubscription slow = bus.subscribe(slowListener, RobotEvent.ALL, 16);
+		final Listener fastListener = new Listener()
+		{
+			void handle(RobotEvent event) {}
+		};
+		EventSubscription fast = bus.subscribe(fastListener, RobotEvent.ALL, 4096);
+
+		int events = 2000;
+		long start = System.nanoTime();
+		for (int i = 0; i < events; i++)
+			bus.publish(new RobotEvent(RobotEvent.SENSOR, "Move", "ir sensor", i, i));
+		long took = (System.nanoTime() - start) / 1000000;
+		awaitHandled(fastListener, events);
+		awaitHandled(slowListener, events - slow.getDroppedCount());
+
+		verify(took < events / 2, "publishing is not held up by the slow listener, took " + took + "ms");
+		verify(fast.getDeliveredCount() == events && fast.getDroppedCount() == 0,
+				"the listener that keeps up gets everything, " + fast.getDeliveredCount());
+		verify(slow.getDroppedCount() > 0 && slow.getDeliveredCount() + slow.getDroppedCount() == events,
+				"the slow one drops its own, " + slow.getDeliveredCount() + " delivered and "
+				+ slow.getDroppedCount() + " dropped");
+		boolean increasing = true;
+		for (int i = 1; i < slowSeen.size(); i++)
+			increasing &= slowSeen.get(i) > slowSeen.get(i - 1);
+		verify(increasing, "what the slow one does get is in order");
+		slow.cancel();
+		fast.cancel();
+	}
+
+	private static void checkMasksAndCancel() throws InterruptedException
+	{
+		EventBus bus = new EventBus();
+		final int[] sensors = new int[1];
+		final int[] others = new int[1];
+		final Listener listener = new Listener()
+		{
+			void handle(RobotEvent event)
+			{
+				if (event.getType() == RobotEvent.SENSOR)
+					sensors[0]++;
+				else
+					others[0]++;
+			}
+		};
+		EventSubscription s = bus.subscribe(listener, RobotEvent.SENSOR, 64);
+		verify(bus.hasSubscribers(RobotEvent.SENSOR) && !bus.hasSubscribers(RobotEvent.MOTION),
+				"hasSubscribers follows the mask");
+
+		for (int i = 0; i < 10; i++)
+		{
+			bus.publish(new RobotEvent(RobotEvent.MOTION, "Move", "move done", 0, i));
+			bus.publish(new RobotEvent(RobotEvent.SENSOR, "Move", "ir sensor", i, i));
+		}
+		awaitHandled(listener, 10);
+		verify(sensors[0] == 10 && others[0] == 0 && s.getDeliveredCount() == 10,
+				"only the masked type is delivered, " + sensors[0] + " sensor and " + others[0] + " other");
+
+		s.cancel();
+		bus.publish(new RobotEvent(RobotEvent.SENSOR, "Move", "ir sensor", 0, 0));
+		Thread.sleep(50);
+		verify(!s.isActive() && !bus.hasSubscribers() && sensors[0] == 10,
+				"a cancelled subscription is removed and gets nothing more");
+	}
+
+	/**
+	 * Every other event throws; the rest still arrive. The failures go to Log, silenced here.
+	 */
+	private static void checkThrowingListener() throws InterruptedException
+	{
+		int level = Log.getLevel();
+		Log.setLevel(Log.OFF);//the failures are expected
+		EventBus bus = new EventBus();
+		final int[] calls = new int[1];
+		final Listener listener = new Listener()
+		{
+			void handle(RobotEvent event)
+			{
+				if (calls[0]++ % 2 == 0)
+					throw new IllegalStateException("listener failure " + calls[0]);
+			}
+		};
+		EventSubscription s = bus.subscribe(listener, RobotEvent.ALL, 64);
+		for (int i = 0; i < 20; i++)
+			bus.publish(new RobotEvent(RobotEvent.ERROR, "Move", "error", i, i));
+		awaitHandled(listener, 20);
+		Log.setLevel(level);
+		verify(calls[0] == 20 && s.isActive(), "a listener that throws keeps getting events, " + calls[0] + " calls");
+		s.cancel();
+	}
+
+	/**
+	 * The delivery thread parks for up to 100ms as a safety net; a publish must unpark it
+	 */
+	private static void checkWakeUp() throws InterruptedException
+	{
+		EventBus bus = new EventBus();
+		final long[] received = new long[1];
+		final Listener listener = new Listener()
+		{
+			void handle(RobotEvent event)
+			{
+				synchronized (received)
+				{
+					received[0] = System.nanoTime();
+					received.notifyAll();
+				}
+			}
+		};
+		EventSubscription s = bus.subscribe(listener, RobotEvent.ALL, 64);
+
+		long[] latency = new long[21];
+		for (int i = 0; i < latency.length; i++)
+		{
+			Thread.sleep(20);//long enough for the delivery thread to park
+			long sent = System.nanoTime();
+			bus.publish(new RobotEvent(RobotEvent.SENSOR, "Move", "ir sensor", i, sent));
+			awaitHandled(listener, i + 1);
+			synchronized (received) {latency[i] = (received[0] - sent) / 1000;}
+		}
+		Arrays.sort(latency);
+		verify(latency[latency.length / 2] < 20000, "an idle subscriber is woken by the next event, median "
+				+ latency[latency.length / 2] + "us");
+		s.cancel();
+	}
+
+	/**
+	 * Waits up to 10s for a listener to have handled count events
+	 */
+	private static void awaitHandled(Listener listener, long count) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+		while (listener.handled.get() < count && System.currentTimeMillis() < deadline)
+			Thread.sleep(1);
+	}
+
+	private static void verify(boolean passed, String what)
+	{
+		run++;
+		if (!passed)
+			failed++;
+		System.out.println((passed ? "ok   " : "FAIL ") + what);
+	}
+
+	/**
+	 * Counts the events it has finished with, so the main thread sees
+	 * everything a listener did once the count is reached. The subscription's
+	 * delivered count goes up before the listener runs.
+	 */
+	private static abstract class Listener implements RobotEventListener
+	{
+		public final void robotEvent(RobotEvent event)
+		{
+			try {handle(event);}
+			finally {handled.incrementAndGet();}
+		}
+
+		abstract void handle(RobotEvent event);
+
+		final AtomicInteger handled = new AtomicInteger();
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static int run = 0;
+	private static int failed = 0;
+}
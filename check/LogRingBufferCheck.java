@@ -0,0 +1,141 @@
+package bcibot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Exercises the lock-free ring behind Log: single threaded for the size
+ * rounding, order and drop counting, then with several producer threads
+ * racing one consumer, where every message offered must come out exactly
+ * once, in its producer's order and with its own level, or be counted as
+ * dropped.
+ *
+ * java -cp out bcibot.LogRingBufferCheck [messages per producer], with the
+ * classes and the check/ directory compiled into out. Prints each problem
+ * found and exits with status 1 if there were any.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	LogRingBufferCheck.java
+ */
+
+public class LogRingBufferCheck
+{
+	public static void main(String[] args) throws Exception
+	{
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+		List<String> problems = new ArrayList<String>();
+		problems.addAll(singleThreaded());
+		problems.addAll(racing(4, messages, 1024));
+		problems.addAll(racing(8, messages / 4, 8));//mostly full, so most are dropped
+
+		for (String problem : problems)
+			System.out.println("PROBLEM: " + problem);
+		System.out.println("LogRingBuffer: " + (problems.isEmpty() ? "ok" : problems.size() + " problems"));
+		System.exit(problems.isEmpty() ? 0 : 1);
+	}
+
+	/**
+	 * A capacity of 5 holds 8, in order, and the ninth is dropped
+	 */
+	private static List<String> singleThreaded()
+	{
+		List<String> problems = new ArrayList<String>();
+		LogRingBuffer ring = new LogRingBuffer(5);
+		if (!ring.isEmpty() || ring.poll() != null)
+			problems.add("a new ring is not empty");
+		for (int i = 0; i < 8; i++)
+		{
+			if (!ring.offer(i % 3 + 1, "m" + i))
+				problems.add("message " + i + " refused by a ring rounded up to 8 slots");
+		}
+		if (ring.offer(Log.ERROR, "m8") || ring.dropped() != 1)
+			problems.add("a full ring took a ninth message, dropped " + ring.dropped());
+
+		for (int i = 0; i < 8; i++)
+		{
+			String m = ring.poll();
+			if (!("m" + i).equals(m) || ring.lastLevel() != i % 3 + 1)
+				problems.add("poll " + i + " gave " + m + " at level " + ring.lastLevel());
+		}
+		if (!ring.isEmpty() || ring.poll() != null)
+			problems.add("the ring is not empty once drained");
+		if (!ring.offer(Log.INFO, "again") || !"again".equals(ring.poll()))
+			problems.add("a drained ring does not take messages again");
+		return problems;
+	}
+
+	/**
+	 * Producers offer "p i" at level i % 3 + 1 while the consumer polls
+	 * @param producers int - producer threads
+	 * @param each int - messages offered by each
+	 * @param capacity int - slots in the ring
+	 */
+	private static List<String> racing(int producers, final int each, int capacity) throws InterruptedException
+	{
+		final LogRingBuffer ring = new LogRingBuffer(capacity);
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(producers);
+		final long[] accepted = new long[producers];
+		for (int p = 0; p < producers; p++)
+		{
+			final int id = p;
+			Thread t = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					try {start.await();}
+					catch (InterruptedException e) {return;}
+					for (int i = 0; i < each; i++)
+					{
+						if (ring.offer(i % 3 + 1, id + " " + i))
+							accepted[id]++;
+					}
+					finished.countDown();
+				}
+			}, "Producer " + p);
+			t.setDaemon(true);
+			t.start();
+		}
+
+		List<String> problems = new ArrayList<String>();
+		int[] next = new int[producers];//lowest sequence number each producer may still send
+		long received = 0;
+		long deadline = System.currentTimeMillis() + 10000;
+		start.countDown();
+		while (finished.getCount() > 0 || !ring.isEmpty())
+		{
+			String m = ring.poll();
+			if (m == null)
+			{
+				if (System.currentTimeMillis() > deadline)
+				{
+					problems.add("consumer stuck with " + received + " received, empty " + ring.isEmpty());
+					return problems;
+				}
+				Thread.yield();
+				continue;
+			}
+			received++;
+			int space = m.indexOf(' ');
+			int p = Integer.parseInt(m.substring(0, space));
+			int i = Integer.parseInt(m.substring(space + 1));
+			if (i < next[p] && problems.size() < 10)
+				problems.add("producer " + p + " message " + i + " came after " + (next[p] - 1));
+			if (ring.lastLevel() != i % 3 + 1 && problems.size() < 10)
+				problems.add("\"" + m + "\" came out at level " + ring.lastLevel());
+			next[p] = i + 1;
+		}
+
+		long offered = (long)producers * each, stored = 0;
+		for (long a : accepted)
+			stored += a;
+		String run = producers + " producers into " + capacity + " slots: ";
+		if (received != stored)
+			problems.add(run + stored + " accepted but " + received + " received");
+		if (stored + ring.dropped() != offered)
+			problems.add(run + stored + " accepted and " + ring.dropped() + " dropped of " + offered);
+		return problems;
+	}
+}
@@ -0,0 +1,264 @@
+package bcibot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the pose and mapping classes against plain arithmetic: Pose arcs
+ * against their closed form, DeadReckoning against the same Poses chained
+ * by hand, OccupancyGrid's Fenwick tree counts against counting the cells
+ * one by one after random updates, castRay against obstacles placed at
+ * known distances, and that rays from far off the map are clipped to it.
+ *
+ * Prints one line per area, with what failed in it, and exits with the
+ * number of areas that had failures. No robot is needed:
+ *   java -cp out bcibot.MappingCheck
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	MappingCheck.java
+ */
+
+public class MappingCheck
+{
+	public static void main(String[] args)
+	{
+		checkArcs();
+		report("arcs");
+		checkDeadReckoning();
+		report("dead reckoning");
+		checkRegionCounts();
+		report("region counts");
+		checkRays();
+		report("rays");
+		checkClipping();
+		report("clipping");
+		System.exit(failedAreas);
+	}
+
+	/**
+	 * Prints how an area went and starts the next one afresh
+	 */
+	private static void report(String area)
+	{
+		System.out.println(area + ": " + (failures.isEmpty() ? "ok" : failures.size() + " failed"));
+		for (String failure : failures)
+			System.out.println("    " + failure);
+		if (!failures.isEmpty())
+			failedAreas++;
+		failures.clear();
+	}
+
+	private static void checkArcs()
+	{
+		Pose origin = new Pose(0, 0, 0);
+		checkPose("quarter arc to the right", origin.arced(10, Math.PI / 2), 10, -10, -90);
+		checkPose("quarter arc to the left", origin.arced(-10, Math.PI / 2), 10, 10, 90);
+		checkPose("quarter arc backwards to the right", origin.arced(10, -Math.PI / 2), -10, -10, 90);
+		checkPose("zero radius spins to the right", origin.arced(0, Math.PI / 2), 0, 0, -90);
+		checkPose("move then turn then move", origin.moved(12).turned(Math.PI / 2).moved(12), 12, 12, 90);
+
+		Random random = new Random(2);
+		for (int i = 0; i < 1000; i++)
+		{
+			Pose start = new Pose(random.nextDouble() * 200 - 100, random.nextDouble() * 200 - 100,
+					random.nextDouble() * 2 * Math.PI);
+			double radius = random.nextDouble() * 100 - 50;
+			double angle = random.nextDouble() * 4 * Math.PI - 2 * Math.PI;
+			Pose back = start.arced(radius, angle).arced(radius, -angle);
+			if (!near(start, back))
+			{
+				check("arcing back along an arc returns to " + start + ", not " + back, false);
+				return;
+			}
+			Pose circle = start;
+			for (int q = 0; q < 4; q++)
+				circle = circle.arced(radius, Math.PI / 2);
+			if (!near(start, circle))
+			{
+				check("four quarter arcs return to " + start + ", not " + circle, false);
+				return;
+			}
+		}
+	}
+
+	private static void checkDeadReckoning()
+	{
+		DeadReckoning d = new DeadReckoning();
+		d.move(24);
+		d.turn(90);
+		d.arc(12, -90);
+		Pose expected = new Pose(0, 0, 0).moved(24).turned(Math.PI / 2).arced(12, -Math.PI / 2);
+		check("dead reckoning chains moves, turns and arcs", near(expected, d.getPose()));
+
+		d.untracked();
+		check("open-ended moves are counted", d.getUntrackedMoves() == 1);
+		d.setPose(new Pose(5, 5, 0));
+		check("setPose re-anchors", d.getUntrackedMoves() == 0 && near(new Pose(5, 5, 0), d.getPose()));
+	}
+
+	/**
+	 * Random hits and misses, then random rectangles counted both ways
+	 */
+	private static void checkRegionCounts()
+	{
+		int columns = 60, rows = 40;
+		double cell = 2;
+		OccupancyGrid grid = new OccupancyGrid(columns, rows, cell);
+		Random random = new Random(3);
+		double halfWidth = columns * cell / 2, halfHeight = rows * cell / 2;
+
+		for (int round = 0; round < 20; round++)
+		{
+			for (int i = 0; i < 300; i++)
+			{
+				double x = random.nextDouble() * 2 * halfWidth - halfWidth;
+				double y = random.nextDouble() * 2 * halfHeight - halfHeight;
+				grid.addRay(x, y, x, y, random.nextInt(3) == 0);
+			}
+			//long rays, some leaving the map, clear whole lines of cells
+			for (int i = 0; i < 5; i++)
+				grid.addRay(random.nextDouble() * 300 - 150, random.nextDouble() * 300 - 150,
+						random.nextDouble() * 300 - 150, random.nextDouble() * 300 - 150, random.nextBoolean());
+
+			check("occupied count after round " + round,
+					grid.getOccupiedCount() == countByCell(grid, -1e9, -1e9, 1e9, 1e9));
+			for (int i = 0; i < 200; i++)
+			{
+				double x0 = random.nextDouble() * 160 - 80, y0 = random.nextDouble() * 120 - 60;
+				double x1 = random.nextDouble() * 160 - 80, y1 = random.nextDouble() * 120 - 60;
+				int fast = grid.countOccupied(x0, y0, x1, y1);
+				int slow = countByCell(grid, x0, y0, x1, y1);
+				if (fast != slow)
+				{
+					check(String.format("count in (%.1f, %.1f)-(%.1f, %.1f): tree %d, cells %d",
+							x0, y0, x1, y1, fast, slow), false);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Obstacles at known distances along the axes and diagonals
+	 */
+	private static void checkRays()
+	{
+		double cell = 2;
+		OccupancyGrid grid = new OccupancyGrid(100, 100, cell);
+		double maxRange = 80;
+		check("an empty map is clear to maxRange", grid.castRay(1, 1, 0.3, maxRange) == maxRange);
+
+		//start in the middle of cell (50, 50), at (1, 1) inches
+		int[][] directions = {{1, 0}, {0, 1}, {-1, 0}, {0, -1}, {1, 1}, {-1, 1}, {-1, -1}, {1, -1}};
+		for (int k = 1; k <= 20; k += 3)
+		{
+			for (int[] d : directions)
+			{
+				grid.clear();
+				double ox = 1 + d[0] * k * cell, oy = 1 + d[1] * k * cell;
+				grid.addRay(ox, oy, ox, oy, true);
+				double angle = Math.atan2(d[1], d[0]);
+				double expected = Math.hypot(d[0] * k, d[1] * k) * cell;
+				double got = grid.castRay(1, 1, angle, maxRange);
+				check("ray " + Math.round(Math.toDegrees(angle)) + " deg to an obstacle " + k + " cells away: "
+						+ got + ", expected " + expected, Math.abs(got - Math.min(expected, maxRange)) < 1e-9);
+				check("ray the other way misses it", grid.castRay(1, 1, angle + Math.PI, maxRange) == maxRange);
+			}
+		}
+
+		grid.clear();
+		grid.addRay(1, 1, 1, 1, true);
+		check("the start cell does not stop its own ray", grid.castRay(1, 1, 0, maxRange) == maxRange);
+		check("a ray off the map stops at maxRange", grid.castRay(90, 1, 0, 500) == 500);
+	}
+
+	/**
+	 * A ray from far off the map marks the cells a ray from its edge does,
+	 * without walking the cells in between, and points too far off for a
+	 * cell number are off the map rather than wrapped onto it
+	 */
+	private static void checkClipping()
+	{
+		double cell = 2;
+		OccupancyGrid near = new OccupancyGrid(50, 30, cell);
+		OccupancyGrid far = new OccupancyGrid(50, 30, cell);
+		Random random = new Random(4);
+		for (int i = 0; i < 200; i++)
+		{
+			//from the left edge's line to a point on the map, and the same line from far away
+			double y = random.nextDouble() * 20 - 10, slope = random.nextDouble() * 0.02 - 0.01;
+			double x1 = random.nextDouble() * 80 - 40, y1 = y + slope * (x1 + 50);
+			boolean hit = random.nextBoolean();
+			near.addRay(-50, y, x1, y1, hit);
+			far.addRay(-50 - 1e8, y - slope * 1e8, x1, y1, hit);
+		}
+		boolean same = near.getOccupiedCount() == far.getOccupiedCount();
+		for (double x = -49; x < 50 && same; x += cell)
+			for (double y = -29; y < 30; y += cell)
+				same &= near.getProbability(x, y) == far.getProbability(x, y);
+		check("rays from far off the map mark what rays from its edge do", same);
+
+		long start = System.nanoTime();
+		far.addRay(-1e9, -1e9, 1e9, 1e9, true);
+		far.addRay(-1e9, 5e8, -2e9, 7e8, false);
+		check("rays far across or beside the map are quick",
+				System.nanoTime() - start < 100000000L && far.getUpdateCount() == 202);
+
+		far.clear();
+		far.addRay(0, 0, 0, 0, true);
+		check("huge points are off the map", !far.isOccupied(1e300, 0) && !far.isOccupied(0, -1e300)
+				&& !far.isOccupied(Double.NaN, 0) && far.getProbability(3e9, 3e9) == 0.5);
+		check("a huge rectangle counts the whole map", far.countOccupied(-1e300, -1e300, 1e300, 1e300) == 1);
+		check("a huge ray ends at the edge", far.castRay(20, 1, 0, 1e300) == 1e300);
+
+		double[][] bad = {{Double.NaN, 0}, {0, Double.POSITIVE_INFINITY}, {1e300, 0}};
+		for (double[] b : bad)
+		{
+			boolean thrown = false;
+			try {far.addRay(0, 0, b[0], b[1], false);}
+			catch (IllegalArgumentException e) {thrown = true;}
+			check("a ray to (" + b[0] + ", " + b[1] + ") is rejected", thrown);
+		}
+	}
+
+	/**
+	 * Occupied cells in a rectangle, one cell at a time
+	 */
+	private static int countByCell(OccupancyGrid grid, double x0, double y0, double x1, double y1)
+	{
+		double cell = grid.getCellSize();
+		int c0 = (int)Math.floor(Math.min(x0, x1) / cell), c1 = (int)Math.floor(Math.max(x0, x1) / cell);
+		int r0 = (int)Math.floor(Math.min(y0, y1) / cell), r1 = (int)Math.floor(Math.max(y0, y1) / cell);
+		int count = 0;
+		for (int c = Math.max(c0, -grid.getColumns() / 2); c <= Math.min(c1, grid.getColumns() / 2); c++)
+			for (int r = Math.max(r0, -grid.getRows() / 2); r <= Math.min(r1, grid.getRows() / 2); r++)
+				if (grid.isOccupied((c + 0.5) * cell, (r + 0.5) * cell))
+					count++;
+		return count;
+	}
+
+	private static void checkPose(String what, Pose pose, double x, double y, double degrees)
+	{
+		check(what + ": " + pose, near(new Pose(x, y, Math.toRadians(degrees)), pose));
+	}
+
+	private static boolean near(Pose a, Pose b)
+	{
+		double turn = Math.abs(Pose.normalize(a.getHeading() - b.getHeading()));
+		return a.distanceTo(b) < 1e-6 && turn < 1e-9;
+	}
+
+	private static void check(String what, boolean passed)
+	{
+		if (!passed)
+			failures.add(what);
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static final List<String> failures = new ArrayList<String>();//in the area being checked
+	private static int failedAreas = 0;
+}
@@ -0,0 +1,305 @@
+package bcibot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+/**
+ * Checks SkippingPublisher keeps the Flow rules under load: a subscriber
+ * gets no more than it requested, awaitDemand sleeps until someone asks,
+ * a subscriber that falls behind skips the oldest items but still ends on
+ * the newest without holding up publish or a subscriber that keeps up, a
+ * bad request or a throwing subscriber ends only that subscription, and
+ * close delivers what was asked for before completing.
+ *
+ * One line per case, then the exit status counts the failed cases:
+ *   java -cp out bcibot.SkippingPublisherCheck
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	SkippingPublisherCheck.java
+ */
+
+public class SkippingPublisherCheck
+{
+	public static void main(String[] args) throws Exception
+	{
+		String[] cases = {"demand", "awaitDemand", "skipping", "independent", "bad request", "failing subscriber", "close"};
+		int failed = 0;
+		for (String name : cases)
+		{
+			String problem = run(name);
+			System.out.println(String.format("%-20s %s", name, problem == null ? "ok" : "FAILED, " + problem));
+			if (problem != null)
+				failed++;
+		}
+		System.exit(failed);
+	}
+
+	/**
+	 * Runs one case
+	 * @return String - what went wrong, or null if nothing did
+	 */
+	private static String run(String name) throws Exception
+	{
+		if (name.equals("demand"))
+		{
+			SkippingPublisher<Integer> p = new SkippingPublisher<Integer>("demand", 16, ThreadMode.PLATFORM);
+			Recorder r = subscribe(p, 3, 0, false);
+			for (int i = 0; i < 10; i++)
+				p.publish(i);
+			r.await(3);
+			Thread.sleep(100);//time for a fourth to arrive, if it wrongly would
+			if (!r.got(0, 1, 2) || p.hasDemand())
+				return "requested 3 of 10, got " + r.items();
+			r.subscription.request(2);
+			r.await(5);
+			Thread.sleep(50);
+			if (!r.got(0, 1, 2, 3, 4) || p.getDeliveredCount() != 5)
+				return "requested 2 more, got " + r.items();
+			return null;
+		}
+		if (name.equals("awaitDemand"))
+		{
+			SkippingPublisher<Integer> p = new SkippingPublisher<Integer>("await", 1, ThreadMode.PLATFORM);
+			if (p.awaitDemand(50))
+				return "demand with nobody subscribed";
+			final Recorder r = subscribe(p, 0, 0, false);
+			if (p.awaitDemand(50))
+				return "demand before anything was requested";
+			Thread asker = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					try {Thread.sleep(100);}
+					catch (InterruptedException e) {}
+					r.subscription.request(1);
+				}
+			});
+			asker.start();
+			long start = System.nanoTime();
+			boolean woke = p.awaitDemand(5000);
+			long took = (System.nanoTime() - start) / 1000000;
+			if (!woke || took > 1000)
+				return "a request did not wake awaitDemand, " + woke + " after " + took + "ms";
+			p.close();
+			start = System.nanoTime();
+			if (p.awaitDemand(0) || System.nanoTime() - start > 100000000L)
+				return "awaitDemand on a closed publisher did not return false at once";
+			return null;
+		}
+		if (name.equals("skipping"))
+		{
+			SkippingPublisher<Integer> p = new SkippingPublisher<Integer>("skipping", 1, ThreadMode.PLATFORM);
+			Recorder r = subscribe(p, 1, 5, true);
+			long start = System.nanoTime();
+			for (int i = 0; i < 500; i++)
+				p.publish(i);
+			long took = (System.nanoTime() - start) / 1000000;
+			r.awaitLast(499);
+			long deadline = System.currentTimeMillis() + 5000;
+			while (p.getSkippedCount() + p.getDeliveredCount() < 500 && System.currentTimeMillis() < deadline)
+				Thread.sleep(1);//delivered is counted once onNext returns
+			List<Integer> items = r.items();
+			for (int i = 1; i < items.size(); i++)
+			{
+				if (items.get(i) <= items.get(i - 1))
+					return "went back from " + items.get(i - 1) + " to " + items.get(i);
+			}
+			if (took > 500)
+				return "publish waited for a slow subscriber, " + took + "ms for 500";
+			if (p.getSkippedCount() == 0 || p.getSkippedCount() + p.getDeliveredCount() != 500)
+				return p.getDeliveredCount() + " delivered and " + p.getSkippedCount() + " skipped of 500";
+			return null;
+		}
+		if (name.equals("independent"))
+		{
+			SkippingPublisher<Integer> p = new SkippingPublisher<Integer>("independent", 1000, ThreadMode.PLATFORM);
+			Recorder slow = subscribe(p, 1, 20, true);
+			Recorder fast = subscribe(p, Long.MAX_VALUE, 0, false);
+			for (int i = 0; i < 1000; i++)
+				p.publish(i);
+			fast.await(1000);
+			List<Integer> items = fast.items();
+			for (int i = 0; i < items.size(); i++)
+			{
+				if (items.get(i) != i)
+					return "the fast subscriber got " + items.get(i) + " as item " + i;
+			}
+			if (items.size() != 1000)
+				return "the fast subscriber got " + items.size() + " of 1000 beside a slow one";
+			slow.subscription.cancel();
+			return null;
+		}
+		if (name.equals("bad request"))
+		{
+			SkippingPublisher<Integer> p = new SkippingPublisher<Integer>("bad", 4, ThreadMode.PLATFORM);
+			Recorder good = subscribe(p, Long.MAX_VALUE, 0, false);
+			Recorder bad = subscribe(p, 0, 0, false);
+			bad.subscription.request(0);
+			bad.awaitEnd();
+			p.publish(1);
+			good.await(1);
+			if (!(bad.error instanceof IllegalArgumentException))
+				return "request(0) ended with " + bad.error;
+			if (p.getSubscriberCount() != 1 || !good.got(1))
+				return "the other subscriber was affected, " + p.getSubscriberCount() + " left";
+			return null;
+		}
+		if (name.equals("failing subscriber"))
+		{
+			int level = Log.getLevel();
+			Log.setLevel(Log.OFF);//the failure is expected
+			SkippingPublisher<Integer> p = new SkippingPublisher<Integer>("failing", 8, ThreadMode.PLATFORM);
+			Recorder r = subscribe(p, Long.MAX_VALUE, 0, false);
+			r.failOn = 2;
+			for (int i = 0; i < 5; i++)
+				p.publish(i);
+			long deadline = System.currentTimeMillis() + 5000;
+			while (p.getSubscriberCount() > 0 && System.currentTimeMillis() < deadline)
+				Thread.sleep(1);
+			Thread.sleep(50);
+			Log.setLevel(level);
+			if (p.getSubscriberCount() != 0 || !r.got(0, 1))
+				return "a subscriber that threw was not cancelled after its item, got " + r.items();
+			return null;
+		}
+		if (name.equals("close"))
+		{
+			SkippingPublisher<Integer> p = new SkippingPublisher<Integer>("close", 8, ThreadMode.PLATFORM);
+			Recorder r = subscribe(p, 0, 0, false);
+			for (int i = 0; i < 5; i++)
+				p.publish(i);
+			p.close();
+			p.publish(99);
+			r.subscription.request(3);
+			r.awaitEnd();
+			if (!r.completed || !r.got(0, 1, 2))
+				return "close then request(3) gave " + r.items() + ", completed " + r.completed;
+			Recorder late = subscribe(p, 1, 0, false);
+			late.awaitEnd();
+			if (!late.completed || !late.items().isEmpty())
+				return "subscribing after close did not complete at once";
+			return null;
+		}
+		return "no such case";
+	}
+
+	/**
+	 * Subscribes a Recorder and waits for its Subscription
+	 * @param first long - requested on subscribe, 0 for none
+	 * @param pauseMillis long - time taken over each item
+	 * @param more boolean - request one more after each item
+	 */
+	private static Recorder subscribe(SkippingPublisher<Integer> p, long first, long pauseMillis, boolean more)
+			throws InterruptedException
+	{
+		Recorder r = new Recorder(first, pauseMillis, more);
+		p.subscribe(r);
+		synchronized (r)
+		{
+			long deadline = System.currentTimeMillis() + 5000;
+			while (r.subscription == null && System.currentTimeMillis() < deadline)
+				r.wait(10);
+		}
+		return r;
+	}
+
+	/**
+	 * Keeps what it is given. Methods are called on the delivery thread and
+	 * read on the main thread, hence synchronized.
+	 */
+	private static class Recorder implements Flow.Subscriber<Integer>
+	{
+		Recorder(long _first, long _pauseMillis, boolean _more)
+		{
+			first = _first;
+			pauseMillis = _pauseMillis;
+			more = _more;
+		}
+
+		public synchronized void onSubscribe(Flow.Subscription s)
+		{
+			subscription = s;
+			if (first > 0)
+				s.request(first);
+			notifyAll();
+		}
+
+		public void onNext(Integer item)
+		{
+			synchronized (this)
+			{
+				if (items.size() == failOn)
+					throw new IllegalStateException("subscriber failure");
+				items.add(item);
+				notifyAll();
+			}
+			if (pauseMillis > 0)
+			{
+				try {Thread.sleep(pauseMillis);}
+				catch (InterruptedException e) {}
+			}
+			if (more)
+				subscription.request(1);
+		}
+
+		public synchronized void onError(Throwable t)
+		{
+			error = t;
+			notifyAll();
+		}
+
+		public synchronized void onComplete()
+		{
+			completed = true;
+			notifyAll();
+		}
+
+		synchronized List<Integer> items()
+		{
+			return new ArrayList<Integer>(items);
+		}
+
+		synchronized boolean got(int... expected)
+		{
+			if (items.size() != expected.length)
+				return false;
+			for (int i = 0; i < expected.length; i++)
+			{
+				if (items.get(i) != expected[i])
+					return false;
+			}
+			return true;
+		}
+
+		synchronized void await(int count) throws InterruptedException
+		{
+			long deadline = System.currentTimeMillis() + 5000;
+			while (items.size() < count && System.currentTimeMillis() < deadline)
+				wait(10);
+		}
+
+		synchronized void awaitLast(int item) throws InterruptedException
+		{
+			long deadline = System.currentTimeMillis() + 5000;
+			while ((items.isEmpty() || items.get(items.size() - 1) != item) && System.currentTimeMillis() < deadline)
+				wait(10);
+		}
+
+		synchronized void awaitEnd() throws InterruptedException
+		{
+			long deadline = System.currentTimeMillis() + 5000;
+			while (!completed && error == null && System.currentTimeMillis() < deadline)
+				wait(10);
+		}
+
+		private final long first;
+		private final long pauseMillis;
+		private final boolean more;
+		private final List<Integer> items = new ArrayList<Integer>();
+		volatile Flow.Subscription subscription;
+		volatile int failOn = -1;//number of items kept before onNext throws
+		Throwable error;
+		boolean completed = false;
+	}
+}
@@ -0,0 +1,213 @@
+package bcibot;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that StatusMonitor asks the robot once for any number of callers:
+ * sixteen threads asking together cause one STATUS query and all get its
+ * answer, a fresh enough answer is reused, and closing the monitor during a
+ * slow query releases everyone waiting on it at once. Also checks the fall
+ * back to local flags when the status port is missing or talks nonsense.
+ *
+ * Uses a fake status port on 9024 and listens on 9010 to 9013 so the client
+ * connects quietly. Stops at the first failure with exit status 1:
+ *   java -cp out bcibot.StatusMonitorCheck
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	StatusMonitorCheck.java
+ */
+
+public class StatusMonitorCheck
+{
+	public static void main(String[] args) throws Exception
+	{
+		for (int port = 9010; port <= 9013; port++)
+			new ServerSocket(port);//accepted by the system, never answered
+		ArchitectureClient client = new ArchitectureClient("127.0.0.1");
+		FakeStatusPort robot = new FakeStatusPort(STATUS_PORT);
+
+		try
+		{
+			checkSingleFlight(client, robot);
+			checkCloseReleasesWaiters(client, robot);
+			checkFallBack(client, robot);
+		}
+		catch (IllegalStateException e)
+		{
+			System.out.println("StatusMonitor check failed: " + e.getMessage());
+			System.exit(1);
+		}
+		System.out.println("StatusMonitor checks passed");
+		System.exit(0);
+	}
+
+	private static void checkSingleFlight(ArchitectureClient client, FakeStatusPort robot) throws Exception
+	{
+		final StatusMonitor monitor = new StatusMonitor(client, "127.0.0.1", STATUS_PORT);
+		robot.reply = "busy done done idle";
+		robot.delay = 300;
+
+		int callers = 16;
+		final CyclicBarrier together = new CyclicBarrier(callers);
+		final RobotStatus[] answers = new RobotStatus[callers];
+		Thread[] threads = new Thread[callers];
+		long start = System.nanoTime();
+		for (int i = 0; i < callers; i++)
+		{
+			final int n = i;
+			threads[i] = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						together.await();
+						answers[n] = monitor.getStatus(1000);
+					}
+					catch (Exception e) {}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread t : threads)
+			t.join(5000);
+		long took = (System.nanoTime() - start) / 1000000;
+
+		require(robot.queries.get() == 1 && monitor.getQueryCount() == 1,
+				callers + " callers at once sent " + robot.queries.get() + " queries, expected 1");
+		for (RobotStatus answer : answers)
+		{
+			require(answer != null && answer.isFromRobot() && !answer.isMoveDone() && answer.isGripperDone(),
+					"every caller gets the robot's answer, one got " + answer);
+		}
+		require(took < 2 * robot.delay, "the callers waited for one query, not one each: " + took + "ms");
+
+		monitor.getStatus(1000);
+		require(robot.queries.get() == 1, "an answer younger than the caller allows is reused");
+		Thread.sleep(5);
+		robot.reply = "done done done done";
+		require(monitor.getStatus(1).isMoveDone() && robot.queries.get() == 2,
+				"an answer older than the caller allows is asked again");
+		monitor.close();
+	}
+
+	/**
+	 * A query the robot takes 1.5s over, closed after 100ms
+	 */
+	private static void checkCloseReleasesWaiters(ArchitectureClient client, FakeStatusPort robot) throws Exception
+	{
+		final StatusMonitor monitor = new StatusMonitor(client, "127.0.0.1", STATUS_PORT);
+		robot.delay = 1500;
+		int callers = 8;
+		final CountDownLatch answered = new CountDownLatch(callers);
+		final AtomicInteger fromRobot = new AtomicInteger();
+		for (int i = 0; i < callers; i++)
+		{
+			Thread t = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					if (monitor.getStatus(0).isFromRobot())
+						fromRobot.incrementAndGet();
+					answered.countDown();
+				}
+			});
+			t.setDaemon(true);
+			t.start();
+		}
+		Thread.sleep(100);
+		long closed = System.nanoTime();
+		monitor.close();
+		boolean all = answered.await(1000, TimeUnit.MILLISECONDS);
+		long took = (System.nanoTime() - closed) / 1000000;
+
+		require(all && took < 500, "close releases the caller querying and those waiting on it, "
+				+ answered.getCount() + " still waiting after " + took + "ms");
+		require(fromRobot.get() == 0 && !monitor.isQueryAvailable(),
+				"released callers fall back to the local flags");
+	}
+
+	private static void checkFallBack(ArchitectureClient client, FakeStatusPort robot) throws Exception
+	{
+		StatusMonitor missing = new StatusMonitor(client, "127.0.0.1", STATUS_PORT + 1);
+		RobotStatus local = missing.getStatus(0);
+		require(!local.isFromRobot() && !missing.isQueryAvailable(), "a missing status port gives local flags");
+		missing.getStatus(0);
+		require(missing.getQueryCount() == 1, "a missing status port is not asked again");
+
+		robot.delay = 0;
+		robot.reply = "what?";
+		StatusMonitor confused = new StatusMonitor(client, "127.0.0.1", STATUS_PORT);
+		require(!confused.getStatus(0).isFromRobot() && !confused.isQueryAvailable(),
+				"a reply without four flags gives local flags");
+	}
+
+	private static void require(boolean passed, String what)
+	{
+		if (!passed)
+			throw new IllegalStateException(what);
+	}
+
+	/**
+	 * Answers each STATUS line with reply after delay ms, counting them
+	 */
+	private static class FakeStatusPort implements Runnable
+	{
+		FakeStatusPort(int port) throws Exception
+		{
+			server = new ServerSocket(port);
+			Thread t = new Thread(this, "Fake status port");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		public void run()
+		{
+			while (true)
+			{
+				final Socket s;
+				try {s = server.accept();}
+				catch (Exception e) {return;}
+				Thread t = new Thread(new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+							PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+							while (in.readLine() != null)
+							{
+								queries.incrementAndGet();
+								Thread.sleep(delay);
+								out.println(reply);
+							}
+						}
+						catch (Exception e) {}
+					}
+				}, "Fake status connection");
+				t.setDaemon(true);
+				t.start();
+			}
+		}
+
+		private final ServerSocket server;
+		final AtomicInteger queries = new AtomicInteger();
+		volatile String reply = "done done done done";
+		volatile long delay = 0;
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static final int STATUS_PORT = 9024;
+}
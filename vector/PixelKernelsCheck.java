@@ -0,0 +1,190 @@
+package bcibot;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import jdk.incubator.vector.IntVector;
+
+/**
+ * Checks that the vector kernels give exactly the scalar kernels' results,
+ * then times both on a frame sized buffer. Every kernel is compared on
+ * random pixels at lengths that leave every possible remainder after the
+ * last full vector, so the scalar tail loops are covered too.
+ *
+ * The vector module has to be added when compiling and when running:
+ * <pre>
+ *   javac --add-modules jdk.incubator.vector -d out *.java vector/*.java
+ *   java --add-modules jdk.incubator.vector -cp out bcibot.PixelKernelsCheck [pixels] [rounds]
+ * </pre>
+ * pixels defaults to 640x480 and rounds to 200; 0 rounds compares without
+ * timing. Any result that differs is printed with where it differs, and
+ * makes the exit status 1.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	PixelKernelsCheck.java
+ */
+
+public class PixelKernelsCheck
+{
+	public static void main(String[] args)
+	{
+		int pixels = args.length > 0 ? Integer.parseInt(args[0]) : 640 * 480;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+		PixelKernels scalar = PixelKernels.getScalar();
+		PixelKernels vector = new VectorPixelKernels();
+		int lanes = IntVector.SPECIES_PREFERRED.length();
+		System.out.println("Vector lanes: " + lanes);
+
+		int failures = 0;
+		for (int count = 0; count <= 4 * lanes + 1; count++)
+			failures += compare(scalar, vector, count, count);
+		failures += compare(scalar, vector, pixels, 12345);
+		if (failures > 0)
+		{
+			System.out.println(failures + " mismatches");
+			System.exit(1);
+		}
+		System.out.println("Vector results match scalar");
+		if (rounds <= 0)
+			return;
+
+		System.out.println(String.format("%-16s %12s %12s %8s", "kernel", "scalar ns/px", "vector ns/px", "speedup"));
+		for (int kernel = 0; kernel < NAMES.length; kernel++)
+		{
+			double s = time(scalar, kernel, pixels, rounds);
+			double v = time(vector, kernel, pixels, rounds);
+			System.out.println(String.format("%-16s %12.3f %12.3f %7.2fx", NAMES[kernel], s, v, s / v));
+		}
+	}
+
+	/**
+	 * Runs every kernel on both backends and counts the results that differ
+	 */
+	private static int compare(PixelKernels scalar, PixelKernels vector, int count, long seed)
+	{
+		Random random = new Random(seed);
+		int[] rgb = randomPixels(random, count);
+		int color = random.nextInt(0x1000000);
+		for (int i = 0; i < count; i += 3)
+			rgb[i] = near(random, color, 20);//so some pixels match the colour
+		int failures = 0;
+
+		int[][] s = buffers(4, count);
+		int[][] v = buffers(4, count);
+
+		scalar.toGray(rgb, s[0], count);
+		vector.toGray(rgb, v[0], count);
+		failures += check("toGray", count, s[0], v[0]);
+
+		for (int threshold : new int[] {0, 1, 128, 255, 256})
+		{
+			scalar.threshold(s[0], s[1], count, threshold);
+			vector.threshold(s[0], v[1], count, threshold);
+			failures += check("threshold " + threshold, count, s[1], v[1]);
+		}
+
+		for (int tolerance : new int[] {0, 10, 20, 255})
+		{
+			scalar.matchColor(rgb, s[1], count, color, tolerance);
+			vector.matchColor(rgb, v[1], count, color, tolerance);
+			failures += check("matchColor " + tolerance, count, s[1], v[1]);
+		}
+
+		for (int channel = PixelKernels.RED; channel <= PixelKernels.BLUE; channel++)
+		{
+			scalar.extractChannel(rgb, channel, s[1], count);
+			vector.extractChannel(rgb, channel, v[1], count);
+			failures += check("extractChannel " + channel, count, s[1], v[1]);
+		}
+
+		scalar.unpack(rgb, s[1], s[2], s[3], count);
+		vector.unpack(rgb, v[1], v[2], v[3], count);
+		failures += check("unpack red", count, s[1], v[1]);
+		failures += check("unpack green", count, s[2], v[2]);
+		failures += check("unpack blue", count, s[3], v[3]);
+
+		//channels with bits above the low 8, which pack must drop
+		int[] red = randomPixels(random, count);
+		scalar.pack(red, s[2], s[3], s[0], count);
+		vector.pack(red, s[2], s[3], v[0], count);
+		failures += check("pack", count, s[0], v[0]);
+		return failures;
+	}
+
+	private static int check(String kernel, int count, int[] expected, int[] actual)
+	{
+		if (Arrays.equals(expected, actual))
+			return 0;
+		int i = Arrays.mismatch(expected, actual);
+		System.out.println(kernel + " differs at " + i + " of " + count + ": scalar "
+				+ expected[i] + ", vector " + actual[i]);
+		return 1;
+	}
+
+	/**
+	 * Mean time per pixel of one kernel, after a warm-up so both backends are compiled
+	 * @return double - nanoseconds per pixel
+	 */
+	private static double time(PixelKernels kernels, int kernel, int count, int rounds)
+	{
+		int[] rgb = randomPixels(new Random(1), count);
+		int[][] out = buffers(3, count);
+		for (int i = 0; i < rounds; i++)
+			run(kernels, kernel, rgb, out, count);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < rounds; i++)
+			run(kernels, kernel, rgb, out, count);
+		return (System.nanoTime() - start) / (double)rounds / Math.max(1, count);
+	}
+
+	private static void run(PixelKernels kernels, int kernel, int[] rgb, int[][] out, int count)
+	{
+		switch (kernel)
+		{
+			case 0: kernels.toGray(rgb, out[0], count); break;
+			case 1: kernels.threshold(rgb, out[0], count, 0x800000); break;
+			case 2: kernels.matchColor(rgb, out[0], count, 0x336699, 24); break;
+			case 3: kernels.extractChannel(rgb, PixelKernels.GREEN, out[0], count); break;
+			case 4: kernels.unpack(rgb, out[0], out[1], out[2], count); break;
+			default: kernels.pack(out[0], out[1], out[2], rgb, count); break;
+		}
+	}
+
+	private static int[] randomPixels(Random random, int count)
+	{
+		int[] pixels = new int[count];
+		for (int i = 0; i < count; i++)
+			pixels[i] = random.nextInt();
+		return pixels;
+	}
+
+	/**
+	 * A colour whose channels are each within spread of another's
+	 */
+	private static int near(Random random, int color, int spread)
+	{
+		int result = 0;
+		for (int shift = 0; shift <= 16; shift += 8)
+		{
+			int c = (color >> shift & 0xFF) + random.nextInt(2 * spread + 1) - spread;
+			result |= Math.max(0, Math.min(255, c)) << shift;
+		}
+		return result;
+	}
+
+	private static int[][] buffers(int n, int count)
+	{
+		int[][] b = new int[n][];
+		for (int i = 0; i < n; i++)
+			b[i] = new int[count];
+		return b;
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static final String[] NAMES = {"toGray", "threshold", "matchColor", "extractChannel", "unpack", "pack"};
+}
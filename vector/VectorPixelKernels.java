@@ -0,0 +1,125 @@
+package bcibot;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * PixelKernels using the jdk.incubator.vector API, working on as many pixels
+ * per instruction as the CPU's widest vectors hold (8 with AVX2, 16 with
+ * AVX-512). Pixels left over after the last full vector go through the
+ * scalar loops.
+ *
+ * Kept out of the main source directory because it only compiles with the
+ * incubator module:
+ * <pre>
+ *   javac --add-modules jdk.incubator.vector -d out *.java vector/*.java
+ *   java --add-modules jdk.incubator.vector ...
+ * </pre>
+ * PixelKernels.getDefault() loads it by name and falls back to the scalar
+ * backend when it is missing.
+ *
+ * Project:	Robot_Architecture_Client
+ * File: 	VectorPixelKernels.java
+ */
+
+class VectorPixelKernels extends PixelKernels
+{
+	public String getName()
+	{
+		return "vector";
+	}
+
+	public void toGray(int[] rgb, int[] gray, int count)
+	{
+		int i = 0;
+		for (int upper = SPECIES.loopBound(count); i < upper; i += LANES)
+		{
+			IntVector p = IntVector.fromArray(SPECIES, rgb, i);
+			IntVector r = p.lanewise(VectorOperators.LSHR, 16).and(0xFF);
+			IntVector g = p.lanewise(VectorOperators.LSHR, 8).and(0xFF);
+			IntVector b = p.and(0xFF);
+			r.mul(GRAY_RED).add(g.mul(GRAY_GREEN)).add(b.mul(GRAY_BLUE))
+					.lanewise(VectorOperators.LSHR, 8).intoArray(gray, i);
+		}
+		ScalarPixelKernels.toGray(rgb, gray, i, count);
+	}
+
+	public void threshold(int[] values, int[] mask, int count, int threshold)
+	{
+		IntVector on = IntVector.broadcast(SPECIES, 255);
+		IntVector off = IntVector.zero(SPECIES);
+		int i = 0;
+		for (int upper = SPECIES.loopBound(count); i < upper; i += LANES)
+		{
+			VectorMask<Integer> above = IntVector.fromArray(SPECIES, values, i)
+					.compare(VectorOperators.GE, threshold);
+			off.blend(on, above).intoArray(mask, i);
+		}
+		ScalarPixelKernels.threshold(values, mask, i, count, threshold);
+	}
+
+	public void matchColor(int[] rgb, int[] mask, int count, int color, int tolerance)
+	{
+		int r = (color >> 16) & 0xFF, g = (color >> 8) & 0xFF, b = color & 0xFF;
+		IntVector on = IntVector.broadcast(SPECIES, 255);
+		IntVector off = IntVector.zero(SPECIES);
+		int i = 0;
+		for (int upper = SPECIES.loopBound(count); i < upper; i += LANES)
+		{
+			IntVector p = IntVector.fromArray(SPECIES, rgb, i);
+			VectorMask<Integer> near = p.lanewise(VectorOperators.LSHR, 16).and(0xFF).sub(r).abs()
+					.compare(VectorOperators.LE, tolerance)
+					.and(p.lanewise(VectorOperators.LSHR, 8).and(0xFF).sub(g).abs().compare(VectorOperators.LE, tolerance))
+					.and(p.and(0xFF).sub(b).abs().compare(VectorOperators.LE, tolerance));
+			off.blend(on, near).intoArray(mask, i);
+		}
+		ScalarPixelKernels.matchColor(rgb, mask, i, count, color, tolerance);
+	}
+
+	public void extractChannel(int[] rgb, int channel, int[] values, int count)
+	{
+		int shift = shift(channel);
+		int i = 0;
+		for (int upper = SPECIES.loopBound(count); i < upper; i += LANES)
+		{
+			IntVector.fromArray(SPECIES, rgb, i).lanewise(VectorOperators.LSHR, shift)
+					.and(0xFF).intoArray(values, i);
+		}
+		ScalarPixelKernels.extractChannel(rgb, shift, values, i, count);
+	}
+
+	public void unpack(int[] rgb, int[] red, int[] green, int[] blue, int count)
+	{
+		int i = 0;
+		for (int upper = SPECIES.loopBound(count); i < upper; i += LANES)
+		{
+			IntVector p = IntVector.fromArray(SPECIES, rgb, i);
+			p.lanewise(VectorOperators.LSHR, 16).and(0xFF).intoArray(red, i);
+			p.lanewise(VectorOperators.LSHR, 8).and(0xFF).intoArray(green, i);
+			p.and(0xFF).intoArray(blue, i);
+		}
+		ScalarPixelKernels.unpack(rgb, red, green, blue, i, count);
+	}
+
+	public void pack(int[] red, int[] green, int[] blue, int[] rgb, int count)
+	{
+		int i = 0;
+		for (int upper = SPECIES.loopBound(count); i < upper; i += LANES)
+		{
+			IntVector r = IntVector.fromArray(SPECIES, red, i).and(0xFF).lanewise(VectorOperators.LSHL, 16);
+			IntVector g = IntVector.fromArray(SPECIES, green, i).and(0xFF).lanewise(VectorOperators.LSHL, 8);
+			IntVector b = IntVector.fromArray(SPECIES, blue, i).and(0xFF);
+			r.or(g).or(b).intoArray(rgb, i);
+		}
+		ScalarPixelKernels.pack(red, green, blue, rgb, i, count);
+	}
+
+	//**************************************************************************
+	//Instance Variables********************************************************
+	//**************************************************************************
+
+	private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+	private static final int LANES = SPECIES.length();
+}